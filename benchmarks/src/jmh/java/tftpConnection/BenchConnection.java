@@ -0,0 +1,41 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * Minimal concrete connection so benchmarks can reach the protected transfer
+ * helpers of TFTPConnection
+ *
+ * @author BLoo
+ */
+class BenchConnection extends TFTPConnection {
+
+    BenchConnection() {
+	this.verbose = false;
+    }
+
+    /**
+     * Sends a packet to an in-memory socket that is never read so that the
+     * connection has a last sent packet for isNext and isLast to compare against
+     *
+     * @param packet
+     *            - the packet that will become the last sent packet
+     * @throws IOException
+     */
+    void setLastSent(byte[] packet) throws IOException {
+	MemoryNetwork network = new MemoryNetwork();
+	try (DatagramTransport sink = network.open(null, 0); DatagramTransport socket = network.open(null, 0)) {
+	    send(packet, socket, InetAddress.getLoopbackAddress(), sink.getLocalPort());
+	}
+    }
+
+    boolean validate(DatagramPacket packet) {
+	return validatePacket(packet, null);
+    }
+
+    @Override
+    public void takeInput(String s) {
+    }
+}
@@ -0,0 +1,67 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Packets per second through the in-memory network compared with UDP over
+ * loopback, one full data block sent and received per operation
+ *
+ * @author BLoo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MemoryNetworkBenchmark {
+
+    private DatagramTransport memorySender, memoryReceiver, udpSender, udpReceiver;
+    private DatagramPacket toMemory, toUdp, received;
+
+    @Setup
+    public void setup() throws IOException {
+	MemoryNetwork network = new MemoryNetwork();
+	memorySender = network.open(null, 0);
+	memoryReceiver = network.open(null, 1000);
+	udpSender = UdpTransport.FACTORY.open(null, 0);
+	udpReceiver = UdpTransport.FACTORY.open(null, 1000);
+
+	byte[] data = TFTPPacket.createData(1, new byte[TFTPConnection.MAX_DATA_SIZE]);
+	InetAddress loopback = InetAddress.getLoopbackAddress();
+	toMemory = new DatagramPacket(data, data.length, loopback, memoryReceiver.getLocalPort());
+	toUdp = new DatagramPacket(data, data.length, loopback, udpReceiver.getLocalPort());
+	received = new DatagramPacket(new byte[data.length], data.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+	memorySender.close();
+	memoryReceiver.close();
+	udpSender.close();
+	udpReceiver.close();
+    }
+
+    @Benchmark
+    public int memory() throws IOException {
+	memorySender.send(toMemory);
+	memoryReceiver.receive(received);
+	return received.getLength();
+    }
+
+    @Benchmark
+    public int udp() throws IOException {
+	udpSender.send(toUdp);
+	udpReceiver.receive(received);
+	return received.getLength();
+    }
+}
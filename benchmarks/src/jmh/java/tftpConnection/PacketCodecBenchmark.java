@@ -0,0 +1,129 @@
+package tftpConnection;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput and allocation of building and parsing packets with TFTPPacket.
+ * Run with -prof gc (the default for :benchmarks:jmh) to see bytes allocated
+ * per operation.
+ *
+ * @author BLoo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PacketCodecBenchmark {
+
+    private byte[] fileName;
+    private byte[] block;
+    private byte[] errorMsg;
+
+    private DatagramPacket rrq, data, ack, error;
+
+    @Setup
+    public void setup() {
+	fileName = "silmarilion.txt".getBytes();
+	errorMsg = "File not found".getBytes();
+	block = new byte[TFTPConnection.MAX_DATA_SIZE];
+	for (int i = 0; i < block.length; i++)
+	    block[i] = (byte) ('a' + i % 26);
+
+	rrq = packet(TFTPPacket.createRQ(TFTPPacket.OP_RRQ, fileName, TFTPPacket.MODE_OCTET));
+	data = packet(TFTPPacket.createData(1234, block));
+	ack = packet(TFTPPacket.createAck(1234));
+	error = packet(TFTPPacket.createError(1, errorMsg));
+    }
+
+    static DatagramPacket packet(byte[] bytes) {
+	return new DatagramPacket(bytes, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] createRQ() {
+	return TFTPPacket.createRQ(TFTPPacket.OP_RRQ, fileName, TFTPPacket.MODE_OCTET);
+    }
+
+    @Benchmark
+    public byte[] createData() {
+	return TFTPPacket.createData(1234, block);
+    }
+
+    @Benchmark
+    public byte[] createAck() {
+	return TFTPPacket.createAck(1234);
+    }
+
+    @Benchmark
+    public byte[] createError() {
+	return TFTPPacket.createError(1, errorMsg);
+    }
+
+    @Benchmark
+    public byte[] readToStopData() {
+	return TFTPPacket.readToStop(4, data.getData(), data.getLength());
+    }
+
+    @Benchmark
+    public byte[] readToStopFileName() {
+	return TFTPPacket.readToStop(2, rrq.getData(), rrq.getLength());
+    }
+
+    @Benchmark
+    public int getType() {
+	return TFTPPacket.getType(data);
+    }
+
+    @Benchmark
+    public int getBlockNum() {
+	return TFTPPacket.getBlockNum(ack);
+    }
+
+    @Benchmark
+    public int getDataLength() {
+	return TFTPPacket.getDataLength(data);
+    }
+
+    @Benchmark
+    public byte[] getByteData() {
+	return TFTPPacket.getByteData(data);
+    }
+
+    @Benchmark
+    public String getData() {
+	return TFTPPacket.getData(data);
+    }
+
+    @Benchmark
+    public String getFileName() {
+	return TFTPPacket.getFileName(rrq);
+    }
+
+    @Benchmark
+    public String getMode() {
+	return TFTPPacket.getMode(rrq);
+    }
+
+    @Benchmark
+    public int getError() {
+	return TFTPPacket.getError(error);
+    }
+
+    @Benchmark
+    public String getErrorMsg() {
+	return TFTPPacket.getErrorMsg(error);
+    }
+
+    @Benchmark
+    public String packetToString() {
+	return TFTPPacket.toString(data);
+    }
+}
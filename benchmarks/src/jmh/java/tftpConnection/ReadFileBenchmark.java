@@ -0,0 +1,57 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput and allocation of splitting a file into data blocks with
+ * readFile
+ *
+ * @author BenjaminP
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadFileBenchmark {
+
+    @Param({ "512", "65536", "1048576" })
+    public int size;
+
+    private BenchConnection connection;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	byte[] contents = new byte[size];
+	for (int i = 0; i < contents.length; i++)
+	    contents[i] = (byte) ('a' + i % 26);
+
+	file = File.createTempFile("readFile", ".txt");
+	Files.write(file.toPath(), contents);
+	connection = new BenchConnection();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	file.delete();
+    }
+
+    @Benchmark
+    public ArrayList<byte[]> readFile() throws IOException {
+	return connection.readFile(file.getPath());
+    }
+}
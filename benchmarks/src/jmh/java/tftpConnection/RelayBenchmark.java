@@ -0,0 +1,99 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Round trips of a full data block through the ErrorSimulator's relay compared
+ * with the same round trip straight to the other end, the difference is what
+ * the relay costs a transfer
+ *
+ * @author BLoo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RelayBenchmark {
+
+    private static final int ESIM_PORT = 16923;
+    private static final int SERVER_PORT = 16969;
+
+    private ErrorSimulator errorSim;
+    private DatagramSocket serverRequests, serverTransfer, client;
+    private DatagramPacket toRelay, toServer, received;
+
+    @Setup
+    public void setup() throws IOException {
+	errorSim = new ErrorSimulator(ESIM_PORT, SERVER_PORT, false, UdpTransport.FACTORY);
+	new Thread(errorSim.getRelay(), "Relay").start();
+	serverRequests = new DatagramSocket(SERVER_PORT);
+	serverTransfer = new DatagramSocket();
+	client = new DatagramSocket();
+	client.setSoTimeout(1000);
+	InetAddress localhost = InetAddress.getLocalHost();
+
+	// open a session, the server answers the request from its transfer port
+	byte[] request = TFTPPacket.createRQ(TFTPPacket.OP_RRQ, "bench".getBytes(), "octet".getBytes());
+	client.send(new DatagramPacket(request, request.length, localhost, ESIM_PORT));
+	DatagramPacket requestPacket = new DatagramPacket(new byte[516], 516);
+	serverRequests.receive(requestPacket);
+	byte[] data = TFTPPacket.createData(1, new byte[TFTPConnection.MAX_DATA_SIZE]);
+	serverTransfer.send(new DatagramPacket(data, data.length, requestPacket.getSocketAddress()));
+	received = new DatagramPacket(new byte[516], 516);
+	client.receive(received);
+
+	toRelay = new DatagramPacket(data, data.length, received.getSocketAddress());
+	toServer = new DatagramPacket(data, data.length, localhost, serverTransfer.getLocalPort());
+	Thread echo = new Thread(this::echo, "Echo");
+	echo.setDaemon(true);
+	echo.start();
+    }
+
+    // The server's end, sends every packet back where it came from
+    private void echo() {
+	DatagramPacket packet = new DatagramPacket(new byte[516], 516);
+	try {
+	    while (true) {
+		packet.setLength(516);
+		serverTransfer.receive(packet);
+		serverTransfer.send(packet);
+	    }
+	} catch (IOException e) {
+	    // closed by tearDown
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	errorSim.shutdown();
+	serverRequests.close();
+	serverTransfer.close();
+	client.close();
+    }
+
+    @Benchmark
+    public int relayed() throws IOException {
+	client.send(toRelay);
+	client.receive(received);
+	return received.getLength();
+    }
+
+    @Benchmark
+    public int direct() throws IOException {
+	client.send(toServer);
+	client.receive(received);
+	return received.getLength();
+    }
+}
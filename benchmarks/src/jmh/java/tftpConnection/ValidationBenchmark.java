@@ -0,0 +1,78 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput and allocation of the checks run on every received packet:
+ * validatePacket, isNext and isLast
+ *
+ * @author BLoo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ValidationBenchmark {
+
+    private BenchConnection connection;
+    private DatagramPacket rrq, data, ack, error;
+    private DatagramPacket nextAck, lastAck;
+
+    @Setup
+    public void setup() throws IOException {
+	byte[] block = new byte[TFTPConnection.MAX_DATA_SIZE];
+	for (int i = 0; i < block.length; i++)
+	    block[i] = (byte) ('a' + i % 26);
+
+	rrq = PacketCodecBenchmark
+		.packet(TFTPPacket.createRQ(TFTPPacket.OP_RRQ, "test.txt".getBytes(), TFTPPacket.MODE_OCTET));
+	data = PacketCodecBenchmark.packet(TFTPPacket.createData(7, block));
+	ack = PacketCodecBenchmark.packet(TFTPPacket.createAck(7));
+	error = PacketCodecBenchmark.packet(TFTPPacket.createError(1, "File not found".getBytes()));
+
+	// the connection last sent DATA block 7, so ACK 7 is next and ACK 6 is last
+	connection = new BenchConnection();
+	connection.setLastSent(TFTPPacket.createData(7, block));
+	nextAck = ack;
+	lastAck = PacketCodecBenchmark.packet(TFTPPacket.createAck(6));
+    }
+
+    @Benchmark
+    public boolean validateRQ() {
+	return connection.validate(rrq);
+    }
+
+    @Benchmark
+    public boolean validateData() {
+	return connection.validate(data);
+    }
+
+    @Benchmark
+    public boolean validateAck() {
+	return connection.validate(ack);
+    }
+
+    @Benchmark
+    public boolean validateError() {
+	return connection.validate(error);
+    }
+
+    @Benchmark
+    public boolean isNext() {
+	return connection.isNext(nextAck);
+    }
+
+    @Benchmark
+    public boolean isLast() {
+	return connection.isLast(lastAck);
+    }
+}
@@ -0,0 +1,83 @@
+package tftpConnection;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Renders the reports written by the benchmark tools. Values are maps, lists,
+ * numbers, strings, booleans or null, maps keep their iteration order so a
+ * LinkedHashMap gives a stable layout for diffing between runs.
+ *
+ * @author BLoo
+ */
+final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Renders a value as indented JSON
+     *
+     * @param value
+     *            - the value to render
+     * @return the JSON text
+     */
+    static String toJson(Object value) {
+	StringBuilder out = new StringBuilder();
+	write(out, value, "");
+	return out.append('\n').toString();
+    }
+
+    private static void write(StringBuilder out, Object value, String indent) {
+	if (value == null) {
+	    out.append("null");
+	} else if (value instanceof Map) {
+	    String inner = indent + "  ";
+	    out.append('{');
+	    boolean first = true;
+	    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+		out.append(first ? "\n" : ",\n").append(inner);
+		string(out, String.valueOf(entry.getKey()));
+		out.append(": ");
+		write(out, entry.getValue(), inner);
+		first = false;
+	    }
+	    out.append(first ? "}" : "\n" + indent + "}");
+	} else if (value instanceof Collection) {
+	    String inner = indent + "  ";
+	    out.append('[');
+	    boolean first = true;
+	    for (Object element : (Collection<?>) value) {
+		out.append(first ? "\n" : ",\n").append(inner);
+		write(out, element, inner);
+		first = false;
+	    }
+	    out.append(first ? "]" : "\n" + indent + "]");
+	} else if (value instanceof Double || value instanceof Float) {
+	    double number = ((Number) value).doubleValue();
+	    if (Double.isNaN(number) || Double.isInfinite(number))
+		out.append("null");
+	    else if (number == Math.rint(number) && Math.abs(number) < 1e15)
+		out.append((long) number);
+	    else
+		out.append(Math.round(number * 1000) / 1000.0);
+	} else if (value instanceof Number || value instanceof Boolean) {
+	    out.append(value);
+	} else {
+	    string(out, value.toString());
+	}
+    }
+
+    private static void string(StringBuilder out, String value) {
+	out.append('"');
+	for (char c : value.toCharArray()) {
+	    if (c == '"' || c == '\\')
+		out.append('\\').append(c);
+	    else if (c < 0x20)
+		out.append(String.format("\\u%04x", (int) c));
+	    else
+		out.append(c);
+	}
+	out.append('"');
+    }
+}
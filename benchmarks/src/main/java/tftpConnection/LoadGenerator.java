@@ -0,0 +1,603 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Simulates many TFTP clients against a server to find its saturation point.
+ * All simulated clients share one selector thread, each transfer only costs a
+ * non-blocking DatagramChannel and a 516 byte buffer, so thousands can run at
+ * once (raise the open file limit with ulimit -n first).
+ *
+ * By default the load is a closed loop: --clients simulated clients are started
+ * evenly over --ramp-up seconds and each waits an exponentially distributed
+ * think time between its transfers. With --rate the load is an open loop
+ * instead: transfers arrive as a Poisson process whose rate climbs to --rate
+ * over the ramp up, --clients then caps how many run at once and arrivals
+ * beyond it are counted as rejected.
+ *
+ * Options, all optional:
+ *
+ * <pre>
+ * --host HOST --port 69          the server, the local host and tftp.properties by default
+ * --embedded true                start a Server in this process on --port instead
+ * --clients 1000                 simulated clients
+ * --rate 0                       transfers per second, 0 for a closed loop
+ * --think 1000                   mean think time in ms between a client's transfers
+ * --ramp-up 10 --duration 60     seconds
+ * --read 0.9                     fraction of requests that are RRQs, the rest are WRQs
+ * --sizes 512:50,64K:40,1M:10    file sizes and their weights
+ * --timeout 2000 --retries 5     per block, handler.timeout and transmit.limit by default
+ * --dir DIR                      where RRQ files are created and WRQ files are written, must be
+ *                                the same path on the server, a temporary directory by default
+ * --interval 5                   seconds between progress reports
+ * --seed 1                       random seed so runs can be repeated
+ * --out load.json                the report, - for standard output
+ * </pre>
+ *
+ * @author BLoo
+ */
+public class LoadGenerator {
+
+    private static final int MAX_DATA_SIZE = 512;
+    private static final byte[] MODE_OCTET = "octet".getBytes();
+    private static final byte[] FILLER = new byte[MAX_DATA_SIZE]; // readToStop ends data at a zero byte
+    static {
+	for (int i = 0; i < FILLER.length; i++)
+	    FILLER[i] = (byte) ('a' + i % 26);
+    }
+
+    private final Options options;
+    private final InetSocketAddress server;
+    private final Selector selector;
+    private final Random random;
+    private final File dir;
+
+    protected final int maxClients;
+    private final double rate;
+    private final double thinkMillis;
+    private final long rampUpNanos, durationNanos, timeoutNanos, intervalNanos;
+    private final int transmitLimit;
+    private final double readFraction;
+    private final long[] sizes;
+    private final double[] cumulativeWeights;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(65536);
+    private long[] nextStart; // closed loop only, when each client starts its next transfer, -1 while busy
+    private long nextArrival; // open loop only
+    private long uploadCount;
+
+    private final Counters total = new Counters();
+    private Counters interval = new Counters();
+    private final List<Object> intervals = new ArrayList<>();
+
+    /**
+     * What happened during a period of the run
+     */
+    private static class Counters {
+	long started, completed, failed, timedOut, rejected, retransmissions, bytes;
+	final Map<Integer, Long> errors = new TreeMap<>();
+	final LatencyHistogram transferTime = new LatencyHistogram();
+	final LatencyHistogram firstByte = new LatencyHistogram();
+    }
+
+    LoadGenerator(Options options) throws IOException {
+	this.options = options;
+	InetAddress host = options.has("host") ? InetAddress.getByName(options.get("host"))
+		: InetAddress.getLocalHost();
+	int port = options.getInt("port", TFTPConnection.SERVER_PORT);
+	this.server = new InetSocketAddress(host, port);
+	this.selector = Selector.open();
+	this.random = new Random(options.getInt("seed", 1));
+
+	maxClients = options.getInt("clients", 1000);
+	rate = options.getDouble("rate", 0);
+	thinkMillis = options.getDouble("think", 1000);
+	rampUpNanos = (long) (options.getDouble("ramp-up", 10) * 1e9);
+	durationNanos = (long) (options.getDouble("duration", 60) * 1e9);
+	intervalNanos = (long) (options.getDouble("interval", 5) * 1e9);
+	timeoutNanos = options.getInt("timeout", TFTPConfig.get().getHandlerTimeout()) * 1000000L;
+	transmitLimit = options.getInt("retries", TFTPConfig.get().getTransmitLimit());
+	readFraction = options.getDouble("read", 0.9);
+
+	String[] specs = options.get("sizes", "512:50,64K:40,1M:10").split(",");
+	sizes = new long[specs.length];
+	cumulativeWeights = new double[specs.length];
+	double weights = 0;
+	for (int i = 0; i < specs.length; i++) {
+	    String[] fields = specs[i].split(":");
+	    sizes[i] = Options.parseSize(fields[0]);
+	    weights += fields.length > 1 ? Double.parseDouble(fields[1]) : 1;
+	    cumulativeWeights[i] = weights;
+	}
+
+	if (options.has("dir")) {
+	    dir = new File(options.get("dir")).getAbsoluteFile();
+	    dir.mkdirs();
+	} else {
+	    dir = Files.createTempDirectory("tftp-load").toFile();
+	}
+
+	if (Boolean.parseBoolean(options.get("embedded", "false")))
+	    new Server(port, false);
+    }
+
+    /**
+     * Creates the files read requests will ask for
+     *
+     * @throws IOException
+     */
+    protected void prepareFiles() throws IOException {
+	for (long size : sizes)
+	    prepare(size);
+    }
+
+    /**
+     * @return the file read requests of the given size ask for
+     */
+    protected File sourceFile(long size) {
+	return new File(dir, "load-" + size);
+    }
+
+    /**
+     * @return a new file name for a write request
+     */
+    protected String uploadFile() {
+	return new File(dir, "upload-" + ++uploadCount).getPath();
+    }
+
+    protected File getDir() {
+	return dir;
+    }
+
+    protected int activeSessions() {
+	return sessions.size();
+    }
+
+    /**
+     * Creates the source file of a size unless it already exists
+     *
+     * @throws IOException
+     */
+    protected void prepare(long size) throws IOException {
+	File file = sourceFile(size);
+	if (file.exists() && file.length() == size)
+	    return;
+	try (OutputStream out = new FileOutputStream(file)) {
+	    for (long written = 0; written < size; written += FILLER.length)
+		out.write(FILLER, 0, (int) Math.min(FILLER.length, size - written));
+	}
+    }
+
+    /**
+     * Runs the load until the duration has passed and every started transfer has
+     * ended
+     *
+     * @return the report
+     * @throws IOException
+     */
+    Map<String, Object> run() throws IOException {
+	prepareFiles();
+	long start = System.nanoTime();
+	long nextReport = start + intervalNanos;
+	long lastReport = start;
+
+	if (rate <= 0) {
+	    nextStart = new long[maxClients];
+	    for (int i = 0; i < maxClients; i++)
+		nextStart[i] = start + rampUpNanos * i / maxClients;
+	} else {
+	    nextArrival = start;
+	}
+
+	while (true) {
+	    long now = System.nanoTime();
+	    if (!startTransfers(now, now - start) && sessions.isEmpty())
+		break;
+
+	    selector.select(5);
+	    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+	    while (keys.hasNext()) {
+		SelectionKey key = keys.next();
+		keys.remove();
+		if (key.isValid() && key.isReadable())
+		    ((Session) key.attachment()).receive();
+	    }
+
+	    now = System.nanoTime();
+	    for (Session session : sessions)
+		if (!session.done && now >= session.deadline)
+		    session.timedOut(now);
+	    sessions.removeIf(session -> session.done);
+
+	    if (now >= nextReport) {
+		report(now - start, now - lastReport);
+		lastReport = now;
+		nextReport += intervalNanos;
+	    }
+	}
+	long elapsed = System.nanoTime() - start;
+	if (System.nanoTime() - lastReport > intervalNanos / 10)
+	    report(elapsed, System.nanoTime() - lastReport);
+	selector.close();
+	cleanUp();
+
+	Map<String, Object> result = new LinkedHashMap<>();
+	result.put("startedAt", Instant.ofEpochMilli(System.currentTimeMillis() - elapsed / 1000000).toString());
+	result.put("server", server.toString());
+	describe(result);
+	result.put("totals", counters(total, elapsed));
+	result.put("intervals", intervals);
+	return result;
+    }
+
+    /**
+     * Adds the settings of the load to the report
+     *
+     * @param result
+     *            - the report
+     */
+    protected void describe(Map<String, Object> result) {
+	result.put("mode", rate > 0 ? "open" : "closed");
+	result.put("clients", maxClients);
+	result.put("rate", rate);
+	result.put("thinkMillis", thinkMillis);
+	result.put("rampUpSeconds", rampUpNanos / 1e9);
+	result.put("readFraction", readFraction);
+	result.put("sizes", options.get("sizes", "512:50,64K:40,1M:10"));
+    }
+
+    /**
+     * Starts the transfers that are due
+     *
+     * @param now
+     *            - System.nanoTime()
+     * @param elapsed
+     *            - nanoseconds since the run started
+     * @return whether more transfers will be started later
+     * @throws IOException
+     */
+    protected boolean startTransfers(long now, long elapsed) throws IOException {
+	if (elapsed >= durationNanos)
+	    return false;
+
+	if (rate <= 0) {
+	    for (int i = 0; i < nextStart.length; i++) {
+		if (nextStart[i] >= 0 && nextStart[i] <= now) {
+		    nextStart[i] = -1;
+		    start(i, now);
+		}
+	    }
+	    return true;
+	}
+
+	while (nextArrival <= now) {
+	    if (sessions.size() < maxClients)
+		start(-1, now);
+	    else
+		count(counters -> counters.rejected++);
+	    // the arrival rate climbs linearly to its target during the ramp up
+	    double currentRate = rate * Math.max(0.01, Math.min(1, (double) elapsed / Math.max(1, rampUpNanos)));
+	    nextArrival += (long) (exponential(1 / currentRate) * 1e9);
+	}
+	return true;
+    }
+
+    private double exponential(double mean) {
+	return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    private long pickSize() {
+	double pick = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+	for (int i = 0; i < sizes.length; i++)
+	    if (pick < cumulativeWeights[i])
+		return sizes[i];
+	return sizes[sizes.length - 1];
+    }
+
+    private void start(int client, long now) throws IOException {
+	boolean read = random.nextDouble() < readFraction;
+	long size = pickSize();
+	start(client, read, size, read ? sourceFile(size).getPath() : uploadFile(), now);
+    }
+
+    /**
+     * Starts a transfer
+     *
+     * @param client
+     *            - index of the closed loop client making it, -1 for none
+     * @param read
+     *            - RRQ or WRQ
+     * @param size
+     *            - bytes that will be read or written
+     * @param file
+     *            - the file name sent in the request
+     * @param now
+     *            - System.nanoTime()
+     * @throws IOException
+     */
+    protected void start(int client, boolean read, long size, String file, long now) throws IOException {
+	Session session = new Session(client, read, size, now);
+	sessions.add(session);
+	count(counters -> counters.started++);
+	session.send(ByteBuffer.wrap(TFTPPacket.createRQ(read ? TFTPPacket.OP_RRQ : TFTPPacket.OP_WRQ,
+		file.getBytes(), MODE_OCTET)), server, now);
+    }
+
+    private interface Update {
+	void apply(Counters counters);
+    }
+
+    private void count(Update update) {
+	update.apply(total);
+	update.apply(interval);
+    }
+
+    /**
+     * A single transfer by a simulated client
+     */
+    private class Session {
+	final int client; // index of the closed loop client, -1 in an open loop
+	final boolean read;
+	final long size;
+	final long started;
+	final DatagramChannel channel;
+	final ByteBuffer packet = ByteBuffer.allocate(4 + MAX_DATA_SIZE);
+
+	SocketAddress peer; // the server's transfer ID, null until it first answers
+	ByteBuffer lastSent;
+	SocketAddress lastSentTo;
+	long block; // read: blocks received, write: blocks sent
+	long bytes;
+	int attempts;
+	long deadline;
+	boolean done;
+
+	Session(int client, boolean read, long size, long now) throws IOException {
+	    this.client = client;
+	    this.read = read;
+	    this.size = size;
+	    this.started = now;
+	    channel = DatagramChannel.open();
+	    channel.configureBlocking(false);
+	    channel.bind(null);
+	    channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	void send(ByteBuffer buffer, SocketAddress to, long now) {
+	    lastSent = buffer;
+	    lastSentTo = to;
+	    attempts = 0;
+	    deadline = now + timeoutNanos;
+	    transmit();
+	}
+
+	private void transmit() {
+	    lastSent.rewind();
+	    try {
+		channel.send(lastSent, lastSentTo); // a full send buffer drops the packet, it will be resent
+	    } catch (IOException e) {
+		fail(-1);
+	    }
+	}
+
+	void receive() {
+	    try {
+		SocketAddress from;
+		while (!done && (from = channel.receive(receiveBuffer)) != null) {
+		    receiveBuffer.flip();
+		    handle(from, receiveBuffer, System.nanoTime());
+		    receiveBuffer.clear();
+		}
+	    } catch (IOException e) {
+		fail(-1);
+	    }
+	}
+
+	private void handle(SocketAddress from, ByteBuffer buffer, long now) {
+	    if (buffer.remaining() < 4)
+		return;
+	    if (peer == null)
+		peer = from;
+	    else if (!peer.equals(from))
+		return; // not this transfer's server
+
+	    int opcode = buffer.get(1);
+	    int blockNum = buffer.getShort(2) & 0xFFFF;
+	    if (opcode == TFTPPacket.OP_ERROR) {
+		fail(blockNum);
+	    } else if (read && opcode == TFTPPacket.OP_DATA) {
+		if (blockNum == ((block + 1) & 0xFFFF)) {
+		    int length = buffer.remaining() - 4;
+		    if (block == 0)
+			count(counters -> counters.firstByte.recordNanos(now - started));
+		    block++;
+		    bytes += length;
+		    send(ack(block), peer, now);
+		    if (length < MAX_DATA_SIZE)
+			finish(now, bytes == size);
+		} else if (blockNum == (block & 0xFFFF)) {
+		    transmit(); // our ack was lost, the server sent the block again
+		}
+	    } else if (!read && opcode == TFTPPacket.OP_ACK && blockNum == (block & 0xFFFF)) {
+		long offset = block * MAX_DATA_SIZE;
+		if (block > 0 && size - (offset - MAX_DATA_SIZE) < MAX_DATA_SIZE) {
+		    finish(now, true); // the short last block was acknowledged
+		    return;
+		}
+		if (block == 0)
+		    count(counters -> counters.firstByte.recordNanos(now - started));
+		int length = (int) Math.min(MAX_DATA_SIZE, size - offset);
+		block++;
+		bytes += length;
+		send(data(block, length), peer, now);
+	    }
+	}
+
+	private ByteBuffer ack(long blockNum) {
+	    packet.clear();
+	    packet.put((byte) 0).put(TFTPPacket.OP_ACK).putShort((short) blockNum);
+	    packet.flip();
+	    return packet;
+	}
+
+	private ByteBuffer data(long blockNum, int length) {
+	    packet.clear();
+	    packet.put((byte) 0).put(TFTPPacket.OP_DATA).putShort((short) blockNum).put(FILLER, 0, length);
+	    packet.flip();
+	    return packet;
+	}
+
+	void timedOut(long now) {
+	    if (++attempts >= transmitLimit) {
+		count(counters -> counters.timedOut++);
+		close(now);
+		return;
+	    }
+	    count(counters -> counters.retransmissions++);
+	    deadline = now + timeoutNanos;
+	    transmit();
+	}
+
+	private void fail(int errorCode) {
+	    count(counters -> {
+		counters.failed++;
+		counters.errors.merge(errorCode, 1L, Long::sum);
+	    });
+	    close(System.nanoTime());
+	}
+
+	private void finish(long now, boolean complete) {
+	    if (!complete) {
+		fail(-2);
+		return;
+	    }
+	    count(counters -> {
+		counters.completed++;
+		counters.bytes += size;
+		counters.transferTime.recordNanos(now - started);
+	    });
+	    close(now);
+	}
+
+	private void close(long now) {
+	    done = true;
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    if (client >= 0)
+		nextStart[client] = now + (long) (exponential(thinkMillis) * 1000000);
+	}
+    }
+
+    private void report(long elapsed, long period) {
+	Map<String, Object> values = counters(interval, period);
+	values.put("atSeconds", elapsed / 1e9);
+	values.put("active", sessions.size());
+	intervals.add(values);
+	System.err.println(String.format(
+		"%6.1fs active=%d started=%d completed=%d failed=%d timedOut=%d rejected=%d"
+			+ " %.1f/s %.2f MB/s p99=%.1fms",
+		elapsed / 1e9, sessions.size(), interval.started, interval.completed, interval.failed,
+		interval.timedOut, interval.rejected, values.get("transfersPerSecond"),
+		values.get("megabytesPerSecond"), interval.transferTime.getValueAtPercentile(99) / 1000.0));
+	interval = new Counters();
+    }
+
+    private static Map<String, Object> counters(Counters counters, long nanos) {
+	double seconds = Math.max(nanos, 1) / 1e9;
+	Map<String, Object> values = new LinkedHashMap<>();
+	values.put("started", counters.started);
+	values.put("completed", counters.completed);
+	values.put("failed", counters.failed);
+	values.put("timedOut", counters.timedOut);
+	values.put("rejected", counters.rejected);
+	values.put("retransmissions", counters.retransmissions);
+	values.put("transfersPerSecond", counters.completed / seconds);
+	values.put("megabytesPerSecond", counters.bytes / 1e6 / seconds);
+	values.put("errorRate", rate(counters.failed, counters.started));
+	values.put("timeoutRate", rate(counters.timedOut, counters.started));
+	Map<String, Object> errors = new LinkedHashMap<>(); // -1 socket failure, -2 wrong size
+	for (Map.Entry<Integer, Long> error : counters.errors.entrySet())
+	    errors.put(error.getKey().toString(), error.getValue());
+	values.put("errorsByCode", errors);
+	values.put("transferMillis", percentiles(counters.transferTime));
+	values.put("firstByteMillis", percentiles(counters.firstByte));
+	return values;
+    }
+
+    private static double rate(long count, long of) {
+	return of == 0 ? 0 : (double) count / of;
+    }
+
+    /**
+     * @return mean, percentiles and max of a histogram in ms
+     */
+    protected static Map<String, Object> percentiles(LatencyHistogram histogram) {
+	Map<String, Object> values = new LinkedHashMap<>();
+	values.put("mean", histogram.getMean() / 1000);
+	for (int i = 0; i < LatencyRecorder.PERCENTILES.length; i++)
+	    values.put(LatencyRecorder.PERCENTILES[i],
+		    histogram.getValueAtPercentile(LatencyRecorder.PERCENTILE_VALUES[i]) / 1000.0);
+	values.put("max", histogram.getMax() / 1000.0);
+	return values;
+    }
+
+    /**
+     * Removes uploaded files, the server may still be saving the last ones so
+     * this waits briefly for them
+     */
+    private void cleanUp() {
+	long deadline = System.currentTimeMillis() + 2000;
+	for (long i = 1; i <= uploadCount; i++) {
+	    File upload = new File(dir, "upload-" + i);
+	    while (!upload.delete() && upload.exists() && System.currentTimeMillis() < deadline) {
+		try {
+		    Thread.sleep(10);
+		} catch (InterruptedException e) {
+		    return;
+		}
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	Options options = new Options(args);
+	PrintStream console = System.out;
+	if (Boolean.parseBoolean(options.get("embedded", "false")))
+	    System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the server prints every request
+
+	String json = Json.toJson(new LoadGenerator(options).run());
+	String out = options.get("out", "load.json");
+	if (out.equals("-")) {
+	    console.print(json);
+	} else {
+	    Files.write(new File(out).toPath(), json.getBytes(StandardCharsets.UTF_8));
+	    System.err.println("Report written to " + out);
+	}
+	System.exit(0);
+    }
+}
@@ -0,0 +1,480 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end throughput benchmark. Starts a Server without the user interface
+ * and drives Client.establishConnection over loopback for every combination of
+ * request type, file size and concurrency, optionally relaying through an
+ * ErrorSimulator. The results (MB/s, transfers/s, latency percentiles,
+ * retransmissions and heap/GC activity) are written as JSON so runs of
+ * different releases can be compared.
+ *
+ * Options, all optional:
+ *
+ * <pre>
+ * --sizes 0,512,large,100M,1G   file sizes, "large" is src/large.txt, a path uses that file
+ * --concurrency 1,4             number of clients transferring at the same time
+ * --requests RRQ,WRQ            request types
+ * --rounds N                    transfers per client, by default fewer for larger files
+ * --impair lose:DATA:5          lose, delay or duplicate a block, delay takes a 4th field in ms
+ * --network loss=0.01,latency=5 random impairment of every relayed packet, see ImpairmentModel
+ * --network-to-client SPEC      impairment towards the client when it differs, --seed N seeds both
+ * --scenario faults.txt         scripted errors, see ImpairmentScenario
+ * --relay true                  relay through the error simulator even without errors
+ * --transport udp               udp, or memory[:latencyMicros[:lossRate]] to stay in process
+ * --port 6969                   server port, --esim-port 6923 for the error simulator
+ * --dir DIR                     where test files are written, a temporary directory by default
+ * --out loopback.json           the report, - for standard output
+ * </pre>
+ *
+ * Each transfer holds the whole file in memory on both ends, scenarios that
+ * would not fit in the heap are skipped and reported as such.
+ *
+ * @author BLoo
+ */
+public class LoopbackBenchmark {
+
+    private static final String LARGE_FILE = "src" + File.separator + "large.txt";
+    private static final double MB = 1000000.0;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private final Options options;
+    private final File dir;
+    private final int port;
+    private final int sendPort;
+    private final int[] impairment; // mode, block, type, delay or null when not impaired
+    private final ImpairmentModel network; // null when the network isn't impaired
+    private final ImpairmentScenario scenario; // null without scripted errors
+    private final DatagramTransport.Factory transports;
+    private final ErrorSimulator errorSim;
+    private final Server server;
+    private final List<Client> clients = new ArrayList<>();
+    private final AtomicLong transferCount = new AtomicLong();
+
+    /**
+     * A file that is transferred
+     */
+    private static class Source {
+	final String name;
+	final File file;
+	final long size;
+
+	Source(String name, File file) {
+	    this.name = name;
+	    this.file = file;
+	    this.size = file.length();
+	}
+    }
+
+    LoopbackBenchmark(Options options) throws IOException {
+	this.options = options;
+	this.port = options.getInt("port", 6969);
+	this.impairment = parseImpairment(options.get("impair"));
+	this.transports = parseTransport(options.get("transport", "udp"));
+	this.network = options.has("network") || options.has("network-to-client")
+		? new ImpairmentModel(options.get("network", ""),
+			options.get("network-to-client", options.get("network", "")), options.getInt("seed", 1))
+		: null;
+	this.scenario = options.has("scenario") ? ImpairmentScenario.load(new File(options.get("scenario"))) : null;
+
+	if (options.has("dir")) {
+	    dir = new File(options.get("dir")).getAbsoluteFile();
+	    dir.mkdirs();
+	} else {
+	    dir = Files.createTempDirectory("tftp-loopback").toFile();
+	    dir.deleteOnExit();
+	}
+
+	server = new Server(port, false, transports);
+	if (impairment != null || network != null || scenario != null
+		|| Boolean.parseBoolean(options.get("relay", "false"))) {
+	    sendPort = options.getInt("esim-port", 6923);
+	    errorSim = new ErrorSimulator(sendPort, port, false, transports);
+	    errorSim.setImpairmentModel(network);
+	    errorSim.setScenario(scenario);
+	    // every session takes the impairment as its request arrives
+	    if (errorSim.isConcurrent() && impairment != null) {
+		errorSim.setRepeat(true);
+		errorSim.setParameters(impairment[0], impairment[1], impairment[3], impairment[2], -1, -1, null);
+	    }
+	    Thread relay = new Thread(errorSim::startPassthrough, "Error simulator");
+	    relay.setDaemon(true);
+	    relay.start();
+	} else {
+	    sendPort = port;
+	    errorSim = null;
+	}
+    }
+
+    /**
+     * Parses a transport of the form udp or memory[:latencyMicros[:lossRate]]
+     */
+    private static DatagramTransport.Factory parseTransport(String spec) {
+	String[] fields = spec.split(":");
+	if (fields[0].equalsIgnoreCase("udp"))
+	    return UdpTransport.FACTORY;
+	if (!fields[0].equalsIgnoreCase("memory"))
+	    throw new IllegalArgumentException("Unknown transport " + fields[0] + ", use udp or memory");
+	long latencyMicros = fields.length > 1 ? Long.parseLong(fields[1]) : 0;
+	double lossRate = fields.length > 2 ? Double.parseDouble(fields[2]) : 0;
+	return new MemoryNetwork(latencyMicros, lossRate);
+    }
+
+    /**
+     * Parses an impairment of the form mode:type:block[:delay]
+     *
+     * @return mode, block, type and delay for ErrorSimulator.setParameters, null
+     *         for none
+     */
+    private static int[] parseImpairment(String spec) {
+	if (spec == null || spec.isEmpty() || spec.equals("none"))
+	    return null;
+	String[] fields = spec.split(":");
+	if (fields.length < 3)
+	    throw new IllegalArgumentException("Impairment must be mode:type:block[:delay], got " + spec);
+
+	int mode;
+	switch (fields[0].toLowerCase()) {
+	case "lose":
+	    mode = 1;
+	    break;
+	case "delay":
+	    mode = 2;
+	    break;
+	case "duplicate":
+	    mode = 3;
+	    break;
+	default:
+	    throw new IllegalArgumentException("Unknown impairment " + fields[0] + ", use lose, delay or duplicate");
+	}
+
+	int type = -1;
+	for (Map.Entry<Byte, String> packetType : TFTPPacket.PacketTypes.entrySet())
+	    if (packetType.getValue().equalsIgnoreCase(fields[1]))
+		type = packetType.getKey();
+	if (type < 0)
+	    throw new IllegalArgumentException("Unknown packet type " + fields[1]);
+
+	int delay = fields.length > 3 ? Integer.parseInt(fields[3]) : 0;
+	return new int[] { mode, Integer.parseInt(fields[2]), type, delay };
+    }
+
+    /**
+     * Resolves a size from the command line to a file, generating it if needed
+     *
+     * @param spec
+     *            - a byte count with an optional K, M or G suffix, "large" or a
+     *            path
+     * @return the file to transfer
+     * @throws IOException
+     */
+    private Source source(String spec) throws IOException {
+	if (spec.equals("large"))
+	    return new Source("large.txt", new File(LARGE_FILE).getAbsoluteFile());
+	File existing = new File(spec);
+	if (existing.isFile())
+	    return new Source(existing.getName(), existing.getAbsoluteFile());
+
+	long size = Options.parseSize(spec);
+	File file = new File(dir, "source-" + size);
+	if (file.length() != size || !file.exists()) {
+	    // readToStop ends data at a zero byte, so generated files only hold letters
+	    byte[] block = new byte[64 * 1024];
+	    for (int i = 0; i < block.length; i++)
+		block[i] = (byte) ('a' + i % 26);
+	    try (OutputStream out = new FileOutputStream(file)) {
+		for (long written = 0; written < size; written += block.length)
+		    out.write(block, 0, (int) Math.min(block.length, size - written));
+	    }
+	}
+	file.deleteOnExit();
+	return new Source(spec, file);
+    }
+
+    /**
+     * Runs every scenario of the matrix
+     *
+     * @return the report
+     * @throws Exception
+     */
+    Map<String, Object> run() throws Exception {
+	List<Source> sources = new ArrayList<>();
+	for (String spec : options.get("sizes", "0,512,large,100M,1G").split(","))
+	    sources.add(source(spec.trim()));
+
+	Map<String, Object> report = new LinkedHashMap<>();
+	report.put("startedAt", Instant.now().toString());
+	report.put("java", System.getProperty("java.version"));
+	report.put("vm", System.getProperty("java.vm.name"));
+	report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+	report.put("processors", Runtime.getRuntime().availableProcessors());
+	report.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+	report.put("impairment", options.get("impair"));
+	report.put("relayed", errorSim != null);
+	report.put("scenario", scenario == null ? null : scenario.toString());
+	report.put("network", errorSim == null || errorSim.getImpairmentModel() == null ? null
+		: errorSim.getImpairmentModel().toString());
+	report.put("transport", options.get("transport", "udp"));
+
+	List<Object> scenarios = new ArrayList<>();
+	for (String request : options.get("requests", "RRQ,WRQ").split(","))
+	    for (Source source : sources)
+		for (String concurrency : options.get("concurrency", "1,4").split(","))
+		    scenarios.add(scenario(request.trim().equalsIgnoreCase("WRQ") ? TFTPPacket.OP_WRQ
+			    : TFTPPacket.OP_RRQ, source, Integer.parseInt(concurrency.trim())));
+	report.put("scenarios", scenarios);
+	return report;
+    }
+
+    /**
+     * Stops the server and error simulator and lets go of the clients
+     */
+    void shutdown() {
+	for (Client client : clients)
+	    client.shutdown();
+	if (errorSim != null)
+	    errorSim.shutdown();
+	server.shutdown();
+    }
+
+    private Map<String, Object> scenario(byte request, Source source, int concurrency) throws InterruptedException {
+	Map<String, Object> result = new LinkedHashMap<>();
+	result.put("request", TFTPPacket.PacketTypes.get(request));
+	result.put("file", source.name);
+	result.put("sizeBytes", source.size);
+	result.put("concurrency", concurrency);
+
+	String skipped = null;
+	if (errorSim != null && !errorSim.isConcurrent() && concurrency > 1)
+	    skipped = "the error simulator relays one transfer at a time on this transport";
+	else if (source.size * 3 * concurrency > Runtime.getRuntime().maxMemory())
+	    skipped = "needs about " + source.size * 3 * concurrency / (1024 * 1024) + "MB of heap, raise -Xmx";
+	if (skipped != null) {
+	    result.put("skipped", skipped);
+	    progress(String.format("%s %s x%d: skipped, %s", result.get("request"), source.name, concurrency,
+		    skipped));
+	    return result;
+	}
+
+	while (clients.size() < concurrency) {
+	    Client client = new Client(errorSim, transports);
+	    client.verbose = false;
+	    clients.add(client);
+	}
+
+	int rounds = options.getInt("rounds",
+		source.size < 1024 * 1024 ? 50 : source.size < 64 * 1024 * 1024 ? 5 : 1);
+	if (source.size < 1024 * 1024)
+	    transfers(request, source, concurrency, WARMUP_ROUNDS, new LatencyHistogram());
+
+	TransferMetrics clientMetrics = new TransferMetrics(null);
+	LatencyRecorder clientLatency = new LatencyRecorder();
+	for (Client client : clients) {
+	    client.metrics = new TransferMetrics(clientMetrics);
+	    client.latency = clientLatency;
+	}
+	TransferMetrics serverMetrics = server.getMetrics();
+	long retransmissions = serverMetrics.getRetransmissions();
+	long timeouts = serverMetrics.getTimeouts();
+	long dropped = networkDropped();
+	RelayStats relay = errorSim == null ? null : errorSim.getRelayStats();
+	Map<String, Long> relayToServer = relay == null ? null : relay.getToServer();
+	Map<String, Long> relayToClient = relay == null ? null : relay.getToClient();
+	long gcCount = gcCount();
+	long gcMillis = gcMillis();
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+	    pool.resetPeakUsage();
+
+	LatencyHistogram durations = new LatencyHistogram();
+	long start = System.nanoTime();
+	int completed = transfers(request, source, concurrency, rounds, durations);
+	double seconds = (System.nanoTime() - start) / 1e9;
+
+	int total = concurrency * rounds;
+	result.put("transfers", total);
+	result.put("failed", total - completed);
+	result.put("seconds", seconds);
+	result.put("megabytesPerSecond", completed * source.size / MB / seconds);
+	result.put("transfersPerSecond", completed / seconds);
+	result.put("transferMillis", percentiles(durations, 1000.0));
+	result.put("blockRttMicros", percentiles(clientLatency.getTotal().blockRtt, 1));
+	result.put("retransmissions",
+		clientMetrics.getRetransmissions() + serverMetrics.getRetransmissions() - retransmissions);
+	result.put("timeouts", clientMetrics.getTimeouts() + serverMetrics.getTimeouts() - timeouts);
+	if (errorSim != null && errorSim.getImpairmentModel() != null)
+	    result.put("networkDropped", networkDropped() - dropped);
+	if (relay != null) {
+	    Map<String, Object> relayed = new LinkedHashMap<>();
+	    relayed.put("toServer", difference(relay.getToServer(), relayToServer));
+	    relayed.put("toClient", difference(relay.getToClient(), relayToClient));
+	    result.put("relay", relayed);
+	}
+
+	Map<String, Object> heap = new LinkedHashMap<>();
+	long peak = 0;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+	    if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+		peak += pool.getPeakUsage().getUsed();
+	heap.put("peakUsedBytes", peak);
+	heap.put("usedAfterBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+	heap.put("gcCount", gcCount() - gcCount);
+	heap.put("gcMillis", gcMillis() - gcMillis);
+	result.put("heap", heap);
+
+	progress(String.format("%s %s x%d: %.2f MB/s, %.1f transfers/s, %d failed", result.get("request"),
+		source.name, concurrency, (Double) result.get("megabytesPerSecond"),
+		(Double) result.get("transfersPerSecond"), total - completed));
+	return result;
+    }
+
+    /**
+     * @return each count after less the same count before
+     */
+    private static Map<String, Long> difference(Map<String, Long> after, Map<String, Long> before) {
+	Map<String, Long> counts = new LinkedHashMap<>();
+	for (Map.Entry<String, Long> count : after.entrySet())
+	    counts.put(count.getKey(), count.getValue() - before.getOrDefault(count.getKey(), 0L));
+	return counts;
+    }
+
+    /**
+     * @return packets the network model has lost or dropped from a full queue
+     */
+    private long networkDropped() {
+	ImpairmentModel network = errorSim == null ? null : errorSim.getImpairmentModel();
+	if (network == null)
+	    return 0;
+	return network.getToServer().getLost() + network.getToServer().getQueueDropped()
+		+ network.getToClient().getLost() + network.getToClient().getQueueDropped();
+    }
+
+    /**
+     * Has each of the first concurrency clients run rounds transfers one after the
+     * other, all clients running at the same time
+     *
+     * @return the number of transfers that completed with the right size
+     */
+    private int transfers(final byte request, final Source source, int concurrency, final int rounds,
+	    final LatencyHistogram durations) throws InterruptedException {
+	final AtomicInteger completed = new AtomicInteger();
+	ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+	for (int i = 0; i < concurrency; i++) {
+	    final Client client = clients.get(i);
+	    pool.execute(() -> {
+		for (int round = 0; round < rounds; round++) {
+		    long start = System.nanoTime();
+		    boolean complete = transfer(client, request, source);
+		    durations.recordNanos(System.nanoTime() - start);
+		    if (complete)
+			completed.incrementAndGet();
+		}
+	    });
+	}
+	pool.shutdown();
+	pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+	return completed.get();
+    }
+
+    /**
+     * Runs a single transfer and checks the copy has the size of the original
+     *
+     * @return whether the transfer completed
+     */
+    private boolean transfer(Client client, byte request, Source source) {
+	File copy = new File(dir, "transfer-" + transferCount.incrementAndGet());
+	String localFile = request == TFTPPacket.OP_RRQ ? copy.getPath() : source.file.getPath();
+	String serverFile = request == TFTPPacket.OP_RRQ ? source.file.getPath() : copy.getPath();
+
+	if (errorSim != null && !errorSim.isConcurrent() && impairment != null)
+	    errorSim.setParameters(impairment[0], impairment[1], impairment[3], impairment[2], -1, -1, null);
+	client.establishConnection(request, localFile, serverFile, sendPort, -1, -1, -1);
+
+	// the server acknowledges the last block of a write before saving the file
+	long deadline = System.currentTimeMillis()
+		+ (request == TFTPPacket.OP_WRQ ? 5000 + source.size / 10000 : 0);
+	boolean complete;
+	while (!(complete = copy.exists() && copy.length() == source.size)
+		&& System.currentTimeMillis() < deadline) {
+	    try {
+		Thread.sleep(5);
+	    } catch (InterruptedException e) {
+		break;
+	    }
+	}
+	copy.delete();
+	return complete;
+    }
+
+    private static Map<String, Object> percentiles(LatencyHistogram histogram, double scale) {
+	Map<String, Object> values = new LinkedHashMap<>();
+	values.put("count", histogram.getCount());
+	values.put("mean", histogram.getMean() / scale);
+	for (int i = 0; i < LatencyRecorder.PERCENTILES.length; i++)
+	    values.put(LatencyRecorder.PERCENTILES[i],
+		    histogram.getValueAtPercentile(LatencyRecorder.PERCENTILE_VALUES[i]) / scale);
+	values.put("max", histogram.getMax() / scale);
+	return values;
+    }
+
+    private static long gcCount() {
+	long count = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    count += Math.max(0, gc.getCollectionCount());
+	return count;
+    }
+
+    private static long gcMillis() {
+	long millis = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    millis += Math.max(0, gc.getCollectionTime());
+	return millis;
+    }
+
+    private static void progress(String line) {
+	System.err.println(line);
+    }
+
+    public static void main(String[] args) throws Exception {
+	Options options = new Options(args);
+	PrintStream console = System.out;
+	// the server and clients print every request, keep that out of the report
+	System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+	LoopbackBenchmark benchmark = new LoopbackBenchmark(options);
+	String json;
+	try {
+	    json = Json.toJson(benchmark.run());
+	} finally {
+	    benchmark.shutdown();
+	}
+	String out = options.get("out", "loopback.json");
+	if (out.equals("-")) {
+	    console.print(json);
+	} else {
+	    Files.write(new File(out).toPath(), json.getBytes(StandardCharsets.UTF_8));
+	    progress("Report written to " + out);
+	}
+	System.exit(0);
+    }
+}
@@ -0,0 +1,69 @@
+package tftpConnection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the benchmark tools, given as --name value pairs
+ *
+ * @author BLoo
+ */
+final class Options {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * @param args
+     *            - the command line
+     * @throws IllegalArgumentException
+     *             - if an option has no value
+     */
+    Options(String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    if (!args[i].startsWith("--") || i + 1 >= args.length)
+		throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+	    values.put(args[i].substring(2), args[++i]);
+	}
+    }
+
+    boolean has(String name) {
+	return values.containsKey(name);
+    }
+
+    String get(String name) {
+	return values.get(name);
+    }
+
+    String get(String name, String defaultValue) {
+	return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+	return has(name) ? Integer.parseInt(get(name)) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+	return has(name) ? Double.parseDouble(get(name)) : defaultValue;
+    }
+
+    /**
+     * Parses a byte count with an optional K, M or G suffix
+     *
+     * @param spec
+     *            - eg. "512", "64K" or "1G"
+     * @return the number of bytes
+     */
+    static long parseSize(String spec) {
+	String number = spec.trim().toUpperCase();
+	long unit = 1;
+	if (number.endsWith("K"))
+	    unit = 1024;
+	else if (number.endsWith("M"))
+	    unit = 1024 * 1024;
+	else if (number.endsWith("G"))
+	    unit = 1024 * 1024 * 1024;
+	if (unit > 1)
+	    number = number.substring(0, number.length() - 1);
+	return Long.parseLong(number) * unit;
+    }
+}
@@ -0,0 +1,180 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays a RequestTrace recorded by a server (trace.file in tftp.properties)
+ * against a test server. Requests are issued at their recorded offsets divided
+ * by --speed, or as fast as --clients concurrent transfers allow with --speed
+ * max. The report has the same throughput, error and latency figures as the
+ * LoadGenerator, plus the recorded durations and outcomes of the replayed
+ * requests and how late requests were issued compared to the schedule.
+ *
+ * Recorded file names usually don't exist on a test server, so reads are
+ * served from generated files of the recorded sizes and writes go to new
+ * files in --dir. Requests that originally failed with file not found ask for
+ * a missing file. Use --keep-names true to send the recorded names instead.
+ *
+ * Options, besides those of LoadGenerator:
+ *
+ * <pre>
+ * --trace FILE                   the recorded trace, required
+ * --from 2026-10-12T07:00        only replay requests recorded from this local time
+ * --to 2026-10-12T08:00          and before this one
+ * --speed 1                      1, 10 or any factor, max to ignore the timing
+ * --keep-names false
+ * </pre>
+ *
+ * @author BLoo
+ */
+public class TraceReplay extends LoadGenerator {
+
+    private static final short FILE_NOT_FOUND = RequestTrace.ERROR_SENT + 1;
+
+    private final List<RequestTrace.Record> records;
+    private final double speed; // 0 for as fast as possible
+    private final boolean keepNames;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private int next;
+
+    TraceReplay(Options options) throws IOException {
+	super(options);
+	if (!options.has("trace"))
+	    throw new IllegalArgumentException("--trace is required");
+
+	records = select(RequestTrace.read(new File(options.get("trace"))), time(options.get("from")),
+		time(options.get("to")));
+	String factor = options.get("speed", "1").toLowerCase();
+	speed = factor.equals("max") ? 0 : Double.parseDouble(factor.replace("x", ""));
+	keepNames = Boolean.parseBoolean(options.get("keep-names", "false"));
+	if (records.isEmpty())
+	    throw new IllegalArgumentException("No requests in the trace between the given times");
+    }
+
+    /**
+     * Parses a local date and time such as 2026-10-12T07:00
+     *
+     * @return ms since the epoch, null if no time was given
+     */
+    private static Long time(String value) {
+	if (value == null)
+	    return null;
+	return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Keeps the requests that arrived in [from, to) sorted by arrival, records are
+     * written when requests end so a trace isn't in arrival order
+     */
+    private static List<RequestTrace.Record> select(List<RequestTrace.Record> all, Long from, Long to) {
+	List<RequestTrace.Record> selected = new ArrayList<>();
+	for (RequestTrace.Record record : all)
+	    if ((from == null || record.timestamp >= from) && (to == null || record.timestamp < to))
+		selected.add(record);
+	selected.sort(Comparator.comparingLong(record -> record.timestamp));
+	return selected;
+    }
+
+    @Override
+    protected void prepareFiles() throws IOException {
+	if (keepNames)
+	    return;
+	for (RequestTrace.Record record : records)
+	    if (record.opcode == TFTPPacket.OP_RRQ && record.outcome != FILE_NOT_FOUND)
+		prepare(record.size);
+    }
+
+    @Override
+    protected boolean startTransfers(long now, long elapsed) throws IOException {
+	long first = records.get(0).timestamp;
+	while (next < records.size()) {
+	    RequestTrace.Record record = records.get(next);
+	    if (speed > 0) {
+		long due = (long) ((record.timestamp - first) * 1000000 / speed);
+		if (due > elapsed)
+		    break;
+		lag.recordNanos(elapsed - due);
+	    } else if (activeSessions() >= maxClients) {
+		break;
+	    }
+	    boolean read = record.opcode == TFTPPacket.OP_RRQ;
+	    start(-1, read, record.size, fileFor(record, read), now);
+	    next++;
+	}
+	return next < records.size();
+    }
+
+    private String fileFor(RequestTrace.Record record, boolean read) {
+	if (keepNames)
+	    return record.file;
+	if (!read)
+	    return uploadFile();
+	if (record.outcome == FILE_NOT_FOUND)
+	    return new File(getDir(), "missing-" + next).getPath();
+	return sourceFile(record.size).getPath();
+    }
+
+    @Override
+    protected void describe(Map<String, Object> result) {
+	RequestTrace.Record first = records.get(0), last = records.get(records.size() - 1);
+	result.put("mode", "replay");
+	result.put("speed", speed > 0 ? (Object) speed : "max");
+	result.put("requests", records.size());
+	result.put("recordedFrom", Instant.ofEpochMilli(first.timestamp).toString());
+	result.put("recordedTo", Instant.ofEpochMilli(last.timestamp).toString());
+
+	LatencyHistogram recorded = new LatencyHistogram();
+	Map<String, Long> outcomes = new TreeMap<>();
+	for (RequestTrace.Record record : records) {
+	    recorded.record(record.durationMicros);
+	    outcomes.merge(outcome(record.outcome), 1L, Long::sum);
+	}
+	result.put("recordedTransferMillis", percentiles(recorded));
+	result.put("recordedOutcomes", outcomes);
+	if (speed > 0)
+	    result.put("scheduleLagMillis", percentiles(lag));
+    }
+
+    private static String outcome(short outcome) {
+	switch (outcome) {
+	case RequestTrace.COMPLETE:
+	    return "complete";
+	case RequestTrace.TIMED_OUT:
+	    return "timedOut";
+	case RequestTrace.PEER_ERROR:
+	    return "peerError";
+	default:
+	    return "error" + (outcome - RequestTrace.ERROR_SENT);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	Options options = new Options(args);
+	PrintStream console = System.out;
+	if (Boolean.parseBoolean(options.get("embedded", "false")))
+	    System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the server prints every request
+
+	String json = Json.toJson(new TraceReplay(options).run());
+	String out = options.get("out", "replay.json");
+	if (out.equals("-")) {
+	    console.print(json);
+	} else {
+	    Files.write(new File(out).toPath(), json.getBytes(StandardCharsets.UTF_8));
+	    System.err.println("Report written to " + out);
+	}
+	System.exit(0);
+    }
+}
@@ -0,0 +1,79 @@
+package tftpConnection;
+
+import java.net.SocketAddress;
+
+/**
+ * Describes a transfer that is currently running on a server, used by the
+ * metrics endpoint to list active transfers
+ *
+ * @author BenjaminP
+ */
+public class ActiveTransfer {
+
+    private final long id;
+    private final SocketAddress peer;
+    private final String file;
+    private final int requestType;
+    private final long startMillis;
+    private final TransferMetrics metrics;
+
+    /**
+     * @param id
+     *            - unique id of the transfer
+     * @param peer
+     *            - address of the client
+     * @param file
+     *            - file being read or written
+     * @param requestType
+     *            - RRQ or WRQ opcode
+     * @param metrics
+     *            - the transfer's own counters
+     */
+    public ActiveTransfer(long id, SocketAddress peer, String file, int requestType, TransferMetrics metrics) {
+	this.id = id;
+	this.peer = peer;
+	this.file = file;
+	this.requestType = requestType;
+	this.startMillis = System.currentTimeMillis();
+	this.metrics = metrics;
+    }
+
+    public long getId() {
+	return id;
+    }
+
+    public SocketAddress getPeer() {
+	return peer;
+    }
+
+    public String getFile() {
+	return file;
+    }
+
+    public int getRequestType() {
+	return requestType;
+    }
+
+    public long getStartMillis() {
+	return startMillis;
+    }
+
+    /**
+     * @return bytes sent and received so far, including packet headers
+     */
+    public long getBytes() {
+	return metrics.getBytesSent() + metrics.getBytesReceived();
+    }
+
+    /**
+     * @return average transfer rate in bytes per second since the transfer started
+     */
+    public double getRate() {
+	long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+	return getBytes() * 1000.0 / elapsed;
+    }
+
+    public long getRetransmissions() {
+	return metrics.getRetransmissions();
+    }
+}
@@ -0,0 +1,541 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a manifest of transfers, many at a time, for jobs that push or pull
+ * hundreds of files. At most concurrency transfers run at once and at most
+ * perServer of them against any one server. A transfer that times out or
+ * fails with an error that may not happen again is retried after a backoff
+ * that doubles with each attempt, with some jitter so failed transfers don't
+ * all retry together. The report sums up the bytes moved, the throughput and
+ * every failure.
+ *
+ * The manifest has one transfer per line, fields separated by white space:
+ *
+ * <pre>
+ * # direction  local file      remote file  [server[:port]]
+ * get          /tmp/a.bin      a.bin
+ * put          images/b.bin    b.bin        10.0.0.2:6969
+ * </pre>
+ *
+ * get reads the remote file into the local one, put writes the local file to
+ * the server. Lines without a server use the batch's default.
+ *
+ * @author BLoo
+ */
+public class BatchTransfer {
+
+    /**
+     * One line of the manifest
+     */
+    public static final class Entry {
+	private final int line;
+	private final byte requestType;
+	private final File localFile;
+	private final String remoteFile;
+	private final SocketAddress server;
+
+	public Entry(int line, byte requestType, File localFile, String remoteFile, SocketAddress server) {
+	    this.line = line;
+	    this.requestType = requestType;
+	    this.localFile = localFile;
+	    this.remoteFile = remoteFile;
+	    this.server = server;
+	}
+
+	public int getLine() {
+	    return line;
+	}
+
+	public byte getRequestType() {
+	    return requestType;
+	}
+
+	public File getLocalFile() {
+	    return localFile;
+	}
+
+	public String getRemoteFile() {
+	    return remoteFile;
+	}
+
+	public SocketAddress getServer() {
+	    return server;
+	}
+
+	@Override
+	public String toString() {
+	    return "line " + line + " " + (requestType == TFTPPacket.OP_RRQ ? "get " : "put ") + localFile + " "
+		    + remoteFile + " " + server;
+	}
+    }
+
+    /**
+     * How an entry ended
+     */
+    public static final class Outcome {
+	private final Entry entry;
+	private final TransferResult result; // null if it failed
+	private final Throwable failure; // null if it succeeded
+	private final int attempts;
+
+	Outcome(Entry entry, TransferResult result, Throwable failure, int attempts) {
+	    this.entry = entry;
+	    this.result = result;
+	    this.failure = failure;
+	    this.attempts = attempts;
+	}
+
+	public Entry getEntry() {
+	    return entry;
+	}
+
+	public TransferResult getResult() {
+	    return result;
+	}
+
+	public Throwable getFailure() {
+	    return failure;
+	}
+
+	public int getAttempts() {
+	    return attempts;
+	}
+    }
+
+    /**
+     * What a run of the batch did
+     */
+    public static final class Report {
+	private final List<Outcome> outcomes;
+	private final long nanos;
+
+	Report(List<Outcome> outcomes, long nanos) {
+	    this.outcomes = outcomes;
+	    this.nanos = nanos;
+	}
+
+	/**
+	 * @return the outcome of every entry, in the order they finished
+	 */
+	public List<Outcome> getOutcomes() {
+	    return outcomes;
+	}
+
+	public long getNanos() {
+	    return nanos;
+	}
+
+	public int getSucceeded() {
+	    int succeeded = 0;
+	    for (Outcome outcome : outcomes)
+		if (outcome.result != null)
+		    succeeded++;
+	    return succeeded;
+	}
+
+	public int getFailed() {
+	    return outcomes.size() - getSucceeded();
+	}
+
+	/**
+	 * @return attempts made beyond the first of each entry
+	 */
+	public int getRetries() {
+	    int retries = 0;
+	    for (Outcome outcome : outcomes)
+		retries += outcome.attempts - 1;
+	    return retries;
+	}
+
+	/**
+	 * @return data bytes moved by the transfers that succeeded
+	 */
+	public long getBytes() {
+	    long bytes = 0;
+	    for (Outcome outcome : outcomes)
+		if (outcome.result != null)
+		    bytes += outcome.result.getBytes();
+	    return bytes;
+	}
+
+	/**
+	 * @return data bytes per second over the whole batch
+	 */
+	public double getThroughput() {
+	    return nanos > 0 ? getBytes() * 1e9 / nanos : 0;
+	}
+
+	@Override
+	public String toString() {
+	    StringBuilder report = new StringBuilder();
+	    report.append("Batch of ").append(outcomes.size()).append(" transfers: ").append(getSucceeded())
+		    .append(" succeeded, ").append(getFailed()).append(" failed, ").append(getRetries())
+		    .append(" retries\n");
+	    report.append(String.format("Moved %d bytes in %.2fs, %.1f kB/s%n", getBytes(), nanos / 1e9,
+		    getThroughput() / 1000));
+
+	    Map<SocketAddress, long[]> servers = new LinkedHashMap<>(); // succeeded, failed, bytes
+	    for (Outcome outcome : outcomes) {
+		long[] server = servers.computeIfAbsent(outcome.entry.server, address -> new long[3]);
+		server[outcome.result != null ? 0 : 1]++;
+		server[2] += outcome.result != null ? outcome.result.getBytes() : 0;
+	    }
+	    for (Map.Entry<SocketAddress, long[]> server : servers.entrySet()) {
+		long[] counts = server.getValue();
+		report.append(server.getKey()).append(": ").append(counts[0]).append(" succeeded, ").append(counts[1])
+			.append(" failed, ").append(counts[2]).append(" bytes\n");
+	    }
+	    for (Outcome outcome : outcomes)
+		if (outcome.failure != null)
+		    report.append("Failed ").append(outcome.entry).append(" after ").append(outcome.attempts)
+			    .append(" attempts: ").append(outcome.failure).append('\n');
+	    return report.toString();
+	}
+    }
+
+    /**
+     * An entry waiting to run or running
+     */
+    private static final class Pending {
+	final Entry entry;
+	int attempts;
+
+	Pending(Entry entry) {
+	    this.entry = entry;
+	}
+    }
+
+    private final List<Entry> entries;
+    private int concurrency = 8;
+    private int perServer = 4;
+    private int retries = 2;
+    private long backoff = 250, maxBackoff = 10000; // ms
+    private TransferOptions options = new TransferOptions();
+    private DatagramTransport.Factory transports = UdpTransport.FACTORY;
+
+    // state of a run, guarded by this
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    private final Map<SocketAddress, Integer> activePerServer = new HashMap<>();
+    private final Map<SocketAddress, TFTPClient> clients = new HashMap<>();
+    private int active;
+    private List<Outcome> outcomes;
+    private CountDownLatch remaining;
+    private ScheduledExecutorService retryTimer;
+
+    /**
+     * @param entries
+     *            - the transfers to run
+     */
+    public BatchTransfer(List<Entry> entries) {
+	this.entries = new ArrayList<>(entries);
+    }
+
+    /**
+     * Parses a manifest
+     * 
+     * @param name
+     *            - where the manifest came from, for messages
+     * @param lines
+     *            - the manifest, see above
+     * @param defaultServer
+     *            - server of lines that don't name one
+     * @return the entries
+     * @throws IllegalArgumentException
+     *             - naming the line that is invalid
+     */
+    public static List<Entry> parse(String name, List<String> lines, SocketAddress defaultServer)
+	    throws IllegalArgumentException {
+	List<Entry> entries = new ArrayList<>();
+	for (int i = 0; i < lines.size(); i++) {
+	    String line = lines.get(i);
+	    int comment = line.indexOf('#');
+	    line = (comment < 0 ? line : line.substring(0, comment)).trim();
+	    if (line.isEmpty())
+		continue;
+
+	    String[] tokens = line.split("\\s+");
+	    if (tokens.length < 3 || tokens.length > 4)
+		throw new IllegalArgumentException(name + " line " + (i + 1)
+			+ ": expected direction, local file, remote file and an optional server");
+	    byte requestType;
+	    switch (tokens[0].toLowerCase(Locale.ROOT)) {
+	    case "get":
+		requestType = TFTPPacket.OP_RRQ;
+		break;
+	    case "put":
+		requestType = TFTPPacket.OP_WRQ;
+		break;
+	    default:
+		throw new IllegalArgumentException(name + " line " + (i + 1) + ": direction must be get or put");
+	    }
+	    try {
+		entries.add(new Entry(i + 1, requestType, new File(tokens[1]), tokens[2],
+			tokens.length > 3 ? address(tokens[3]) : defaultServer));
+	    } catch (IllegalArgumentException e) {
+		throw new IllegalArgumentException(name + " line " + (i + 1) + ": " + e.getMessage());
+	    }
+	}
+	return entries;
+    }
+
+    /**
+     * Reads a manifest file
+     * 
+     * @throws IOException
+     *             - if the file can't be read
+     * @throws IllegalArgumentException
+     *             - if the manifest is invalid
+     */
+    public static BatchTransfer load(File manifest, SocketAddress defaultServer)
+	    throws IOException, IllegalArgumentException {
+	return new BatchTransfer(parse(manifest.getPath(), Files.readAllLines(manifest.toPath()), defaultServer));
+    }
+
+    /**
+     * @param server
+     *            - host[:port], the port defaults to server.port
+     * @return the address
+     * @throws IllegalArgumentException
+     *             - when the port is not a number
+     */
+    public static InetSocketAddress address(String server) throws IllegalArgumentException {
+	int colon = server.lastIndexOf(':');
+	if (colon < 0)
+	    return new InetSocketAddress(server, TFTPConnection.SERVER_PORT);
+	try {
+	    return new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("port is not a number: " + server);
+	}
+    }
+
+    /**
+     * @param concurrency
+     *            - transfers running at once, at least 1
+     */
+    public BatchTransfer setConcurrency(int concurrency) {
+	this.concurrency = Math.max(1, concurrency);
+	return this;
+    }
+
+    /**
+     * @param perServer
+     *            - transfers running at once against one server, at least 1
+     */
+    public BatchTransfer setPerServer(int perServer) {
+	this.perServer = Math.max(1, perServer);
+	return this;
+    }
+
+    /**
+     * @param retries
+     *            - attempts after the first before an entry fails
+     */
+    public BatchTransfer setRetries(int retries) {
+	this.retries = Math.max(0, retries);
+	return this;
+    }
+
+    /**
+     * @param backoff
+     *            - ms before the first retry, doubled for each one after
+     * @param maxBackoff
+     *            - longest wait before a retry in ms
+     */
+    public BatchTransfer setBackoff(long backoff, long maxBackoff) {
+	this.backoff = Math.max(0, backoff);
+	this.maxBackoff = Math.max(this.backoff, maxBackoff);
+	return this;
+    }
+
+    /**
+     * @param options
+     *            - how every transfer is run
+     */
+    public BatchTransfer setOptions(TransferOptions options) {
+	this.options = options;
+	return this;
+    }
+
+    /**
+     * @param transports
+     *            - opens the transfers' sockets
+     */
+    public BatchTransfer setTransports(DatagramTransport.Factory transports) {
+	this.transports = transports;
+	return this;
+    }
+
+    public List<Entry> getEntries() {
+	return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Runs every entry of the batch and waits for them to finish
+     * 
+     * @return what happened to each entry
+     * @throws InterruptedException
+     *             - if interrupted while waiting, transfers that started carry on
+     */
+    public Report run() throws InterruptedException {
+	long start = System.nanoTime();
+	synchronized (this) {
+	    outcomes = Collections.synchronizedList(new ArrayList<>());
+	    remaining = new CountDownLatch(entries.size());
+	    retryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Batch retries");
+		thread.setDaemon(true);
+		return thread;
+	    });
+	    for (Entry entry : entries)
+		queue.add(new Pending(entry));
+	}
+	try {
+	    dispatch();
+	    remaining.await();
+	} finally {
+	    retryTimer.shutdownNow();
+	}
+	return new Report(new ArrayList<>(outcomes), System.nanoTime() - start);
+    }
+
+    /**
+     * Starts the queued entries there is room for
+     */
+    private void dispatch() {
+	List<Pending> starting = new ArrayList<>();
+	synchronized (this) {
+	    for (Iterator<Pending> i = queue.iterator(); i.hasNext() && active < concurrency;) {
+		Pending pending = i.next();
+		SocketAddress server = pending.entry.server;
+		if (activePerServer.getOrDefault(server, 0) >= perServer)
+		    continue;
+		i.remove();
+		active++;
+		activePerServer.merge(server, 1, Integer::sum);
+		starting.add(pending);
+	    }
+	}
+	// started outside the lock as a transfer that fails at once completes on this thread
+	for (Pending pending : starting)
+	    start(pending);
+    }
+
+    private void start(Pending pending) {
+	Entry entry = pending.entry;
+	TFTPClient client;
+	synchronized (this) {
+	    client = clients.get(entry.server);
+	    if (client == null) {
+		client = new TFTPClient(entry.server);
+		client.setTransports(transports);
+		clients.put(entry.server, client);
+	    }
+	}
+	pending.attempts++;
+	(entry.requestType == TFTPPacket.OP_RRQ ? client.get(entry.remoteFile, entry.localFile, options)
+		: client.put(entry.localFile, entry.remoteFile, options))
+		.whenComplete((result, failure) -> finished(pending, result, failure));
+    }
+
+    private void finished(Pending pending, TransferResult result, Throwable failure) {
+	if (failure instanceof CompletionException && failure.getCause() != null)
+	    failure = failure.getCause();
+	synchronized (this) {
+	    active--;
+	    activePerServer.merge(pending.entry.server, -1, Integer::sum);
+	}
+	if (failure != null && pending.attempts <= retries && retryable(failure)) {
+	    long delay = Math.min(backoff << Math.min(pending.attempts - 1, 20), maxBackoff);
+	    delay += (long) (delay * ThreadLocalRandom.current().nextDouble(0.5));
+	    retryTimer.schedule(() -> {
+		synchronized (this) {
+		    queue.add(pending);
+		}
+		dispatch();
+	    }, delay, TimeUnit.MILLISECONDS);
+	} else {
+	    outcomes.add(new Outcome(pending.entry, result, failure, pending.attempts));
+	    remaining.countDown();
+	}
+	dispatch();
+    }
+
+    /**
+     * @return whether a transfer that failed this way may succeed if tried again
+     */
+    private static boolean retryable(Throwable failure) {
+	if (!(failure instanceof TransferException))
+	    return false; // the local file couldn't be read or written
+	switch (((TransferException) failure).getErrorCode()) {
+	case TransferException.TIMED_OUT:
+	case TransferException.NOT_DEFINED:
+	case TransferException.ILLEGAL_OPERATION:
+	case TransferException.UNKNOWN_TID:
+	    return true;
+	default: // missing files, access violations, full disks and refused options happen again
+	    return false;
+	}
+    }
+
+    /**
+     * Runs a manifest from the command line and prints the report, exits with 1
+     * if any transfer failed
+     * 
+     * <pre>
+     * BatchTransfer manifest [--server host[:port]] [--concurrency n] [--per-server n]
+     *               [--retries n] [--backoff ms] [--blksize n] [--timeout ms]
+     * </pre>
+     * 
+     * @param args
+     * @author BLoo
+     */
+    public static void main(String[] args) {
+	if (args.length == 0 || args.length % 2 == 0) {
+	    System.err.println("Usage: BatchTransfer manifest [--server host[:port]] [--concurrency n] "
+		    + "[--per-server n] [--retries n] [--backoff ms] [--blksize n] [--timeout ms]");
+	    System.exit(2);
+	}
+	try {
+	    Map<String, String> flags = new HashMap<>();
+	    for (int i = 1; i < args.length; i += 2)
+		flags.put(args[i], args[i + 1]);
+	    BatchTransfer batch = load(new File(args[0]), address(flags.getOrDefault("--server", "localhost")));
+	    batch.setConcurrency(Integer.parseInt(flags.getOrDefault("--concurrency", "8")));
+	    batch.setPerServer(Integer.parseInt(flags.getOrDefault("--per-server", "4")));
+	    batch.setRetries(Integer.parseInt(flags.getOrDefault("--retries", "2")));
+	    batch.setBackoff(Long.parseLong(flags.getOrDefault("--backoff", "250")), 10000);
+	    batch.setOptions(new TransferOptions().setBlockSize(Integer.parseInt(flags.getOrDefault("--blksize", "0")))
+		    .setTimeout(Integer.parseInt(flags.getOrDefault("--timeout", "0"))));
+
+	    Report report = batch.run();
+	    System.out.print(report);
+	    System.exit(report.getFailed() > 0 ? 1 : 0);
+	} catch (IOException | IllegalArgumentException | InterruptedException e) {
+	    e.printStackTrace();
+	    System.exit(2);
+	}
+    }
+}
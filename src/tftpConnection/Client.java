@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.InputMismatchException;
+import java.util.function.Consumer;
 
 /**
  * @Author Eric Morrissette, Andrew Nguyen, Benjamin
@@ -18,9 +19,23 @@ public class Client extends TFTPConnection {
     private String input;
     private ErrorSimulator errorSim;
     private InetAddress serverAddress;
+    private final Consumer<TFTPConfig> configListener = config -> this.verbose = config.isVerbose();
 
     public Client(ErrorSimulator errorSim) {
-	this.verbose = true;
+	this(errorSim, UdpTransport.FACTORY);
+    }
+
+    /**
+     * @param errorSim
+     *            - the error simulator requests are relayed through, may be null
+     * @param transports
+     *            - opens the socket of each transfer, UDP unless testing in process
+     */
+    public Client(ErrorSimulator errorSim, DatagramTransport.Factory transports) {
+	this.transports = transports;
+	this.verbose = TFTPConfig.get().isVerbose();
+	TFTPConfig.addListener(configListener);
+	this.latency = new LatencyRecorder();
 	this.errorSim = errorSim;
 	try {
 	    serverAddress = InetAddress.getLocalHost();
@@ -180,7 +195,7 @@ public class Client extends TFTPConnection {
 				    /*
 				     * Choose testing Type
 				     */
-				    print("Test Type : LOSE_PACKET(1), DELAY_PACKET(2), \n DUPLICATE_PACKET (3), INVALID_FORMAT(4), UNKNOWN_TID (5): ");
+				    print("Test Type : LOSE_PACKET(1), DELAY_PACKET(2), \n DUPLICATE_PACKET (3), INVALID_FORMAT(4), UNKNOWN_TID (5), SCENARIO_FILE (6): ");
 				    while (input == null) {
 					try {
 					    wait();
@@ -222,6 +237,11 @@ public class Client extends TFTPConnection {
 					errorSimBlock = waitForPosInt("Enter block num ( >= 0): ");
 					errorSimType = waitForPacketType();
 
+				    } else if (input.equals("6")) { // Script errors from a scenario file
+					errorSimMode = -1;
+					if (!errorSim.loadScenario(waitForString("Scenario file: ")))
+					    throw new InputMismatchException();
+
 				    } else {
 					throw new InputMismatchException();
 				    }
@@ -273,6 +293,9 @@ public class Client extends TFTPConnection {
 		println("Invalid input! enter 1, 2, 3 or 4");
 	    }
 	}
+	StringWriter report = new StringWriter();
+	latency.writeText(new PrintWriter(report));
+	print(report.toString());
 	print("Program is now closing...\n");
 	for (int i = 0; i < 5; i++) {
 	    if (i > 3) {
@@ -283,9 +306,18 @@ public class Client extends TFTPConnection {
 		print("..");
 	    }
 	}
+	shutdown();
 	System.exit(0);
     }
 
+    /**
+     * Lets go of the configuration callback, for a client that is done with
+     * transfers
+     */
+    public void shutdown() {
+	TFTPConfig.removeListener(configListener);
+    }
+
     /**
      * Time delay to visually show the effects in the UI when options are selected.
      * Used for closing a program.
@@ -325,7 +357,7 @@ public class Client extends TFTPConnection {
     public void establishConnection(byte requestType, String localFile, String serverFile, int port, int errorSimMode,
 	    int errorSimBlock, int errorSimDelay) {
 	ArrayList<byte[]> data = null;
-	DatagramSocket connectionSocket;
+	DatagramTransport connectionSocket;
 	DatagramPacket ackPacket;
 
 	if (requestType == TFTPPacket.OP_WRQ) { // Check if the request was a write operation (2).
@@ -338,9 +370,11 @@ public class Client extends TFTPConnection {
 	    }
 	}
 
-	connectionSocket = waitForSocket(-1, 2000); // Requests usable socket. If success, new DatagramSocket()
+	// Requests usable socket. If success, a socket from the transport factory
+	connectionSocket = waitForSocket(-1, TFTPConfig.get().getHandlerTimeout());
 
 	try {
+	    requestTime = System.nanoTime();
 	    send(TFTPPacket.createRQ(requestType, serverFile.getBytes(), MODE_OCTET), connectionSocket,
 		    this.serverAddress, port);
 
@@ -351,6 +385,8 @@ public class Client extends TFTPConnection {
 
 	    if (requestType == TFTPPacket.OP_WRQ) {
 		ackPacket = receive(connectionSocket); // Receive a packet using the connection Socket
+		if (ackPacket == null) // the socket was closed
+		    return;
 		sendFile(data, ackPacket.getSocketAddress(), connectionSocket);
 		if (TFTPPacket.getType(ackPacket) == TFTPPacket.OP_ACK) { // If server has given acknowledge to write
 
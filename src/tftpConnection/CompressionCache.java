@@ -0,0 +1,172 @@
+package tftpConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * The deflated and netascii forms of the files a server sends most, for
+ * transfers that agree on compress=deflate or ask for netascii. Files are
+ * translated whole the first time they are asked for and kept until they
+ * change or the least recently sent files are evicted to stay within
+ * compress.cacheBytes, so a hot file is only compressed or translated once.
+ * Files larger than compress.cacheBytes are never read whole, they are
+ * translated as they are sent instead.
+ *
+ * @author BLoo
+ */
+public class CompressionCache {
+
+    private final long capacity;
+    private final Map<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private long size;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * A file's form and the version of the file it was made from
+     */
+    private static final class Entry {
+	final long modified, length;
+	final byte[] encoded;
+
+	Entry(long modified, long length, byte[] encoded) {
+	    this.modified = modified;
+	    this.length = length;
+	    this.encoded = encoded;
+	}
+    }
+
+    /**
+     * @param capacity
+     *            - bytes of the forms kept at most, 0 to keep none
+     */
+    public CompressionCache(long capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * @param length
+     *            - bytes in a file
+     * @return whether a file that long is worth reading whole to cache it
+     */
+    public boolean caches(long length) {
+	return length <= capacity;
+    }
+
+    /**
+     * Gets the deflated contents of a file, deflating it if it isn't cached or
+     * has changed since
+     *
+     * @param file
+     *            - the file
+     * @return the file deflated as by deflate(byte[])
+     */
+    public byte[] deflated(Path file) throws IOException {
+	return encoded(file, false, true);
+    }
+
+    /**
+     * Gets a file as it is sent, translating it if it isn't cached in that form
+     * or has changed since
+     *
+     * @param file
+     *            - the file
+     * @param netascii
+     *            - whether it is sent in netascii, see NetasciiCodec
+     * @param deflate
+     *            - whether it is sent deflated, after any translation
+     * @return the file in that form
+     */
+    public byte[] encoded(Path file, boolean netascii, boolean deflate) throws IOException {
+	Path path = file.toAbsolutePath().normalize();
+	List<Object> key = Arrays.asList(path, netascii, deflate);
+	BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	long modified = attributes.lastModifiedTime().toMillis();
+	synchronized (this) {
+	    Entry entry = entries.get(key);
+	    if (entry != null && entry.modified == modified && entry.length == attributes.size()) {
+		hits.increment();
+		return entry.encoded;
+	    }
+	}
+	misses.increment();
+	byte[] encoded = Files.readAllBytes(path); // outside the lock, so other files are still served
+	if (netascii)
+	    encoded = NetasciiCodec.encode(encoded);
+	if (deflate)
+	    encoded = deflate(encoded);
+	synchronized (this) {
+	    Entry old = entries.remove(key);
+	    if (old != null)
+		size -= old.encoded.length;
+	    if (encoded.length <= capacity) {
+		entries.put(key, new Entry(modified, attributes.size(), encoded));
+		size += encoded.length;
+		for (Iterator<Entry> eldest = entries.values().iterator(); size > capacity;) {
+		    size -= eldest.next().encoded.length;
+		    eldest.remove();
+		}
+	    }
+	}
+	return encoded;
+    }
+
+    /**
+     * Deflates bytes as a zlib stream, whose checksum lets the receiver tell a
+     * stream that was mangled on the way
+     *
+     * @param data
+     *            - the bytes to deflate
+     * @return the stream
+     */
+    public static byte[] deflate(byte[] data) {
+	Deflater deflater = new Deflater();
+	try {
+	    deflater.setInput(data);
+	    deflater.finish();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+	    byte[] buffer = new byte[8192];
+	    while (!deflater.finished())
+		out.write(buffer, 0, deflater.deflate(buffer));
+	    return out.toByteArray();
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    /**
+     * @return times a file was sent from the cache
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * @return times a file had to be read and translated
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    /**
+     * @return bytes of the forms held
+     */
+    public synchronized long size() {
+	return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "CompressionCache " + entries.size() + " files, " + size + "/" + capacity + "B, " + getHits()
+		+ " hits, " + getMisses() + " misses";
+    }
+}
@@ -0,0 +1,60 @@
+package tftpConnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * Where a connection sends and receives its packets. Follows the parts of
+ * DatagramSocket that the transfers use, so {@link UdpTransport} is a thin
+ * wrapper while {@link MemoryNetwork} keeps packets in process for tests and
+ * benchmarks that shouldn't need real ports.
+ *
+ * @author BLoo
+ */
+public interface DatagramTransport extends Closeable {
+
+    /**
+     * Opens transports on one kind of network
+     */
+    interface Factory {
+
+	/**
+	 * @param local
+	 *            - the address to bind, null for any free port
+	 * @param timeOut
+	 *            - receive timeout in ms, 0 or less to wait forever
+	 * @return the bound transport
+	 * @throws SocketException
+	 *             - if the address is in use
+	 */
+	DatagramTransport open(InetSocketAddress local, int timeOut) throws SocketException;
+    }
+
+    /**
+     * Sends a packet to the address it holds
+     */
+    void send(DatagramPacket packet) throws IOException;
+
+    /**
+     * Waits for a packet and copies it into the given one, setting its length and
+     * the sender's address
+     *
+     * @throws java.net.SocketTimeoutException
+     *             - if nothing arrived within the timeout
+     */
+    void receive(DatagramPacket packet) throws IOException;
+
+    void setSoTimeout(int timeOut) throws SocketException;
+
+    int getSoTimeout() throws SocketException;
+
+    int getLocalPort();
+
+    boolean isClosed();
+
+    @Override
+    void close();
+}
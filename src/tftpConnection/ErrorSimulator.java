@@ -1,14 +1,20 @@
 package tftpConnection;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * @author Benjamin Loo
@@ -17,15 +23,53 @@ import java.util.Arrays;
 public class ErrorSimulator extends TFTPConnection {
 
     // Class Variable definition start
-    private DatagramSocket eSimSocket, mediatorSocket, errorSocket;
+    private DatagramTransport eSimSocket, mediatorSocket, errorSocket;
     private SocketAddress clientAddress, serverAddress;
     // private String input;
     private int errorSimMode, errorSimBlock, errorSimDelay, errorSimType;
     private int newOpCode, newNum;
     private String newField;
+    private boolean repeat; // keep the parameters for every session instead of clearing them
+    private SessionRelay relay; // relays sessions concurrently on kernel UDP, null on other transports
+    private final PacketScheduler scheduler = new PacketScheduler("Error simulator delays");
+    private volatile ImpairmentModel network; // random impairment of every packet, null for none
+    private final long[] delays = new long[2]; // the network's plan for a packet on the serial path
+    private volatile ImpairmentScenario scenario; // scripted errors, null for none
+    private ImpairmentScenario.Run scenarioRun; // the scenario for the transfer on the serial path
+    private TFTPConfig applied; // the configuration the network and scenario were taken from
+    private final Consumer<TFTPConfig> configListener = this::configure;
+    private Consumer<TFTPConfig> timeoutListener; // the serial path's socket timeouts, null on UDP
+    private final RelayStats relayStats = new RelayStats(null); // every session's packets
+    private volatile RelayStats serialStats = new RelayStats(relayStats); // the transfer on the serial path
+    private volatile boolean serialOpen; // a transfer on the serial path has started and not been summarised
     // Class Variable definition finish
 
-    private int eSimPort, serverPort = 69;
+    private int eSimPort, serverPort = SERVER_PORT;
+
+    /**
+     * The error one relayed session simulates
+     */
+    public static final class Impairment {
+	public final int mode, block, delay, type, opCode, num;
+	public final String field;
+
+	Impairment(int mode, int block, int delay, int type, int opCode, int num, String field) {
+	    this.mode = mode;
+	    this.block = block;
+	    this.delay = delay;
+	    this.type = type;
+	    this.opCode = opCode;
+	    this.num = num;
+	    this.field = field;
+	}
+
+	@Override
+	public String toString() {
+	    String[] modes = { "none", "lose", "delay", "duplicate", "corrupt", "tid" };
+	    return (mode >= 0 && mode < modes.length ? modes[mode] : "mode " + mode) + " "
+		    + TFTPPacket.PacketTypes.get((byte) type) + " " + block;
+	}
+    }
 
     /**
      * Base constructor for Host
@@ -40,17 +84,57 @@ public class ErrorSimulator extends TFTPConnection {
      * @author bloo
      */
     ErrorSimulator(int eSimPort, int serverPort, boolean verbose) {
+	this(eSimPort, serverPort, verbose, UdpTransport.FACTORY);
+    }
+
+    /**
+     * Constructor for an error simulator on another network than UDP. On UDP
+     * transfers are relayed concurrently by a SessionRelay, on other networks
+     * they are relayed one at a time.
+     * 
+     * @param transports
+     *            - opens the simulator's sockets, should be the network the
+     *            client and server are on
+     */
+    public ErrorSimulator(int eSimPort, int serverPort, boolean verbose, DatagramTransport.Factory transports) {
+	this.transports = transports;
 	this.eSimPort = eSimPort;
 	this.serverPort = serverPort;
 	this.verbose = verbose;
 	clearErrorSim();
+	metrics.register("type=ErrorSimulator,port=" + eSimPort);
+	relayStats.register("type=ErrorSimulator,name=relay,port=" + eSimPort);
+	applied = TFTPConfig.get();
+	network = ImpairmentModel.fromConfig(applied);
+	if (!applied.getScenarioFile().isEmpty())
+	    loadScenario(applied.getScenarioFile());
+	TFTPConfig.addListener(configListener);
+
+	if (transports == UdpTransport.FACTORY) {
+	    try {
+		relay = new SessionRelay(this, eSimPort, serverPort);
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.exit(1);
+	    }
+	    return;
+	}
 
 	try {
-	    eSimSocket = new DatagramSocket(this.eSimPort);
-	    mediatorSocket = waitForSocket(-1, 10000);
-	    errorSocket = waitForSocket(-1, 10000);
+	    eSimSocket = transports.open(new InetSocketAddress(this.eSimPort), -1);
+	    mediatorSocket = waitForSocket(-1, TFTPConfig.get().getSimulatorTimeout());
+	    errorSocket = waitForSocket(-1, TFTPConfig.get().getSimulatorTimeout());
 	    // get socket with timeouts so that error sim can still function not for actual
 	    // erro detection
+	    timeoutListener = config -> {
+		try {
+		    mediatorSocket.setSoTimeout(config.getSimulatorTimeout());
+		    errorSocket.setSoTimeout(config.getSimulatorTimeout());
+		} catch (SocketException e) {
+		    e.printStackTrace();
+		}
+	    };
+	    TFTPConfig.addListener(timeoutListener);
 	} catch (SocketException e) {
 	    // eSimSocket.close();
 	    // mediatorSocket.close();
@@ -60,13 +144,47 @@ public class ErrorSimulator extends TFTPConnection {
 	}
     }
 
+    /**
+     * Applies a reloaded configuration
+     */
+    private void configure(TFTPConfig config) {
+	this.verbose = config.isVerbose();
+	TFTPConfig old = applied;
+	applied = config;
+	// keep the links' state and the scenario's sessions unless their settings changed
+	if (!config.getNetworkToServer().equals(old.getNetworkToServer())
+		|| !config.getNetworkToClient().equals(old.getNetworkToClient())
+		|| config.getNetworkSeed() != old.getNetworkSeed())
+	    network = ImpairmentModel.fromConfig(config);
+	if (!config.getScenarioFile().equals(old.getScenarioFile()))
+	    loadScenario(config.getScenarioFile());
+    }
+
+    /**
+     * Stops relaying and lets go of the metrics and configuration callbacks. The
+     * relay closes its ports as it returns, the serial path once the transfer it
+     * is relaying ends.
+     */
+    public void shutdown() {
+	TFTPConfig.removeListener(configListener);
+	if (timeoutListener != null)
+	    TFTPConfig.removeListener(timeoutListener);
+	metrics.unregister();
+	relayStats.unregister();
+	scheduler.close();
+	if (relay != null)
+	    relay.close();
+	else
+	    eSimSocket.close();
+    }
+
     /**
      * Default constructor setting the client and servers ports to their defaults
      * 
      * @author bloo
      */
     ErrorSimulator() {
-	this(ESIM_PORT, SERVER_PORT, true);
+	this(ESIM_PORT, SERVER_PORT, TFTPConfig.get().isVerbose());
     }
 
     /**
@@ -79,10 +197,15 @@ public class ErrorSimulator extends TFTPConnection {
     void mediateTransfer() throws UnknownHostException {
 	DatagramPacket receivePacket = null, lastPacket = null;
 	SocketAddress receiveAddress;
+	blockSize = MAX_DATA_SIZE;
 	while (true) {
 	    try {
 		lastPacket = receivePacket;
 		receivePacket = receive(mediatorSocket);
+		if (receivePacket == null) // closed to shut down
+		    return;
+		if (TFTPPacket.getType(receivePacket) == TFTPPacket.OP_OACK)
+		    blockSize = TFTPPacket.getBlockSize(receivePacket.getData(), receivePacket.getLength());
 		if (serverAddress.equals(receivePacket.getSocketAddress()))
 		    receiveAddress = clientAddress;
 		else if (clientAddress.equals(receivePacket.getSocketAddress()))
@@ -92,6 +215,7 @@ public class ErrorSimulator extends TFTPConnection {
 		    continue;
 		}
 
+		script(receivePacket, receiveAddress == serverAddress);
 		if (errorSimMode > 0 && (TFTPPacket.getBlockNum(receivePacket) == errorSimBlock
 			&& TFTPPacket.getType(receivePacket) == errorSimType)) {
 		    if (errorSimMode == 1) {
@@ -106,13 +230,12 @@ public class ErrorSimulator extends TFTPConnection {
 			simulateUnknownTID(receivePacket, receiveAddress, false);
 		    }
 		} else {
-		    send(Arrays.copyOf(receivePacket.getData(), receivePacket.getLength()), mediatorSocket,
-			    receiveAddress);
+		    pass(receivePacket, receiveAddress, receiveAddress == serverAddress);
 		}
 
 		if (TFTPPacket.getType(receivePacket) == TFTPPacket.OP_ERROR
 			|| lastPacket != null && TFTPPacket.getType(lastPacket) == TFTPPacket.OP_DATA
-				&& TFTPPacket.getDataLength(lastPacket) < MAX_DATA_SIZE)
+				&& TFTPPacket.getDataLength(lastPacket) < blockSize)
 		    break;
 
 	    } catch (IllegalArgumentException e) {
@@ -131,12 +254,27 @@ public class ErrorSimulator extends TFTPConnection {
      * @author bloo
      */
     void startPassthrough() {
+	if (relay != null) {
+	    relay.run();
+	    return;
+	}
 	DatagramPacket initialPacket, responsePacket;
 	while (true) {
 	    try {
 		initialPacket = receive(eSimSocket);
+		if (initialPacket == null) { // shut down
+		    mediatorSocket.close();
+		    errorSocket.close();
+		    return;
+		}
 
 		clientAddress = initialPacket.getSocketAddress();
+		ImpairmentScenario scenario = this.scenario;
+		scenarioRun = scenario == null ? null : scenario.start();
+		serialStats = new RelayStats(relayStats);
+		serialStats.sessionStarted();
+		serialOpen = true;
+		script(initialPacket, true);
 		try {
 		    if (errorSimMode > 0 && TFTPPacket.getType(initialPacket) == errorSimType) {
 
@@ -152,8 +290,7 @@ public class ErrorSimulator extends TFTPConnection {
 			    simulateUnknownTID(initialPacket, serverAddress, true);
 			}
 		    } else {
-			send(Arrays.copyOf(initialPacket.getData(), initialPacket.getLength()), mediatorSocket,
-				InetAddress.getLocalHost(), serverPort);
+			pass(initialPacket, new InetSocketAddress(InetAddress.getLocalHost(), serverPort), true);
 		    }
 
 		} catch (UnknownHostException e) {
@@ -161,8 +298,14 @@ public class ErrorSimulator extends TFTPConnection {
 		    System.exit(1);
 		}
 		responsePacket = receive(mediatorSocket);
+		if (responsePacket == null) { // shut down
+		    eSimSocket.close();
+		    errorSocket.close();
+		    return;
+		}
 		serverAddress = responsePacket.getSocketAddress();
 
+		script(responsePacket, false);
 		if (errorSimMode > 0 && TFTPPacket.getType(responsePacket) == errorSimType
 			&& TFTPPacket.getBlockNum(responsePacket) == errorSimBlock) {
 		    if (errorSimMode == 1) {
@@ -177,8 +320,7 @@ public class ErrorSimulator extends TFTPConnection {
 			simulateUnknownTID(responsePacket, clientAddress, false);
 		    }
 		} else {
-		    send(Arrays.copyOf(responsePacket.getData(), responsePacket.getLength()), mediatorSocket,
-			    clientAddress);
+		    pass(responsePacket, clientAddress, false);
 		}
 
 		if (TFTPPacket.getType(responsePacket) == TFTPPacket.OP_ERROR)
@@ -193,10 +335,116 @@ public class ErrorSimulator extends TFTPConnection {
 
 		e1.printStackTrace();
 		System.exit(1);
+	    } finally {
+		finishSession();
+	    }
+	}
+    }
+
+    /**
+     * Prints what happened to the packets of the transfer on the serial path once
+     * it is over
+     */
+    private void finishSession() {
+	if (!serialOpen)
+	    return;
+	serialOpen = false;
+	serialStats.sessionFinished();
+	println("Session for " + clientAddress + " closed: " + serialStats.summary());
+    }
+
+    /**
+     * @param firstPass
+     *            - whether the packet is the request, which always goes to the
+     *            server
+     * @return whether a packet sent to the address goes to the server
+     */
+    private boolean towardsServer(SocketAddress address, boolean firstPass) {
+	return firstPass || !address.equals(clientAddress);
+    }
+
+    /**
+     * Counts the packets the serial path sends on in the transfer's stats
+     */
+    @Override
+    protected void send(DatagramPacket sendPacket, DatagramTransport socket) {
+	super.send(sendPacket, socket);
+	if (socket != eSimSocket)
+	    serialStats.forwarded(!sendPacket.getSocketAddress().equals(clientAddress), sendPacket.getData(),
+		    sendPacket.getLength());
+    }
+
+    /**
+     * Sets the parameters for the scenario's error on a packet of the transfer on
+     * the serial path, unless an error from the menu is still waiting
+     * 
+     * @param toServer
+     *            - the direction the packet is going
+     */
+    private void script(DatagramPacket packet, boolean toServer) {
+	if (scenarioRun == null || errorSimMode > 0)
+	    return;
+	Impairment impairment = scenarioRun.match(packet.getData(), packet.getLength(), toServer);
+	if (impairment != null)
+	    setParameters(impairment.mode, impairment.block, impairment.delay, impairment.type, impairment.opCode,
+		    impairment.num, impairment.field);
+    }
+
+    /**
+     * Passes a packet on across the network model, packets the model delays are
+     * copied and sent by the scheduler. A packet sent straight away is sent as
+     * it was received.
+     * 
+     * @param toServer
+     *            - the direction the packet is going
+     */
+    private void pass(DatagramPacket packet, SocketAddress to, boolean toServer) {
+	ImpairmentModel network = this.network;
+	if (network == null) {
+	    packet.setSocketAddress(to);
+	    send(packet, mediatorSocket);
+	    return;
+	}
+	int copies = network.link(toServer).plan(packet.getLength(), System.nanoTime(), delays);
+	if (copies == 0) {
+	    serialStats.dropped(toServer);
+	    record(PacketTimeline.DROP, packet);
+	} else if (copies > 1) {
+	    serialStats.duplicated(toServer);
+	}
+	for (int i = 0; i < copies; i++) {
+	    if (delays[i] > 0) {
+		serialStats.delayed(toServer, delays[i]);
+		record(PacketTimeline.DELAY, packet);
+		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+			packet.getOffset() + packet.getLength());
+		sendLater(delays[i], TimeUnit.NANOSECONDS, data, to, toServer);
+	    } else {
+		packet.setSocketAddress(to);
+		send(packet, mediatorSocket);
 	    }
 	}
     }
 
+    /**
+     * Sends a copy of a packet from the scheduler once the delay has passed. The
+     * socket, stats and direction are those of the session now, the next session
+     * may have replaced them when it is sent.
+     * 
+     * @param to
+     *            - where the packet goes
+     * @param toServer
+     *            - the direction the packet is going
+     */
+    private void sendLater(long delay, TimeUnit unit, byte[] data, SocketAddress to, boolean toServer) {
+	DatagramTransport socket = mediatorSocket;
+	RelayStats stats = serialStats;
+	scheduler.schedule(delay, unit, () -> {
+	    super.send(new DatagramPacket(data, data.length, to), socket);
+	    stats.forwarded(toServer, data, data.length);
+	});
+    }
+
     /**
      * Simulates the loss of a packet
      * 
@@ -213,6 +461,8 @@ public class ErrorSimulator extends TFTPConnection {
 	    throws UnknownHostException {
 
 	print("THIS PACKET WILL BE LOST\n");
+	serialStats.dropped(towardsServer(address, firstPass));
+	record(PacketTimeline.DROP, packet);
 	clearErrorSim();
 
     }
@@ -234,19 +484,12 @@ public class ErrorSimulator extends TFTPConnection {
 
 	print("THIS PACKET WILL BE DELAYED\n");
 
-	// delay the packet
-	try {
-	    Thread.sleep(errorSimDelay);
-	} catch (InterruptedException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	}
-
-	if (firstPass)
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, InetAddress.getLocalHost(),
-		    serverPort);
-	else
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, address);
+	// delay the packet without holding up the relay
+	byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+	SocketAddress to = firstPass ? new InetSocketAddress(InetAddress.getLocalHost(), serverPort) : address;
+	serialStats.delayed(towardsServer(address, firstPass), TimeUnit.MILLISECONDS.toNanos(errorSimDelay));
+	record(PacketTimeline.DELAY, packet);
+	sendLater(errorSimDelay, TimeUnit.MILLISECONDS, data, to, towardsServer(address, firstPass));
 	clearErrorSim();
     }
 
@@ -267,25 +510,13 @@ public class ErrorSimulator extends TFTPConnection {
 
 	print("THIS PACKET WILL BE DUPLICATED\n");
 
-	if (firstPass)
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, InetAddress.getLocalHost(),
-		    serverPort);
-	else
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, address);
-
-	// delay the packet
-	try {
-	    Thread.sleep(errorSimDelay);
-	} catch (InterruptedException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	}
+	byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+	SocketAddress to = firstPass ? new InetSocketAddress(InetAddress.getLocalHost(), serverPort) : address;
+	serialStats.duplicated(towardsServer(address, firstPass));
+	send(data, mediatorSocket, to);
 
-	if (firstPass)
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, InetAddress.getLocalHost(),
-		    serverPort);
-	else
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, address);
+	// the duplicate follows after the delay without holding up the relay
+	sendLater(errorSimDelay, TimeUnit.MILLISECONDS, data, to, towardsServer(address, firstPass));
 	clearErrorSim();
 
     }
@@ -306,28 +537,14 @@ public class ErrorSimulator extends TFTPConnection {
 	    throws UnknownHostException {
 
 	print("THIS PACKET WILL BE \n INCORRECTLY FORMATED\n");
-	byte[] data = new byte[1000];
-	ByteBuffer buf = ByteBuffer.wrap(data);
-
-	if (newOpCode >= 0) {
-	    buf.put(new byte[] { (byte) (newOpCode / 256), (byte) (newOpCode % 256) });
-	}
-
-	if (newNum >= 0) {
-	    buf.put(new byte[] { (byte) (newNum / 256), (byte) (newNum % 256) });
-	}
-
-	if (newField != null) {
-	    buf.put(newField.getBytes());
-	}
-
-	data = Arrays.copyOf(data, buf.position() - 1);
+	byte[] data = createInvalidPacket(new Impairment(errorSimMode, errorSimBlock, errorSimDelay, errorSimType,
+		newOpCode, newNum, newField));
+	serialStats.corrupted(towardsServer(address, firstPass));
 
 	if (firstPass)
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, InetAddress.getLocalHost(),
-		    serverPort);
+	    send(data, mediatorSocket, InetAddress.getLocalHost(), serverPort);
 	else
-	    send(Arrays.copyOf(packet.getData(), packet.getLength()), mediatorSocket, address);
+	    send(data, mediatorSocket, address);
 	clearErrorSim();
     }
 
@@ -348,6 +565,7 @@ public class ErrorSimulator extends TFTPConnection {
 	    throws UnknownHostException {
 
 	print("SIMULATING UNKNOWN TID\n");
+	serialStats.unknownTid(towardsServer(address, firstPass));
 
 	if (firstPass)
 	    send(Arrays.copyOf(packet.getData(), packet.getLength()), errorSocket, InetAddress.getLocalHost(),
@@ -386,7 +604,8 @@ public class ErrorSimulator extends TFTPConnection {
      * @author Eric
      */
 
-    public void setParameters(int mode, int block, int delay, int type, int opCode, int num, String field) {
+    public synchronized void setParameters(int mode, int block, int delay, int type, int opCode, int num,
+	    String field) {
 	errorSimMode = mode;
 	errorSimBlock = block;
 	errorSimDelay = delay;
@@ -396,11 +615,198 @@ public class ErrorSimulator extends TFTPConnection {
 	newField = field;
     }
 
+    /**
+     * Keeps the parameters after a session has taken them so every transfer is
+     * impaired the same way, for load tests through the relay
+     * 
+     * @param repeat
+     *            - false to clear the parameters once used, the default
+     */
+    public synchronized void setRepeat(boolean repeat) {
+	this.repeat = repeat;
+    }
+
+    /**
+     * Takes the parameters for a new relayed session
+     * 
+     * @return the error the session simulates, null for none
+     */
+    synchronized Impairment takeImpairment() {
+	if (errorSimMode <= 0)
+	    return null;
+	Impairment impairment = new Impairment(errorSimMode, errorSimBlock, errorSimDelay, errorSimType, newOpCode,
+		newNum, newField);
+	if (!repeat)
+	    clearErrorSim();
+	return impairment;
+    }
+
+    /**
+     * Builds the packet sent in place of one that is incorrectly formatted
+     * 
+     * @param impairment
+     *            - the new opcode, number and fields, negative or null to leave out
+     * @return the malformed packet, a field too long for it is cut short
+     */
+    static byte[] createInvalidPacket(Impairment impairment) {
+	byte[] data = new byte[1000];
+	ByteBuffer buf = ByteBuffer.wrap(data);
+
+	if (impairment.opCode >= 0) {
+	    buf.put(new byte[] { (byte) (impairment.opCode / 256), (byte) (impairment.opCode % 256) });
+	}
+
+	if (impairment.num >= 0) {
+	    buf.put(new byte[] { (byte) (impairment.num / 256), (byte) (impairment.num % 256) });
+	}
+
+	if (impairment.field != null) {
+	    byte[] field = impairment.field.getBytes();
+	    buf.put(field, 0, Math.min(field.length, buf.remaining()));
+	}
+
+	return Arrays.copyOf(data, Math.max(buf.position() - 1, 0));
+    }
+
+    /**
+     * Replaces the random impairment of relayed packets, the configuration sets it
+     * at startup and whenever its esim.network keys change
+     * 
+     * @param network
+     *            - the model, null for a perfect network
+     */
+    public void setImpairmentModel(ImpairmentModel network) {
+	this.network = network;
+    }
+
+    /**
+     * @return the random impairment of relayed packets, null for none
+     */
+    public ImpairmentModel getImpairmentModel() {
+	return network;
+    }
+
+    /**
+     * Replaces the scripted errors, sessions that have started keep the scenario
+     * they started with. A scenario with network settings also replaces the
+     * network model.
+     * 
+     * @param scenario
+     *            - the scenario, null for none
+     */
+    public void setScenario(ImpairmentScenario scenario) {
+	if (scenario != null && scenario.getNetwork() != null)
+	    network = scenario.getNetwork();
+	this.scenario = scenario;
+    }
+
+    /**
+     * @return the scripted errors, null for none
+     */
+    public ImpairmentScenario getScenario() {
+	return scenario;
+    }
+
+    /**
+     * Reads a scenario file and uses it for the sessions that start from now on,
+     * the old scenario stays when the file can't be used
+     * 
+     * @param file
+     *            - the scenario file, empty to stop using a scenario
+     * @return whether the scenario was loaded
+     */
+    public boolean loadScenario(String file) {
+	if (file.isEmpty()) {
+	    setScenario(null);
+	    return true;
+	}
+	try {
+	    setScenario(ImpairmentScenario.load(new File(file)));
+	    println("Loaded scenario " + scenario);
+	    return true;
+	} catch (IOException e) {
+	    System.err.println("Unable to read scenario " + file + ": " + e.getMessage());
+	} catch (IllegalArgumentException e) {
+	    System.err.println("Invalid scenario, " + e.getMessage());
+	}
+	return false;
+    }
+
+    /**
+     * Starts the scenario for a new relayed session
+     * 
+     * @return the session's run of the scenario, null when there is none
+     */
+    ImpairmentScenario.Run startScenario() {
+	ImpairmentScenario scenario = this.scenario;
+	return scenario == null ? null : scenario.start();
+    }
+
+    /**
+     * @return what happened to the packets of every session relayed
+     */
+    public RelayStats getRelayStats() {
+	return relayStats;
+    }
+
+    /**
+     * @return the stats of each session being relayed, keyed by client address
+     */
+    public Map<SocketAddress, RelayStats> getSessionStats() {
+	if (relay != null)
+	    return relay.getSessionStats();
+	return serialOpen ? Collections.singletonMap(clientAddress, serialStats) : Collections.emptyMap();
+    }
+
+    /**
+     * @return whether transfers are relayed concurrently, otherwise one at a time
+     */
+    public boolean isConcurrent() {
+	return relay != null;
+    }
+
+    /**
+     * @return sends delayed and duplicated packets
+     */
+    public PacketScheduler getScheduler() {
+	return scheduler;
+    }
+
+    /**
+     * @return the relay of a simulator on UDP, null on other networks
+     */
+    public SessionRelay getRelay() {
+	return relay;
+    }
+
     @Override
     public void takeInput(String s) {
 	return;
     }
 
+    /**
+     * Runs the error simulator without the user interface. Serves metrics over HTTP
+     * when esim.metrics.port is set.
+     * 
+     * @param args
+     * @author bloo
+     */
+    public static void main(String[] args) {
+	ErrorSimulator errorSim = new ErrorSimulator();
+	TFTPConfig.startWatcher(2000);
+
+	int metricsPort = TFTPConfig.get().getEsimMetricsPort();
+	if (metricsPort > 0) {
+	    try {
+		new MetricsHttpServer(metricsPort, errorSim, "errorsim");
+		errorSim.println("Serving metrics on port " + metricsPort);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+	errorSim.startPassthrough();
+    }
+
     /**
      * Clears the error sim fields
      * 
@@ -0,0 +1,316 @@
+package tftpConnection;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lossy, slow network between the client and the server, applied by the
+ * ErrorSimulator to every packet it relays. Unlike the error simulator's
+ * parameters, which break one chosen packet, the model impairs packets at
+ * random and keeps doing so, so throughput can be measured against loss and
+ * latency. Each direction is a separate Link with its own settings, state and
+ * seeded Random, the same seed and packets give the same impairments.
+ *
+ * A link is described by a spec of key=value pairs separated by commas or
+ * spaces, every key is optional:
+ *
+ * <pre>
+ * loss=0.01              lose each packet with this probability (Bernoulli)
+ * gilbert=P/R[/BAD[/GOOD]] Gilbert-Elliott loss instead: P moves the link from the
+ *                        good to the bad state, R back again, BAD and GOOD are the
+ *                        loss probabilities in each state (1 and 0 by default)
+ * latency=20             added to every packet, in ms
+ * jitter=5               latency varies by up to this much either way, in ms
+ * reorder=0.01           hold a packet back so the following ones overtake it
+ * reorder-delay=10       how long a reordered packet is held, in ms
+ * duplicate=0.005        send a packet twice
+ * rate=10M               bandwidth cap in bits per second (k, M and G suffixes)
+ * queue=64               packets waiting for the capped link, more are dropped
+ * </pre>
+ *
+ * @author BLoo
+ */
+public class ImpairmentModel {
+
+    private final Link toServer, toClient;
+    private final long seed;
+
+    /**
+     * One direction of the network
+     */
+    public static final class Link {
+	private final String spec;
+	private double loss;
+	private boolean gilbert;
+	private double goodToBad, badToGood, lossGood, lossBad = 1;
+	private long latency, jitter, reorderDelay = TimeUnit.MILLISECONDS.toNanos(10); // ns
+	private double reorder, duplicate;
+	private long rate; // bits per second, 0 for no cap
+	private int queue = 64;
+
+	private final Random random;
+	private boolean bad; // Gilbert-Elliott state
+	private long linkFree; // when the capped link finishes sending what it holds, System.nanoTime()
+	private long[] departures; // ring of times the queued packets leave the link
+	private int head, backlog;
+	private long packets, lost, queueDropped, reordered, duplicated;
+
+	/**
+	 * @param spec
+	 *            - the settings, empty for a perfect link
+	 * @param seed
+	 *            - seeds the link's random numbers
+	 * @throws IllegalArgumentException
+	 *             - when the spec has an unknown key or a value out of range
+	 */
+	public Link(String spec, long seed) throws IllegalArgumentException {
+	    this.spec = spec == null ? "" : spec.trim();
+	    this.random = new Random(seed);
+	    for (String setting : this.spec.split("[,\\s]+"))
+		if (!setting.isEmpty())
+		    set(setting);
+	    departures = new long[queue];
+	}
+
+	private void set(String setting) throws IllegalArgumentException {
+	    int eq = setting.indexOf('=');
+	    if (eq < 0)
+		throw new IllegalArgumentException("Expected key=value: " + setting);
+	    String key = setting.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+	    String value = setting.substring(eq + 1).trim();
+	    try {
+		switch (key) {
+		case "loss":
+		    loss = probability(key, value);
+		    break;
+		case "gilbert":
+		    String[] fields = value.split("/");
+		    if (fields.length < 2 || fields.length > 4)
+			throw new IllegalArgumentException("gilbert takes P/R[/BAD[/GOOD]]: " + value);
+		    gilbert = true;
+		    goodToBad = probability(key, fields[0]);
+		    badToGood = probability(key, fields[1]);
+		    lossBad = fields.length > 2 ? probability(key, fields[2]) : 1;
+		    lossGood = fields.length > 3 ? probability(key, fields[3]) : 0;
+		    break;
+		case "latency":
+		    latency = millis(key, value);
+		    break;
+		case "jitter":
+		    jitter = millis(key, value);
+		    break;
+		case "reorder":
+		    reorder = probability(key, value);
+		    break;
+		case "reorder-delay":
+		    reorderDelay = millis(key, value);
+		    break;
+		case "duplicate":
+		    duplicate = probability(key, value);
+		    break;
+		case "rate":
+		    rate = bitsPerSecond(value);
+		    break;
+		case "queue":
+		    queue = Integer.parseInt(value);
+		    if (queue < 1)
+			throw new IllegalArgumentException("queue must be at least 1: " + value);
+		    break;
+		default:
+		    throw new IllegalArgumentException("Unknown network setting " + key);
+		}
+	    } catch (NumberFormatException e) {
+		throw new IllegalArgumentException(key + " is not a number: " + value);
+	    }
+	}
+
+	private static double probability(String key, String value) {
+	    double p = Double.parseDouble(value);
+	    if (!(p >= 0 && p <= 1))
+		throw new IllegalArgumentException(key + " must be between 0 and 1: " + value);
+	    return p;
+	}
+
+	private static long millis(String key, String value) {
+	    double ms = Double.parseDouble(value);
+	    if (!(ms >= 0 && ms <= 600000))
+		throw new IllegalArgumentException(key + " must be between 0 and 600000 ms: " + value);
+	    return (long) (ms * 1e6);
+	}
+
+	private static long bitsPerSecond(String value) {
+	    if (value.isEmpty())
+		throw new IllegalArgumentException("rate is not a number: " + value);
+	    long multiplier = 1;
+	    switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+	    case 'k':
+		multiplier = 1000;
+		break;
+	    case 'm':
+		multiplier = 1000000;
+		break;
+	    case 'g':
+		multiplier = 1000000000;
+		break;
+	    }
+	    double bits = Double.parseDouble(multiplier == 1 ? value : value.substring(0, value.length() - 1));
+	    if (!(bits * multiplier >= 1))
+		throw new IllegalArgumentException("rate must be at least 1 bit per second: " + value);
+	    return (long) (bits * multiplier);
+	}
+
+	/**
+	 * Decides what happens to a packet. A lost or dropped packet is not sent, a
+	 * duplicated one is sent twice.
+	 *
+	 * @param length
+	 *            - bytes in the packet
+	 * @param now
+	 *            - System.nanoTime() when the packet arrived
+	 * @param delays
+	 *            - receives how long to hold each copy in ns, at least 2 long
+	 * @return number of copies to send, 0 to 2
+	 */
+	public synchronized int plan(int length, long now, long[] delays) {
+	    packets++;
+	    if (lose()) {
+		lost++;
+		return 0;
+	    }
+
+	    long delay = latency;
+	    if (rate > 0) {
+		while (backlog > 0 && departures[head] - now <= 0) {
+		    head = (head + 1) % departures.length;
+		    backlog--;
+		}
+		if (backlog == departures.length) {
+		    queueDropped++;
+		    return 0;
+		}
+		linkFree = (backlog == 0 ? now : linkFree) + length * 8L * 1000000000L / rate;
+		departures[(head + backlog++) % departures.length] = linkFree;
+		delay += linkFree - now;
+	    }
+	    if (jitter > 0)
+		delay += (long) ((random.nextDouble() * 2 - 1) * jitter);
+	    if (reorder > 0 && random.nextDouble() < reorder) {
+		reordered++;
+		delay += reorderDelay;
+	    }
+	    delays[0] = Math.max(delay, 0);
+
+	    if (duplicate > 0 && random.nextDouble() < duplicate) {
+		duplicated++;
+		delays[1] = delays[0];
+		return 2;
+	    }
+	    return 1;
+	}
+
+	private boolean lose() {
+	    if (gilbert) {
+		bad = bad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+		return random.nextDouble() < (bad ? lossBad : lossGood);
+	    }
+	    return loss > 0 && random.nextDouble() < loss;
+	}
+
+	/**
+	 * @return packets offered to the link
+	 */
+	public synchronized long getPackets() {
+	    return packets;
+	}
+
+	/**
+	 * @return packets lost at random
+	 */
+	public synchronized long getLost() {
+	    return lost;
+	}
+
+	/**
+	 * @return packets dropped because the rate capped queue was full
+	 */
+	public synchronized long getQueueDropped() {
+	    return queueDropped;
+	}
+
+	/**
+	 * @return packets held back to arrive out of order
+	 */
+	public synchronized long getReordered() {
+	    return reordered;
+	}
+
+	/**
+	 * @return packets sent twice
+	 */
+	public synchronized long getDuplicated() {
+	    return duplicated;
+	}
+
+	@Override
+	public String toString() {
+	    return spec.isEmpty() ? "perfect" : spec;
+	}
+    }
+
+    /**
+     * @param toServer
+     *            - spec of packets going to the server, empty for none
+     * @param toClient
+     *            - spec of packets going to the client, empty for none
+     * @param seed
+     *            - seeds both links
+     * @throws IllegalArgumentException
+     *             - when a spec is invalid
+     */
+    public ImpairmentModel(String toServer, String toClient, long seed) throws IllegalArgumentException {
+	this.seed = seed;
+	this.toServer = new Link(toServer, seed);
+	this.toClient = new Link(toClient, seed * 31 + 1);
+    }
+
+    /**
+     * Builds the model the configuration describes
+     *
+     * @param config
+     *            - esim.network.toServer, esim.network.toClient and
+     *            esim.network.seed
+     * @return the model, null when neither direction is impaired
+     */
+    public static ImpairmentModel fromConfig(TFTPConfig config) {
+	if (config.getNetworkToServer().isEmpty() && config.getNetworkToClient().isEmpty())
+	    return null;
+	return new ImpairmentModel(config.getNetworkToServer(), config.getNetworkToClient(), config.getNetworkSeed());
+    }
+
+    /**
+     * @param toServer
+     *            - true for the direction towards the server
+     * @return the link packets going that way cross
+     */
+    public Link link(boolean toServer) {
+	return toServer ? this.toServer : toClient;
+    }
+
+    public Link getToServer() {
+	return toServer;
+    }
+
+    public Link getToClient() {
+	return toClient;
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    @Override
+    public String toString() {
+	return "to server: " + toServer + ", to client: " + toClient + ", seed " + seed;
+    }
+}
@@ -0,0 +1,353 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scripted list of errors for the ErrorSimulator, read from a scenario file
+ * so a test or benchmark run can be repeated under exactly the same faults.
+ * Each packet the simulator relays is checked against the rules in order and
+ * the first rule that matches decides what happens to it, packets no rule
+ * matches are relayed as they are. Sessions are numbered from 1 in the order
+ * their requests arrive, and every session draws its random numbers from the
+ * scenario's seed and its number, so the faults don't depend on how sessions
+ * interleave.
+ *
+ * <pre>
+ * # settings, all optional
+ * seed=42
+ * network.toServer=loss=0.01,latency=5    an ImpairmentModel for the whole run
+ * network.toClient=latency=5
+ *
+ * # type  blocks  direction  session  action [arguments] [p=probability] [times=n|*]
+ * DATA    5       toClient   *        lose
+ * ACK     1-3     toServer   2        delay 300
+ * DATA    *       *          1-4      duplicate 50 p=0.01 times=*
+ * RRQ     *       *          3        corrupt opcode=9 num=0 field=x
+ * DATA    7       toClient   *        tid
+ * </pre>
+ *
+ * The type is RRQ, WRQ, DATA, ACK or ERROR, the block of a request is not
+ * checked. Blocks and sessions are a number, an inclusive range or *. The
+ * actions are those of the simulator's menu: lose, delay and duplicate (by a
+ * number of ms), corrupt (sends the packet built from opcode, num and field
+ * instead, an invalid opcode 9 by default) and tid (sends the packet from an
+ * unknown port). A rule applies once per session unless times says otherwise,
+ * and p makes it apply only to that share of the packets it matches.
+ *
+ * @author BLoo
+ */
+public class ImpairmentScenario {
+
+    private final String name;
+    private final long seed;
+    private final String networkToServer, networkToClient;
+    private final List<Rule> rules = new ArrayList<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * One line of the scenario
+     */
+    private static final class Rule {
+	final int line;
+	final byte type;
+	final int firstBlock, lastBlock, firstSession, lastSession;
+	final Boolean toServer; // null for either direction
+	final int mode, delay, opCode, num;
+	final String field;
+	final double probability;
+	final int times; // per session, 0 for unlimited
+
+	Rule(int line, String[] tokens) throws IllegalArgumentException {
+	    this.line = line;
+	    if (tokens.length < 5)
+		throw new IllegalArgumentException("expected type, blocks, direction, session and action");
+	    type = type(tokens[0]);
+	    int[] blocks = range(tokens[1], 65535);
+	    firstBlock = blocks[0];
+	    lastBlock = blocks[1];
+	    toServer = direction(tokens[2]);
+	    int[] sessions = range(tokens[3], Integer.MAX_VALUE);
+	    firstSession = sessions[0];
+	    lastSession = sessions[1];
+
+	    int next = 5, ruleDelay = 0, ruleOpCode = -1, ruleNum = -1, ruleTimes = 1;
+	    String ruleField = null;
+	    double ruleProbability = 1;
+	    switch (tokens[4].toLowerCase(Locale.ROOT)) {
+	    case "lose":
+		mode = 1;
+		break;
+	    case "delay":
+	    case "duplicate":
+		mode = tokens[4].equalsIgnoreCase("delay") ? 2 : 3;
+		if (tokens.length < 6)
+		    throw new IllegalArgumentException(tokens[4] + " needs a delay in ms");
+		ruleDelay = number(tokens[5], 0, 600000);
+		next = 6;
+		break;
+	    case "corrupt":
+		mode = 4;
+		ruleOpCode = 9;
+		break;
+	    case "tid":
+		mode = 5;
+		break;
+	    default:
+		throw new IllegalArgumentException("unknown action " + tokens[4]);
+	    }
+
+	    for (int i = next; i < tokens.length; i++) {
+		int eq = tokens[i].indexOf('=');
+		String key = eq < 0 ? tokens[i] : tokens[i].substring(0, eq).toLowerCase(Locale.ROOT);
+		String value = eq < 0 ? "" : tokens[i].substring(eq + 1);
+		if (key.equals("p")) {
+		    try {
+			ruleProbability = Double.parseDouble(value);
+		    } catch (NumberFormatException e) {
+			ruleProbability = -1;
+		    }
+		    if (!(ruleProbability >= 0 && ruleProbability <= 1))
+			throw new IllegalArgumentException("p must be between 0 and 1: " + value);
+		} else if (key.equals("times")) {
+		    ruleTimes = value.equals("*") ? 0 : number(value, 1, Integer.MAX_VALUE);
+		} else if (mode == 4 && key.equals("opcode")) {
+		    ruleOpCode = number(value, 0, 65535);
+		} else if (mode == 4 && key.equals("num")) {
+		    ruleNum = number(value, 0, 65535);
+		} else if (mode == 4 && key.equals("field")) {
+		    ruleField = value;
+		} else {
+		    throw new IllegalArgumentException("unknown argument " + tokens[i]);
+		}
+	    }
+	    delay = ruleDelay;
+	    opCode = ruleOpCode;
+	    num = ruleNum;
+	    field = ruleField;
+	    probability = ruleProbability;
+	    times = ruleTimes;
+	}
+
+	boolean matches(int session, byte packetType, int block, boolean towardsServer) {
+	    return packetType == type && session >= firstSession && session <= lastSession
+		    && (toServer == null || toServer == towardsServer)
+		    && (type == TFTPPacket.OP_RRQ || type == TFTPPacket.OP_WRQ
+			    || block >= firstBlock && block <= lastBlock);
+	}
+
+	private static byte type(String token) {
+	    for (byte type = TFTPPacket.OP_RRQ; type <= TFTPPacket.OP_ERROR; type++)
+		if (TFTPPacket.PacketTypes.get(type).equalsIgnoreCase(token))
+		    return type;
+	    throw new IllegalArgumentException("unknown packet type " + token);
+	}
+
+	private static Boolean direction(String token) {
+	    if (token.equals("*"))
+		return null;
+	    if (token.equalsIgnoreCase("toServer"))
+		return true;
+	    if (token.equalsIgnoreCase("toClient"))
+		return false;
+	    throw new IllegalArgumentException("direction must be toServer, toClient or *: " + token);
+	}
+
+	private static int[] range(String token, int max) {
+	    if (token.equals("*"))
+		return new int[] { 0, max };
+	    int dash = token.indexOf('-');
+	    int first = number(dash < 0 ? token : token.substring(0, dash), 0, max);
+	    int last = dash < 0 ? first : number(token.substring(dash + 1), first, max);
+	    return new int[] { first, last };
+	}
+
+	private static int number(String token, int min, int max) {
+	    int value;
+	    try {
+		value = Integer.parseInt(token);
+	    } catch (NumberFormatException e) {
+		throw new IllegalArgumentException("not a number: " + token);
+	    }
+	    if (value < min || value > max)
+		throw new IllegalArgumentException(token + " must be between " + min + " and " + max);
+	    return value;
+	}
+    }
+
+    /**
+     * The scenario as it plays out for one session
+     */
+    public final class Run {
+	private final int session;
+	private final Random random;
+	private final int[] applied = new int[rules.size()];
+
+	private Run(int session) {
+	    this.session = session;
+	    this.random = new Random(seed * 31 + session);
+	}
+
+	/**
+	 * Finds the error to simulate on a packet of this session
+	 *
+	 * @param data
+	 *            - the packet
+	 * @param length
+	 *            - bytes in the packet
+	 * @param toServer
+	 *            - the direction the packet is going
+	 * @return the error, with the block and type of the packet, null to relay it
+	 *         as it is
+	 */
+	public ErrorSimulator.Impairment match(byte[] data, int length, boolean toServer) {
+	    if (length < 2)
+		return null;
+	    return match(data[1], length >= 4 ? (data[2] & 0xFF) << 8 | data[3] & 0xFF : -1, toServer);
+	}
+
+	/**
+	 * Finds the error to simulate on a packet of this session from its header
+	 *
+	 * @param type
+	 *            - the packet's opcode
+	 * @param block
+	 *            - the packet's block number, -1 if it is too short to have one
+	 * @param toServer
+	 *            - the direction the packet is going
+	 * @return the error, null to relay the packet as it is
+	 */
+	public ErrorSimulator.Impairment match(byte type, int block, boolean toServer) {
+	    for (int i = 0; i < applied.length; i++) {
+		Rule rule = rules.get(i);
+		if (!rule.matches(session, type, block, toServer) || rule.times > 0 && applied[i] >= rule.times)
+		    continue;
+		if (rule.probability < 1 && random.nextDouble() >= rule.probability)
+		    continue;
+		applied[i]++;
+		return new ErrorSimulator.Impairment(rule.mode, block, rule.delay, type, rule.opCode, rule.num,
+			rule.field);
+	    }
+	    return null;
+	}
+
+	/**
+	 * @return the session's number, from 1 in the order requests arrived
+	 */
+	public int getSession() {
+	    return session;
+	}
+    }
+
+    /**
+     * Parses a scenario
+     *
+     * @param name
+     *            - where the scenario came from, for messages
+     * @param lines
+     *            - the scenario, see above
+     * @throws IllegalArgumentException
+     *             - naming the line that is invalid
+     */
+    public ImpairmentScenario(String name, List<String> lines) throws IllegalArgumentException {
+	this.name = name;
+	long scenarioSeed = 1;
+	String scenarioToServer = "", scenarioToClient = "";
+	for (int i = 0; i < lines.size(); i++) {
+	    String line = lines.get(i);
+	    int comment = line.indexOf('#');
+	    line = (comment < 0 ? line : line.substring(0, comment)).trim();
+	    if (line.isEmpty())
+		continue;
+
+	    try {
+		String[] tokens = line.split("\\s+");
+		int eq = tokens[0].indexOf('=');
+		if (eq < 0) {
+		    rules.add(new Rule(i + 1, tokens));
+		    continue;
+		}
+		String key = line.substring(0, eq), value = line.substring(eq + 1).trim();
+		if (key.equals("seed")) {
+		    try {
+			scenarioSeed = Long.parseLong(value);
+		    } catch (NumberFormatException e) {
+			throw new IllegalArgumentException("seed is not a number: " + value);
+		    }
+		} else if (key.equals("network.toServer")) {
+		    scenarioToServer = value;
+		} else if (key.equals("network.toClient")) {
+		    scenarioToClient = value;
+		} else {
+		    throw new IllegalArgumentException("unknown setting " + key);
+		}
+	    } catch (IllegalArgumentException e) {
+		throw new IllegalArgumentException(name + " line " + (i + 1) + ": " + e.getMessage());
+	    }
+	}
+	seed = scenarioSeed;
+	networkToServer = scenarioToServer;
+	networkToClient = scenarioToClient;
+	try {
+	    getNetwork();
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException(name + ": " + e.getMessage());
+	}
+    }
+
+    /**
+     * Reads a scenario file
+     *
+     * @param file
+     *            - the scenario
+     * @return the parsed scenario
+     * @throws IOException
+     *             - if the file can't be read
+     * @throws IllegalArgumentException
+     *             - if the scenario is invalid
+     */
+    public static ImpairmentScenario load(File file) throws IOException, IllegalArgumentException {
+	return new ImpairmentScenario(file.getPath(), Files.readAllLines(file.toPath()));
+    }
+
+    /**
+     * Starts the scenario for the next session
+     *
+     * @return the session's run of the scenario
+     */
+    public Run start() {
+	return new Run(sessions.incrementAndGet());
+    }
+
+    /**
+     * @return a fresh network model for the scenario's network settings, null
+     *         when it has none
+     */
+    public ImpairmentModel getNetwork() {
+	if (networkToServer.isEmpty() && networkToClient.isEmpty())
+	    return null;
+	return new ImpairmentModel(networkToServer, networkToClient, seed);
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    /**
+     * @return number of rules
+     */
+    public int size() {
+	return rules.size();
+    }
+
+    @Override
+    public String toString() {
+	return name + " (" + rules.size() + " rules, seed " + seed + ")";
+    }
+}
@@ -0,0 +1,161 @@
+package tftpConnection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of latencies in microseconds. Buckets are log-linear
+ * (in the style of HdrHistogram): every power of two is split into 32 equal sub
+ * buckets, so any recorded value is reported within about 3% of its true value.
+ * Values from 0 to about 19 hours fit in 1024 counters, larger values are
+ * counted in the last bucket. Recording never allocates or locks.
+ *
+ * @author BLoo
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // sub buckets per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2; // values below this get their own bucket
+    private static final int BUCKETS = 1024;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency
+     *
+     * @param micros
+     *            - the latency in microseconds, negative values are recorded as 0
+     */
+    public void record(long micros) {
+	if (micros < 0)
+	    micros = 0;
+	counts.incrementAndGet(indexOf(micros));
+	total.incrementAndGet();
+	sum.addAndGet(micros);
+	max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Records a latency measured with System.nanoTime()
+     *
+     * @param nanos
+     *            - the latency in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+	record(nanos / 1000);
+    }
+
+    static int indexOf(long value) {
+	if (value < LINEAR_LIMIT)
+	    return (int) value;
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int shift = exponent - SUB_BUCKET_BITS;
+	int index = shift * SUB_BUCKETS + (int) (value >>> shift);
+	return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * @return the smallest value that is counted in the bucket at index
+     */
+    static long lowestValueAt(int index) {
+	if (index < LINEAR_LIMIT)
+	    return index;
+	int shift = index / SUB_BUCKETS - 1;
+	return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the largest value that is counted in the bucket at index
+     */
+    static long highestValueAt(int index) {
+	if (index < LINEAR_LIMIT)
+	    return index;
+	return lowestValueAt(index) + (1L << (index / SUB_BUCKETS - 1)) - 1;
+    }
+
+    /**
+     * Gets the value at or below which the given percentage of recorded values
+     * fall
+     *
+     * @param percentile
+     *            - between 0 and 100
+     * @return the latency in microseconds, 0 when nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+	long count = total.get();
+	if (count == 0)
+	    return 0;
+
+	long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts.get(i);
+	    if (seen >= target) // the last bucket is open ended, its values are only bounded by max
+		return i == BUCKETS - 1 ? max.get() : Math.min(highestValueAt(i), max.get());
+	}
+	return max.get();
+    }
+
+    /**
+     * Gets how many values fall at or below the given value, rounded to the bucket
+     * holding it
+     *
+     * @param micros
+     *            - the upper bound in microseconds
+     * @return number of recorded values at or below the bucket of micros
+     */
+    public long getCountAtOrBelow(long micros) {
+	long count = 0;
+	int last = indexOf(Math.max(0, micros));
+	for (int i = 0; i <= last; i++)
+	    count += counts.get(i);
+	return count;
+    }
+
+    /**
+     * Gets the bound at which getCountAtOrBelow is exact, the largest value
+     * counted in the bucket holding micros
+     *
+     * @param micros
+     *            - a latency in microseconds
+     * @return the upper bound of its bucket in microseconds, at least micros
+     */
+    public static long getBucketBound(long micros) {
+	return highestValueAt(indexOf(Math.max(0, micros)));
+    }
+
+    public long getCount() {
+	return total.get();
+    }
+
+    /**
+     * @return the sum of all recorded values in microseconds
+     */
+    public long getSum() {
+	return sum.get();
+    }
+
+    public long getMax() {
+	return max.get();
+    }
+
+    public double getMean() {
+	long count = total.get();
+	return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Clears all recorded values
+     */
+    public void reset() {
+	for (int i = 0; i < BUCKETS; i++)
+	    counts.set(i, 0);
+	total.set(0);
+	sum.set(0);
+	max.set(0);
+    }
+}
@@ -0,0 +1,174 @@
+package tftpConnection;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects block round trip time, time to first byte and total transfer
+ * duration histograms for a server (or client) as a whole and for each client
+ * address it talks to. Only the first MAX_PEERS addresses get their own
+ * histograms so memory stays bounded, the rest are only counted in the totals.
+ *
+ * @author BLoo
+ */
+public class LatencyRecorder {
+
+    public static final String[] PERCENTILES = { "p50", "p90", "p99", "p999" };
+    public static final double[] PERCENTILE_VALUES = { 50, 90, 99, 99.9 };
+    private static final int MAX_PEERS = 1024;
+
+    /**
+     * The three histograms kept for each scope
+     */
+    public static class Latencies {
+	public final LatencyHistogram blockRtt = new LatencyHistogram();
+	public final LatencyHistogram firstByte = new LatencyHistogram();
+	public final LatencyHistogram duration = new LatencyHistogram();
+    }
+
+    private final Latencies total = new Latencies();
+    private final Map<InetAddress, Latencies> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Records the time between sending a block and receiving its response
+     */
+    public void recordBlockRtt(InetAddress peer, long nanos) {
+	total.blockRtt.recordNanos(nanos);
+	Latencies latencies = forPeer(peer);
+	if (latencies != null)
+	    latencies.blockRtt.recordNanos(nanos);
+    }
+
+    /**
+     * Records the time between a request and its first data block
+     */
+    public void recordFirstByte(InetAddress peer, long nanos) {
+	total.firstByte.recordNanos(nanos);
+	Latencies latencies = forPeer(peer);
+	if (latencies != null)
+	    latencies.firstByte.recordNanos(nanos);
+    }
+
+    /**
+     * Records the time between a request and the end of its transfer
+     */
+    public void recordDuration(InetAddress peer, long nanos) {
+	total.duration.recordNanos(nanos);
+	Latencies latencies = forPeer(peer);
+	if (latencies != null)
+	    latencies.duration.recordNanos(nanos);
+    }
+
+    private Latencies forPeer(InetAddress peer) {
+	if (peer == null)
+	    return null;
+	Latencies latencies = peers.get(peer);
+	if (latencies == null && peers.size() < MAX_PEERS)
+	    latencies = peers.computeIfAbsent(peer, p -> new Latencies());
+	return latencies;
+    }
+
+    public Latencies getTotal() {
+	return total;
+    }
+
+    public Map<InetAddress, Latencies> getPeers() {
+	return peers;
+    }
+
+    /**
+     * Writes a human readable report, values in milliseconds
+     *
+     * @param out
+     *            - where the report is written
+     */
+    public void writeText(PrintWriter out) {
+	out.println("Latency report (ms)");
+	writeText(out, "all", total);
+	for (Map.Entry<InetAddress, Latencies> peer : peers.entrySet())
+	    writeText(out, peer.getKey().getHostAddress(), peer.getValue());
+	out.flush();
+    }
+
+    private void writeText(PrintWriter out, String scope, Latencies latencies) {
+	out.println(scope);
+	writeText(out, "  block rtt", latencies.blockRtt);
+	writeText(out, "  first byte", latencies.firstByte);
+	writeText(out, "  duration", latencies.duration);
+    }
+
+    private void writeText(PrintWriter out, String name, LatencyHistogram histogram) {
+	StringBuilder line = new StringBuilder(String.format("%-13s count=%-8d mean=%-10.3f", name,
+		histogram.getCount(), histogram.getMean() / 1000));
+	for (int i = 0; i < PERCENTILES.length; i++)
+	    line.append(String.format(" %s=%-10.3f", PERCENTILES[i],
+		    histogram.getValueAtPercentile(PERCENTILE_VALUES[i]) / 1000.0));
+	line.append(String.format(" max=%.3f", histogram.getMax() / 1000.0));
+	out.println(line);
+    }
+
+    /**
+     * Writes the report as CSV, values in microseconds
+     *
+     * @param out
+     *            - where the report is written
+     */
+    public void writeCsv(PrintWriter out) {
+	out.print("scope,metric,count,mean_us");
+	for (String percentile : PERCENTILES)
+	    out.print("," + percentile + "_us");
+	out.println(",max_us");
+
+	writeCsv(out, "all", total);
+	for (Map.Entry<InetAddress, Latencies> peer : peers.entrySet())
+	    writeCsv(out, peer.getKey().getHostAddress(), peer.getValue());
+	out.flush();
+    }
+
+    private void writeCsv(PrintWriter out, String scope, Latencies latencies) {
+	writeCsv(out, scope, "block_rtt", latencies.blockRtt);
+	writeCsv(out, scope, "first_byte", latencies.firstByte);
+	writeCsv(out, scope, "duration", latencies.duration);
+    }
+
+    private void writeCsv(PrintWriter out, String scope, String name, LatencyHistogram histogram) {
+	out.print(scope + "," + name + "," + histogram.getCount() + "," + Math.round(histogram.getMean()));
+	for (double percentile : PERCENTILE_VALUES)
+	    out.print("," + histogram.getValueAtPercentile(percentile));
+	out.println("," + histogram.getMax());
+    }
+
+    /**
+     * Saves the CSV report to a file, overwriting it
+     *
+     * @param fileName
+     *            - the file to write
+     * @throws IOException
+     */
+    public void saveCsv(String fileName) throws IOException {
+	try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+	    writeCsv(out);
+	}
+    }
+
+    /**
+     * Prints the text report and saves the CSV report when the JVM exits
+     *
+     * @param fileName
+     *            - where the CSV report is saved
+     */
+    public void reportAtShutdown(final String fileName) {
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    writeText(new PrintWriter(System.out));
+	    try {
+		saveCsv(fileName);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}, "Latency report"));
+    }
+}
@@ -0,0 +1,225 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process network for servers, clients and error simulators that are given
+ * it as their transport factory. Packets go straight into the receiver's
+ * lock-free queue without touching the kernel, so the transfer engine can be
+ * tested without port collisions and benchmarked at millions of packets a
+ * second. Every packet can be held back for a fixed latency and lost with a
+ * given probability.
+ *
+ * Endpoints are found by port only, whichever address a packet is sent to,
+ * and every endpoint appears to be on the loopback address. As with UDP a
+ * packet to a port nobody has open is dropped.
+ *
+ * @author BLoo
+ */
+public class MemoryNetwork implements DatagramTransport.Factory {
+
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+    private static final Datagram CLOSED = new Datagram(null, null, 0);
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+    private final long latencyNanos;
+    private final double lossRate;
+    private final ConcurrentHashMap<Integer, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder unroutable = new LongAdder();
+
+    /**
+     * A packet on its way to an endpoint
+     */
+    private static final class Datagram {
+	final byte[] data;
+	final InetSocketAddress from;
+	final long deliverAt; // System.nanoTime() when it can be received, 0 for immediately
+
+	Datagram(byte[] data, InetSocketAddress from, long deliverAt) {
+	    this.data = data;
+	    this.from = from;
+	    this.deliverAt = deliverAt;
+	}
+    }
+
+    /**
+     * Network that delivers every packet immediately
+     */
+    public MemoryNetwork() {
+	this(0, 0);
+    }
+
+    /**
+     * @param latencyMicros
+     *            - how long each packet takes to arrive
+     * @param lossRate
+     *            - probability from 0 to 1 that a packet is lost
+     */
+    public MemoryNetwork(long latencyMicros, double lossRate) {
+	if (latencyMicros < 0 || lossRate < 0 || lossRate > 1)
+	    throw new IllegalArgumentException("Latency must be positive and loss rate between 0 and 1");
+	this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	this.lossRate = lossRate;
+    }
+
+    @Override
+    public DatagramTransport open(InetSocketAddress local, int timeOut) throws SocketException {
+	Endpoint endpoint;
+	if (local == null || local.getPort() == 0) {
+	    do {
+		int port = nextPort.getAndUpdate(p -> p >= 65535 ? FIRST_EPHEMERAL_PORT : p + 1);
+		endpoint = new Endpoint(port);
+	    } while (endpoints.putIfAbsent(endpoint.port, endpoint) != null);
+	} else {
+	    endpoint = new Endpoint(local.getPort());
+	    if (endpoints.putIfAbsent(endpoint.port, endpoint) != null)
+		throw new BindException("Address already in use: " + local.getPort());
+	}
+	endpoint.setSoTimeout(timeOut > 0 ? timeOut : 0);
+	return endpoint;
+    }
+
+    /**
+     * @return packets put in a receiver's queue
+     */
+    public long getDelivered() {
+	return delivered.sum();
+    }
+
+    /**
+     * @return packets dropped by the simulated loss
+     */
+    public long getLost() {
+	return lost.sum();
+    }
+
+    /**
+     * @return packets sent to ports that weren't open
+     */
+    public long getUnroutable() {
+	return unroutable.sum();
+    }
+
+    /**
+     * One open port of the network
+     */
+    private final class Endpoint implements DatagramTransport {
+	final int port;
+	final InetSocketAddress localAddress;
+	final LinkedTransferQueue<Datagram> queue = new LinkedTransferQueue<>();
+	volatile int timeOut;
+	volatile boolean closed;
+	Datagram pending; // taken off the queue but not due when the last receive timed out
+
+	Endpoint(int port) {
+	    this.port = port;
+	    this.localAddress = new InetSocketAddress(address, port);
+	}
+
+	@Override
+	public void send(DatagramPacket packet) throws IOException {
+	    if (closed)
+		throw new SocketException("Socket is closed");
+	    if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+		lost.increment();
+		return;
+	    }
+	    Endpoint receiver = endpoints.get(packet.getPort());
+	    if (receiver == null) {
+		unroutable.increment();
+		return;
+	    }
+	    byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+		    packet.getOffset() + packet.getLength());
+	    long deliverAt = latencyNanos > 0 ? System.nanoTime() + latencyNanos : 0;
+	    receiver.queue.offer(new Datagram(data, localAddress, deliverAt));
+	    delivered.increment();
+	}
+
+	@Override
+	public void receive(DatagramPacket packet) throws IOException {
+	    if (closed)
+		throw new SocketException("Socket is closed");
+	    int wait = timeOut;
+	    long deadline = wait > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) : Long.MAX_VALUE;
+	    Datagram datagram = pending;
+	    pending = null;
+	    try {
+		if (datagram == null)
+		    datagram = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.take();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Receive interrupted");
+	    }
+	    if (datagram == null)
+		throw new SocketTimeoutException("Receive timed out");
+	    if (datagram == CLOSED) {
+		queue.offer(CLOSED); // wake any other thread receiving here
+		throw new SocketException("Socket closed");
+	    }
+
+	    while (datagram.deliverAt > System.nanoTime()) {
+		if (datagram.deliverAt > deadline) {
+		    pending = datagram;
+		    LockSupport.parkNanos(deadline - System.nanoTime());
+		    throw new SocketTimeoutException("Receive timed out");
+		}
+		LockSupport.parkNanos(datagram.deliverAt - System.nanoTime());
+	    }
+
+	    int length = Math.min(datagram.data.length, packet.getData().length - packet.getOffset());
+	    System.arraycopy(datagram.data, 0, packet.getData(), packet.getOffset(), length);
+	    packet.setLength(length);
+	    packet.setSocketAddress(datagram.from);
+	}
+
+	@Override
+	public void setSoTimeout(int timeOut) throws SocketException {
+	    if (timeOut < 0)
+		throw new IllegalArgumentException("timeout < 0");
+	    this.timeOut = timeOut;
+	}
+
+	@Override
+	public int getSoTimeout() {
+	    return timeOut;
+	}
+
+	@Override
+	public int getLocalPort() {
+	    return port;
+	}
+
+	@Override
+	public boolean isClosed() {
+	    return closed;
+	}
+
+	@Override
+	public void close() {
+	    if (closed)
+		return;
+	    closed = true;
+	    endpoints.remove(port, this);
+	    queue.offer(CLOSED);
+	}
+    }
+}
@@ -0,0 +1,330 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP endpoint serving a connection's metrics. /metrics renders counters,
+ * gauges and latency histograms in the Prometheus text exposition format and
+ * /transfers lists the active transfers as JSON. For an error simulator,
+ * /metrics also has the relay's counters by direction and /relay lists them
+ * for every session as JSON. /timeline serves the PacketTimeline, when it is
+ * recorded, as Chrome Trace Event JSON. Pages are rendered from
+ * LongAdder sums and concurrent maps on the endpoint's own thread, so a scrape
+ * never blocks a transfer.
+ *
+ * The endpoint listens on the loopback address unless metrics.address names
+ * another, as /transfers shows the files being transferred and their peers.
+ *
+ * @author BenjaminP
+ */
+public class MetricsHttpServer {
+
+    private static final String TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_FORMAT = "application/json; charset=utf-8";
+
+    // Histogram bucket bounds in seconds, each is served as the upper bound of the LatencyHistogram bucket
+    // holding it, at most 3% above, where its count is exact
+    private static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+	    2.5, 5, 10, 30, 60, 300 };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final TFTPConnection connection;
+    private final String role;
+
+    /**
+     * Starts serving the metrics of a connection
+     *
+     * @param port
+     *            - port the endpoint listens on
+     * @param connection
+     *            - the server or error simulator being observed
+     * @param role
+     *            - value of the role label, eg. "server"
+     * @throws IOException
+     *             - if the port can't be bound or metrics.address is unknown
+     */
+    public MetricsHttpServer(int port, TFTPConnection connection, String role) throws IOException {
+	this.connection = connection;
+	this.role = role;
+
+	String address = TFTPConfig.get().getMetricsAddress();
+	server = HttpServer.create(new InetSocketAddress(
+		address.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address), port), 0);
+	server.createContext("/metrics", exchange -> respond(exchange, TEXT_FORMAT, renderMetrics()));
+	server.createContext("/transfers", exchange -> respond(exchange, JSON_FORMAT, renderTransfers()));
+	server.createContext("/relay", exchange -> respond(exchange, JSON_FORMAT, renderRelay()));
+	server.createContext("/timeline", exchange -> respond(exchange, JSON_FORMAT, renderTimeline()));
+	executor = Executors.newSingleThreadExecutor(r -> {
+	    Thread thread = new Thread(r, "Metrics endpoint");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	server.setExecutor(executor);
+	server.start();
+    }
+
+    /**
+     * @return the port the endpoint listens on, chosen by the system when 0 was
+     *         asked for
+     */
+    public int getPort() {
+	return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the endpoint and its thread
+     */
+    public void stop() {
+	server.stop(0);
+	executor.shutdown();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+	byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", contentType);
+	exchange.sendResponseHeaders(200, bytes.length);
+	try (OutputStream out = exchange.getResponseBody()) {
+	    out.write(bytes);
+	}
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format
+     *
+     * @return the page
+     */
+    String renderMetrics() {
+	StringBuilder out = new StringBuilder(8192);
+	TransferMetrics metrics = connection.getMetrics();
+	String labels = "role=\"" + role + "\"";
+
+	counter(out, "tftp_packets_sent_total", "Packets sent", labels, metrics.getPacketsSent());
+	counter(out, "tftp_bytes_sent_total", "Bytes sent including headers", labels, metrics.getBytesSent());
+	counter(out, "tftp_bytes_received_total", "Bytes received including headers", labels,
+		metrics.getBytesReceived());
+	counter(out, "tftp_retransmissions_total", "Blocks sent again after a timeout", labels,
+		metrics.getRetransmissions());
+	counter(out, "tftp_timeouts_total", "Socket timeouts while waiting for a block", labels,
+		metrics.getTimeouts());
+	counter(out, "tftp_invalid_packets_total", "Packets rejected by validation", labels,
+		metrics.getInvalidPackets());
+
+	header(out, "tftp_packets_received_total", "Packets received by opcode", "counter");
+	for (Map.Entry<String, Long> entry : metrics.getPacketsReceivedByOpcode().entrySet())
+	    sample(out, "tftp_packets_received_total", labels + ",opcode=\"" + entry.getKey() + "\"",
+		    entry.getValue());
+	header(out, "tftp_error_packets_sent_total", "Error packets sent by error code", "counter");
+	for (Map.Entry<String, Long> entry : metrics.getErrorPacketsSent().entrySet())
+	    sample(out, "tftp_error_packets_sent_total", labels + ",code=\"" + entry.getKey() + "\"",
+		    entry.getValue());
+	header(out, "tftp_error_packets_received_total", "Error packets received by error code", "counter");
+	for (Map.Entry<String, Long> entry : metrics.getErrorPacketsReceived().entrySet())
+	    sample(out, "tftp_error_packets_received_total", labels + ",code=\"" + entry.getKey() + "\"",
+		    entry.getValue());
+
+	gauge(out, "tftp_active_transfers", "Transfers in progress", labels, metrics.getActiveTransfers());
+	gauge(out, "tftp_threads", "Live JVM threads", labels, metrics.getThreadCount());
+	gauge(out, "tftp_buffered_bytes", "File data held in memory by transfers", labels,
+		metrics.getBufferedBytes());
+
+	LatencyRecorder latency = connection.getLatency();
+	if (latency != null) {
+	    LatencyRecorder.Latencies total = latency.getTotal();
+	    histogram(out, "tftp_block_rtt_seconds", "Time from sending a block to its response", labels,
+		    total.blockRtt);
+	    histogram(out, "tftp_first_byte_seconds", "Time from request to first data block", labels,
+		    total.firstByte);
+	    histogram(out, "tftp_transfer_duration_seconds", "Time from request to end of transfer", labels,
+		    total.duration);
+
+	    header(out, "tftp_peer_transfer_duration_seconds", "Transfer duration by client address", "histogram");
+	    for (Map.Entry<InetAddress, LatencyRecorder.Latencies> peer : latency.getPeers().entrySet())
+		histogramSamples(out, "tftp_peer_transfer_duration_seconds",
+			labels + ",peer=\"" + peer.getKey().getHostAddress() + "\"", peer.getValue().duration);
+	}
+
+	if (connection instanceof ErrorSimulator) {
+	    RelayStats relay = ((ErrorSimulator) connection).getRelayStats();
+	    Map<String, Long> toServer = relay.getToServer(), toClient = relay.getToClient();
+	    relayCounter(out, "tftp_relay_packets_total", "Packets the simulator sent on", labels, "packets", toServer,
+		    toClient);
+	    relayCounter(out, "tftp_relay_bytes_total", "Bytes the simulator sent on", labels, "bytes", toServer,
+		    toClient);
+	    relayCounter(out, "tftp_relay_dropped_total", "Packets the simulator lost", labels, "dropped", toServer,
+		    toClient);
+	    relayCounter(out, "tftp_relay_delayed_total", "Packets the simulator held back", labels, "delayed",
+		    toServer, toClient);
+	    relayCounter(out, "tftp_relay_delay_microseconds_total", "Time packets were held back", labels,
+		    "delayMicros", toServer, toClient);
+	    relayCounter(out, "tftp_relay_duplicated_total", "Packets the simulator sent twice", labels,
+		    "duplicated", toServer, toClient);
+	    relayCounter(out, "tftp_relay_corrupted_total", "Packets replaced by a malformed one", labels,
+		    "corrupted", toServer, toClient);
+	    relayCounter(out, "tftp_relay_unknown_tid_total", "Packets sent from an unknown port", labels,
+		    "unknownTid", toServer, toClient);
+	    relayCounter(out, "tftp_relay_goodput_bytes_total", "Data bytes of new blocks sent on", labels,
+		    "goodputBytes", toServer, toClient);
+	    gauge(out, "tftp_relay_sessions", "Sessions being relayed", labels, relay.getActiveSessions());
+	}
+	return out.toString();
+    }
+
+    /**
+     * Renders the relay stats of an error simulator as JSON, the totals and each
+     * session being relayed
+     *
+     * @return the page, an empty object for other connections
+     */
+    String renderRelay() {
+	if (!(connection instanceof ErrorSimulator))
+	    return "{}\n";
+	ErrorSimulator simulator = (ErrorSimulator) connection;
+	StringBuilder out = new StringBuilder("{\"total\":");
+	relayJson(out, simulator.getRelayStats());
+	out.append(",\n\"sessions\":[");
+	boolean first = true;
+	for (Map.Entry<SocketAddress, RelayStats> session : simulator.getSessionStats().entrySet()) {
+	    out.append(first ? "" : ",").append("\n  {\"client\":\"");
+	    out.append(escape(String.valueOf(session.getKey()))).append("\",\"stats\":");
+	    relayJson(out, session.getValue());
+	    out.append('}');
+	    first = false;
+	}
+	return out.append("\n]}\n").toString();
+    }
+
+    /**
+     * Renders the packet timeline as Chrome Trace Event JSON
+     *
+     * @return the page, without events when the timeline isn't recorded
+     */
+    String renderTimeline() throws IOException {
+	PacketTimeline timeline = connection.getTimeline();
+	if (timeline == null)
+	    return "{\"traceEvents\":[]}\n";
+	StringBuilder out = new StringBuilder(timeline.size() * 200 + 64);
+	timeline.writeChromeTrace(out);
+	return out.toString();
+    }
+
+    private static void relayJson(StringBuilder out, RelayStats stats) {
+	out.append("{\"toServer\":");
+	json(out, stats.getToServer());
+	out.append(",\"toClient\":");
+	json(out, stats.getToClient());
+	out.append(",\"goodputToServer\":").append(Math.round(stats.getGoodput(true)));
+	out.append(",\"goodputToClient\":").append(Math.round(stats.getGoodput(false))).append('}');
+    }
+
+    private static void json(StringBuilder out, Map<String, Long> counts) {
+	out.append('{');
+	for (Map.Entry<String, Long> count : counts.entrySet()) {
+	    if (out.charAt(out.length() - 1) != '{')
+		out.append(',');
+	    out.append('"').append(count.getKey()).append("\":").append(count.getValue());
+	}
+	out.append('}');
+    }
+
+    private static void relayCounter(StringBuilder out, String name, String help, String labels, String key,
+	    Map<String, Long> toServer, Map<String, Long> toClient) {
+	header(out, name, help, "counter");
+	sample(out, name, labels + ",direction=\"toServer\"", toServer.get(key));
+	sample(out, name, labels + ",direction=\"toClient\"", toClient.get(key));
+    }
+
+    /**
+     * Renders the active transfers as a JSON array
+     *
+     * @return the page
+     */
+    String renderTransfers() {
+	StringBuilder out = new StringBuilder("[");
+	Map<Long, ActiveTransfer> transfers = connection.getActiveTransfers();
+	if (transfers != null) {
+	    for (ActiveTransfer transfer : transfers.values()) {
+		if (out.length() > 1)
+		    out.append(',');
+		out.append("\n  {\"id\":").append(transfer.getId());
+		out.append(",\"peer\":\"").append(escape(String.valueOf(transfer.getPeer()))).append('"');
+		out.append(",\"type\":\"").append(TFTPPacket.PacketTypes.get((byte) transfer.getRequestType()))
+			.append('"');
+		out.append(",\"file\":\"").append(escape(transfer.getFile())).append('"');
+		out.append(",\"startMillis\":").append(transfer.getStartMillis());
+		out.append(",\"bytes\":").append(transfer.getBytes());
+		out.append(",\"bytesPerSecond\":").append(Math.round(transfer.getRate()));
+		out.append(",\"retransmissions\":").append(transfer.getRetransmissions()).append('}');
+	    }
+	}
+	return out.append("\n]\n").toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+	out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+	out.append(name).append('{').append(labels).append("} ");
+	if (value == Math.rint(value))
+	    out.append((long) value);
+	else
+	    out.append(value);
+	out.append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, String labels, long value) {
+	header(out, name, help, "counter");
+	sample(out, name, labels, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, long value) {
+	header(out, name, help, "gauge");
+	sample(out, name, labels, value);
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, String labels,
+	    LatencyHistogram histogram) {
+	header(out, name, help, "histogram");
+	histogramSamples(out, name, labels, histogram);
+    }
+
+    private static void histogramSamples(StringBuilder out, String name, String labels,
+	    LatencyHistogram histogram) {
+	for (double bound : BUCKETS) {
+	    long upper = LatencyHistogram.getBucketBound((long) (bound * 1000000));
+	    sample(out, name + "_bucket",
+		    labels + ",le=\"" + BigDecimal.valueOf(upper, 6).stripTrailingZeros().toPlainString() + "\"",
+		    histogram.getCountAtOrBelow(upper));
+	}
+	sample(out, name + "_bucket", labels + ",le=\"+Inf\"", histogram.getCount());
+	sample(out, name + "_sum", labels, histogram.getSum() / 1000000.0);
+	sample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static String escape(String value) {
+	StringBuilder escaped = new StringBuilder(value.length());
+	for (char c : value.toCharArray()) {
+	    if (c == '"' || c == '\\')
+		escaped.append('\\').append(c);
+	    else if (c < 0x20)
+		escaped.append(String.format("\\u%04x", (int) c));
+	    else
+		escaped.append(c);
+	}
+	return escaped.toString();
+    }
+}
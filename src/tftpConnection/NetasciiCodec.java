@@ -0,0 +1,159 @@
+package tftpConnection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Translates a file to and from netascii, RFC 764, as it streams between the
+ * file and the DATA blocks: the encoder turns each line feed into CR LF and
+ * each carriage return into CR NUL, the decoder turns them back. Translation
+ * works on whatever piece of the stream is at hand and allocates nothing, a
+ * pair that doesn't fit in the output or a CR that ends a block is held until
+ * the next call, so blocks may split a pair anywhere.
+ *
+ * A decoder is lenient about a CR followed by anything else, which it keeps as
+ * it is.
+ *
+ * Transfers translate a file block by block as it is sent, except that the
+ * compression cache and deflated transfers translate whole files with encode.
+ *
+ * @author BLoo
+ */
+public class NetasciiCodec {
+
+    private static final byte CR = '\r', LF = '\n', NUL = 0;
+
+    private final boolean encoder;
+    private int held = -1; // the encoder's second byte of a pair, or the decoder's CR, -1 for none
+
+    private NetasciiCodec(boolean encoder) {
+	this.encoder = encoder;
+    }
+
+    /**
+     * @return a codec turning a local file into netascii
+     */
+    public static NetasciiCodec encoder() {
+	return new NetasciiCodec(true);
+    }
+
+    /**
+     * @return a codec turning netascii into a local file
+     */
+    public static NetasciiCodec decoder() {
+	return new NetasciiCodec(false);
+    }
+
+    /**
+     * Translates as much of in as fits in out, after the byte held from the last
+     * call
+     *
+     * @param in
+     *            - the next bytes of the stream, its position is moved past those
+     *            translated
+     * @param out
+     *            - receives the translation
+     */
+    public void translate(ByteBuffer in, ByteBuffer out) {
+	if (encoder)
+	    encode(in, out);
+	else
+	    decode(in, out);
+    }
+
+    private void encode(ByteBuffer in, ByteBuffer out) {
+	while (out.hasRemaining()) {
+	    if (held >= 0) {
+		out.put((byte) held);
+		held = -1;
+	    } else if (in.hasRemaining()) {
+		byte b = in.get();
+		if (b == LF) {
+		    out.put(CR);
+		    held = LF;
+		} else if (b == CR) {
+		    out.put(CR);
+		    held = NUL;
+		} else {
+		    out.put(b);
+		}
+	    } else {
+		return;
+	    }
+	}
+    }
+
+    private void decode(ByteBuffer in, ByteBuffer out) {
+	while (in.hasRemaining() && out.hasRemaining()) {
+	    byte b = in.get();
+	    if (held == CR) {
+		held = -1;
+		if (b == LF) {
+		    out.put(LF);
+		} else if (b == NUL) {
+		    out.put(CR);
+		} else if (b == CR) { // a bare CR, the second may start a pair
+		    out.put(CR);
+		    held = CR;
+		} else { // a bare CR, kept along with what follows it
+		    out.put(CR);
+		    if (out.hasRemaining())
+			out.put(b);
+		    else
+			in.position(in.position() - 1);
+		}
+	    } else if (b == CR) {
+		held = CR;
+	    } else {
+		out.put(b);
+	    }
+	}
+    }
+
+    /**
+     * @return whether a byte is held for the next call or finish
+     */
+    public boolean isHolding() {
+	return held >= 0;
+    }
+
+    /**
+     * Ends the stream, writing the byte held if there is one and room for it
+     *
+     * @param out
+     *            - receives the byte held
+     * @return whether nothing is held any longer
+     */
+    public boolean finish(ByteBuffer out) {
+	if (held >= 0 && out.hasRemaining()) {
+	    out.put((byte) (encoder ? held : CR));
+	    held = -1;
+	}
+	return held < 0;
+    }
+
+    /**
+     * @return most bytes translating length bytes can produce, with a byte held
+     *         from before
+     */
+    public int maxTranslated(int length) {
+	return encoder ? 2 * length + 1 : length + 1;
+    }
+
+    /**
+     * Translates a whole file at once, for caching and deflating
+     *
+     * @param data
+     *            - the file
+     * @return the file in netascii
+     */
+    public static byte[] encode(byte[] data) {
+	NetasciiCodec codec = encoder();
+	ByteBuffer out = ByteBuffer.allocate(codec.maxTranslated(data.length));
+	codec.translate(ByteBuffer.wrap(data), out);
+	codec.finish(out);
+	byte[] encoded = new byte[out.position()];
+	out.flip();
+	out.get(encoded);
+	return encoded;
+    }
+}
@@ -0,0 +1,118 @@
+package tftpConnection;
+
+import java.io.Closeable;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends packets later without holding up the thread that relays them. Packets
+ * wait in a time-ordered DelayQueue and a single daemon thread sends each one
+ * when it is due, packets due at the same time leave in the order they were
+ * scheduled. Used by the ErrorSimulator to delay and duplicate packets while
+ * it keeps relaying everything else.
+ *
+ * @author BLoo
+ */
+public class PacketScheduler implements Closeable {
+
+    private final DelayQueue<Scheduled> queue = new DelayQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread thread;
+
+    /**
+     * A send waiting for its time
+     */
+    private static final class Scheduled implements Delayed {
+	final long releaseAt; // System.nanoTime()
+	final long order;
+	final Runnable send;
+
+	Scheduled(long releaseAt, long order, Runnable send) {
+	    this.releaseAt = releaseAt;
+	    this.order = order;
+	    this.send = send;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+	    return unit.convert(releaseAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed other) {
+	    Scheduled that = (Scheduled) other;
+	    if (releaseAt != that.releaseAt)
+		return releaseAt - that.releaseAt < 0 ? -1 : 1;
+	    return Long.compare(order, that.order);
+	}
+    }
+
+    /**
+     * Starts the sending thread
+     *
+     * @param name
+     *            - name of the thread
+     */
+    public PacketScheduler(String name) {
+	thread = new Thread(this::release, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Runs a send once the delay has passed
+     *
+     * @param delayMillis
+     *            - how long to wait, 0 or less to send as soon as possible
+     * @param send
+     *            - sends the packet, should catch its own exceptions
+     */
+    public void schedule(long delayMillis, Runnable send) {
+	schedule(delayMillis, TimeUnit.MILLISECONDS, send);
+    }
+
+    /**
+     * Runs a send once the delay has passed
+     *
+     * @param delay
+     *            - how long to wait, 0 or less to send as soon as possible
+     * @param unit
+     *            - unit of the delay
+     * @param send
+     *            - sends the packet, should catch its own exceptions
+     */
+    public void schedule(long delay, TimeUnit unit, Runnable send) {
+	long releaseAt = System.nanoTime() + unit.toNanos(Math.max(delay, 0));
+	queue.put(new Scheduled(releaseAt, sequence.getAndIncrement(), send));
+    }
+
+    /**
+     * @return sends waiting for their time
+     */
+    public int getPending() {
+	return queue.size();
+    }
+
+    private void release() {
+	while (!Thread.currentThread().isInterrupted()) {
+	    try {
+		queue.take().send.run();
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Stops sending, packets that are still waiting are dropped
+     */
+    @Override
+    public void close() {
+	thread.interrupt();
+	queue.clear();
+    }
+}
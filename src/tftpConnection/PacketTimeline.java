@@ -0,0 +1,259 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded timeline of every packet the client, server and error simulator in
+ * this JVM send, receive, retransmit, time out on, drop or delay, exported as
+ * Chrome Trace Event JSON to open a slow transfer in chrome://tracing or
+ * Perfetto. Each connection shows as a process and each transfer thread as a
+ * thread, every packet is an instant event with its opcode, block, length and
+ * peer.
+ *
+ * Events go into a ring of arrays, so recording allocates nothing and the
+ * oldest events are overwritten once the ring is full. Timestamps are
+ * System.nanoTime() moved onto the wall clock, so timelines written by the
+ * client, server and simulator on one host line up when they are opened
+ * together.
+ *
+ * The timeline is off unless timeline.events is set. Then connections record
+ * into one shared timeline, written to timeline.file when the JVM exits and
+ * served on /timeline by the metrics endpoints.
+ *
+ * @author BLoo
+ */
+public class PacketTimeline {
+
+    public static final byte SEND = 0;
+    public static final byte RECEIVE = 1;
+    public static final byte RETRANSMIT = 2;
+    public static final byte TIMEOUT = 3;
+    public static final byte DROP = 4;
+    public static final byte DELAY = 5;
+    private static final String[] KINDS = { "send", "receive", "retransmit", "timeout", "drop", "delay" };
+
+    // wall clock ns at System.nanoTime() 0
+    private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    // connections are numbered within the JVM's process id so traces of several JVMs can be merged
+    private static final long PID_BASE = ProcessHandle.current().pid() * 100;
+
+    private static final PacketTimeline shared = create(TFTPConfig.get());
+
+    private final long[] times;
+    private final byte[] kinds, opcodes;
+    private final int[] blocks, lengths;
+    private final long[] threads;
+    private final String[] processes;
+    private final SocketAddress[] peers;
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+    private int next; // where the next event goes
+    private long recorded;
+
+    /**
+     * @param capacity
+     *            - events kept, older ones are overwritten
+     */
+    public PacketTimeline(int capacity) {
+	times = new long[capacity];
+	kinds = new byte[capacity];
+	opcodes = new byte[capacity];
+	blocks = new int[capacity];
+	lengths = new int[capacity];
+	threads = new long[capacity];
+	processes = new String[capacity];
+	peers = new SocketAddress[capacity];
+    }
+
+    private static PacketTimeline create(TFTPConfig config) {
+	if (config.getTimelineEvents() == 0)
+	    return null;
+	PacketTimeline timeline = new PacketTimeline(config.getTimelineEvents());
+	if (!config.getTimelineFile().isEmpty()) {
+	    File file = new File(config.getTimelineFile());
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+		try {
+		    timeline.write(file);
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }, "Packet timeline"));
+	}
+	return timeline;
+    }
+
+    /**
+     * @return the timeline connections record into, null when timeline.events is
+     *         0
+     */
+    public static PacketTimeline get() {
+	return shared;
+    }
+
+    /**
+     * Records a packet event
+     *
+     * @param process
+     *            - the connection, eg. "Server"
+     * @param kind
+     *            - SEND, RECEIVE, RETRANSMIT, TIMEOUT, DROP or DELAY
+     * @param opcode
+     *            - the packet's opcode, -1 if unknown
+     * @param block
+     *            - the packet's block number, -1 if it has none, ignored for
+     *            requests
+     * @param length
+     *            - bytes in the packet, 0 if unknown
+     * @param peer
+     *            - where the packet came from or goes to
+     */
+    public void record(String process, byte kind, int opcode, int block, int length, SocketAddress peer) {
+	long now = System.nanoTime();
+	Thread thread = Thread.currentThread();
+	long id = thread.getId();
+	if (!threadNames.containsKey(id))
+	    threadNames.put(id, thread.getName());
+	synchronized (this) {
+	    int i = next;
+	    times[i] = now;
+	    kinds[i] = kind;
+	    opcodes[i] = (byte) opcode;
+	    blocks[i] = opcode == TFTPPacket.OP_RRQ || opcode == TFTPPacket.OP_WRQ ? -1 : block;
+	    lengths[i] = length;
+	    threads[i] = id;
+	    processes[i] = process;
+	    peers[i] = peer;
+	    next = i + 1 == times.length ? 0 : i + 1;
+	    recorded++;
+	}
+    }
+
+    /**
+     * @return events recorded, including those overwritten since
+     */
+    public synchronized long getRecorded() {
+	return recorded;
+    }
+
+    /**
+     * @return events kept
+     */
+    public synchronized int size() {
+	return (int) Math.min(recorded, times.length);
+    }
+
+    /**
+     * Empties the timeline
+     */
+    public synchronized void clear() {
+	next = 0;
+	recorded = 0;
+	Arrays.fill(peers, null);
+    }
+
+    /**
+     * Writes the events kept as a Chrome Trace Event JSON object
+     *
+     * @param out
+     *            - receives the JSON
+     */
+    public void writeChromeTrace(Appendable out) throws IOException {
+	int size, first;
+	long[] eventTimes, eventThreads;
+	byte[] eventKinds, eventOpcodes;
+	int[] eventBlocks, eventLengths;
+	String[] eventProcesses;
+	SocketAddress[] eventPeers;
+	synchronized (this) { // copied so recording carries on while the JSON is written
+	    size = (int) Math.min(recorded, times.length);
+	    first = recorded > times.length ? next : 0;
+	    eventTimes = times.clone();
+	    eventThreads = threads.clone();
+	    eventKinds = kinds.clone();
+	    eventOpcodes = opcodes.clone();
+	    eventBlocks = blocks.clone();
+	    eventLengths = lengths.clone();
+	    eventProcesses = processes.clone();
+	    eventPeers = peers.clone();
+	}
+
+	List<String> processNames = new ArrayList<>();
+	Set<List<Long>> processThreads = new LinkedHashSet<>(); // pid and tid of each thread that recorded
+	out.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+	boolean comma = false;
+	for (int n = 0; n < size; n++) {
+	    int i = (first + n) % eventTimes.length;
+	    int pid = processNames.indexOf(eventProcesses[i]);
+	    if (pid < 0) {
+		pid = processNames.size();
+		processNames.add(eventProcesses[i]);
+	    }
+	    processThreads.add(Arrays.asList((long) pid, eventThreads[i]));
+	    String type = TFTPPacket.PacketTypes.get(eventOpcodes[i]);
+	    if (type == null && eventOpcodes[i] >= 0)
+		type = "opcode " + eventOpcodes[i];
+	    out.append(comma ? ",\n" : "\n");
+	    comma = true;
+	    out.append("{\"name\":\"").append(KINDS[eventKinds[i]]).append(type == null ? "" : " " + type);
+	    if (eventBlocks[i] >= 0)
+		out.append(' ').append(Integer.toString(eventBlocks[i]));
+	    out.append("\",\"cat\":\"").append(KINDS[eventKinds[i]]).append("\",\"ph\":\"i\",\"s\":\"t\",\"ts\":");
+	    long wall = eventTimes[i] + EPOCH_OFFSET;
+	    out.append(Long.toString(wall / 1000)).append('.').append(String.format("%03d", wall % 1000));
+	    out.append(",\"pid\":").append(Long.toString(PID_BASE + pid)).append(",\"tid\":")
+		    .append(Long.toString(eventThreads[i]));
+	    out.append(",\"args\":{\"block\":").append(Integer.toString(eventBlocks[i]));
+	    out.append(",\"length\":").append(Integer.toString(eventLengths[i]));
+	    out.append(",\"peer\":\"").append(escape(String.valueOf(eventPeers[i]))).append("\"}}");
+	}
+	for (int pid = 0; pid < processNames.size(); pid++) {
+	    out.append(comma ? ",\n" : "\n");
+	    comma = true;
+	    out.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(Long.toString(PID_BASE + pid))
+		    .append(",\"args\":{\"name\":\"").append(escape(processNames.get(pid))).append("\"}}");
+	}
+	for (List<Long> thread : processThreads) {
+	    out.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":")
+		    .append(Long.toString(PID_BASE + thread.get(0)))
+		    .append(",\"tid\":").append(thread.get(1).toString()).append(",\"args\":{\"name\":\"")
+		    .append(escape(threadNames.getOrDefault(thread.get(1), ""))).append("\"}}");
+	}
+	out.append("\n]}\n");
+    }
+
+    /**
+     * Writes the events kept to a file as Chrome Trace Event JSON
+     *
+     * @param file
+     *            - the trace, replaced if it exists
+     */
+    public void write(File file) throws IOException {
+	try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+	    writeChromeTrace(out);
+	}
+    }
+
+    private static String escape(String value) {
+	StringBuilder escaped = new StringBuilder(value.length());
+	for (char c : value.toCharArray()) {
+	    if (c == '"' || c == '\\')
+		escaped.append('\\').append(c);
+	    else if (c < 0x20)
+		escaped.append(String.format("\\u%04x", (int) c));
+	    else
+		escaped.append(c);
+	}
+	return escaped.toString();
+    }
+}
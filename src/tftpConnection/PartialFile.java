@@ -0,0 +1,247 @@
+package tftpConnection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file being received that survives the transfer stopping part way. Blocks
+ * are written to name.part as they arrive and every partial.checkpoint blocks
+ * the part is forced to disk and its length recorded in name.part.journal, so
+ * the journal never claims more than is on disk. When the transfer stops early
+ * the part and journal are kept, and a later transfer opened on the same file
+ * carries on from the journal's offset, asking the sender for only the rest
+ * with the offset option. Once the last block arrives the part is renamed to
+ * the file and the journal deleted.
+ *
+ * The part is locked while open, so two transfers can't write the same file.
+ * A receive that isn't resumable streams to a part too when the file's size is
+ * known up front, so it can be preallocated, and discards it if it stops.
+ *
+ * @author BLoo
+ */
+public class PartialFile implements Closeable {
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    private final Path target, part, journal;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final long offset;
+    private final boolean replace;
+    private long position; // where the next block goes
+    private long durable; // the offset in the journal
+    private int unforced; // blocks written since the last checkpoint
+    private boolean closed, completed;
+
+    /**
+     * Opens the part of a file, dropping anything after the offset asked for or
+     * after the journal's offset, whichever is first
+     *
+     * @param target
+     *            - the file once complete
+     * @param offset
+     *            - where to carry on from at most, 0 to start again
+     * @param replace
+     *            - whether the complete file replaces one that exists
+     * @throws FileAlreadyExistsException
+     *             - if another transfer is writing the file
+     */
+    public PartialFile(File target, long offset, boolean replace) throws IOException {
+	this.target = target.toPath();
+	this.replace = replace;
+	part = this.target.resolveSibling(this.target.getFileName() + PART_SUFFIX);
+	journal = this.target.resolveSibling(this.target.getFileName() + PART_SUFFIX + JOURNAL_SUFFIX);
+	channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	FileLock locked = null;
+	try {
+	    locked = channel.tryLock();
+	} catch (OverlappingFileLockException e) { // held in this JVM
+	} finally {
+	    if (locked == null)
+		channel.close();
+	}
+	if (locked == null)
+	    throw new FileAlreadyExistsException(target.getPath(), null, "is already being written");
+	lock = locked;
+	position = Math.max(0, Math.min(offset, Math.min(journaled(), channel.size())));
+	channel.truncate(position);
+	this.offset = position;
+	durable = -1;
+	checkpoint(); // so the journal doesn't claim what was just dropped
+    }
+
+    /**
+     * @param target
+     *            - the file once complete
+     * @return bytes of the file a transfer can carry on from, 0 if there is no
+     *         journal
+     */
+    public static long resumeOffset(File target) {
+	try {
+	    Path path = target.toPath();
+	    return Math.min(read(path.resolveSibling(path.getFileName() + PART_SUFFIX + JOURNAL_SUFFIX)),
+		    path.resolveSibling(path.getFileName() + PART_SUFFIX).toFile().length());
+	} catch (IOException e) {
+	    return 0;
+	}
+    }
+
+    private long journaled() throws IOException {
+	try {
+	    return read(journal);
+	} catch (NoSuchFileException e) {
+	    return 0;
+	}
+    }
+
+    private static long read(Path journal) throws IOException {
+	try {
+	    return Long.parseLong(new String(Files.readAllBytes(journal), StandardCharsets.US_ASCII).trim());
+	} catch (NumberFormatException e) { // torn or edited, start again
+	    return 0;
+	}
+    }
+
+    /**
+     * Appends a block, checkpointing every partial.checkpoint blocks
+     *
+     * @param block
+     *            - the block's data
+     */
+    public void write(byte[] block) throws IOException {
+	write(ByteBuffer.wrap(block));
+    }
+
+    /**
+     * Appends a block straight from a buffer, checkpointing every
+     * partial.checkpoint blocks
+     *
+     * @param buffer
+     *            - the block's data, from its position to its limit
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining())
+	    position += channel.write(buffer, position);
+	if (++unforced >= TFTPConfig.get().getPartialCheckpoint())
+	    checkpoint();
+    }
+
+    /**
+     * Forces what has been written to disk and then records its length in the
+     * journal, replacing the journal in one move so it is never torn
+     */
+    public void checkpoint() throws IOException {
+	channel.force(false);
+	if (durable != position) {
+	    Path temporary = journal.resolveSibling(journal.getFileName() + ".tmp");
+	    try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		    StandardOpenOption.TRUNCATE_EXISTING)) {
+		out.write(ByteBuffer.wrap((position + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII)));
+		out.force(false);
+	    }
+	    Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    durable = position;
+	}
+	unforced = 0;
+    }
+
+    /**
+     * Extends the part to the file's size before it is written, so running out of
+     * space shows up at once rather than part way. Java can't ask for the blocks
+     * to be allocated, so the extension is sparse on file systems that support
+     * it and allocated on those that don't. The part is cut back to what was
+     * written when it is completed.
+     *
+     * @param size
+     *            - bytes the complete file will have
+     */
+    public void preallocate(long size) throws IOException {
+	if (size > channel.size())
+	    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+    }
+
+    /**
+     * Renames the part to the file and deletes the journal, once the last block
+     * is written
+     *
+     * @throws FileAlreadyExistsException
+     *             - if the file exists and isn't to be replaced, the part is kept
+     */
+    public void complete() throws IOException {
+	channel.truncate(position);
+	channel.force(false);
+	lock.release();
+	channel.close();
+	closed = true;
+	if (!replace && Files.exists(target))
+	    throw new FileAlreadyExistsException(target.toString());
+	Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+	completed = true;
+	Files.deleteIfExists(journal);
+    }
+
+    /**
+     * @return where the transfer carried on from
+     */
+    public long getOffset() {
+	return offset;
+    }
+
+    /**
+     * @return bytes of the file written so far
+     */
+    public long getPosition() {
+	return position;
+    }
+
+    /**
+     * Checkpoints and closes the part, unless it is complete, so a later transfer
+     * can carry on where this one stopped
+     */
+    @Override
+    public void close() throws IOException {
+	if (closed)
+	    return;
+	closed = true;
+	try {
+	    checkpoint();
+	} finally {
+	    lock.release();
+	    channel.close();
+	}
+    }
+
+    /**
+     * Closes and deletes the part and its journal, unless it is complete, for a
+     * transfer that can't be resumed
+     */
+    public void discard() throws IOException {
+	if (!closed) {
+	    closed = true;
+	    lock.release();
+	    channel.close();
+	}
+	if (completed)
+	    return;
+	Files.deleteIfExists(part);
+	Files.deleteIfExists(journal);
+    }
+
+    @Override
+    public String toString() {
+	return "PartialFile " + part + " " + position + "B, " + durable + "B durable";
+    }
+}
@@ -0,0 +1,257 @@
+package tftpConnection;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What the ErrorSimulator did to the packets it relayed, in each direction:
+ * packets and bytes forwarded, packets dropped, delayed (and for how long),
+ * duplicated, corrupted and sent from an unknown TID, and the goodput, the
+ * data bytes of new blocks that got through. Each session keeps its own stats
+ * with the simulator's as parent, so the simulator sees the totals of every
+ * session, and comparing goodput with what the endpoints report shows how much
+ * of a slowdown the simulator caused.
+ *
+ * @author BLoo
+ */
+public class RelayStats implements RelayStatsMXBean {
+
+    private final RelayStats parent;
+    private final Flow toServer = new Flow(), toClient = new Flow();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder activeSessions = new LongAdder();
+    private ObjectName name;
+
+    /**
+     * The counters of one direction
+     */
+    private static final class Flow {
+	final LongAdder packets = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+	final LongAdder dropped = new LongAdder();
+	final LongAdder delayed = new LongAdder();
+	final LongAdder delayNanos = new LongAdder();
+	final LongAdder duplicated = new LongAdder();
+	final LongAdder corrupted = new LongAdder();
+	final LongAdder unknownTid = new LongAdder();
+	final LongAdder goodputBytes = new LongAdder();
+	final AtomicLong firstData = new AtomicLong(); // System.nanoTime() the first new block was forwarded, 0 before
+	final AtomicLong lastData = new AtomicLong(); // and the last
+	int lastBlock; // the last new data block forwarded, only kept by sessions
+
+	Map<String, Long> toMap() {
+	    Map<String, Long> counts = new LinkedHashMap<>();
+	    counts.put("packets", packets.sum());
+	    counts.put("bytes", bytes.sum());
+	    counts.put("dropped", dropped.sum());
+	    counts.put("delayed", delayed.sum());
+	    counts.put("delayMicros", TimeUnit.NANOSECONDS.toMicros(delayNanos.sum()));
+	    counts.put("duplicated", duplicated.sum());
+	    counts.put("corrupted", corrupted.sum());
+	    counts.put("unknownTid", unknownTid.sum());
+	    counts.put("goodputBytes", goodputBytes.sum());
+	    return counts;
+	}
+    }
+
+    /**
+     * @param parent
+     *            - stats that will also receive every update, null for none
+     */
+    public RelayStats(RelayStats parent) {
+	this.parent = parent;
+    }
+
+    /**
+     * Registers these stats with the platform MBean server. Failures are reported
+     * but never stop the relay.
+     *
+     * @param properties
+     *            - the key properties of the ObjectName eg. "type=Relay"
+     */
+    public void register(String properties) {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    name = new ObjectName(TransferMetrics.DOMAIN + ":" + properties);
+	    if (server.isRegistered(name))
+		server.unregisterMBean(name);
+	    server.registerMBean(this, name);
+	} catch (JMException e) {
+	    e.printStackTrace();
+	    name = null;
+	}
+    }
+
+    /**
+     * Removes these stats from the platform MBean server if they were registered
+     */
+    public void unregister() {
+	if (name == null)
+	    return;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	} catch (JMException e) {
+	    e.printStackTrace();
+	}
+	name = null;
+    }
+
+    private Flow flow(boolean toServer) {
+	return toServer ? this.toServer : toClient;
+    }
+
+    void sessionStarted() {
+	sessions.increment();
+	activeSessions.increment();
+	if (parent != null)
+	    parent.sessionStarted();
+    }
+
+    void sessionFinished() {
+	activeSessions.decrement();
+	if (parent != null)
+	    parent.sessionFinished();
+    }
+
+    /**
+     * Counts a packet that was sent on, data blocks after the last one forwarded
+     * count towards the goodput
+     *
+     * @param packet
+     *            - the packet, from 0 to its limit
+     */
+    void forwarded(boolean toServer, ByteBuffer packet) {
+	int length = packet.limit();
+	forwarded(toServer, length, length >= 2 ? packet.get(1) : -1,
+		length >= 4 ? (packet.get(2) & 0xFF) << 8 | packet.get(3) & 0xFF : -1);
+    }
+
+    /**
+     * Counts a packet that was sent on, like forwarded(boolean, ByteBuffer)
+     */
+    void forwarded(boolean toServer, byte[] data, int length) {
+	forwarded(toServer, length, length >= 2 ? data[1] : -1,
+		length >= 4 ? (data[2] & 0xFF) << 8 | data[3] & 0xFF : -1);
+    }
+
+    private void forwarded(boolean toServer, int length, byte type, int block) {
+	Flow flow = flow(toServer);
+	int goodput = 0;
+	if (type == TFTPPacket.OP_DATA && block >= 0) {
+	    synchronized (flow) { // delayed packets are counted by the scheduler's thread
+		int ahead = (block - flow.lastBlock) & 0xFFFF;
+		if (ahead > 0 && ahead < 0x8000) {
+		    flow.lastBlock = block;
+		    goodput = length - 4;
+		}
+	    }
+	}
+	forwarded(toServer, length, goodput);
+    }
+
+    private void forwarded(boolean toServer, int length, int goodput) {
+	Flow flow = flow(toServer);
+	flow.packets.increment();
+	flow.bytes.add(length);
+	flow.goodputBytes.add(goodput);
+	if (goodput > 0) {
+	    long now = System.nanoTime();
+	    flow.firstData.compareAndSet(0, now);
+	    flow.lastData.accumulateAndGet(now, Math::max);
+	}
+	if (parent != null)
+	    parent.forwarded(toServer, length, goodput);
+    }
+
+    void dropped(boolean toServer) {
+	flow(toServer).dropped.increment();
+	if (parent != null)
+	    parent.dropped(toServer);
+    }
+
+    /**
+     * @param nanos
+     *            - how long the packet is held back
+     */
+    void delayed(boolean toServer, long nanos) {
+	Flow flow = flow(toServer);
+	flow.delayed.increment();
+	flow.delayNanos.add(nanos);
+	if (parent != null)
+	    parent.delayed(toServer, nanos);
+    }
+
+    void duplicated(boolean toServer) {
+	flow(toServer).duplicated.increment();
+	if (parent != null)
+	    parent.duplicated(toServer);
+    }
+
+    void corrupted(boolean toServer) {
+	flow(toServer).corrupted.increment();
+	if (parent != null)
+	    parent.corrupted(toServer);
+    }
+
+    void unknownTid(boolean toServer) {
+	flow(toServer).unknownTid.increment();
+	if (parent != null)
+	    parent.unknownTid(toServer);
+    }
+
+    @Override
+    public Map<String, Long> getToServer() {
+	return toServer.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getToClient() {
+	return toClient.toMap();
+    }
+
+    @Override
+    public long getSessions() {
+	return sessions.sum();
+    }
+
+    @Override
+    public long getActiveSessions() {
+	return activeSessions.sum();
+    }
+
+    /**
+     * @return data bytes of new blocks per second in one direction, from the
+     *         first new block forwarded to the last, so time spent idle before
+     *         or after the transfers doesn't count. 0 until two blocks have been
+     *         forwarded.
+     */
+    public double getGoodput(boolean toServer) {
+	Flow flow = flow(toServer);
+	double seconds = (flow.lastData.get() - flow.firstData.get()) / 1e9;
+	return seconds > 0 ? flow.goodputBytes.sum() / seconds : 0;
+    }
+
+    /**
+     * @return one line describing both directions, printed when a session ends
+     */
+    public String summary() {
+	return "to server " + summary(true) + "; to client " + summary(false);
+    }
+
+    private String summary(boolean toServer) {
+	Flow flow = flow(toServer);
+	return flow.packets.sum() + " packets " + flow.bytes.sum() + "B, " + flow.dropped.sum() + " dropped, "
+		+ flow.delayed.sum() + " delayed +" + TimeUnit.NANOSECONDS.toMillis(flow.delayNanos.sum()) + "ms, "
+		+ flow.duplicated.sum() + " duplicated, " + flow.corrupted.sum() + " corrupted, "
+		+ flow.unknownTid.sum() + " unknown TID, goodput " + Math.round(getGoodput(toServer)) + "B/s";
+    }
+}
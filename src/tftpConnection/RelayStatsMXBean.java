@@ -0,0 +1,27 @@
+package tftpConnection;
+
+import java.util.Map;
+
+/**
+ * Management interface for the counters kept by {@link RelayStats}
+ *
+ * @author BLoo
+ */
+public interface RelayStatsMXBean {
+
+    /**
+     * @return counters of packets relayed to the server, keyed by name (packets,
+     *         bytes, dropped, delayed, delayMicros, duplicated, corrupted,
+     *         unknownTid, goodputBytes)
+     */
+    Map<String, Long> getToServer();
+
+    /**
+     * @return counters of packets relayed to the client, keyed like getToServer
+     */
+    Map<String, Long> getToClient();
+
+    long getSessions();
+
+    long getActiveSessions();
+}
@@ -0,0 +1,177 @@
+package tftpConnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary log of the requests a server handled, for replaying real
+ * traffic against a test server. The file starts with a magic number and a
+ * version, followed by one record per request: time it arrived, client
+ * address, opcode, file name, file size, outcome and duration. A record is
+ * about 40 bytes plus the file name, so a day of boot storms fits in a few MB.
+ *
+ * Writes are buffered and flushed at most once a second and when the JVM
+ * exits, so tracing costs little on the request path.
+ *
+ * @author BLoo
+ */
+public class RequestTrace implements Closeable {
+
+    private static final int MAGIC = 0x54465450; // "TFTP"
+    private static final short VERSION = 1;
+    private static final long FLUSH_INTERVAL = 1000;
+
+    /** Outcome of a request that completed */
+    public static final short COMPLETE = 0;
+    /** Outcome of a request that gave up after its last retransmission */
+    public static final short TIMED_OUT = -1;
+    /** Outcome of a request that was stopped by an error packet from the client */
+    public static final short PEER_ERROR = -2;
+    /** Added to the code of the error packet the server sent to stop a request */
+    public static final short ERROR_SENT = 100;
+
+    /**
+     * One traced request
+     */
+    public static class Record {
+	public final long timestamp; // ms since the epoch when the request arrived
+	public final InetSocketAddress client;
+	public final byte opcode;
+	public final String file;
+	public final long size; // bytes in the file once the request ended
+	public final short outcome;
+	public final long durationMicros;
+
+	public Record(long timestamp, InetSocketAddress client, byte opcode, String file, long size, short outcome,
+		long durationMicros) {
+	    this.timestamp = timestamp;
+	    this.client = client;
+	    this.opcode = opcode;
+	    this.file = file;
+	    this.size = size;
+	    this.outcome = outcome;
+	    this.durationMicros = durationMicros;
+	}
+
+	@Override
+	public String toString() {
+	    return timestamp + " " + client + " " + TFTPPacket.PacketTypes.get(opcode) + " " + file + " " + size
+		    + " bytes outcome=" + outcome + " " + durationMicros + "us";
+	}
+    }
+
+    private final DataOutputStream out;
+    private long lastFlush;
+
+    /**
+     * Opens a trace for appending, writing the header if the file is new
+     *
+     * @param file
+     *            - where requests are recorded
+     * @throws IOException
+     */
+    public RequestTrace(File file) throws IOException {
+	boolean exists = file.length() > 0;
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+	if (!exists) {
+	    out.writeInt(MAGIC);
+	    out.writeShort(VERSION);
+	}
+	lastFlush = System.currentTimeMillis();
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    try {
+		close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}, "Request trace"));
+    }
+
+    /**
+     * Appends a request to the trace. Failures are reported but never stop the
+     * transfer that is being recorded.
+     *
+     * @param record
+     *            - the request
+     */
+    public synchronized void record(Record record) {
+	try {
+	    out.writeLong(record.timestamp);
+	    byte[] address = record.client.getAddress().getAddress();
+	    out.writeByte(address.length);
+	    out.write(address);
+	    out.writeShort(record.client.getPort());
+	    out.writeByte(record.opcode);
+	    out.writeUTF(record.file);
+	    out.writeLong(record.size);
+	    out.writeShort(record.outcome);
+	    out.writeLong(record.durationMicros);
+
+	    long now = System.currentTimeMillis();
+	    if (now - lastFlush >= FLUSH_INTERVAL) {
+		out.flush();
+		lastFlush = now;
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	out.close();
+    }
+
+    /**
+     * Reads every record of a trace
+     *
+     * @param file
+     *            - the trace
+     * @return the records in the order they were written
+     * @throws IOException
+     *             - if the file is not a trace or can't be read, a record cut off
+     *             by a crash ends the trace instead
+     */
+    public static List<Record> read(File file) throws IOException {
+	List<Record> records = new ArrayList<>();
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    if (in.readInt() != MAGIC)
+		throw new IOException(file + " is not a request trace");
+	    short version = in.readShort();
+	    if (version != VERSION)
+		throw new IOException(file + " has unsupported trace version " + version);
+
+	    while (true) {
+		long timestamp;
+		try {
+		    timestamp = in.readLong();
+		} catch (EOFException e) {
+		    break;
+		}
+		try {
+		    byte[] address = new byte[in.readUnsignedByte()];
+		    in.readFully(address);
+		    InetSocketAddress client = new InetSocketAddress(InetAddress.getByAddress(address),
+			    in.readUnsignedShort());
+		    records.add(new Record(timestamp, client, in.readByte(), in.readUTF(), in.readLong(),
+			    in.readShort(), in.readLong()));
+		} catch (EOFException e) {
+		    break; // the last record was only partly written
+		}
+	    }
+	}
+	return records;
+    }
+}
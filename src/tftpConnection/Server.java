@@ -1,9 +1,16 @@
 package tftpConnection;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.SocketTimeoutException;
 import java.util.InputMismatchException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * @author BenjaminP, BenB
@@ -15,6 +22,8 @@ public class Server extends TFTPConnection {
     private WaitForRequest waitThread;
     private String input;
     boolean cont;
+    private int serverPort;
+    private final Consumer<TFTPConfig> configListener = config -> this.verbose = config.isVerbose();
 
     /**
      * Constructor for a Server
@@ -26,9 +35,38 @@ public class Server extends TFTPConnection {
      * @author bloo
      */
     public Server(int serverPort, boolean verbose) {
+	this(serverPort, verbose, UdpTransport.FACTORY);
+    }
+
+    /**
+     * Constructor for a Server on another network than UDP
+     * 
+     * @param serverPort
+     *            - port for server to receive requests from
+     * @param verbose
+     *            - whether or not the server will be verbose
+     * @param transports
+     *            - opens the request socket and the sockets of every transfer
+     */
+    public Server(int serverPort, boolean verbose, DatagramTransport.Factory transports) {
+	this.transports = transports;
 	this.input = null;
 	this.verbose = verbose;
 	this.cont = true;
+	this.serverPort = serverPort;
+	TFTPConfig.addListener(configListener);
+	metrics.register("type=Server,port=" + serverPort);
+	activeTransfers = new ConcurrentHashMap<>();
+	latency = new LatencyRecorder();
+	if (TFTPConfig.get().getCompressCacheBytes() > 0)
+	    compressionCache = new CompressionCache(TFTPConfig.get().getCompressCacheBytes());
+	if (!TFTPConfig.get().getTraceFile().isEmpty()) {
+	    try {
+		trace = new RequestTrace(new File(TFTPConfig.get().getTraceFile()));
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
 
 	waitThread = new WaitForRequest(waitForSocket(serverPort, -1));
 	waitThread.start();
@@ -42,7 +80,7 @@ public class Server extends TFTPConnection {
      * @author bloo
      */
     public Server(int serverPort) {
-	this(serverPort, true);
+	this(serverPort, TFTPConfig.get().isVerbose());
     }
 
     /**
@@ -56,7 +94,7 @@ public class Server extends TFTPConnection {
 	while (cont) {
 	    while (true) { // get transfer type
 		try {
-		    print("settings(1), quit(2): ");
+		    print("settings(1), quit(2), reload config(3), latency report(4): ");
 		    while (input == null) {
 			try {
 			    wait();
@@ -107,14 +145,65 @@ public class Server extends TFTPConnection {
 		}
 
 	    } else if (operation == 2) {
-		cont = false;
-		waitThread.interrupt();
+		shutdown();
+	    } else if (operation == 3) {
+		try {
+		    println("Configuration reloaded: " + TFTPConfig.reload());
+		} catch (IllegalArgumentException e) {
+		    println("Invalid configuration, keeping old values: " + e.getMessage());
+		}
+	    } else if (operation == 4) {
+		StringWriter report = new StringWriter();
+		latency.writeText(new PrintWriter(report));
+		println(report.toString());
+		try {
+		    latency.saveCsv(reportFile());
+		    println("Saved " + reportFile());
+		} catch (IOException e) {
+		    println("Unable to save " + reportFile() + ": " + e.getMessage());
+		}
 	    } else {
-		println("Invalid input! enter 1 or 2");
+		println("Invalid input! enter 1, 2, 3 or 4");
 	    }
 	}
     }
 
+    /**
+     * Stops waiting for requests and lets go of the metrics and configuration
+     * callbacks, transfers already running carry on to their end
+     */
+    public void shutdown() {
+	cont = false;
+	waitThread.interrupt();
+	metrics.unregister();
+	TFTPConfig.removeListener(configListener);
+    }
+
+    /**
+     * Prints the latency report and saves it as CSV when the program exits, for
+     * a server run as the program rather than one started by tests or benchmarks
+     */
+    public void reportLatencyAtExit() {
+	latency.reportAtShutdown(reportFile());
+    }
+
+    /**
+     * Gets the file the latency report is saved to
+     * 
+     * @return CSV file name
+     */
+    private String reportFile() {
+	return "latency_report_" + serverPort + ".csv";
+    }
+
+    /**
+     * @return the port requests are received on, the one picked by the system
+     *         when the server was started on port 0
+     */
+    public int getPort() {
+	return waitThread.requestSocket.getLocalPort();
+    }
+
     // For Testing Purposes
     public int getWaitForRequest() {
 	if (waitThread.getDatagramSoc() == SERVER_PORT) {
@@ -132,7 +221,7 @@ public class Server extends TFTPConnection {
      */
     private class WaitForRequest extends Thread {
 	DatagramPacket receivedPacket;
-	DatagramSocket requestSocket;
+	DatagramTransport requestSocket;
 
 	/**
 	 * constructor for WaitForRequest threads
@@ -141,7 +230,7 @@ public class Server extends TFTPConnection {
 	 *            - the socket that will be waited on, should already have port
 	 *            attached
 	 */
-	protected WaitForRequest(DatagramSocket socket) {
+	protected WaitForRequest(DatagramTransport socket) {
 	    requestSocket = socket;
 	}
 
@@ -159,7 +248,7 @@ public class Server extends TFTPConnection {
 		    // TFTPPacket.checkPacket(receivedPacket);
 		    if (receivedPacket != null) {
 			println("\nPacket received from " + receivedPacket.getAddress());
-			new Thread(new ThreadedConnection(receivedPacket, verbose, outputWindow)).start(); // start new
+			new Thread(new ThreadedConnection(receivedPacket, verbose, outputWindow, Server.this)).start(); // start new
 		    } // client
 		      // connection
 		      // for the
@@ -170,7 +259,7 @@ public class Server extends TFTPConnection {
 		} catch (SocketTimeoutException e) {
 		    println("Connection time out");
 		}
-		println("settings(1), quit(2): ");
+		println("settings(1), quit(2), reload config(3), latency report(4): ");
 	    }
 	}
 
@@ -196,13 +285,40 @@ public class Server extends TFTPConnection {
     }
 
     /**
-     * Start the sever waiting for request
+     * Start the sever waiting for request without the user interface, commands are
+     * read from standard input. Serves metrics over HTTP when metrics.port is set.
      * 
      * @param args
      * @author bloo
      */
-    /*
-     * public static void main(String[] args) { Server s = new Server(SERVER_PORT);
-     * s.userInterface(); }
-     */
+    public static void main(String[] args) {
+	final Server s = new Server(SERVER_PORT);
+	s.reportLatencyAtExit();
+	TFTPConfig.startWatcher(2000);
+
+	int metricsPort = TFTPConfig.get().getMetricsPort();
+	if (metricsPort > 0) {
+	    try {
+		new MetricsHttpServer(metricsPort, s, "server");
+		s.println("Serving metrics on port " + metricsPort);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+
+	Thread console = new Thread(() -> {
+	    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	    try {
+		String line;
+		while ((line = in.readLine()) != null)
+		    s.takeInput(line.trim());
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}, "Console input");
+	console.setDaemon(true);
+	console.start();
+
+	s.userInterface();
+    }
 }
\ No newline at end of file
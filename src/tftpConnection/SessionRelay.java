@@ -0,0 +1,477 @@
+package tftpConnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays any number of transfers at once for the ErrorSimulator. One thread
+ * waits on a Selector for the listening channel and for one channel per
+ * session. A request from a new client opens a session on its own port: the
+ * server sees that port as the client and the client sees it as the server, so
+ * every session has its own mapped port and entry in the session table.
+ *
+ * Each session takes the simulator's parameters and starts the simulator's
+ * scenario when its request arrives, it simulates the parameters' error once
+ * and the scenario's errors as the scenario's rules say. A session ends once an error packet or the packet
+ * after the last data block has been relayed, it is kept a little longer for
+ * late retransmissions, and sessions that go quiet are dropped after the
+ * simulator timeout. Every other packet crosses the simulator's
+ * ImpairmentModel, when it has one. Delayed and duplicated packets are sent by
+ * the simulator's PacketScheduler, the loop itself never waits. What happens to
+ * a session's packets is counted in its RelayStats and summed in the
+ * simulator's, and printed when the session closes.
+ *
+ * Packets are received into one direct buffer and sent on from it, so the
+ * channels don't copy them through a temporary buffer of their own. Only the
+ * 4 byte header is read to choose what happens to a packet, packets are not
+ * validated, and they are only copied to be printed or held back.
+ *
+ * @author BLoo
+ */
+public class SessionRelay implements Runnable, Closeable {
+
+    private static final long LINGER = 1000; // ms a finished session still relays
+    private static final long SELECT_INTERVAL = 200; // ms between checks for expired sessions
+
+    private final ErrorSimulator simulator;
+    private final InetSocketAddress serverRequests;
+    private final Selector selector;
+    private final DatagramChannel listener;
+    private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>(); // keyed by client address
+    private final ByteBuffer buffer; // direct
+    private final DatagramPacket view; // a copy of the received packet for printing
+    private final long[] delays = new long[2]; // the network model's plan for the packet in the buffer
+    private volatile boolean running = true;
+
+    /**
+     * One relayed transfer
+     */
+    private final class Session {
+	final SocketAddress client;
+	final DatagramChannel channel; // the port both ends talk to
+	final SelectionKey key;
+	ErrorSimulator.Impairment impairment; // null once simulated or if there is none
+	final ImpairmentScenario.Run script; // null without a scenario
+	final RelayStats stats = new RelayStats(simulator.getRelayStats());
+	SocketAddress server; // the server's transfer port, null until it replies
+	DatagramChannel errorChannel; // sends as an unknown TID, opened when needed
+	SelectionKey errorKey;
+	boolean lastData; // the last packet relayed was a data packet shorter than a block
+	int blockSize = TFTPConnection.MAX_DATA_SIZE; // changed when the server acknowledges a blksize option
+	long lastActive;
+	long finishedAt; // 0 while the transfer runs
+
+	Session(SocketAddress client, ErrorSimulator.Impairment impairment, ImpairmentScenario.Run script)
+		throws IOException {
+	    this.client = client;
+	    this.impairment = impairment;
+	    this.script = script;
+	    channel = DatagramChannel.open();
+	    channel.bind(null);
+	    channel.configureBlocking(false);
+	    key = channel.register(selector, SelectionKey.OP_READ, this);
+	    stats.sessionStarted();
+	}
+
+	void close() {
+	    stats.sessionFinished();
+	    try {
+		channel.close();
+		if (errorChannel != null)
+		    errorChannel.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Binds the listening port, call run to start relaying
+     *
+     * @param simulator
+     *            - supplies the errors to simulate and receives the metrics
+     * @param eSimPort
+     *            - the port clients send requests to
+     * @param serverPort
+     *            - the port of the server on this host
+     * @throws IOException
+     *             - if the port is in use
+     */
+    public SessionRelay(ErrorSimulator simulator, int eSimPort, int serverPort) throws IOException {
+	this.simulator = simulator;
+	this.serverRequests = new InetSocketAddress(InetAddress.getLocalHost(), serverPort);
+	int size = TFTPConfig.get().getMaxPacketSize();
+	buffer = ByteBuffer.allocateDirect(size);
+	view = new DatagramPacket(new byte[size], size);
+	selector = Selector.open();
+	listener = DatagramChannel.open();
+	listener.bind(new InetSocketAddress(eSimPort));
+	listener.configureBlocking(false);
+	listener.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Relays until closed
+     */
+    @Override
+    public void run() {
+	while (running) {
+	    try {
+		selector.select(SELECT_INTERVAL);
+		for (SelectionKey key : selector.selectedKeys()) {
+		    if (!key.isValid())
+			continue;
+		    Session session = (Session) key.attachment();
+		    if (session == null)
+			request();
+		    else if (key == session.errorKey)
+			discard(session.errorChannel);
+		    else
+			relay(session);
+		}
+		selector.selectedKeys().clear();
+		expire(System.currentTimeMillis());
+	    } catch (IOException e) {
+		if (running)
+		    e.printStackTrace();
+	    }
+	}
+
+	for (Session session : sessions.values())
+	    session.close();
+	sessions.clear();
+	try {
+	    listener.close();
+	    selector.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Starts a session for each request from a new client and passes requests on
+     * to the server. A request from a client whose session has finished starts a
+     * new transfer, so the lingering session is closed for a new one.
+     */
+    private void request() throws IOException {
+	SocketAddress from;
+	while ((from = receive(listener)) != null) {
+	    Session session = sessions.get(from);
+	    if (session != null && session.finishedAt > 0) { // a new transfer from the same port
+		end(session);
+		session = null;
+	    }
+	    if (session == null) {
+		session = new Session(from, simulator.takeImpairment(), simulator.startScenario());
+		sessions.put(from, session);
+		if (simulator.verbose)
+		    simulator.println("Session for " + from + " on port " + session.channel.socket().getLocalPort());
+	    }
+	    session.lastActive = System.currentTimeMillis();
+	    ErrorSimulator.Impairment impairment = session.impairment;
+	    byte type = buffer.limit() >= 2 ? buffer.get(1) : -1;
+	    if (impairment != null && impairment.type == type) { // the block of a request isn't checked
+		session.impairment = null;
+		impair(session, impairment, serverRequests, true);
+	    } else if ((impairment = script(session, type, -1, true)) != null) {
+		impair(session, impairment, serverRequests, true);
+	    } else {
+		pass(session, serverRequests, true);
+	    }
+	}
+    }
+
+    /**
+     * Passes packets of a session on to the other end
+     */
+    private void relay(Session session) throws IOException {
+	SocketAddress from;
+	while ((from = receive(session.channel)) != null) {
+	    SocketAddress to;
+	    if (from.equals(session.client)) {
+		to = session.server;
+	    } else if (session.server == null || from.equals(session.server)) {
+		session.server = from;
+		to = session.client;
+	    } else {
+		simulator.print(from + "");
+		continue;
+	    }
+	    if (to == null)
+		continue; // the client sent more than its request before the server answered
+	    session.lastActive = System.currentTimeMillis();
+
+	    ErrorSimulator.Impairment impairment = session.impairment;
+	    int length = buffer.limit();
+	    byte type = length >= 2 ? buffer.get(1) : -1;
+	    int block = length >= 4 ? (buffer.get(2) & 0xFF) << 8 | buffer.get(3) & 0xFF : -1;
+	    boolean toServer = to == session.server;
+	    if (type == TFTPPacket.OP_OACK)
+		session.blockSize = blockSize(buffer);
+	    if (impairment != null && length >= 4 && impairment.type == type && impairment.block == block) {
+		session.impairment = null;
+		impair(session, impairment, to, toServer);
+	    } else if ((impairment = script(session, type, block, toServer)) != null) {
+		impair(session, impairment, to, toServer);
+	    } else {
+		pass(session, to, toServer);
+	    }
+
+	    if (type == TFTPPacket.OP_ERROR || session.lastData)
+		session.finishedAt = session.lastActive;
+	    session.lastData = type == TFTPPacket.OP_DATA && length - 4 < session.blockSize;
+	}
+    }
+
+    /**
+     * @return the block size agreed on by the OACK in the buffer
+     */
+    private static int blockSize(ByteBuffer packet) {
+	byte[] data = new byte[packet.limit()];
+	for (int i = 0; i < data.length; i++)
+	    data[i] = packet.get(i);
+	return TFTPPacket.getBlockSize(data, data.length);
+    }
+
+    /**
+     * @return the error the session's scenario simulates on the packet in the
+     *         buffer, null for none
+     */
+    private ErrorSimulator.Impairment script(Session session, byte type, int block, boolean toServer) {
+	if (session.script == null)
+	    return null;
+	return session.script.match(type, block, toServer);
+    }
+
+    /**
+     * Simulates an error on the packet in the buffer
+     */
+    private void impair(Session session, ErrorSimulator.Impairment impairment, SocketAddress to, boolean toServer)
+	    throws IOException {
+	long delay = TimeUnit.MILLISECONDS.toNanos(impairment.delay);
+	switch (impairment.mode) {
+	case 1:
+	    simulator.print("THIS PACKET WILL BE LOST\n");
+	    session.stats.dropped(toServer);
+	    record(PacketTimeline.DROP, to);
+	    break;
+	case 2:
+	    simulator.print("THIS PACKET WILL BE DELAYED\n");
+	    session.stats.delayed(toServer, delay);
+	    record(PacketTimeline.DELAY, to);
+	    forwardLater(session, session.channel, to, toServer, delay);
+	    break;
+	case 3:
+	    simulator.print("THIS PACKET WILL BE DUPLICATED\n");
+	    session.stats.duplicated(toServer);
+	    forwardLater(session, session.channel, to, toServer, delay);
+	    forward(session, session.channel, to, toServer);
+	    break;
+	case 4:
+	    simulator.print("THIS PACKET WILL BE \n INCORRECTLY FORMATED\n");
+	    session.stats.corrupted(toServer);
+	    byte[] invalid = ErrorSimulator.createInvalidPacket(impairment);
+	    buffer.clear();
+	    buffer.put(invalid, 0, Math.min(invalid.length, buffer.capacity())); // cut to the largest packet
+	    buffer.flip();
+	    forward(session, session.channel, to, toServer);
+	    break;
+	case 5:
+	    simulator.print("SIMULATING UNKNOWN TID\n");
+	    if (session.errorChannel == null) {
+		session.errorChannel = DatagramChannel.open();
+		session.errorChannel.bind(null);
+		session.errorChannel.configureBlocking(false);
+		session.errorKey = session.errorChannel.register(selector, SelectionKey.OP_READ, session);
+	    }
+	    session.stats.unknownTid(toServer);
+	    forward(session, session.errorChannel, to, toServer);
+	    break;
+	default:
+	    forward(session, session.channel, to, toServer);
+	}
+    }
+
+    /**
+     * Sends the packet in the buffer across the simulator's network model, as it
+     * is when there is none
+     */
+    private void pass(Session session, SocketAddress to, boolean toServer) throws IOException {
+	ImpairmentModel network = simulator.getImpairmentModel();
+	if (network == null) {
+	    forward(session, session.channel, to, toServer);
+	    return;
+	}
+	int copies = network.link(toServer).plan(buffer.limit(), System.nanoTime(), delays);
+	if (copies == 0) {
+	    session.stats.dropped(toServer);
+	    record(PacketTimeline.DROP, to);
+	} else if (copies > 1) {
+	    session.stats.duplicated(toServer);
+	}
+	for (int i = 0; i < copies; i++) {
+	    if (delays[i] > 0) {
+		session.stats.delayed(toServer, delays[i]);
+		record(PacketTimeline.DELAY, to);
+		forwardLater(session, session.channel, to, toServer, delays[i]);
+	    } else {
+		buffer.rewind();
+		forward(session, session.channel, to, toServer);
+	    }
+	}
+    }
+
+    /**
+     * Hands a copy of the packet in the buffer to the simulator's scheduler so
+     * the relay carries on while it waits. Packets of a session that has closed in
+     * the meantime are dropped.
+     */
+    private void forwardLater(Session session, DatagramChannel channel, SocketAddress to, boolean toServer,
+	    long delayNanos) {
+	byte[] data = new byte[buffer.limit()];
+	buffer.duplicate().rewind().get(data);
+	simulator.getScheduler().schedule(delayNanos, TimeUnit.NANOSECONDS, () -> {
+	    try {
+		channel.send(ByteBuffer.wrap(data), to);
+		simulator.metrics.packetSent(new DatagramPacket(data, data.length, to));
+		session.stats.forwarded(toServer, data, data.length);
+		PacketTimeline timeline = simulator.getTimeline();
+		if (timeline != null)
+		    timeline.record(simulator.timelineName, PacketTimeline.SEND, data.length >= 2 ? data[1] : -1,
+			    data.length >= 4 ? (data[2] & 0xFF) << 8 | data[3] & 0xFF : -1, data.length, to);
+	    } catch (ClosedChannelException e) {
+		// the session ended before the packet was due
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	});
+    }
+
+    /**
+     * Receives into the buffer, flipped ready to be sent on
+     *
+     * @return the sender, null when nothing is waiting
+     */
+    private SocketAddress receive(DatagramChannel channel) throws IOException {
+	buffer.clear();
+	SocketAddress from = channel.receive(buffer);
+	if (from == null)
+	    return null;
+	buffer.flip();
+	simulator.metrics.packetReceived(buffer);
+	record(PacketTimeline.RECEIVE, from);
+	if (simulator.verbose) {
+	    buffer.get(view.getData(), 0, buffer.limit()).rewind();
+	    view.setLength(buffer.limit());
+	    view.setSocketAddress(from);
+	    simulator.println("received: ");
+	    simulator.println(TFTPPacket.toString(view));
+	}
+	return from;
+    }
+
+    /**
+     * Sends the packet in the buffer
+     */
+    private void forward(Session session, DatagramChannel channel, SocketAddress to, boolean toServer)
+	    throws IOException {
+	channel.send(buffer, to);
+	simulator.metrics.packetSent(buffer);
+	session.stats.forwarded(toServer, buffer);
+	record(PacketTimeline.SEND, to);
+    }
+
+    /**
+     * Records the packet in the buffer in the simulator's timeline, when it has
+     * one
+     */
+    private void record(byte kind, SocketAddress peer) {
+	PacketTimeline timeline = simulator.getTimeline();
+	if (timeline == null)
+	    return;
+	int length = buffer.limit();
+	timeline.record(simulator.timelineName, kind, length >= 2 ? buffer.get(1) : -1,
+		length >= 4 ? (buffer.get(2) & 0xFF) << 8 | buffer.get(3) & 0xFF : -1, length, peer);
+    }
+
+    /**
+     * Reads the answers to packets sent from an unknown TID, they only confirm the
+     * error was noticed
+     */
+    private void discard(DatagramChannel channel) throws IOException {
+	while (receive(channel) != null)
+	    ;
+    }
+
+    /**
+     * Closes finished sessions once they have lingered and sessions that have been
+     * quiet for the simulator timeout
+     */
+    private void expire(long now) {
+	long idle = TFTPConfig.get().getSimulatorTimeout();
+	List<SocketAddress> expired = new ArrayList<>();
+	for (Session session : sessions.values())
+	    if (session.finishedAt > 0 && now - session.finishedAt > LINGER || now - session.lastActive > idle)
+		expired.add(session.client);
+	for (SocketAddress client : expired)
+	    end(sessions.get(client));
+    }
+
+    /**
+     * Closes a session and prints what happened to its packets
+     */
+    private void end(Session session) {
+	sessions.remove(session.client);
+	session.close();
+	simulator.println("Session for " + session.client + " closed: " + session.stats.summary());
+    }
+
+    /**
+     * @return the port clients send requests to
+     */
+    public int getPort() {
+	return listener.socket().getLocalPort();
+    }
+
+    /**
+     * @return sessions currently relayed
+     */
+    public int getSessionCount() {
+	return sessions.size();
+    }
+
+    /**
+     * @return the stats of each session currently relayed, keyed by client
+     *         address
+     */
+    public Map<SocketAddress, RelayStats> getSessionStats() {
+	Map<SocketAddress, RelayStats> stats = new LinkedHashMap<>();
+	for (Session session : sessions.values())
+	    stats.put(session.client, session.stats);
+	return stats;
+    }
+
+    /**
+     * Stops relaying, every port is closed by the relaying thread as it returns
+     */
+    @Override
+    public void close() {
+	running = false;
+	selector.wakeup();
+    }
+}
@@ -0,0 +1,570 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Client for programs rather than people: get and put start a transfer and
+ * return at once with a CompletableFuture that completes with a
+ * {@link TransferResult}, or exceptionally with a {@link TransferException}
+ * (or the IOException reading or writing the local file) instead of the
+ * printed stack traces and exits of the interactive Client. Every transfer
+ * runs on its own connection and socket, so one client can run hundreds of
+ * transfers at once on a shared executor. Cancelling a future stops its
+ * transfer before the next block and tells the server.
+ *
+ * getSegmented splits a large file into byte ranges, fetched at once on
+ * separate TIDs with the offset and length options of this project's server,
+ * so several lock-step transfers share the link.
+ *
+ * A resumable transfer, see {@link TransferOptions#setResumable(boolean)}, that
+ * stops part way can be run again to send only the rest of the file.
+ *
+ * <pre>
+ * TFTPClient client = new TFTPClient(new InetSocketAddress("host", 69));
+ * client.get("remote.bin", new File("local.bin"), new TransferOptions().setBlockSize(1428))
+ * 	.thenAccept(System.out::println);
+ * </pre>
+ *
+ * @author BLoo
+ */
+public class TFTPClient {
+
+    private static final AtomicLong threadCount = new AtomicLong();
+    // daemon threads so pending transfers don't keep the JVM running
+    private static final ExecutorService sharedExecutor = Executors.newCachedThreadPool(runnable -> {
+	Thread thread = new Thread(runnable, "TFTP transfer " + threadCount.incrementAndGet());
+	thread.setDaemon(true);
+	return thread;
+    });
+
+    private final SocketAddress server;
+    private final Executor executor;
+    private final TransferMetrics metrics = new TransferMetrics(null);
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private DatagramTransport.Factory transports = UdpTransport.FACTORY;
+
+    /**
+     * @param server
+     *            - where requests are sent
+     */
+    public TFTPClient(SocketAddress server) {
+	this(server, sharedExecutor);
+    }
+
+    /**
+     * @param server
+     *            - where requests are sent
+     * @param executor
+     *            - runs the transfers, each one holds a thread until it ends
+     */
+    public TFTPClient(SocketAddress server, Executor executor) {
+	this.server = server;
+	this.executor = executor;
+    }
+
+    /**
+     * @param transports
+     *            - opens the sockets of transfers started after this call
+     */
+    public void setTransports(DatagramTransport.Factory transports) {
+	this.transports = transports;
+    }
+
+    /**
+     * Reads a file from the server with the default options
+     */
+    public CompletableFuture<TransferResult> get(String remoteFile, File localFile) {
+	return get(remoteFile, localFile, new TransferOptions());
+    }
+
+    /**
+     * Reads a file from the server
+     * 
+     * @param remoteFile
+     *            - the file's name on the server
+     * @param localFile
+     *            - where the file is saved, once all of it has arrived
+     * @param options
+     *            - how to run the transfer
+     * @return completes when the file is saved
+     */
+    public CompletableFuture<TransferResult> get(String remoteFile, File localFile, TransferOptions options) {
+	Transfer transfer = new Transfer(TFTPPacket.OP_RRQ, remoteFile, localFile, options);
+	return transfer.start();
+    }
+
+    /**
+     * Reads a file from the server in byte ranges fetched at the same time, each
+     * block written into place in the local file as it arrives. The file's size is
+     * found first with a request the server's OACK answers and is then cancelled.
+     * A server that doesn't serve ranges answers that request with the whole
+     * file.
+     * 
+     * @param remoteFile
+     *            - the file's name on the server
+     * @param localFile
+     *            - where the file is written, deleted if the transfer fails
+     * @param segments
+     *            - ranges to split the file into, fewer for small files
+     * @param options
+     *            - how to run each range's transfer, the progress is of the whole
+     *            file
+     * @return completes when every range is written
+     */
+    public CompletableFuture<TransferResult> getSegmented(String remoteFile, File localFile, int segments,
+	    TransferOptions options) {
+	long start = System.nanoTime();
+	FileChannel channel;
+	try {
+	    channel = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		    StandardOpenOption.TRUNCATE_EXISTING);
+	} catch (IOException e) {
+	    return CompletableFuture.failedFuture(e);
+	}
+	AtomicLong received = new AtomicLong();
+	AtomicReference<Throwable> firstFailure = new AtomicReference<>(); // rather than the cancellations it causes
+	List<Transfer> parts = Collections.synchronizedList(new ArrayList<>());
+	Transfer probe = new Transfer(TFTPPacket.OP_RRQ, remoteFile, localFile, options);
+	probe.range(0, -1, channel, received, true);
+	parts.add(probe);
+
+	CompletableFuture<TransferResult> download = probe.start().thenCompose(probed -> {
+	    if (!probe.probe) // the server sent the whole file
+		return CompletableFuture.completedFuture(probed);
+	    long size = probe.rangeLength;
+	    long blocks = Math.max(1, (size + probe.blockSize - 1) / probe.blockSize);
+	    // whole blocks in every range but the last
+	    long rangeLength = (blocks + Math.min(Math.max(segments, 1), blocks) - 1)
+		    / Math.min(Math.max(segments, 1), blocks) * probe.blockSize;
+	    List<CompletableFuture<TransferResult>> ranges = new ArrayList<>();
+	    for (long offset = 0; offset < size || offset == 0; offset += rangeLength) {
+		Transfer part = new Transfer(TFTPPacket.OP_RRQ, remoteFile, localFile, options);
+		part.range(offset, Math.min(rangeLength, size - offset), channel, received, false);
+		part.size = size;
+		parts.add(part);
+		ranges.add(part.start().whenComplete((result, failure) -> {
+		    if (failure == null)
+			return;
+		    if (!(failure instanceof CancellationException))
+			firstFailure.compareAndSet(null, failure);
+		    for (Transfer other : parts.toArray(new Transfer[0])) // no use fetching the rest
+			other.future.cancel(true);
+		}));
+	    }
+	    return CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).handle((done, failure) -> {
+		if (failure != null)
+		    throw new CompletionException(firstFailure.get() != null ? firstFailure.get() : failure);
+		long bytes = 0, retransmissions = 0, timeouts = 0;
+		for (CompletableFuture<TransferResult> range : ranges) {
+		    bytes += range.join().getBytes();
+		    retransmissions += range.join().getRetransmissions();
+		    timeouts += range.join().getTimeouts();
+		}
+		TransferResult first = ranges.get(0).join();
+		return new TransferResult(TFTPPacket.OP_RRQ, remoteFile, localFile, bytes, System.nanoTime() - start,
+			first.getBlockSize(), first.getOptions(), retransmissions, timeouts);
+	    });
+	});
+
+	// completed once the file is closed, or deleted if the download failed
+	CompletableFuture<TransferResult> finished = new CompletableFuture<>();
+	download.whenComplete((result, failure) -> {
+	    if (failure != null)
+		for (Transfer part : parts.toArray(new Transfer[0]))
+		    part.future.cancel(true);
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    if (failure == null) {
+		finished.complete(result);
+	    } else {
+		localFile.delete();
+		if (failure instanceof CompletionException && failure.getCause() != null)
+		    failure = failure.getCause();
+		finished.completeExceptionally(failure);
+	    }
+	});
+	finished.whenComplete((result, failure) -> {
+	    if (!finished.isCancelled())
+		return;
+	    download.cancel(true); // so ranges aren't started after a probe that finished
+	    for (Transfer part : parts.toArray(new Transfer[0]))
+		part.future.cancel(true);
+	});
+	return finished;
+    }
+
+    /**
+     * Writes a file to the server with the default options
+     */
+    public CompletableFuture<TransferResult> put(File localFile, String remoteFile) {
+	return put(localFile, remoteFile, new TransferOptions());
+    }
+
+    /**
+     * Writes a file to the server
+     * 
+     * @param localFile
+     *            - the file to send
+     * @param remoteFile
+     *            - the name to save it as on the server
+     * @param options
+     *            - how to run the transfer
+     * @return completes when the server has acknowledged the last block
+     */
+    public CompletableFuture<TransferResult> put(File localFile, String remoteFile, TransferOptions options) {
+	Transfer transfer = new Transfer(TFTPPacket.OP_WRQ, remoteFile, localFile, options);
+	return transfer.start();
+    }
+
+    public SocketAddress getServer() {
+	return server;
+    }
+
+    /**
+     * @return counters of every transfer this client has run
+     */
+    public TransferMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * @return latencies of every transfer this client has run
+     */
+    public LatencyRecorder getLatency() {
+	return latency;
+    }
+
+    /**
+     * One get or put, on its own connection
+     */
+    private final class Transfer extends TFTPConnection {
+	private final byte requestType;
+	private final String remoteFile;
+	private final File localFile;
+	private final TransferOptions options;
+	private final CompletableFuture<TransferResult> future = new CompletableFuture<>();
+	private Map<String, String> acknowledged = Collections.emptyMap();
+	private long size = -1;
+	private long bytes;
+	// set for a byte range, see range()
+	private long offset = -1;
+	private FileChannel channel;
+	private long position; // where the range's next block goes
+	private AtomicLong received;
+	private boolean probe;
+	private long resumed; // bytes of the file sent by an earlier transfer
+
+	Transfer(byte requestType, String remoteFile, File localFile, TransferOptions options) {
+	    this.requestType = requestType;
+	    this.remoteFile = remoteFile;
+	    this.localFile = localFile;
+	    this.options = options;
+	    this.metrics = new TransferMetrics(TFTPClient.this.metrics);
+	    this.latency = TFTPClient.this.latency;
+	    this.transports = TFTPClient.this.transports;
+	    this.timelineName = TFTPClient.class.getSimpleName();
+	    this.attempts = options.getRetries() + 1;
+	    this.netascii = options.isNetascii();
+	}
+
+	/**
+	 * Makes this transfer read a byte range into place in a file
+	 * 
+	 * @param offset
+	 *            - first byte of the range
+	 * @param length
+	 *            - bytes in the range, -1 for the rest of the file
+	 * @param channel
+	 *            - the local file
+	 * @param received
+	 *            - bytes received by every range of the file
+	 * @param probe
+	 *            - only learn the file's size from the OACK, into rangeLength
+	 */
+	void range(long offset, long length, FileChannel channel, AtomicLong received, boolean probe) {
+	    this.offset = offset;
+	    this.position = offset;
+	    this.rangeLength = length;
+	    this.channel = channel;
+	    this.received = received;
+	    this.probe = probe;
+	}
+
+	CompletableFuture<TransferResult> start() {
+	    try {
+		executor.execute(this::run);
+	    } catch (RejectedExecutionException e) {
+		future.completeExceptionally(e);
+	    }
+	    return future;
+	}
+
+	private void run() {
+	    if (future.isDone()) // cancelled before it started
+		return;
+	    metrics.transferStarted();
+	    try {
+		int timeout = options.getTimeout() > 0 ? options.getTimeout() : TFTPConfig.get().getHandlerTimeout();
+		if (options.isResumable() && requestType == TFTPPacket.OP_RRQ && offset < 0) {
+		    partial = new PartialFile(localFile, Long.MAX_VALUE, true);
+		    offset = resumed = partial.getOffset();
+		}
+		DatagramTransport socket = transports.open(null, timeout);
+		try {
+		    requestTime = System.nanoTime();
+		    if (requestType == TFTPPacket.OP_RRQ)
+			read(socket);
+		    else
+			write(socket);
+		} finally {
+		    socket.close();
+		    if (partial != null && options.isResumable()) // kept to resume unless it was completed
+			partial.close();
+		    else if (partial != null)
+			partial.discard();
+		}
+		if (failure != null)
+		    throw failure;
+		future.complete(new TransferResult(requestType, remoteFile, localFile, bytes,
+			System.nanoTime() - requestTime, blockSize, acknowledged, metrics.getRetransmissions(),
+			metrics.getTimeouts()));
+	    } catch (IOException | RuntimeException e) {
+		future.completeExceptionally(e);
+	    } finally {
+		metrics.transferFinished();
+	    }
+	}
+
+	private void read(DatagramTransport socket) throws IOException {
+	    DatagramPacket answer = request(socket, packet -> TFTPPacket.getType(packet) == TFTPPacket.OP_OACK
+		    || TFTPPacket.getType(packet) == TFTPPacket.OP_DATA && TFTPPacket.getBlockNum(packet) == 1);
+	    if (offset >= 0 && !acknowledged.containsKey("offset")) {
+		if (partial != null) { // the server can't resume, start again
+		    partial.close();
+		    partial = new PartialFile(localFile, 0, true);
+		    resumed = 0;
+		} else if (!probe) {
+		    send(TFTPPacket.createError(TransferException.OPTIONS_REFUSED, "Byte range ignored".getBytes()),
+			    socket, answer.getSocketAddress());
+		    throw new TransferException(TransferException.OPTIONS_REFUSED, "The server ignored the byte range");
+		}
+		probe = false; // no ranges, this is the whole file
+		offset = position = 0;
+	    } else if (probe) {
+		send(TFTPPacket.createError(TransferException.OPTIONS_REFUSED, "Size probe".getBytes()), socket,
+			answer.getSocketAddress());
+		return;
+	    }
+	    if (acknowledged.containsKey("tsize")) { // written as it arrives into the space reserved for it
+		if (localFile.getAbsoluteFile().getParentFile().getUsableSpace() < size - resumed) {
+		    String message = "File " + localFile.getName() + " needs " + size + " bytes";
+		    send(TFTPPacket.createError(TransferException.DISK_FULL, message.getBytes()), socket,
+			    answer.getSocketAddress());
+		    throw new TransferException(TransferException.DISK_FULL, message);
+		}
+		if (partial == null)
+		    partial = new PartialFile(localFile, 0, true);
+		partial.preallocate(size);
+	    }
+	    // an OACK is answered with ACK 0 before block 1 arrives
+	    receiveFile(answer, socket, localFile.getAbsolutePath());
+	    if (failure == null && offset >= 0 && acknowledged.containsKey("offset") && bytes != rangeLength)
+		failure = new TransferException(TransferException.ILLEGAL_OPERATION,
+			"Range ended after " + bytes + " of " + rangeLength + " bytes");
+	}
+
+	private void write(DatagramTransport socket) throws IOException {
+	    if (!localFile.isFile())
+		throw new NoSuchFileException(localFile.getPath());
+	    size = localFile.length();
+	    if (options.isResumable()) // the server answers with where its part ends
+		offset = size;
+	    DatagramPacket answer = request(socket, packet -> TFTPPacket.getType(packet) == TFTPPacket.OP_OACK
+		    || TFTPPacket.getType(packet) == TFTPPacket.OP_ACK && TFTPPacket.getBlockNum(packet) == 0);
+	    if (offset >= 0)
+		rangeOffset = resumed = acknowledged.containsKey("offset") ? Long.parseLong(acknowledged.get("offset"))
+			: 0;
+	    // once the block size and offset are agreed
+	    sendFile(localFile.getPath(), answer.getSocketAddress(), socket);
+	}
+
+	/**
+	 * Sends the request until the server answers it and applies the options it
+	 * acknowledged
+	 * 
+	 * @return the server's answer
+	 * @throws TransferException
+	 *             - if the server refused the request or never answered
+	 */
+	private DatagramPacket request(DatagramTransport socket, Predicate<DatagramPacket> answers)
+		throws IOException {
+	    Map<String, String> requested = options.getRequested();
+	    if (requested.containsKey("blksize")) // no more than this end's packets can hold
+		requested.put("blksize", Integer.toString(maxBlockSize()));
+	    if (options.isTransferSize() && channel == null) // a get asks for the size, a put tells it
+		requested.put("tsize", requestType == TFTPPacket.OP_RRQ ? "0" : Long.toString(size));
+	    if (offset >= 0) {
+		requested.put("offset", Long.toString(offset));
+		if (rangeLength >= 0)
+		    requested.put("length", Long.toString(rangeLength));
+	    }
+	    byte[] mode = netascii ? MODE_NETASCII : MODE_OCTET;
+	    byte[] request = requested.isEmpty() ? TFTPPacket.createRQ(requestType, remoteFile.getBytes(), mode)
+		    : TFTPPacket.createRQ(requestType, remoteFile.getBytes(), mode, requested);
+	    DatagramPacket answer;
+	    try {
+		answer = exchange(new DatagramPacket(request, request.length, server), socket, null, answers);
+	    } catch (IllegalArgumentException e) {
+		throw new TransferException(TransferException.ILLEGAL_OPERATION, e.getMessage());
+	    }
+	    if (answer == null)
+		throw new TransferException(TransferException.TIMED_OUT, "No answer from " + server);
+	    if (TFTPPacket.getType(answer) == TFTPPacket.OP_ERROR)
+		throw new TransferException(TFTPPacket.getError(answer), TFTPPacket.getErrorMsg(answer));
+	    if (TFTPPacket.getType(answer) == TFTPPacket.OP_OACK)
+		accept(TFTPPacket.getOptions(answer), requested, answer, socket);
+	    return answer;
+	}
+
+	/**
+	 * Applies the options of an OACK, refusing them with error 8 when the server
+	 * answered with something that wasn't asked for or can't be used
+	 */
+	private void accept(Map<String, String> oack, Map<String, String> requested, DatagramPacket answer,
+		DatagramTransport socket) throws IOException {
+	    for (Map.Entry<String, String> option : oack.entrySet()) {
+		long value = -1;
+		try {
+		    value = Long.parseLong(option.getValue());
+		} catch (NumberFormatException e) {
+		}
+		boolean usable = requested.containsKey(option.getKey());
+		if (option.getKey().equals("blksize")) {
+		    usable &= value >= 8 && value <= maxBlockSize();
+		    if (usable)
+			blockSize = (int) value;
+		} else if (option.getKey().equals("offset")) { // a WRQ's carries on where the server's part ends
+		    usable &= requestType == TFTPPacket.OP_RRQ ? value == offset : value >= 0 && value <= offset;
+		} else if (option.getKey().equals("tsize")) {
+		    usable &= requestType == TFTPPacket.OP_RRQ ? value >= 0 : value == size;
+		    if (usable)
+			size = value;
+		} else if (option.getKey().equals("compress")) {
+		    usable &= option.getValue().equalsIgnoreCase("deflate");
+		    if (usable)
+			deflate = true;
+		} else if (option.getKey().equals("timeout")) { // waited for at both ends
+		    usable &= value == options.getServerTimeout();
+		    if (usable)
+			socket.setSoTimeout((int) value * 1000);
+		} else if (option.getKey().equals("length")) { // answered for every range, even if not asked for
+		    usable = requestType == TFTPPacket.OP_RRQ && offset >= 0 && value >= 0
+			    && (rangeLength < 0 || value <= rangeLength);
+		    if (usable)
+			rangeLength = value;
+		} else { // only a window of one block is supported
+		    usable &= option.getKey().equals("windowsize") && value == 1;
+		}
+		if (!usable) {
+		    String message = "Option " + option.getKey() + "=" + option.getValue() + " refused";
+		    send(TFTPPacket.createError(TransferException.OPTIONS_REFUSED, message.getBytes()), socket,
+			    answer.getSocketAddress());
+		    throw new TransferException(TransferException.OPTIONS_REFUSED, message);
+		}
+	    }
+	    acknowledged = oack;
+	}
+
+	/**
+	 * @return the largest block asked for, no larger than fits in packet.maxSize,
+	 *         as a larger one would be cut short and taken for the last
+	 */
+	private int maxBlockSize() {
+	    return Math.min(options.getBlockSize(), MAX_PACKET_SIZE - 4);
+	}
+
+	@Override
+	protected void transferred(long bytes) {
+	    long total = bytes;
+	    if (received != null) // one range of a file
+		total = received.addAndGet(bytes - this.bytes);
+	    this.bytes = bytes;
+	    if (options.getProgress() != null)
+		options.getProgress().transferred(resumed + total, size);
+	}
+
+	/**
+	 * Writes each block of a byte range into place as it arrives, so a range is
+	 * never held in memory
+	 */
+	@Override
+	protected boolean writeBlock(byte[] block, int offset, int length) throws IOException {
+	    if (channel == null)
+		return super.writeBlock(block, offset, length);
+	    ByteBuffer buffer = ByteBuffer.wrap(block, offset, length);
+	    while (buffer.hasRemaining())
+		position += channel.write(buffer, position);
+	    return true;
+	}
+
+	/**
+	 * Saves the whole file as usual, a byte range is already in place
+	 */
+	@Override
+	protected int saveFile(ArrayList<byte[]> data, String fileName) throws IOException {
+	    if (channel == null)
+		return super.saveFile(data, fileName);
+	    return data.size();
+	}
+
+	@Override
+	protected boolean cancelled() {
+	    return future.isCancelled();
+	}
+
+	@Override
+	protected void print(String s) {
+	    if (verbose)
+		super.print(s);
+	}
+
+	@Override
+	protected void println(String s) {
+	    if (verbose)
+		super.println(s);
+	}
+
+	@Override
+	public void takeInput(String s) {
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "TFTPClient " + server;
+    }
+}
@@ -0,0 +1,442 @@
+package tftpConnection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Typed tuning configuration shared by the client, server and error simulator.
+ *
+ * Values are read from a properties file (tftp.properties in the working
+ * directory, or the file named by the tftp.config system property) and can be
+ * overridden by system properties prefixed with "tftp." (eg.
+ * -Dtftp.handler.timeout=3000). The ports and packet size are fixed once the
+ * program has started, everything else can be reloaded while transfers are
+ * running. Running transfers pick up a new transmit limit at their next block,
+ * new timeouts apply to the sockets opened after the reload.
+ *
+ * @author BLoo
+ */
+public final class TFTPConfig {
+
+    public static final String CONFIG_PROPERTY = "tftp.config";
+    public static final String DEFAULT_FILE = "tftp.properties";
+    private static final String PREFIX = "tftp.";
+
+    // Property keys
+    static final String SERVER_PORT = "server.port";
+    static final String ESIM_PORT = "esim.port";
+    static final String MAX_PACKET_SIZE = "packet.maxSize";
+    static final String TRANSMIT_LIMIT = "transmit.limit";
+    static final String HANDLER_TIMEOUT = "handler.timeout";
+    static final String SIMULATOR_TIMEOUT = "simulator.timeout";
+    static final String VERBOSE = "verbose";
+    static final String METRICS_PORT = "metrics.port";
+    static final String ESIM_METRICS_PORT = "esim.metrics.port";
+    static final String METRICS_ADDRESS = "metrics.address";
+    static final String TRACE_FILE = "trace.file";
+    static final String NETWORK_TO_SERVER = "esim.network.toServer";
+    static final String NETWORK_TO_CLIENT = "esim.network.toClient";
+    static final String NETWORK_SEED = "esim.network.seed";
+    static final String SCENARIO_FILE = "esim.scenario";
+    static final String TIMELINE_EVENTS = "timeline.events";
+    static final String TIMELINE_FILE = "timeline.file";
+    static final String PARTIAL_CHECKPOINT = "partial.checkpoint";
+    static final String COMPRESS_CACHE_BYTES = "compress.cacheBytes";
+
+    private static volatile TFTPConfig current; // loaded on first use
+    private static final List<Consumer<TFTPConfig>> listeners = new CopyOnWriteArrayList<>();
+    private static Thread watcher;
+
+    // Fixed at startup
+    private final int serverPort;
+    private final int esimPort;
+    private final int maxPacketSize;
+    private final int metricsPort;
+    private final int esimMetricsPort;
+    private final String metricsAddress;
+    private final String traceFile;
+    private final int timelineEvents;
+    private final String timelineFile;
+    private final int compressCacheBytes;
+
+    // Reloadable
+    private final int transmitLimit;
+    private final int handlerTimeout;
+    private final int simulatorTimeout;
+    private final boolean verbose;
+    private final String networkToServer;
+    private final String networkToClient;
+    private final int networkSeed;
+    private final String scenarioFile;
+    private final int partialCheckpoint;
+
+    /**
+     * Builds a configuration from a set of properties, falling back to the
+     * defaults for any missing key
+     *
+     * @param props
+     *            - the properties to read
+     * @throws IllegalArgumentException
+     *             - when a value is not a number or is out of range
+     */
+    TFTPConfig(Properties props) throws IllegalArgumentException {
+	serverPort = readInt(props, SERVER_PORT, 69, 1, 65535);
+	esimPort = readInt(props, ESIM_PORT, 23, 1, 65535);
+	maxPacketSize = readInt(props, MAX_PACKET_SIZE, 516, 516, 65464);
+	metricsPort = readInt(props, METRICS_PORT, 0, 0, 65535);
+	esimMetricsPort = readInt(props, ESIM_METRICS_PORT, 0, 0, 65535);
+	metricsAddress = props.getProperty(METRICS_ADDRESS, "").trim();
+	traceFile = props.getProperty(TRACE_FILE, "").trim();
+	timelineEvents = readInt(props, TIMELINE_EVENTS, 0, 0, 10000000);
+	timelineFile = props.getProperty(TIMELINE_FILE, "").trim();
+	compressCacheBytes = readInt(props, COMPRESS_CACHE_BYTES, 16 << 20, 0, Integer.MAX_VALUE);
+	transmitLimit = readInt(props, TRANSMIT_LIMIT, 5, 1, 1000);
+	handlerTimeout = readInt(props, HANDLER_TIMEOUT, 2000, 1, 600000);
+	simulatorTimeout = readInt(props, SIMULATOR_TIMEOUT, 10000, 1, 600000);
+	verbose = Boolean.parseBoolean(props.getProperty(VERBOSE, "true").trim());
+	networkToServer = props.getProperty(NETWORK_TO_SERVER, "").trim();
+	networkToClient = props.getProperty(NETWORK_TO_CLIENT, "").trim();
+	networkSeed = readInt(props, NETWORK_SEED, 1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	new ImpairmentModel(networkToServer, networkToClient, networkSeed); // rejects invalid specs
+	scenarioFile = props.getProperty(SCENARIO_FILE, "").trim();
+	partialCheckpoint = readInt(props, PARTIAL_CHECKPOINT, 256, 1, Integer.MAX_VALUE);
+
+	if (serverPort == esimPort)
+	    throw new IllegalArgumentException(SERVER_PORT + " and " + ESIM_PORT + " must differ");
+    }
+
+    /**
+     * Copies the startup only values of base and the reloadable values of update
+     */
+    private TFTPConfig(TFTPConfig base, TFTPConfig update) {
+	serverPort = base.serverPort;
+	esimPort = base.esimPort;
+	maxPacketSize = base.maxPacketSize;
+	metricsPort = base.metricsPort;
+	esimMetricsPort = base.esimMetricsPort;
+	metricsAddress = base.metricsAddress;
+	traceFile = base.traceFile;
+	timelineEvents = base.timelineEvents;
+	timelineFile = base.timelineFile;
+	compressCacheBytes = base.compressCacheBytes;
+	transmitLimit = update.transmitLimit;
+	handlerTimeout = update.handlerTimeout;
+	simulatorTimeout = update.simulatorTimeout;
+	verbose = update.verbose;
+	networkToServer = update.networkToServer;
+	networkToClient = update.networkToClient;
+	networkSeed = update.networkSeed;
+	scenarioFile = update.scenarioFile;
+	partialCheckpoint = update.partialCheckpoint;
+    }
+
+    /**
+     * Gets the active configuration
+     *
+     * @return the current configuration
+     */
+    public static TFTPConfig get() {
+	TFTPConfig config = current;
+	return config != null ? config : loadCurrent();
+    }
+
+    /**
+     * Loads the configuration the first time it is asked for. An invalid file is
+     * reported and the defaults used, rather than failing whichever class first
+     * asked for it with an ExceptionInInitializerError.
+     */
+    private static synchronized TFTPConfig loadCurrent() {
+	if (current == null) {
+	    try {
+		current = load(configFile());
+	    } catch (IllegalArgumentException e) {
+		System.err.println("Invalid configuration, using the defaults: " + e.getMessage());
+		current = new TFTPConfig(new Properties());
+	    }
+	}
+	return current;
+    }
+
+    /**
+     * Re-reads the configuration file and system properties. Only the reloadable
+     * values are applied, changes to ports or packet size are reported and ignored
+     * until restart.
+     *
+     * @return the new active configuration
+     * @throws IllegalArgumentException
+     *             - when the new configuration is invalid, the old one stays active
+     */
+    public static synchronized TFTPConfig reload() throws IllegalArgumentException {
+	TFTPConfig loaded = load(configFile());
+	TFTPConfig old = get();
+
+	if (loaded.serverPort != old.serverPort || loaded.esimPort != old.esimPort
+		|| loaded.maxPacketSize != old.maxPacketSize || loaded.metricsPort != old.metricsPort
+		|| loaded.esimMetricsPort != old.esimMetricsPort || !loaded.metricsAddress.equals(old.metricsAddress)
+		|| !loaded.traceFile.equals(old.traceFile)
+		|| loaded.timelineEvents != old.timelineEvents || !loaded.timelineFile.equals(old.timelineFile)
+		|| loaded.compressCacheBytes != old.compressCacheBytes)
+	    System.err.println("Ports, packet size, trace, timeline and compression cache cannot be changed while"
+		    + " running, restart to apply");
+
+	current = new TFTPConfig(old, loaded);
+	for (Consumer<TFTPConfig> listener : listeners)
+	    listener.accept(current);
+	return current;
+    }
+
+    /**
+     * Registers a callback that is run after every successful reload
+     *
+     * @param listener
+     *            - receives the new configuration
+     */
+    public static void addListener(Consumer<TFTPConfig> listener) {
+	listeners.add(listener);
+    }
+
+    /**
+     * Stops running a callback after reloads, so whatever it captured can be
+     * collected once its owner shuts down
+     *
+     * @param listener
+     *            - the callback given to addListener
+     */
+    public static void removeListener(Consumer<TFTPConfig> listener) {
+	listeners.remove(listener);
+    }
+
+    /**
+     * Starts a daemon thread that reloads the configuration whenever the file
+     * changes. Does nothing if the watcher is already running.
+     *
+     * @param interval
+     *            - how often the file is checked in ms
+     */
+    public static synchronized void startWatcher(final long interval) {
+	if (watcher != null)
+	    return;
+
+	watcher = new Thread("TFTPConfig watcher") {
+	    @Override
+	    public void run() {
+		File file = configFile();
+		long lastModified = file.lastModified();
+		while (true) {
+		    try {
+			Thread.sleep(interval);
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		    if (file.lastModified() != lastModified) {
+			lastModified = file.lastModified();
+			try {
+			    reload();
+			    System.out.println("Configuration reloaded from " + file);
+			} catch (IllegalArgumentException e) {
+			    System.err.println("Invalid configuration, keeping old values: " + e.getMessage());
+			}
+		    }
+		}
+	    }
+	};
+	watcher.setDaemon(true);
+	watcher.start();
+    }
+
+    /**
+     * Reads the given file and applies system property overrides
+     *
+     * @param file
+     *            - the properties file, skipped if it doesn't exist
+     * @return the resulting configuration
+     * @throws IllegalArgumentException
+     *             - when a value is invalid, naming the file
+     */
+    public static TFTPConfig load(File file) throws IllegalArgumentException {
+	Properties props = new Properties();
+
+	if (file.isFile()) {
+	    try (InputStream in = new FileInputStream(file)) {
+		props.load(in);
+	    } catch (IOException e) {
+		throw new IllegalArgumentException("Unable to read " + file + ": " + e.getMessage());
+	    }
+	}
+
+	for (String name : System.getProperties().stringPropertyNames()) {
+	    if (name.startsWith(PREFIX) && !name.equals(CONFIG_PROPERTY))
+		props.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+	}
+	try {
+	    return new TFTPConfig(props);
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException(file + ": " + e.getMessage());
+	}
+    }
+
+    private static File configFile() {
+	return new File(System.getProperty(CONFIG_PROPERTY, DEFAULT_FILE));
+    }
+
+    private static int readInt(Properties props, String key, int defaultValue, int min, int max)
+	    throws IllegalArgumentException {
+	String value = props.getProperty(key);
+	if (value == null)
+	    return defaultValue;
+
+	int parsed;
+	try {
+	    parsed = Integer.parseInt(value.trim());
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException(key + " is not a number: " + value);
+	}
+	if (parsed < min || parsed > max)
+	    throw new IllegalArgumentException(key + " must be between " + min + " and " + max + ": " + parsed);
+	return parsed;
+    }
+
+    public int getServerPort() {
+	return serverPort;
+    }
+
+    public int getEsimPort() {
+	return esimPort;
+    }
+
+    /**
+     * @return largest packet received, which sizes the receive buffers and caps a
+     *         negotiated blksize at 4 bytes less. Blocks are 512 bytes, whatever
+     *         this is, unless blksize is negotiated.
+     */
+    public int getMaxPacketSize() {
+	return maxPacketSize;
+    }
+
+    /**
+     * @return port of the server's HTTP metrics endpoint, 0 when disabled
+     */
+    public int getMetricsPort() {
+	return metricsPort;
+    }
+
+    /**
+     * @return port of the error simulator's HTTP metrics endpoint, 0 when disabled
+     */
+    public int getEsimMetricsPort() {
+	return esimMetricsPort;
+    }
+
+    /**
+     * @return address the HTTP metrics endpoints listen on, empty for the
+     *         loopback address only
+     */
+    public String getMetricsAddress() {
+	return metricsAddress;
+    }
+
+    /**
+     * @return file the server records its requests to, empty when not tracing
+     */
+    public String getTraceFile() {
+	return traceFile;
+    }
+
+    /**
+     * @return packet events kept in the PacketTimeline, 0 when not recording
+     */
+    public int getTimelineEvents() {
+	return timelineEvents;
+    }
+
+    /**
+     * @return file the PacketTimeline is written to when the program exits, empty
+     *         for none
+     */
+    public String getTimelineFile() {
+	return timelineFile;
+    }
+
+    /**
+     * @return bytes of hot files a server keeps deflated or in netascii, 0 for
+     *         none
+     */
+    public int getCompressCacheBytes() {
+	return compressCacheBytes;
+    }
+
+    public int getTransmitLimit() {
+	return transmitLimit;
+    }
+
+    public int getHandlerTimeout() {
+	return handlerTimeout;
+    }
+
+    public int getSimulatorTimeout() {
+	return simulatorTimeout;
+    }
+
+    public boolean isVerbose() {
+	return verbose;
+    }
+
+    /**
+     * @return impairments of packets the error simulator relays to the server, see
+     *         ImpairmentModel, empty for none
+     */
+    public String getNetworkToServer() {
+	return networkToServer;
+    }
+
+    /**
+     * @return impairments of packets the error simulator relays to the client,
+     *         empty for none
+     */
+    public String getNetworkToClient() {
+	return networkToClient;
+    }
+
+    /**
+     * @return seed of the network impairments' random numbers
+     */
+    public int getNetworkSeed() {
+	return networkSeed;
+    }
+
+    /**
+     * @return scenario file of errors for the error simulator to script, empty for
+     *         none
+     */
+    public String getScenarioFile() {
+	return scenarioFile;
+    }
+
+    /**
+     * @return blocks written to a PartialFile between each time it is forced to
+     *         disk and journaled
+     */
+    public int getPartialCheckpoint() {
+	return partialCheckpoint;
+    }
+
+    @Override
+    public String toString() {
+	return SERVER_PORT + "=" + serverPort + ", " + ESIM_PORT + "=" + esimPort + ", " + MAX_PACKET_SIZE + "="
+		+ maxPacketSize + ", " + METRICS_PORT + "=" + metricsPort + ", " + ESIM_METRICS_PORT + "="
+		+ esimMetricsPort + ", " + METRICS_ADDRESS + "=" + metricsAddress + ", " + TRACE_FILE + "=" + traceFile
+		+ ", " + TIMELINE_EVENTS + "=" + timelineEvents
+		+ ", " + TIMELINE_FILE + "=" + timelineFile + ", " + COMPRESS_CACHE_BYTES + "=" + compressCacheBytes
+		+ ", " + TRANSMIT_LIMIT + "=" + transmitLimit
+		+ ", " + HANDLER_TIMEOUT + "=" + handlerTimeout + ", " + SIMULATOR_TIMEOUT + "=" + simulatorTimeout + ", "
+		+ VERBOSE + "=" + verbose + ", " + NETWORK_TO_SERVER + "=" + networkToServer + ", " + NETWORK_TO_CLIENT
+		+ "=" + networkToClient + ", " + NETWORK_SEED + "=" + networkSeed + ", " + SCENARIO_FILE + "="
+		+ scenarioFile + ", " + PARTIAL_CHECKPOINT + "=" + partialCheckpoint;
+    }
+}
@@ -1,21 +1,29 @@
 package tftpConnection;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.net.InetSocketAddress;
 
 import javax.swing.JScrollBar;
@@ -35,16 +43,37 @@ public abstract class TFTPConnection {
     protected static final byte[] MODE_OCTET = "octet".getBytes();
     protected static final byte[] MODE_NETASCII = "netascii".getBytes();
 
-    protected static final int SERVER_PORT = 69;
-    protected static final int ESIM_PORT = 23;
+    protected static final int SERVER_PORT = TFTPConfig.get().getServerPort();
+    protected static final int ESIM_PORT = TFTPConfig.get().getEsimPort();
 
-    private static final int MAX_PACKET_SIZE = 516;
-    protected static final int MAX_DATA_SIZE = MAX_PACKET_SIZE - 4;
+    protected static final int MAX_PACKET_SIZE = TFTPConfig.get().getMaxPacketSize();
+    protected static final int MAX_DATA_SIZE = 512; // RFC 1350's block, used unless blksize is negotiated
     protected static final byte ZERO_BYTE = 0;
-
-    private static final int TRANSMIT_LIMIT = 5;
+    private static final byte[] EMPTY_BLOCK = new byte[0];
 
     private DatagramPacket lastSentPkt;
+    protected TransferMetrics metrics = new TransferMetrics(null);
+    protected LatencyRecorder latency; // null when latencies aren't recorded
+    protected long requestTime; // System.nanoTime() when the request was sent or received, 0 if unknown
+    protected Map<Long, ActiveTransfer> activeTransfers; // transfers running under this connection, may be null
+    protected RequestTrace trace; // where handled requests are recorded, null when not tracing
+    protected PacketTimeline timeline = PacketTimeline.get(); // null when packets aren't recorded
+    protected String timelineName = getClass().getSimpleName(); // this connection's process in the timeline
+    protected boolean gaveUp; // set when a transfer stopped after its last retransmission
+    protected TransferException failure; // why the last transfer stopped early, null if it finished
+    protected int blockSize = MAX_DATA_SIZE; // data bytes per block, changed by the blksize option
+    protected int attempts; // sends of each packet before giving up, 0 for transmit.limit
+    protected long rangeOffset; // first byte of the file sent, changed by the offset option
+    protected long rangeLength = -1; // bytes of the file sent, -1 for all from rangeOffset on
+    protected PartialFile partial; // written as blocks arrive when resumable, null to save the file at the end
+    protected boolean deflate; // blocks carry the file deflated, agreed with compress=deflate
+    protected CompressionCache compressionCache; // deflated hot files sent whole, null to deflate each time
+    protected boolean netascii; // the file is sent in netascii, RFC 764, rather than as octets
+    private Inflater inflater; // inflates the blocks of a deflated receive
+    private NetasciiCodec decoder; // translates the blocks of a netascii receive
+    private ByteBuffer translated; // the decoder's output, reused from block to block
+    private long fileBytes = -1; // bytes of the file readFile translated or deflated, -1 if it didn't
+    protected DatagramTransport.Factory transports = UdpTransport.FACTORY; // opens the sockets of this connection
     // Class Variable definition end
 
     /**
@@ -56,10 +85,39 @@ public abstract class TFTPConnection {
      *            - the socket that will be used to send data and receive acks over
      * @throws IOException
      */
-    protected void sendFile(DatagramPacket packet, DatagramSocket socket) throws IOException {
-	ArrayList<byte[]> data = new ArrayList<byte[]>();
-	data = readFile(TFTPPacket.getFileName(packet));
-	sendFile(data, packet.getSocketAddress(), socket);
+    protected void sendFile(DatagramPacket packet, DatagramTransport socket) throws IOException {
+	sendFile(TFTPPacket.getFileName(packet), packet.getSocketAddress(), socket);
+    }
+
+    /**
+     * Sends the range of a file set by the offset and length options. The file is
+     * read, translated to netascii and deflated as agreed straight into each DATA
+     * packet once the block before it is acknowledged. Only a whole file in the
+     * compression cache's forms that is small enough to cache is read into blocks
+     * by readFile first.
+     * 
+     * @param fileName
+     *            - file to be sent
+     * @param recipientAddress
+     *            - address data is being sent too
+     * @param socket
+     *            - The socket the data will be sent over
+     */
+    protected void sendFile(String fileName, SocketAddress recipientAddress, DatagramTransport socket)
+	    throws IOException {
+	if (!cached(fileName)) {
+	    try (FileBlocks blocks = new FileBlocks(fileName)) {
+		sendBlocks(blocks, 4 + blockSize, recipientAddress, socket);
+	    }
+	    return;
+	}
+	ArrayList<byte[]> data = readFile(fileName);
+	metrics.buffered(bufferedSize(data));
+	try {
+	    sendFile(data, recipientAddress, socket);
+	} finally {
+	    metrics.buffered(-bufferedSize(data));
+	}
     }
 
     /**
@@ -73,21 +131,91 @@ public abstract class TFTPConnection {
      *            - The socket the data will be sent over
      * @throws IllegalArgumentException
      */
-    protected void sendFile(ArrayList<byte[]> data, SocketAddress recipientAddress, DatagramSocket socket)
+    protected void sendFile(ArrayList<byte[]> data, SocketAddress recipientAddress, DatagramTransport socket)
+	    throws IllegalArgumentException {
+	long size = bufferedSize(data);
+	Blocks blocks = new Blocks() {
+	    private int next; // index of the next block to write
+	    private long sent; // bytes of the blocks written
+
+	    @Override
+	    public int next(byte[] packet) {
+		if (next == data.size())
+		    return -1;
+		byte[] block = data.get(next++);
+		System.arraycopy(block, 0, packet, 4, block.length);
+		sent += block.length;
+		return block.length;
+	    }
+
+	    @Override
+	    public long fileBytes() { // the progress of a translated or deflated file is in the file's own bytes
+		return fileBytes < 0 || size == 0 ? sent : sent * fileBytes / size;
+	    }
+	};
+	// the first block is the largest
+	sendBlocks(blocks, 4 + (data.isEmpty() ? 0 : data.get(0).length), recipientAddress, socket);
+    }
+
+    /**
+     * Sends blocks up to the last, writing each into the DATA packet once the one
+     * before it is acknowledged
+     * 
+     * @param blocks
+     *            - the blocks of the file
+     * @param largest
+     *            - length of the largest DATA packet
+     * @param recipientAddress
+     *            - address data is being sent too
+     * @param socket
+     *            - The socket the data will be sent over
+     * @throws IllegalArgumentException
+     */
+    private void sendBlocks(Blocks blocks, int largest, SocketAddress recipientAddress, DatagramTransport socket)
 	    throws IllegalArgumentException {
 	DatagramPacket ackPacket;
-	for (int i = 1; i <= data.size(); i++) {
-	    byte sendData[] = data.get(i - 1);
+	InetAddress peer = peerOf(recipientAddress);
+	long start = requestTime != 0 ? requestTime : System.nanoTime();
+	long sentAt;
+	// one packet for every block and one for every ack
+	byte[] dataBuffer = new byte[largest];
+	DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length, recipientAddress);
+	DatagramPacket ackBuffer = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+	failure = null;
+	for (int i = 1;; i++) {
+	    int transmitLimit = transmitLimit(); // re-read each block so reloads apply
+	    if (cancelled()) {
+		cancel(recipientAddress, socket);
+		return;
+	    }
+	    int length;
+	    try {
+		length = blocks.next(dataBuffer);
+	    } catch (IOException e) { // the peer is told the file ends early
+		String message = "Reading the file failed: " + e.getMessage();
+		send(TFTPPacket.createError(TransferException.NOT_DEFINED, message.getBytes()), socket,
+			recipientAddress);
+		failure = new TransferException(TransferException.NOT_DEFINED, message);
+		return;
+	    }
+	    if (length < 0)
+		break;
+	    dataPacket.setLength(TFTPPacket.writeData(dataBuffer, i, EMPTY_BLOCK) + length); // the header before it
 	    /**
 	     * if the packet is sent but not received which is indicated by a time out the
 	     * packet is transmitted again the thread waits again for the ack
 	     */
-	    for (int j = 0; j < TRANSMIT_LIMIT; j++) {
+	    for (int j = 0; j < transmitLimit; j++) {
 		try {
-		    this.send(TFTPPacket.createData(i, sendData), socket, recipientAddress);
+		    sentAt = System.nanoTime();
+		    this.send(dataPacket, socket);
 
 		    do {
-			ackPacket = receive(socket);
+			ackPacket = receive(socket, ackBuffer);
+			if (ackPacket == null) {
+			    closed();
+			    return;
+			}
 			if (isLast(ackPacket)) {
 			    send(lastSentPkt, socket);
 			    continue;
@@ -96,25 +224,78 @@ public abstract class TFTPConnection {
 
 		    if (TFTPPacket.getType(ackPacket) == TFTPPacket.OP_ERROR) {
 			System.err.println("\nError Occured\n" + TFTPPacket.toString(ackPacket));
+			failure = new TransferException(TFTPPacket.getError(ackPacket),
+				TFTPPacket.getErrorMsg(ackPacket));
 			return;
 		    }
 
+		    if (j == 0) // retransmitted blocks have ambiguous round trip times
+			recordBlockRtt(peer, sentAt);
+		    if (i == 1)
+			recordFirstByte(peer, start);
+		    transferred(blocks.fileBytes());
 		    break; // if packet was sent and the apropriate ack was received break out of
 			   // retransmit loop
 		} catch (IllegalArgumentException e) {
+		    failure = new TransferException(TransferException.ILLEGAL_OPERATION, e.getMessage());
 		    return;
 		} catch (SocketTimeoutException e) { // default timeout is 2 seconds
+		    timedOut(recipientAddress, i, j + 1, j >= transmitLimit - 1);
 		    if (verbose)
 			println("Time Out");
-		    if (j >= TRANSMIT_LIMIT - 1) {
+		    if (j >= transmitLimit - 1) {
 			print("Connection timed out \nStopping transfer");
+			failure = new TransferException(TransferException.TIMED_OUT, "No ACK for block " + i);
 			return;
 		    } else {
+			retransmitting(recipientAddress, i, j + 2);
 			println("Retransmiting");
 		    }
 		}
 	    }
 	}
+	recordDuration(peer, start);
+    }
+
+    /**
+     * Sends a packet and waits for the packet that answers it, sending it again
+     * each time the wait times out. Used for requests and option acknowledgements,
+     * which come before the first block.
+     * 
+     * @param packet
+     *            - the packet to send, including its destination
+     * @param socket
+     *            - socket used to send and receive
+     * @param from
+     *            - where the answer must come from, null to accept any sender
+     * @param answers
+     *            - whether a packet answers the one sent, ERROR packets always do
+     * @return the answer, null after the last retransmission went unanswered or
+     *         once the socket is closed to shut down
+     * @throws IllegalArgumentException
+     *             - when an invalid packet is received
+     */
+    protected DatagramPacket exchange(DatagramPacket packet, DatagramTransport socket, SocketAddress from,
+	    Predicate<DatagramPacket> answers) throws IllegalArgumentException {
+	int transmitLimit = transmitLimit();
+	for (int i = 0; i < transmitLimit; i++) {
+	    send(packet, socket);
+	    try {
+		while (true) {
+		    DatagramPacket answer = receive(socket);
+		    if (answer == null)
+			return null;
+		    if ((from == null || isFrom(answer, socket, from))
+			    && (TFTPPacket.getType(answer) == TFTPPacket.OP_ERROR || answers.test(answer)))
+			return answer;
+		}
+	    } catch (SocketTimeoutException e) {
+		timedOut(packet.getSocketAddress(), 0, i + 1, i >= transmitLimit - 1);
+		if (i < transmitLimit - 1)
+		    retransmitting(packet.getSocketAddress(), 0, i + 2);
+	    }
+	}
+	return null;
     }
 
     /**
@@ -129,7 +310,7 @@ public abstract class TFTPConnection {
      * 
      * @author bloo
      */
-    protected void send(byte[] msg, DatagramSocket socket, SocketAddress returnAddress) {
+    protected void send(byte[] msg, DatagramTransport socket, SocketAddress returnAddress) {
 	send(new DatagramPacket(msg, msg.length, returnAddress), socket);
     }
 
@@ -147,7 +328,7 @@ public abstract class TFTPConnection {
      * 
      * @author bloo
      */
-    protected void send(byte[] msg, DatagramSocket socket, InetAddress address, int port) {
+    protected void send(byte[] msg, DatagramTransport socket, InetAddress address, int port) {
 	DatagramPacket sendPacket = new DatagramPacket(msg, msg.length, address, port);
 	send(sendPacket, socket);
     }
@@ -162,14 +343,26 @@ public abstract class TFTPConnection {
      * 
      * @author bloo
      */
-    protected void send(DatagramPacket sendPacket, DatagramSocket socket) {
+    protected void send(DatagramPacket sendPacket, DatagramTransport socket) {
 	try {
 	    if (verbose) {
 		println("Sending: ");
 		println(TFTPPacket.toString(sendPacket));
 	    }
 
+	    TFTPEvents.PacketSent event = new TFTPEvents.PacketSent();
+	    event.begin();
 	    socket.send(sendPacket);
+	    event.end();
+	    metrics.packetSent(sendPacket);
+	    record(PacketTimeline.SEND, sendPacket);
+	    if (event.shouldCommit()) {
+		event.peer = String.valueOf(sendPacket.getSocketAddress());
+		event.opcode = TFTPPacket.getType(sendPacket);
+		event.block = TFTPPacket.getBlockNum(sendPacket);
+		event.length = sendPacket.getLength();
+		event.commit();
+	    }
 	    if (TFTPPacket.getType(sendPacket) != TFTPPacket.OP_ERROR)
 		lastSentPkt = sendPacket;
 	} catch (IOException e) {
@@ -189,8 +382,12 @@ public abstract class TFTPConnection {
      * @param file
      *            - the file path where the file will be saced
      */
-    protected void receiveFile(DatagramSocket socket, String file) throws IOException {
-	receiveFile(receive(socket), socket, file); // Calls the receiveFile below
+    protected void receiveFile(DatagramTransport socket, String file) throws IOException {
+	DatagramPacket first = receive(socket);
+	if (first == null)
+	    closed();
+	else
+	    receiveFile(first, socket, file); // Calls the receiveFile below
     }
 
     /**
@@ -204,36 +401,93 @@ public abstract class TFTPConnection {
      * @param file
      *            - where the received file will be stored
      */
-    protected void receiveFile(DatagramPacket packet, DatagramSocket socket, String file) throws IOException {
+    protected void receiveFile(DatagramPacket packet, DatagramTransport socket, String file) throws IOException {
 	ArrayList<byte[]> data = new ArrayList<byte[]>();
+	inflater = deflate ? new Inflater() : null;
+	decoder = netascii ? NetasciiCodec.decoder() : null;
+	try {
+	    receiveFile(packet, socket, file, data);
+	} catch (TransferException e) { // the blocks can't be used, the sender is told why
+	    send(TFTPPacket.createError(e.getErrorCode(), e.getMessage().getBytes()), socket,
+		    packet.getSocketAddress());
+	    failure = e;
+	} finally {
+	    metrics.buffered(-bufferedSize(data));
+	    if (inflater != null)
+		inflater.end();
+	}
+    }
+
+    /**
+     * receives the blocks of a file into data and saves them once the last block
+     * arrives
+     * 
+     * @param packet
+     *            - the initial acknoledge indicating the start of data transfer
+     * @param socket
+     *            - the socket used to communicate
+     * @param file
+     *            - where the received file will be stored
+     * @param data
+     *            - holds the received blocks
+     */
+    private void receiveFile(DatagramPacket packet, DatagramTransport socket, String file, ArrayList<byte[]> data)
+	    throws IOException {
 	SocketAddress returnAddress = packet.getSocketAddress();
 	DatagramPacket receivePacket = null;
+	InetAddress peer = peerOf(returnAddress);
+	long start = requestTime != 0 ? requestTime : System.nanoTime();
+	long sentAt;
+	// one packet for every ack and one for every block
+	byte[] ack = new byte[4];
+	DatagramPacket ackPacket = new DatagramPacket(ack, ack.length, returnAddress);
+	DatagramPacket dataBuffer = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+	long received = 0;
+	failure = null;
 
 	if (TFTPPacket.getType(packet) == TFTPPacket.OP_DATA) { // if the initial packet is a data packet
 	    if (TFTPPacket.getBlockNum(packet) == 1) {
-		data.add(TFTPPacket.getByteData(packet));
-
-		if (TFTPPacket.getDataLength(packet) != MAX_DATA_SIZE) {
-		    send(TFTPPacket.createAck(data.size()), socket, returnAddress);
-		    saveFile(data, file);
+		received += keep(data, packet);
+		recordFirstByte(peer, start);
+		transferred(received);
+
+		if (TFTPPacket.getDataLength(packet) != blockSize) {
+		    save(data, file);
+		    TFTPPacket.writeAck(ack, data.size());
+		    send(ackPacket, socket);
+		    recordDuration(peer, start);
 		    return;
 		}
 	    } else {
+		failure = new TransferException(TransferException.ILLEGAL_OPERATION,
+			"Expected block 1, received " + TFTPPacket.getBlockNum(packet));
 		return;
 	    }
 
 	} else if (TFTPPacket.getType(packet) == TFTPPacket.OP_ERROR) {
 	    System.err.println("\\nError Occured\\n" + TFTPPacket.getErrorMsg(packet));
+	    failure = new TransferException(TFTPPacket.getError(packet), TFTPPacket.getErrorMsg(packet));
 	    return;
 	}
 
 	do {
-	    for (int i = 0; i < TRANSMIT_LIMIT; i++) {
+	    int transmitLimit = transmitLimit(); // re-read each block so reloads apply
+	    if (cancelled()) {
+		cancel(returnAddress, socket);
+		return;
+	    }
+	    for (int i = 0; i < transmitLimit; i++) {
 		try {
-		    send(TFTPPacket.createAck(data.size()), socket, returnAddress);
+		    sentAt = System.nanoTime();
+		    TFTPPacket.writeAck(ack, data.size());
+		    send(ackPacket, socket);
 
 		    do {
-			receivePacket = receive(socket);
+			receivePacket = receive(socket, dataBuffer);
+			if (receivePacket == null) {
+			    closed();
+			    return;
+			}
 			if (isLast(receivePacket)) {
 			    send(lastSentPkt, socket);
 			    continue;
@@ -241,34 +495,173 @@ public abstract class TFTPConnection {
 		    } while (!isFrom(receivePacket, socket, returnAddress) || !isNext(receivePacket));
 
 		    if (TFTPPacket.getType(receivePacket) == TFTPPacket.OP_DATA) {
-			data.add(TFTPPacket.getByteData(receivePacket));
+			received += keep(data, receivePacket);
+			if (i == 0) // retransmitted acks have ambiguous round trip times
+			    recordBlockRtt(peer, sentAt);
+			if (data.size() == 1)
+			    recordFirstByte(peer, start);
+			transferred(received);
 			break;
 		    } else if (TFTPPacket.getType(receivePacket) == TFTPPacket.OP_ERROR) {
 			System.err.println("ERROR: " + TFTPPacket.getErrorMsg(receivePacket));
+			failure = new TransferException(TFTPPacket.getError(receivePacket),
+				TFTPPacket.getErrorMsg(receivePacket));
 			return;
 		    } else {
+			failure = new TransferException(TransferException.ILLEGAL_OPERATION,
+				"Expected DATA, received " + TFTPPacket.getType(receivePacket));
 			return;
 		    }
 		} catch (IllegalArgumentException e) {
+		    failure = new TransferException(TransferException.ILLEGAL_OPERATION, e.getMessage());
 		    return;
 		} catch (SocketTimeoutException e) {
+		    timedOut(returnAddress, data.size() + 1, i + 1, i >= transmitLimit - 1);
 		    println("Time Out");
-		    if (i >= TRANSMIT_LIMIT - 1) {
+		    if (i >= transmitLimit - 1) {
 			print("Connection timed out \n Stopping transfer");
+			failure = new TransferException(TransferException.TIMED_OUT, "No DATA " + (data.size() + 1));
 			return;
 		    } else {
+			retransmitting(returnAddress, data.size(), i + 2);
 			println("Retransmiting");
 		    }
 		}
 	    }
 	} while (receivePacket == null || (TFTPPacket.getType(receivePacket) != TFTPPacket.OP_DATA
-		^ TFTPPacket.getDataLength(receivePacket) == MAX_DATA_SIZE));
+		^ TFTPPacket.getDataLength(receivePacket) == blockSize));
 
-	send(TFTPPacket.createAck(data.size()), socket, returnAddress);
 	// continue if the last received packet hold data and are full
 	// if the last received packet isn't data
 	// or if nothing was received last
-	saveFile(data, file);
+	save(data, file); // before the last ACK, so the sender knows the file is there once it is acknowledged
+	TFTPPacket.writeAck(ack, data.size());
+	send(ackPacket, socket);
+	recordDuration(peer, start);
+    }
+
+    /**
+     * Keeps a received block, in data or written by writeBlock with an empty
+     * block in data so its size still counts the blocks. A deflated block is
+     * kept inflated and a netascii block as the local file has it.
+     * 
+     * @param packet
+     *            - the DATA packet, its buffer is reused for the next
+     * @return bytes of the file in the block
+     * @throws TransferException
+     *             - if a deflated block is corrupt
+     */
+    private int keep(ArrayList<byte[]> data, DatagramPacket packet) throws IOException {
+	byte[] bytes;
+	int offset, length;
+	boolean reused = true; // bytes is a buffer used again for the next block
+	if (decoder != null) { // translated into a buffer reused from block to block
+	    ByteBuffer translated = decode(inflater != null ? ByteBuffer.wrap(inflate(packet))
+		    : ByteBuffer.wrap(packet.getData(), 4, TFTPPacket.getDataLength(packet)));
+	    bytes = translated.array();
+	    offset = translated.arrayOffset() + translated.position();
+	    length = translated.remaining();
+	} else if (inflater != null) {
+	    bytes = inflate(packet);
+	    offset = 0;
+	    length = bytes.length;
+	    reused = false;
+	} else {
+	    bytes = packet.getData();
+	    offset = 4;
+	    length = TFTPPacket.getDataLength(packet);
+	}
+	if (writeBlock(bytes, offset, length)) { // written straight from the packet or translation
+	    data.add(EMPTY_BLOCK);
+	} else {
+	    data.add(reused ? Arrays.copyOfRange(bytes, offset, offset + length) : bytes);
+	    metrics.buffered(length);
+	}
+	return length;
+    }
+
+    /**
+     * Writes a received block of the file where it belongs as soon as it arrives,
+     * instead of holding it until the last block. Blocks go to the partial file
+     * when there is one, a subclass can write them elsewhere.
+     * 
+     * @param block
+     *            - holds the block's bytes of the file, reused once this returns
+     * @param offset
+     *            - where they start in block
+     * @param length
+     *            - how many there are
+     * @return whether the block was written, false to keep it in memory
+     */
+    protected boolean writeBlock(byte[] block, int offset, int length) throws IOException {
+	if (partial == null)
+	    return false;
+	partial.write(ByteBuffer.wrap(block, offset, length));
+	return true;
+    }
+
+    /**
+     * Inflates the next block of a deflated receive
+     * 
+     * @return the bytes of the file the block held, may be none
+     */
+    private byte[] inflate(DatagramPacket packet) throws TransferException {
+	ByteArrayOutputStream inflated = new ByteArrayOutputStream(TFTPPacket.getDataLength(packet) * 4);
+	byte[] buffer = new byte[8192];
+	inflater.setInput(packet.getData(), 4, TFTPPacket.getDataLength(packet));
+	try {
+	    while (!inflater.finished() && !inflater.needsInput()) {
+		if (inflater.needsDictionary())
+		    throw new DataFormatException("preset dictionary");
+		inflated.write(buffer, 0, inflater.inflate(buffer));
+	    }
+	} catch (DataFormatException e) {
+	    throw new TransferException(TransferException.ILLEGAL_OPERATION,
+		    "Corrupt deflated block: " + e.getMessage());
+	}
+	return inflated.toByteArray();
+    }
+
+    /**
+     * Translates the next block of a netascii receive, a CR ending the block is
+     * held until the next
+     * 
+     * @return the bytes of the file the block held, in a buffer reused for the
+     *         next block
+     */
+    private ByteBuffer decode(ByteBuffer block) {
+	int most = decoder.maxTranslated(block.remaining());
+	if (translated == null || translated.capacity() < most)
+	    translated = ByteBuffer.allocate(Math.max(most, MAX_PACKET_SIZE));
+	translated.clear();
+	decoder.translate(block, translated);
+	translated.flip();
+	return translated;
+    }
+
+    /**
+     * Saves the received file, or renames the partial file it was written to
+     * 
+     * @throws TransferException
+     *             - if a deflated file ended early or had more after its end
+     */
+    private void save(ArrayList<byte[]> data, String file) throws IOException {
+	if (inflater != null && (!inflater.finished() || inflater.getRemaining() > 0))
+	    throw new TransferException(TransferException.ILLEGAL_OPERATION, "Deflated file ends with its last block");
+	if (decoder != null && decoder.isHolding()) { // the file ends with a bare CR
+	    ByteBuffer last = ByteBuffer.allocate(1);
+	    decoder.finish(last);
+	    if (!writeBlock(last.array(), 0, 1)) {
+		byte[] block = Arrays.copyOf(data.get(data.size() - 1), data.get(data.size() - 1).length + 1);
+		block[block.length - 1] = last.get(0);
+		data.set(data.size() - 1, block);
+		metrics.buffered(1);
+	    }
+	}
+	if (partial != null)
+	    partial.complete();
+	else
+	    saveFile(data, file);
     }
 
     /**
@@ -286,7 +679,7 @@ public abstract class TFTPConnection {
      * @Deprecated
      * @author bloo
      */
-    protected DatagramPacket receiveNext(DatagramSocket socket) throws SocketTimeoutException {
+    protected DatagramPacket receiveNext(DatagramTransport socket) throws SocketTimeoutException {
 	return receiveNext(socket, MAX_PACKET_SIZE);
     }
 
@@ -299,15 +692,17 @@ public abstract class TFTPConnection {
      * @param length
      *            - the length of the expected pocket
      * @return the next packet received in order, will return null if the max number
-     *         of time outs is reached
+     *         of time outs is reached or the socket is closed
      * @throws SocketTimeoutException
      * @Deprecated
      * @author bloo
      */
-    protected DatagramPacket receiveNext(DatagramSocket socket, int length) throws SocketTimeoutException {
+    protected DatagramPacket receiveNext(DatagramTransport socket, int length) throws SocketTimeoutException {
 	DatagramPacket receivedPacket;
 	while (true) {
 	    receivedPacket = receive(socket, MAX_PACKET_SIZE);
+	    if (receivedPacket == null)
+		return null;
 	    /*
 	     * println((lastSentPkt == null) + ", " + (getType(receivedPacket) == OP_ACK &&
 	     * getType(lastSentPkt) == OP_DATA && getBlockNum(receivedPacket) ==
@@ -342,7 +737,7 @@ public abstract class TFTPConnection {
      * @author bloo
      * @throws SocketTimeoutException
      */
-    protected DatagramPacket receive(DatagramSocket socket) throws SocketTimeoutException, IllegalArgumentException {
+    protected DatagramPacket receive(DatagramTransport socket) throws SocketTimeoutException, IllegalArgumentException {
 	return receive(socket, MAX_PACKET_SIZE);
     }
 
@@ -358,14 +753,41 @@ public abstract class TFTPConnection {
      * @author bloo
      * @throws SocketTimeoutException
      */
-    protected DatagramPacket receive(DatagramSocket socket, int length)
+    protected DatagramPacket receive(DatagramTransport socket, int length)
 	    throws SocketTimeoutException, IllegalArgumentException {
-	DatagramPacket receivedPacket;
+	return receive(socket, new DatagramPacket(new byte[length], length));
+    }
 
-	receivedPacket = new DatagramPacket(new byte[length], length);
+    /**
+     * Receives into a packet that is reused for every block of a transfer, so the
+     * packet from the previous call is overwritten
+     * 
+     * @param socket
+     *            - socket to receive from
+     * @param receivedPacket
+     *            - where the packet is received, its whole buffer is used
+     * @return receivedPacket unless there is an exception trying to receive, null
+     *         if the socket was closed to shut down
+     * @throws SocketTimeoutException
+     */
+    protected DatagramPacket receive(DatagramTransport socket, DatagramPacket receivedPacket)
+	    throws SocketTimeoutException, IllegalArgumentException {
+	receivedPacket.setLength(receivedPacket.getData().length);
 
 	try {
+	    TFTPEvents.PacketReceived event = new TFTPEvents.PacketReceived();
+	    event.begin();
 	    socket.receive(receivedPacket);
+	    event.end();
+	    metrics.packetReceived(receivedPacket);
+	    record(PacketTimeline.RECEIVE, receivedPacket);
+	    if (event.shouldCommit()) {
+		event.peer = String.valueOf(receivedPacket.getSocketAddress());
+		event.opcode = TFTPPacket.getType(receivedPacket);
+		event.block = receivedPacket.getLength() >= 4 ? TFTPPacket.getBlockNum(receivedPacket) : -1;
+		event.length = receivedPacket.getLength();
+		event.commit();
+	    }
 
 	    validatePacket(receivedPacket, socket);
 
@@ -379,6 +801,8 @@ public abstract class TFTPConnection {
 	} catch (IOException e) {
 	    if (e instanceof SocketTimeoutException)
 		throw (SocketTimeoutException) e;
+	    if (socket.isClosed())
+		return null;
 	    e.printStackTrace();
 	    System.exit(1);
 	}
@@ -386,9 +810,15 @@ public abstract class TFTPConnection {
 
     }
 
-    protected boolean isFrom(DatagramPacket packet, DatagramSocket socket, SocketAddress expectedSender) {
-	if (packet.getSocketAddress().equals(expectedSender))
+    protected boolean isFrom(DatagramPacket packet, DatagramTransport socket, SocketAddress expectedSender) {
+	if (expectedSender instanceof InetSocketAddress && !((InetSocketAddress) expectedSender).isUnresolved()) {
+	    // compared field by field as getSocketAddress() creates an address for every packet
+	    InetSocketAddress expected = (InetSocketAddress) expectedSender;
+	    if (packet.getPort() == expected.getPort() && expected.getAddress().equals(packet.getAddress()))
+		return true;
+	} else if (packet.getSocketAddress().equals(expectedSender)) {
 	    return true;
+	}
 	send(TFTPPacket.createError(5, "Packet received from an unrecognised TID".getBytes()), socket,
 		packet.getSocketAddress());
 
@@ -399,7 +829,7 @@ public abstract class TFTPConnection {
 	if (lastSentPkt == null
 		|| (TFTPPacket.getType(packet) == TFTPPacket.OP_ACK
 			&& TFTPPacket.getType(lastSentPkt) == TFTPPacket.OP_DATA
-			&& TFTPPacket.getBlockNum(packet) == TFTPPacket.getBlockNum(lastSentPkt) - 1)
+			&& TFTPPacket.getBlockNum(packet) == nextBlock(TFTPPacket.getBlockNum(lastSentPkt), -1))
 		|| (TFTPPacket.getType(packet) == TFTPPacket.OP_DATA
 			&& TFTPPacket.getType(lastSentPkt) == TFTPPacket.OP_ACK
 			&& TFTPPacket.getBlockNum(packet) == TFTPPacket.getBlockNum(lastSentPkt))
@@ -415,12 +845,26 @@ public abstract class TFTPConnection {
 			&& TFTPPacket.getBlockNum(packet) == TFTPPacket.getBlockNum(lastSentPkt))
 		|| (TFTPPacket.getType(packet) == TFTPPacket.OP_DATA
 			&& TFTPPacket.getType(lastSentPkt) == TFTPPacket.OP_ACK
-			&& TFTPPacket.getBlockNum(packet) == TFTPPacket.getBlockNum(lastSentPkt) + 1)
+			&& TFTPPacket.getBlockNum(packet) == nextBlock(TFTPPacket.getBlockNum(lastSentPkt), 1))
 		|| TFTPPacket.getType(packet) == TFTPPacket.OP_ERROR)
 	    return true;
 	return false;
     }
 
+    /**
+     * Steps a block number, rolling over the 16 bit block field so files over 32MB
+     * can be transferred
+     * 
+     * @param block
+     *            - the block number
+     * @param step
+     *            - how far to move
+     * @return the block number step blocks away
+     */
+    private static int nextBlock(int block, int step) {
+	return (block + step) & 0xFFFF;
+    }
+
     /**
      * Authenticates packet
      * 
@@ -428,10 +872,10 @@ public abstract class TFTPConnection {
      * @throws IOException
      * @author Benjamin, BLoo
      */
-    protected boolean validatePacket(DatagramPacket packet, DatagramSocket socket) throws IllegalArgumentException {
+    protected boolean validatePacket(DatagramPacket packet, DatagramTransport socket) throws IllegalArgumentException {
 	boolean valid = false;
 	byte[] data = packet.getData();
-	byte[] hold;
+	int hold; // length of a field, counted in place so validating doesn't allocate
 	Set<Byte> validPackets = TFTPPacket.PacketTypes.keySet();
 	if (data[0] == ZERO_BYTE && validPackets.contains(data[1])) // Checks packet type formatting
 	{
@@ -439,24 +883,20 @@ public abstract class TFTPConnection {
 	    case (byte) 1:
 	    case (byte) 2: /* RRQ & WRQ Packet */
 	    {
-		hold = TFTPPacket.readToStop(2, packet.getData(), packet.getLength());
-
-		if (hold != null) {
-		    int i = hold.length + 3;
-		    i += TFTPPacket.readToStop(hold.length + 3, packet.getData(), packet.getLength()).length;
-		    System.out.println(i + ", " + (packet.getLength() - 1));
-		    valid = i == packet.getLength() - 1;
-		    break;
-		}
+		hold = TFTPPacket.lengthToStop(2, data, packet.getLength());
+
 		/*
 		 * Find offset of mode field by reading the first field and adding that fields
 		 * length, accounting for the terminating zero and initial offset, to the offset
 		 */
+		int i = hold + 3;
+		i += TFTPPacket.lengthToStop(hold + 3, data, packet.getLength());
+		valid = optionFields(data, i, packet.getLength()) >= 0; // the mode may be followed by options
+		break;
 	    }
 	    case (byte) 3: /* DATA Packet */
 	    {
-		hold = TFTPPacket.readToStop(4, data, packet.getLength());
-		valid = (hold != null && hold.length == packet.getLength() - 4);
+		valid = packet.getLength() >= 4; // the data may hold any bytes, zeros included
 		break;
 	    }
 	    case (byte) 4: /* ACK Packet */
@@ -466,14 +906,27 @@ public abstract class TFTPConnection {
 	    }
 	    case (byte) 5: /* ERROR Packet */
 	    {
-		hold = TFTPPacket.readToStop(4, packet.getData(), packet.getLength());
-		valid = (hold != null && hold.length == packet.getLength() - 5);
+		hold = TFTPPacket.lengthToStop(4, data, packet.getLength());
+		valid = hold == packet.getLength() - 5;
+		break;
+	    }
+	    case (byte) 6: /* OACK Packet */
+	    {
+		valid = optionFields(data, 1, packet.getLength()) > 0;
 		break;
 	    }
 	    }
 	}
 
 	if (!valid) {
+	    metrics.invalidPacket();
+	    TFTPEvents.InvalidPacket event = new TFTPEvents.InvalidPacket();
+	    if (event.isEnabled()) {
+		event.peer = String.valueOf(packet.getSocketAddress());
+		event.opcode = packet.getLength() >= 2 ? data[1] : -1;
+		event.length = packet.getLength();
+		event.commit();
+	    }
 	    println("Received Invlaid Packet");
 	    if (socket != null)
 		send(TFTPPacket.createError(4, "Illegal TFTP operation.".getBytes()), socket,
@@ -483,6 +936,30 @@ public abstract class TFTPConnection {
 	return valid;
     }
 
+    /**
+     * Counts the option names and values that follow a field, RFC 2347
+     * 
+     * @param data
+     *            - the packet
+     * @param end
+     *            - index of the byte ending the field before the options
+     * @param length
+     *            - bytes in the packet
+     * @return number of names and values, -1 if they aren't pairs of non-empty
+     *         fields that end with the packet
+     */
+    private static int optionFields(byte[] data, int end, int length) {
+	int fields = 0;
+	while (end < length - 1) {
+	    int field = TFTPPacket.lengthToStop(end + 1, data, length);
+	    if (field == 0)
+		return -1;
+	    end += field + 1;
+	    fields++;
+	}
+	return end == length - 1 && fields % 2 == 0 ? fields : -1;
+    }
+
     // Class Variable definition end
 
     /**
@@ -491,21 +968,16 @@ public abstract class TFTPConnection {
      * @param port
      *            - the port requested for the socket
      * @param timeout
-     *            TODO
-     * @return the socket requested
+     *            - receive timeout in ms, 0 or less to wait forever
+     * @return the socket requested, opened by this connection's transport factory
      */
-    protected DatagramSocket waitForSocket(int port, int timeOut) {
-	DatagramSocket socket;
+    protected DatagramTransport waitForSocket(int port, int timeOut) {
 	while (true) {
 	    try {
 		if (port > 0)
-		    socket = new DatagramSocket(port, InetAddress.getLocalHost());
+		    return transports.open(new InetSocketAddress(InetAddress.getLocalHost(), port), timeOut);
 		else
-		    socket = new DatagramSocket();
-
-		if (timeOut > 0)
-		    socket.setSoTimeout(timeOut); // 2 seconds
-		return socket;
+		    return transports.open(null, timeOut);
 
 	    } catch (SocketException e) {
 		e.printStackTrace();
@@ -521,7 +993,10 @@ public abstract class TFTPConnection {
     }
 
     /**
-     * Split file into 512 byte chunks
+     * Split file into chunks of blockSize bytes, 512 unless the blksize option
+     * was negotiated. Only the range set by the offset and length options is
+     * read. The file is translated to netascii and deflated as agreed, taken
+     * from the compression cache when it can be cached and is sent whole.
      *
      * @param fileName
      *            - file to be split
@@ -531,14 +1006,26 @@ public abstract class TFTPConnection {
      */
     protected ArrayList<byte[]> readFile(String fileName) throws IOException {
 	ArrayList<byte[]> parsedData = new ArrayList<byte[]>();
-	byte[] buffer = new byte[512];
+	byte[] buffer = new byte[blockSize];
 	byte[] byteData;
 
-	byteData = Files.readAllBytes(Paths.get(fileName));
+	fileBytes = -1;
+	if (!cached(fileName)) { // read block by block, so no range is too large for an array
+	    byte[] packet = new byte[4 + blockSize];
+	    try (FileBlocks blocks = new FileBlocks(fileName)) {
+		for (int length; (length = blocks.next(packet)) >= 0;)
+		    parsedData.add(Arrays.copyOfRange(packet, 4, 4 + length));
+		if (netascii || deflate)
+		    fileBytes = blocks.fileBytes();
+	    }
+	    return parsedData;
+	}
+	fileBytes = Files.size(Paths.get(fileName));
+	byteData = compressionCache.encoded(Paths.get(fileName), netascii, deflate);
 
-	for (int i = 0; i < byteData.length; i += 512) {
-	    if (i + 512 <= byteData.length) {
-		buffer = Arrays.copyOfRange(byteData, i, i + 512);
+	for (int i = 0; i < byteData.length; i += blockSize) {
+	    if (i + blockSize <= byteData.length) {
+		buffer = Arrays.copyOfRange(byteData, i, i + blockSize);
 	    } else {
 		buffer = Arrays.copyOfRange(byteData, i, byteData.length);
 	    }
@@ -546,12 +1033,231 @@ public abstract class TFTPConnection {
 	    parsedData.add(buffer);
 	}
 
-	println(parsedData.get(parsedData.size() - 1).length + "");
-	if (parsedData.get(parsedData.size() - 1).length == 512)
+	// an empty file or one that ends on a full block still needs a short last block
+	if (parsedData.isEmpty() || parsedData.get(parsedData.size() - 1).length == blockSize)
 	    parsedData.add(new byte[0]);
 	return parsedData;
     }
 
+    /**
+     * @return whether a file is sent from the compression cache, when it is sent
+     *         whole in one of the cache's forms and is small enough to cache
+     */
+    private boolean cached(String fileName) throws IOException {
+	return (deflate || netascii) && rangeOffset == 0 && rangeLength < 0 && compressionCache != null
+		&& compressionCache.caches(Files.size(Paths.get(fileName)));
+    }
+
+    /**
+     * Counts the bytes held by a list of data blocks
+     * 
+     * @param data
+     *            - the data blocks
+     * @return total number of bytes
+     */
+    private static long bufferedSize(ArrayList<byte[]> data) {
+	long size = 0;
+	for (byte[] block : data)
+	    size += block.length;
+	return size;
+    }
+
+    /**
+     * @return sends of each packet before a transfer gives up, this connection's
+     *         own limit or transmit.limit
+     */
+    protected int transmitLimit() {
+	return attempts > 0 ? attempts : TFTPConfig.get().getTransmitLimit();
+    }
+
+    /**
+     * Called after each block is acknowledged or received, does nothing unless
+     * overridden
+     * 
+     * @param bytes
+     *            - data bytes transferred so far
+     */
+    protected void transferred(long bytes) {
+    }
+
+    /**
+     * Checked before each block, a transfer stops when this returns true
+     * 
+     * @return false unless overridden
+     */
+    protected boolean cancelled() {
+	return false;
+    }
+
+    /**
+     * Stops a cancelled transfer, telling the peer so it doesn't wait for the
+     * rest of the file
+     */
+    private void cancel(SocketAddress peer, DatagramTransport socket) {
+	send(TFTPPacket.createError(TransferException.NOT_DEFINED, "Transfer cancelled".getBytes()), socket, peer);
+	failure = new TransferException(TransferException.CANCELLED, "Transfer cancelled");
+    }
+
+    /**
+     * Stops a transfer whose socket was closed to shut down, receive returned null
+     */
+    private void closed() {
+	failure = new TransferException(TransferException.CANCELLED, "Socket closed");
+    }
+
+    /**
+     * @return why the last transfer stopped early, null if it finished or none
+     *         has run
+     */
+    public TransferException getFailure() {
+	return failure;
+    }
+
+    /**
+     * Counts a timeout and records it for the flight recorder
+     * 
+     * @param peer
+     *            - address the response was expected from
+     * @param block
+     *            - block that wasn't answered
+     * @param attempt
+     *            - number of times the block had been sent
+     * @param gaveUp
+     *            - whether this was the last attempt
+     */
+    private void timedOut(SocketAddress peer, int block, int attempt, boolean gaveUp) {
+	metrics.timeout();
+	this.gaveUp |= gaveUp;
+	if (timeline != null)
+	    timeline.record(timelineName, PacketTimeline.TIMEOUT, -1, block, 0, peer);
+	TFTPEvents.Timeout event = new TFTPEvents.Timeout();
+	if (event.isEnabled()) {
+	    event.peer = String.valueOf(peer);
+	    event.block = block;
+	    event.attempt = attempt;
+	    event.gaveUp = gaveUp;
+	    event.commit();
+	}
+    }
+
+    /**
+     * Counts a retransmission and records it for the flight recorder
+     * 
+     * @param peer
+     *            - address the block is sent to again
+     * @param block
+     *            - block being sent again
+     * @param attempt
+     *            - the attempt about to be made
+     */
+    private void retransmitting(SocketAddress peer, int block, int attempt) {
+	metrics.retransmission();
+	if (timeline != null)
+	    timeline.record(timelineName, PacketTimeline.RETRANSMIT, -1, block, 0, peer);
+	TFTPEvents.Retransmit event = new TFTPEvents.Retransmit();
+	if (event.isEnabled()) {
+	    event.peer = String.valueOf(peer);
+	    event.block = block;
+	    event.attempt = attempt;
+	    event.commit();
+	}
+    }
+
+    /**
+     * Records a packet in the timeline, when there is one
+     * 
+     * @param kind
+     *            - PacketTimeline.SEND, RECEIVE or DROP
+     */
+    protected void record(byte kind, DatagramPacket packet) {
+	if (timeline != null)
+	    timeline.record(timelineName, kind, packet.getLength() >= 2 ? packet.getData()[packet.getOffset() + 1] : -1,
+		    packet.getLength() >= 4 ? TFTPPacket.getBlockNum(packet) : -1, packet.getLength(),
+		    packet.getSocketAddress());
+    }
+
+    /**
+     * Gets the timeline this connection records its packets to
+     * 
+     * @return the timeline, null when not recording
+     */
+    public PacketTimeline getTimeline() {
+	return timeline;
+    }
+
+    private static InetAddress peerOf(SocketAddress address) {
+	return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+    }
+
+    private void recordBlockRtt(InetAddress peer, long sentAt) {
+	if (latency != null)
+	    latency.recordBlockRtt(peer, System.nanoTime() - sentAt);
+    }
+
+    private void recordFirstByte(InetAddress peer, long start) {
+	if (latency != null)
+	    latency.recordFirstByte(peer, System.nanoTime() - start);
+    }
+
+    private void recordDuration(InetAddress peer, long start) {
+	if (latency != null)
+	    latency.recordDuration(peer, System.nanoTime() - start);
+    }
+
+    /**
+     * Gets the latency histograms of this connection
+     * 
+     * @return the recorder, null if latencies aren't recorded
+     */
+    public LatencyRecorder getLatency() {
+	return latency;
+    }
+
+    /**
+     * Gets the transfers currently running under this connection
+     * 
+     * @return active transfers keyed by id, null if they aren't tracked
+     */
+    public Map<Long, ActiveTransfer> getActiveTransfers() {
+	return activeTransfers;
+    }
+
+    /**
+     * Gets the trace handled requests are recorded to
+     * 
+     * @return the trace, null when not tracing
+     */
+    public RequestTrace getTrace() {
+	return trace;
+    }
+
+    /**
+     * Gets the deflated files kept for compressed transfers
+     * 
+     * @return the cache, null if files are deflated for each transfer
+     */
+    public CompressionCache getCompressionCache() {
+	return compressionCache;
+    }
+
+    /**
+     * Gets the factory that opens this connection's sockets
+     * 
+     * @return UDP unless the connection was given another network
+     */
+    public DatagramTransport.Factory getTransports() {
+	return transports;
+    }
+
+    /**
+     * Gets the live counters of this connection
+     * 
+     * @return the connection's metrics
+     */
+    public TransferMetrics getMetrics() {
+	return metrics;
+    }
+
     /**
      * Saves data blocks to a file
      * 
@@ -563,9 +1269,9 @@ public abstract class TFTPConnection {
      * @throws IOException
      * @author Eric
      */
-    private int saveFile(ArrayList<byte[]> data, String fileName) throws IOException {
-	if (new File(new File(fileName).getParent()).getUsableSpace() < data.size() * 512)
-	    throw new FullFileSystemException("File " + fileName + "cannot fit the file's " + data.size() * 512
+    protected int saveFile(ArrayList<byte[]> data, String fileName) throws IOException {
+	if (new File(new File(fileName).getParent()).getUsableSpace() < (long) data.size() * blockSize)
+	    throw new FullFileSystemException("File " + fileName + "cannot fit the file's " + data.size() * blockSize
 		    + "bytes. File has space " + new File(fileName).getUsableSpace());
 	OutputStream file = new FileOutputStream(fileName);
 
@@ -623,35 +1329,115 @@ public abstract class TFTPConnection {
 
     public abstract void takeInput(String s);
 
-    // #TODO move to test class
-    private void isValidTest() {
-	byte[] file = "test.txt".getBytes();
-	byte[] contents = new byte[512];
-	byte[] rrq, wrq, data, ack, error;
-
-	for (int i = 0; i < contents.length; i++)
-	    contents[i] = (byte) (Math.random() * 24 + 66);
-
-	rrq = TFTPPacket.createRQ((byte) 1, file, MODE_NETASCII);
-	wrq = TFTPPacket.createRQ((byte) 2, file, MODE_NETASCII);
-
-	data = TFTPPacket.createData(5, contents);
-
-	DatagramPacket dp = new DatagramPacket(data, data.length);
-	data = dp.getData();
-
-	ack = TFTPPacket.createAck(5);
-	error = TFTPPacket.createError((byte) 1, MODE_OCTET);
-
-	System.out.println("rrq test: " + validatePacket(new DatagramPacket(rrq, rrq.length), null));
+    /**
+     * The blocks of a file being sent, each written into the DATA packet when it
+     * is sent
+     */
+    private interface Blocks {
+	/**
+	 * Writes the next block into a DATA packet, after its header
+	 * 
+	 * @param packet
+	 *            - buffer of 4 bytes more than the block
+	 * @return the length of the block, -1 after the last
+	 */
+	int next(byte[] packet) throws IOException;
+
+	/**
+	 * @return bytes of the file in the blocks written so far
+	 */
+	long fileBytes();
+    }
 
-	System.out.println("wrq test: " + validatePacket(new DatagramPacket(wrq, wrq.length), null));
+    /**
+     * Reads the range of a file straight into each DATA packet through a small
+     * buffer, translating it to netascii and deflating it as one zlib stream as
+     * agreed. A netascii pair split by the end of a block is held by the encoder
+     * for the next.
+     */
+    private class FileBlocks implements Blocks, Closeable {
+	private final FileChannel channel;
+	private final NetasciiCodec encoder = netascii ? NetasciiCodec.encoder() : null;
+	private final Deflater deflater = deflate ? new Deflater() : null;
+	private final ByteBuffer in = ByteBuffer.allocate(8192);
+	private final ByteBuffer translated; // netascii waiting to be deflated, null unless both
+	private long remaining = rangeLength < 0 ? Long.MAX_VALUE : rangeLength; // bytes of the range not read
+	private long read; // bytes of the range read
+	private boolean done; // the last block was written
+
+	FileBlocks(String fileName) throws IOException {
+	    channel = FileChannel.open(Paths.get(fileName));
+	    in.limit(0);
+	    translated = encoder != null && deflater != null
+		    ? ByteBuffer.allocate(encoder.maxTranslated(in.capacity())).limit(0)
+		    : null;
+	}
 
-	System.out.println("data test: " + validatePacket(new DatagramPacket(data, data.length), null));
+	@Override
+	public int next(byte[] packet) throws IOException {
+	    if (done)
+		return -1;
+	    ByteBuffer block = ByteBuffer.wrap(packet, 4, blockSize);
+	    while (true) {
+		if (!in.hasRemaining() && remaining > 0 && (deflater == null || deflater.needsInput())) {
+		    in.clear();
+		    in.limit((int) Math.min(in.capacity(), remaining));
+		    int count = channel.read(in, rangeOffset + read);
+		    in.flip();
+		    if (count < 0) {
+			remaining = 0;
+		    } else {
+			read += count;
+			remaining -= count;
+		    }
+		}
+		boolean ended; // all of the range is in the block
+		if (deflater != null) {
+		    if (deflater.needsInput()) { // once the last input is used up
+			ByteBuffer input = in;
+			if (translated != null) {
+			    translated.clear();
+			    encoder.translate(in, translated);
+			    translated.flip();
+			    input = translated;
+			}
+			if (input.hasRemaining())
+			    deflater.setInput(input);
+			else if (remaining == 0)
+			    deflater.finish();
+		    }
+		    deflater.deflate(block);
+		    ended = deflater.finished();
+		} else {
+		    if (encoder != null) {
+			encoder.translate(in, block);
+		    } else {
+			int length = Math.min(in.remaining(), block.remaining());
+			block.put(in.array(), in.position(), length);
+			in.position(in.position() + length);
+		    }
+		    ended = !in.hasRemaining() && remaining == 0 && block.hasRemaining();
+		}
+		if (ended) { // ends with a short block, empty if need be
+		    done = block.hasRemaining();
+		    return block.position() - 4;
+		}
+		if (!block.hasRemaining())
+		    return blockSize;
+	    }
+	}
 
-	System.out.println("ack test: " + validatePacket(new DatagramPacket(ack, ack.length), null));
+	@Override
+	public long fileBytes() {
+	    return read - in.remaining();
+	}
 
-	System.out.println("error test: " + validatePacket(new DatagramPacket(error, error.length), null));
+	@Override
+	public void close() throws IOException {
+	    channel.close();
+	    if (deflater != null)
+		deflater.end();
+	}
     }
 
     protected class FullFileSystemException extends IOException {
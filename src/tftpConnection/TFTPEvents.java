@@ -0,0 +1,133 @@
+package tftpConnection;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the packet and transfer lifecycle. Packet
+ * and transfer events carry thresholds so a default recording only keeps the
+ * slow ones, invalid packets, retransmits and timeouts are always recorded.
+ * When no recording is running the events cost a flag check.
+ *
+ * Start a recording with -XX:StartFlightRecording or jcmd &lt;pid&gt; JFR.start,
+ * thresholds can be changed in the recording settings.
+ *
+ * @author BLoo
+ */
+public final class TFTPEvents {
+
+    private static final String CATEGORY = "TFTP";
+
+    private TFTPEvents() {
+    }
+
+    @Name("tftpConnection.PacketSent")
+    @Label("Packet Sent")
+    @Category(CATEGORY)
+    @Description("A datagram handed to the socket")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static class PacketSent extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("Opcode")
+	public int opcode;
+	@Label("Block")
+	public int block;
+	@Label("Length")
+	@DataAmount
+	public int length;
+    }
+
+    @Name("tftpConnection.PacketReceived")
+    @Label("Packet Received")
+    @Category(CATEGORY)
+    @Description("Time spent waiting for and receiving a datagram")
+    @Threshold("200 ms")
+    @StackTrace(false)
+    public static class PacketReceived extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("Opcode")
+	public int opcode;
+	@Label("Block")
+	public int block;
+	@Label("Length")
+	@DataAmount
+	public int length;
+    }
+
+    @Name("tftpConnection.InvalidPacket")
+    @Label("Invalid Packet")
+    @Category(CATEGORY)
+    @Description("A datagram rejected by validatePacket")
+    @StackTrace(false)
+    public static class InvalidPacket extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("Opcode")
+	public int opcode;
+	@Label("Length")
+	@DataAmount
+	public int length;
+    }
+
+    @Name("tftpConnection.Timeout")
+    @Label("Timeout")
+    @Category(CATEGORY)
+    @Description("No response to a block before the socket timeout")
+    @StackTrace(false)
+    public static class Timeout extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("Block")
+	public int block;
+	@Label("Attempt")
+	public int attempt;
+	@Label("Gave Up")
+	public boolean gaveUp;
+    }
+
+    @Name("tftpConnection.Retransmit")
+    @Label("Retransmit")
+    @Category(CATEGORY)
+    @Description("A block sent again after a timeout")
+    @StackTrace(false)
+    public static class Retransmit extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("Block")
+	public int block;
+	@Label("Attempt")
+	public int attempt;
+    }
+
+    @Name("tftpConnection.Transfer")
+    @Label("Transfer")
+    @Category(CATEGORY)
+    @Description("A request handled by the server from start to end")
+    @Threshold("1 s")
+    @StackTrace(false)
+    public static class Transfer extends Event {
+	@Label("Peer")
+	public String peer;
+	@Label("File")
+	public String file;
+	@Label("Request")
+	public String request;
+	@Label("Bytes Sent")
+	@DataAmount
+	public long bytesSent;
+	@Label("Bytes Received")
+	@DataAmount
+	public long bytesReceived;
+	@Label("Retransmissions")
+	public long retransmissions;
+    }
+}
@@ -7,6 +7,8 @@ import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,6 +21,7 @@ public abstract class TFTPPacket {
     public static final byte OP_DATA = 3;
     public static final byte OP_ACK = 4;
     public static final byte OP_ERROR = 5;
+    public static final byte OP_OACK = 6; // option acknowledgement, RFC 2347
 
     protected static final byte ZERO_BYTE = 0;
 
@@ -31,6 +34,7 @@ public abstract class TFTPPacket {
 	PacketTypes.put((byte) OP_DATA, "DATA");
 	PacketTypes.put((byte) OP_ACK, "ACK");
 	PacketTypes.put((byte) OP_ERROR, "ERROR");
+	PacketTypes.put((byte) OP_OACK, "OACK");
     }
 
     /**
@@ -62,6 +66,114 @@ public abstract class TFTPPacket {
 	return outputStream.toByteArray();
     }
 
+    /**
+     * Creates a request packet that asks for options, RFC 2347
+     * 
+     * @param opCode
+     *            - either 1 or 2 for read or write request
+     * @param file
+     *            - the name of the file the server will be operating on
+     * @param mode
+     *            - the mode in which the data will be handeled
+     * @param options
+     *            - option names and values, in the order they are sent
+     * @return the packet in the form of a byte array
+     */
+    public static byte[] createRQ(byte opCode, byte[] file, byte[] mode, Map<String, String> options) {
+	byte[] request = createRQ(opCode, file, mode);
+	byte[] pairs = optionBytes(options);
+	byte[] packet = Arrays.copyOf(request, request.length + pairs.length);
+	System.arraycopy(pairs, 0, packet, request.length, pairs.length);
+	return packet;
+    }
+
+    /**
+     * Creates an option acknowledgement, the options the server accepted
+     * 
+     * @param options
+     *            - option names and the values agreed on
+     * @return packet in the form of a byte array
+     */
+    public static byte[] createOack(Map<String, String> options) {
+	byte[] pairs = optionBytes(options);
+	byte[] packet = new byte[2 + pairs.length];
+	packet[1] = OP_OACK;
+	System.arraycopy(pairs, 0, packet, 2, pairs.length);
+	return packet;
+    }
+
+    private static byte[] optionBytes(Map<String, String> options) {
+	ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+	for (Map.Entry<String, String> option : options.entrySet()) {
+	    byte[] name = option.getKey().getBytes(), value = option.getValue().getBytes();
+	    outputStream.write(name, 0, name.length);
+	    outputStream.write(ZERO_BYTE);
+	    outputStream.write(value, 0, value.length);
+	    outputStream.write(ZERO_BYTE);
+	}
+	return outputStream.toByteArray();
+    }
+
+    /**
+     * Reads the options of a request or an option acknowledgement
+     * 
+     * @param packet
+     *            - a RRQ, WRQ or OACK
+     * @return option names in lower case and their values, in the order they were
+     *         sent, empty when there are none
+     */
+    public static Map<String, String> getOptions(DatagramPacket packet) {
+	return getOptions(packet.getData(), packet.getLength());
+    }
+
+    /**
+     * Reads the options of a request or an option acknowledgement held in an
+     * array
+     * 
+     * @param data
+     *            - the packet, from index 0
+     * @param length
+     *            - bytes in the packet
+     * @return option names in lower case and their values
+     */
+    public static Map<String, String> getOptions(byte[] data, int length) {
+	Map<String, String> options = new LinkedHashMap<>();
+	int offset = 2;
+	if (length >= 2 && (data[1] == OP_RRQ || data[1] == OP_WRQ)) { // skip the file name and mode
+	    offset += lengthToStop(offset, data, length) + 1;
+	    offset += lengthToStop(offset, data, length) + 1;
+	}
+	while (offset < length) {
+	    int nameLength = lengthToStop(offset, data, length);
+	    int valueOffset = offset + nameLength + 1;
+	    if (valueOffset >= length)
+		break;
+	    int valueLength = lengthToStop(valueOffset, data, length);
+	    options.put(bytesToString(Arrays.copyOfRange(data, offset, offset + nameLength)).toLowerCase(Locale.ROOT),
+		    bytesToString(Arrays.copyOfRange(data, valueOffset, valueOffset + valueLength)));
+	    offset = valueOffset + valueLength + 1;
+	}
+	return options;
+    }
+
+    /**
+     * Reads the block size an option acknowledgement agrees on
+     * 
+     * @param data
+     *            - the OACK, from index 0
+     * @param length
+     *            - bytes in the packet
+     * @return data bytes per block, 512 when there is no valid blksize option
+     */
+    public static int getBlockSize(byte[] data, int length) {
+	try {
+	    int blockSize = Integer.parseInt(getOptions(data, length).getOrDefault("blksize", "512"));
+	    return blockSize >= 8 ? blockSize : 512;
+	} catch (NumberFormatException e) {
+	    return 512;
+	}
+    }
+
     /**
      * creates acknowledge packet
      * 
@@ -71,10 +183,28 @@ public abstract class TFTPPacket {
      * @author bloo
      */
     public static byte[] createAck(int blockNum) {
-	byte[] ack = new byte[] { 0, OP_ACK, (byte) (blockNum / 256), (byte) (blockNum % 256) };
+	byte[] ack = new byte[4];
+	writeAck(ack, blockNum);
 	return ack;
     }
 
+    /**
+     * Writes an acknowledge packet into a buffer that is reused for every block
+     * 
+     * @param packet
+     *            - buffer of at least 4 bytes
+     * @param blockNum
+     *            - the current number the packet is acknowledging
+     * @return the length of the packet
+     */
+    public static int writeAck(byte[] packet, int blockNum) {
+	packet[0] = 0;
+	packet[1] = OP_ACK;
+	packet[2] = (byte) (blockNum / 256);
+	packet[3] = (byte) (blockNum % 256);
+	return 4;
+    }
+
     /**
      * Creates Data packet
      * 
@@ -87,12 +217,30 @@ public abstract class TFTPPacket {
      */
     public static byte[] createData(int blockNum, byte[] data) {
 	byte[] packet = new byte[4 + data.length];
-	ByteBuffer dBuff = ByteBuffer.wrap(packet);
-	dBuff.put(new byte[] { 0, OP_DATA, (byte) (blockNum / 256), (byte) (blockNum % 256) });
-	dBuff.put(data);
+	writeData(packet, blockNum, data);
 	return packet;
     }
 
+    /**
+     * Writes a data packet into a buffer that is reused for every block
+     * 
+     * @param packet
+     *            - buffer of at least 4 + data.length bytes
+     * @param blockNum
+     *            - the block num of the blcok being sent
+     * @param data
+     *            - the data being sent
+     * @return the length of the packet
+     */
+    public static int writeData(byte[] packet, int blockNum, byte[] data) {
+	packet[0] = 0;
+	packet[1] = OP_DATA;
+	packet[2] = (byte) (blockNum / 256);
+	packet[3] = (byte) (blockNum % 256);
+	System.arraycopy(data, 0, packet, 4, data.length);
+	return 4 + data.length;
+    }
+
     /**
      * Creates error packet
      * 
@@ -128,17 +276,31 @@ public abstract class TFTPPacket {
      * @author bloo
      */
     static byte[] readToStop(int offset, byte[] packet, int dataLength) {
-	byte[] data = new byte[512];
+	return Arrays.copyOfRange(packet, offset, offset + lengthToStop(offset, packet, dataLength));
+    }
+
+    /**
+     * Counts the bytes from offset to the terminating zero or to the end of the
+     * available data, without copying them
+     * 
+     * @param offset
+     *            - Starting index of the data
+     * @param packet
+     *            - byte array of packet data
+     * @param dataLength
+     *            - the number of bytes of data
+     * @return the number of bytes readToStop would return
+     */
+    static int lengthToStop(int offset, byte[] packet, int dataLength) {
 	int index;
 
 	/*
 	 * Iterate, starting at the given offset as long as a terminating zero or the
 	 * end of the array hasn't been reached
 	 */
-	for (index = offset; index < dataLength && packet[index] != 0; index++) {
-	    data[index - offset] = packet[index];
-	}
-	return Arrays.copyOf(data, index - offset);
+	for (index = offset; index < dataLength && packet[index] != 0; index++)
+	    ;
+	return index - offset;
     }
 
     /**
@@ -220,9 +382,13 @@ public abstract class TFTPPacket {
 	    switch (getType(packet)) {
 	    case OP_RRQ:
 		descriptor += "RRQ\nFile name: " + getFileName(packet) + "\nMode: " + getMode(packet) + "\n";
+		if (!getOptions(packet).isEmpty())
+		    descriptor += "Options: " + getOptions(packet) + "\n";
 		break;
 	    case OP_WRQ:
 		descriptor += "WRQ\nFile name: " + getFileName(packet) + "\nMode: " + getMode(packet) + "\n";
+		if (!getOptions(packet).isEmpty())
+		    descriptor += "Options: " + getOptions(packet) + "\n";
 		break;
 	    case OP_DATA:
 		descriptor += "DATA\nBlock #: " + getBlockNum(packet) + "\nBytes of data: " + getDataLength(packet)
@@ -234,6 +400,9 @@ public abstract class TFTPPacket {
 	    case OP_ERROR:
 		descriptor += "ERROR\nError Num: " + getError(packet) + "\nError Msg: " + getErrorMsg(packet) + "\n";
 		break;
+	    case OP_OACK:
+		descriptor += "OACK\nOptions: " + getOptions(packet) + "\n";
+		break;
 	    default:
 		break;
 
@@ -266,7 +435,7 @@ public abstract class TFTPPacket {
      * @return the data the packet was holding
      */
     public static byte[] getByteData(DatagramPacket packet) {
-	return readToStop(4, packet.getData(), packet.getLength());
+	return Arrays.copyOfRange(packet.getData(), 4, Math.max(4, packet.getLength())); // zeros are data too
     }
 
     /**
@@ -351,7 +520,7 @@ public abstract class TFTPPacket {
      * @return number of bytes in the packets data section
      */
     public static int getDataLength(DatagramPacket packet) {
-	return readToStop(4, packet.getData(), packet.getLength()).length;
+	return Math.max(0, packet.getLength() - 4);
     }
 
 }
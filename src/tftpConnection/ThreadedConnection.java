@@ -1,15 +1,22 @@
 package tftpConnection;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.management.ObjectName;
 import javax.swing.JTextArea;
 
 /*	 
@@ -17,16 +24,39 @@ import javax.swing.JTextArea;
  * */
 public class ThreadedConnection extends TFTPConnection implements Runnable {
 
+    private static final AtomicLong connectionCount = new AtomicLong();
+
     private DatagramPacket requestPacket;
+    private final long receivedAt = System.currentTimeMillis();
+    private boolean resumable; // whether the part of a WRQ's file is kept if it stops
 
     public ThreadedConnection(DatagramPacket p, JTextArea outputWindow) {
 	this(p, true, outputWindow);
     }
 
     public ThreadedConnection(DatagramPacket p, boolean verbose, JTextArea outputWindow) {
+	this(p, verbose, outputWindow, null);
+    }
+
+    /**
+     * @param server
+     *            - the connection that dispatched this one, its metrics and latency
+     *            histograms also receive this connection's measurements
+     */
+    public ThreadedConnection(DatagramPacket p, boolean verbose, JTextArea outputWindow, TFTPConnection server) {
 	this.outputWindow = outputWindow;
 	this.verbose = verbose;
+	this.requestTime = System.nanoTime();
 	requestPacket = p;
+	if (server != null) {
+	    this.metrics = new TransferMetrics(server.getMetrics());
+	    this.latency = server.getLatency();
+	    this.activeTransfers = server.getActiveTransfers();
+	    this.trace = server.getTrace();
+	    this.compressionCache = server.getCompressionCache();
+	    this.timelineName = server.timelineName;
+	    this.transports = server.getTransports();
+	}
     }
 
     /**
@@ -63,8 +93,9 @@ public class ThreadedConnection extends TFTPConnection implements Runnable {
      */
     private void requestHandler(DatagramPacket packet) {
 	byte request = this.getRequest(packet);
-	DatagramSocket handlerSocket = waitForSocket(-1, 2000);
+	DatagramTransport handlerSocket = waitForSocket(-1, TFTPConfig.get().getHandlerTimeout());
 	String fileName = TFTPPacket.getFileName(packet);
+	netascii = TFTPPacket.getMode(packet).equalsIgnoreCase("netascii"); // other modes are sent as octets
 	try {
 	    switch (request) {
 	    /* Read Request */
@@ -75,6 +106,12 @@ public class ThreadedConnection extends TFTPConnection implements Runnable {
 		if (!Files.exists(Paths.get(fileName)))
 		    throw new FileNotFoundException("File \"" + fileName + "\" not found"); // verify existence of file
 											    // before operation
+		Map<String, String> readOptions = negotiate(packet, handlerSocket);
+		// with options the client acknowledges the OACK with ACK 0 before the first block
+		if (!readOptions.isEmpty() && acknowledgeOptions(readOptions, packet, handlerSocket,
+			answer -> TFTPPacket.getType(answer) == TFTPPacket.OP_ACK
+				&& TFTPPacket.getBlockNum(answer) == 0) == null)
+		    break;
 		sendFile(packet, handlerSocket);
 		break;
 
@@ -88,8 +125,17 @@ public class ThreadedConnection extends TFTPConnection implements Runnable {
 												      // existence of
 												      // file before
 												      // operation
-		send(TFTPPacket.createAck(0), handlerSocket, packet.getSocketAddress());
-		receiveFile(packet, handlerSocket, fileName);
+		Map<String, String> writeOptions = negotiate(packet, handlerSocket);
+		if (writeOptions.isEmpty()) {
+		    send(TFTPPacket.createAck(0), handlerSocket, packet.getSocketAddress());
+		    receiveFile(packet, handlerSocket, fileName);
+		} else { // the OACK takes the place of ACK 0
+		    DatagramPacket first = acknowledgeOptions(writeOptions, packet, handlerSocket,
+			    answer -> TFTPPacket.getType(answer) == TFTPPacket.OP_DATA
+				    && TFTPPacket.getBlockNum(answer) == 1);
+		    if (first != null)
+			receiveFile(first, handlerSocket, fileName);
+		}
 		break;
 
 	    /* Data */
@@ -121,9 +167,152 @@ public class ThreadedConnection extends TFTPConnection implements Runnable {
 	    System.exit(1);
 	}
 
+	if (partial != null) {
+	    try { // kept for the client to resume unless it was completed
+		if (resumable)
+		    partial.close();
+		else
+		    partial.discard();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
 	handlerSocket.close();
     }
 
+    /**
+     * Picks the options of a request this server will use, RFC 2347. blksize is
+     * capped so blocks fit in packet.maxSize and windowsize is answered with 1 as
+     * transfers are lock-step. A RRQ may ask for a byte range with offset and
+     * length, this server's own extension, which is answered with the length that
+     * will be sent. A WRQ with offset is written to a PartialFile and answered
+     * with the offset of the part already journaled, the client sends from there.
+     * tsize and timeout are RFC 2349's: a RRQ's tsize is answered with the file's
+     * size, and a WRQ's is refused with error 3 if the file won't fit, or else
+     * the file is preallocated and written as it arrives. compress=deflate, also
+     * this server's own, has the blocks carry the file as one zlib stream. Other
+     * options are ignored.
+     * 
+     * @param packet
+     *            - the request
+     * @param socket
+     *            - the handler's socket, its timeout is changed by the timeout
+     *            option
+     * @return the options accepted with the values agreed on, empty if none were
+     * @throws IOException
+     *             - if the part of a written file can't be opened
+     * @throws FullFileSystemException
+     *             - if a WRQ's tsize is more than the space left
+     * @author BLoo
+     */
+    private Map<String, String> negotiate(DatagramPacket packet, DatagramTransport socket) throws IOException {
+	Map<String, String> accepted = new LinkedHashMap<>();
+	boolean read = TFTPPacket.getType(packet) == TFTPPacket.OP_RRQ;
+	File file = new File(TFTPPacket.getFileName(packet)).getAbsoluteFile();
+	long transferSize = -1;
+	for (Map.Entry<String, String> option : TFTPPacket.getOptions(packet).entrySet()) {
+	    if (option.getKey().equals("compress")) { // this server's own extension
+		if (option.getValue().equalsIgnoreCase("deflate")) {
+		    deflate = true;
+		    accepted.put(option.getKey(), "deflate");
+		}
+		continue;
+	    }
+	    long value;
+	    try {
+		value = Long.parseLong(option.getValue());
+	    } catch (NumberFormatException e) {
+		continue;
+	    }
+	    switch (option.getKey()) {
+	    case "blksize": // RFC 2348
+		if (value >= 8 && value <= 65464) {
+		    blockSize = (int) Math.min(value, MAX_PACKET_SIZE - 4);
+		    accepted.put(option.getKey(), Integer.toString(blockSize));
+		}
+		break;
+	    case "windowsize": // RFC 7440
+		if (value >= 1 && value <= 65535)
+		    accepted.put(option.getKey(), "1");
+		break;
+	    case "offset":
+		if (read && value >= 0) {
+		    rangeOffset = Math.min(value, new File(TFTPPacket.getFileName(packet)).length());
+		    accepted.put(option.getKey(), Long.toString(rangeOffset));
+		} else if (!read && value >= 0 && partial == null) {
+		    partial = new PartialFile(file, value, false);
+		    resumable = true;
+		    rangeOffset = partial.getOffset();
+		    accepted.put(option.getKey(), Long.toString(rangeOffset));
+		}
+		break;
+	    case "tsize": // RFC 2349
+		if (read) {
+		    if (!netascii) // left out for netascii, whose size once translated isn't known up front
+			accepted.put(option.getKey(), Long.toString(file.length()));
+		} else if (value >= 0) {
+		    if (file.getParentFile().getUsableSpace() < value)
+			throw new FullFileSystemException("File " + file.getName() + " needs " + value
+				+ " bytes, only " + file.getParentFile().getUsableSpace() + " are free");
+		    transferSize = value;
+		    accepted.put(option.getKey(), Long.toString(value));
+		}
+		break;
+	    case "timeout": // RFC 2349, in seconds
+		if (value >= 1 && value <= 255) {
+		    socket.setSoTimeout((int) value * 1000);
+		    accepted.put(option.getKey(), Long.toString(value));
+		}
+		break;
+	    case "length":
+		if (read && value >= 0)
+		    rangeLength = value;
+		break;
+	    }
+	}
+	if (read && accepted.containsKey("offset")) { // the length that will be sent, shorter at the end of the file
+	    long available = new File(TFTPPacket.getFileName(packet)).length() - rangeOffset;
+	    rangeLength = rangeLength < 0 ? available : Math.min(rangeLength, available);
+	    accepted.put("length", Long.toString(rangeLength));
+	} else {
+	    rangeLength = -1;
+	}
+	if (transferSize >= 0) { // written as it arrives into the space reserved for it
+	    if (partial == null)
+		partial = new PartialFile(file, 0, false);
+	    partial.preallocate(transferSize);
+	}
+	return accepted;
+    }
+
+    /**
+     * Sends an OACK for the accepted options and waits for the client to answer
+     * it
+     * 
+     * @param options
+     *            - the options accepted
+     * @param request
+     *            - the client's request
+     * @param socket
+     *            - the handler's socket
+     * @param answers
+     *            - whether a packet answers the OACK
+     * @return the answer, null if the client refused the options, sent an invalid
+     *         packet or never answered
+     */
+    private DatagramPacket acknowledgeOptions(Map<String, String> options, DatagramPacket request,
+	    DatagramTransport socket, Predicate<DatagramPacket> answers) {
+	byte[] oack = TFTPPacket.createOack(options);
+	try {
+	    DatagramPacket answer = exchange(new DatagramPacket(oack, oack.length, request.getSocketAddress()), socket,
+		    request.getSocketAddress(), answers);
+	    if (answer != null && TFTPPacket.getType(answer) != TFTPPacket.OP_ERROR)
+		return answer;
+	} catch (IllegalArgumentException e) { // the client has been sent an error
+	}
+	return null;
+    }
+
     /**
      * Starts off a new connection (non-Javadoc)
      * 
@@ -134,11 +323,59 @@ public class ThreadedConnection extends TFTPConnection implements Runnable {
     public void run() {
 	if (verbose)
 	    println("\nStarting new connection");
-	requestHandler(requestPacket);
+	long id = connectionCount.incrementAndGet();
+	metrics.register("type=Transfer,id=" + id + ",peer="
+		+ ObjectName.quote(String.valueOf(requestPacket.getSocketAddress())));
+	metrics.transferStarted();
+	TFTPEvents.Transfer event = new TFTPEvents.Transfer();
+	event.begin();
+	if (activeTransfers != null)
+	    activeTransfers.put(id, new ActiveTransfer(id, requestPacket.getSocketAddress(),
+		    TFTPPacket.getFileName(requestPacket), TFTPPacket.getType(requestPacket), metrics));
+	try {
+	    requestHandler(requestPacket);
+	} finally {
+	    event.end();
+	    if (event.shouldCommit()) {
+		event.peer = String.valueOf(requestPacket.getSocketAddress());
+		event.file = TFTPPacket.getFileName(requestPacket);
+		event.request = TFTPPacket.PacketTypes.get((byte) TFTPPacket.getType(requestPacket));
+		event.bytesSent = metrics.getBytesSent();
+		event.bytesReceived = metrics.getBytesReceived();
+		event.retransmissions = metrics.getRetransmissions();
+		event.commit();
+	    }
+	    if (activeTransfers != null)
+		activeTransfers.remove(id);
+	    metrics.transferFinished();
+	    metrics.unregister();
+	    if (trace != null)
+		trace.record(new RequestTrace.Record(receivedAt, (InetSocketAddress) requestPacket.getSocketAddress(),
+			(byte) TFTPPacket.getType(requestPacket), TFTPPacket.getFileName(requestPacket),
+			new File(TFTPPacket.getFileName(requestPacket)).length(), outcome(),
+			(System.nanoTime() - requestTime) / 1000));
+	}
 	if (verbose)
 	    println("\nClosing Connection");
     }
 
+    /**
+     * Works out how the request ended from the error packets sent and received
+     * 
+     * @return the outcome as recorded in a RequestTrace
+     */
+    private short outcome() {
+	for (Map.Entry<String, Long> error : metrics.getErrorPacketsSent().entrySet()) {
+	    short code = Short.parseShort(error.getKey());
+	    if (error.getValue() > 0 && code != 5) // unknown TID errors go to strays and don't stop the transfer
+		return (short) (RequestTrace.ERROR_SENT + code);
+	}
+	for (long received : metrics.getErrorPacketsReceived().values())
+	    if (received > 0)
+		return RequestTrace.PEER_ERROR;
+	return gaveUp ? RequestTrace.TIMED_OUT : RequestTrace.COMPLETE;
+    }
+
     @Override
     public void takeInput(String s) {
     }
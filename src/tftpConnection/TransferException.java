@@ -0,0 +1,51 @@
+package tftpConnection;
+
+import java.io.IOException;
+
+/**
+ * Why a transfer stopped before the whole file was sent or received, with the
+ * TFTP error code the peer sent or was sent, so programs using the connection
+ * can tell a missing file from a full disk or a timeout.
+ *
+ * @author BLoo
+ */
+public class TransferException extends IOException {
+    private static final long serialVersionUID = -2391862714307538213L;
+
+    public static final int NOT_DEFINED = 0;
+    public static final int FILE_NOT_FOUND = 1;
+    public static final int ACCESS_VIOLATION = 2;
+    public static final int DISK_FULL = 3;
+    public static final int ILLEGAL_OPERATION = 4;
+    public static final int UNKNOWN_TID = 5;
+    public static final int FILE_EXISTS = 6;
+    public static final int OPTIONS_REFUSED = 8; // RFC 2347
+    public static final int TIMED_OUT = -1; // no error packet, the peer stopped answering
+    public static final int CANCELLED = -2; // stopped on this side
+
+    private final int errorCode;
+
+    /**
+     * @param errorCode
+     *            - the TFTP error code, TIMED_OUT or CANCELLED
+     * @param message
+     *            - the error message
+     */
+    public TransferException(int errorCode, String message) {
+	super(message);
+	this.errorCode = errorCode;
+    }
+
+    /**
+     * @return the TFTP error code, TIMED_OUT when the peer stopped answering or
+     *         CANCELLED when the transfer was cancelled
+     */
+    public int getErrorCode() {
+	return errorCode;
+    }
+
+    @Override
+    public String toString() {
+	return getClass().getSimpleName() + " (" + errorCode + "): " + getMessage();
+    }
+}
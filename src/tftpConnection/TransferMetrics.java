@@ -0,0 +1,262 @@
+package tftpConnection;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters for a connection. Every increment is also applied to the parent
+ * so a server sees the totals of all of its transfers. Counters are LongAdders
+ * so concurrent transfers never contend with each other on the packet path.
+ *
+ * @author BLoo
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+
+    public static final String DOMAIN = "tftpConnection";
+    private static final int MAX_ERROR_CODE = 7;
+    private static final int MAX_OPCODE = TFTPPacket.OP_OACK;
+
+    private final TransferMetrics parent;
+    private ObjectName name;
+
+    private final LongAdder[] received = newAdders(MAX_OPCODE + 1);
+    private final LongAdder receivedOther = new LongAdder(); // opcodes no packet type has
+    private final LongAdder[] errorsSent = newAdders(MAX_ERROR_CODE + 1);
+    private final LongAdder[] errorsReceived = newAdders(MAX_ERROR_CODE + 1);
+    private final LongAdder activeTransfers = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder invalidPackets = new LongAdder();
+    private final LongAdder bufferedBytes = new LongAdder();
+
+    /**
+     * @param parent
+     *            - metrics that will also receive every update, null for none
+     */
+    public TransferMetrics(TransferMetrics parent) {
+	this.parent = parent;
+    }
+
+    private static LongAdder[] newAdders(int size) {
+	LongAdder[] adders = new LongAdder[size];
+	for (int i = 0; i < size; i++)
+	    adders[i] = new LongAdder();
+	return adders;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server. Failures are reported
+     * but never stop the connection.
+     *
+     * @param properties
+     *            - the key properties of the ObjectName eg. "type=Server"
+     */
+    public void register(String properties) {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    name = new ObjectName(DOMAIN + ":" + properties);
+	    if (server.isRegistered(name))
+		server.unregisterMBean(name);
+	    server.registerMBean(this, name);
+	} catch (JMException e) {
+	    e.printStackTrace();
+	    name = null;
+	}
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server if they were registered
+     */
+    public void unregister() {
+	if (name == null)
+	    return;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	} catch (JMException e) {
+	    e.printStackTrace();
+	}
+	name = null;
+    }
+
+    void packetSent(DatagramPacket packet) {
+	byte[] data = packet.getData();
+	int offset = packet.getOffset(), length = packet.getLength();
+	packetSent(length, length >= 2 ? data[offset + 1] : -1, length >= 4 ? data[offset + 3] : -1);
+    }
+
+    /**
+     * Counts a packet held in a buffer from 0 to its limit, the relay's direct
+     * buffers have no array to wrap in a DatagramPacket
+     */
+    void packetSent(ByteBuffer packet) {
+	int length = packet.limit();
+	packetSent(length, length >= 2 ? packet.get(1) : -1, length >= 4 ? packet.get(3) : -1);
+    }
+
+    private void packetSent(int length, int opcode, int code) {
+	packetsSent.increment();
+	bytesSent.add(length);
+	if (length >= 4 && opcode == TFTPPacket.OP_ERROR)
+	    count(errorsSent, code);
+	if (parent != null)
+	    parent.packetSent(length, opcode, code);
+    }
+
+    void packetReceived(DatagramPacket packet) {
+	byte[] data = packet.getData();
+	int offset = packet.getOffset(), length = packet.getLength();
+	packetReceived(length, length >= 2 ? data[offset + 1] : -1, length >= 4 ? data[offset + 3] : -1);
+    }
+
+    /**
+     * Counts a packet held in a buffer from 0 to its limit
+     */
+    void packetReceived(ByteBuffer packet) {
+	int length = packet.limit();
+	packetReceived(length, length >= 2 ? packet.get(1) : -1, length >= 4 ? packet.get(3) : -1);
+    }
+
+    private void packetReceived(int length, int opcode, int code) {
+	packetsReceived.increment();
+	bytesReceived.add(length);
+	if (length >= 2) {
+	    if (opcode >= TFTPPacket.OP_RRQ && opcode <= MAX_OPCODE)
+		received[opcode].increment();
+	    else
+		receivedOther.increment();
+	    if (opcode == TFTPPacket.OP_ERROR && length >= 4)
+		count(errorsReceived, code);
+	}
+	if (parent != null)
+	    parent.packetReceived(length, opcode, code);
+    }
+
+    private static void count(LongAdder[] adders, int index) {
+	if (index >= 0 && index < adders.length)
+	    adders[index].increment();
+    }
+
+    void transferStarted() {
+	activeTransfers.increment();
+	if (parent != null)
+	    parent.transferStarted();
+    }
+
+    void transferFinished() {
+	activeTransfers.decrement();
+	if (parent != null)
+	    parent.transferFinished();
+    }
+
+    void retransmission() {
+	retransmissions.increment();
+	if (parent != null)
+	    parent.retransmission();
+    }
+
+    void timeout() {
+	timeouts.increment();
+	if (parent != null)
+	    parent.timeout();
+    }
+
+    void invalidPacket() {
+	invalidPackets.increment();
+	if (parent != null)
+	    parent.invalidPacket();
+    }
+
+    void buffered(long bytes) {
+	bufferedBytes.add(bytes);
+	if (parent != null)
+	    parent.buffered(bytes);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceivedByOpcode() {
+	Map<String, Long> counts = new LinkedHashMap<>();
+	for (int i = TFTPPacket.OP_RRQ; i <= MAX_OPCODE; i++)
+	    counts.put(TFTPPacket.PacketTypes.get((byte) i), received[i].sum());
+	counts.put("other", receivedOther.sum());
+	return counts;
+    }
+
+    @Override
+    public long getActiveTransfers() {
+	return activeTransfers.sum();
+    }
+
+    @Override
+    public long getPacketsSent() {
+	return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+	return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+	return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+	return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+	return retransmissions.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+	return timeouts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorPacketsSent() {
+	return errorCounts(errorsSent);
+    }
+
+    @Override
+    public Map<String, Long> getErrorPacketsReceived() {
+	return errorCounts(errorsReceived);
+    }
+
+    private static Map<String, Long> errorCounts(LongAdder[] adders) {
+	Map<String, Long> counts = new LinkedHashMap<>();
+	for (int i = 0; i < adders.length; i++)
+	    counts.put(Integer.toString(i), adders[i].sum());
+	return counts;
+    }
+
+    @Override
+    public long getInvalidPackets() {
+	return invalidPackets.sum();
+    }
+
+    @Override
+    public int getThreadCount() {
+	return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    @Override
+    public long getBufferedBytes() {
+	return bufferedBytes.sum();
+    }
+}
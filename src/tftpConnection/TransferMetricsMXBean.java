@@ -0,0 +1,47 @@
+package tftpConnection;
+
+import java.util.Map;
+
+/**
+ * Management interface for the counters kept by {@link TransferMetrics}
+ *
+ * @author BLoo
+ */
+public interface TransferMetricsMXBean {
+
+    /**
+     * @return received packets keyed by packet type (RRQ, WRQ, DATA, ACK, ERROR,
+     *         OACK), packets with any other opcode under "other"
+     */
+    Map<String, Long> getPacketsReceivedByOpcode();
+
+    long getActiveTransfers();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    /**
+     * @return error packets sent keyed by error code
+     */
+    Map<String, Long> getErrorPacketsSent();
+
+    /**
+     * @return error packets received keyed by error code
+     */
+    Map<String, Long> getErrorPacketsReceived();
+
+    long getInvalidPackets();
+
+    int getThreadCount();
+
+    long getBufferedBytes();
+}
@@ -0,0 +1,220 @@
+package tftpConnection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How a {@link TFTPClient} runs one transfer: the options asked of the server
+ * (blksize, RFC 2348, windowsize, RFC 7440, tsize and timeout, RFC 2349, and
+ * this project's compress), the transfer mode, how long to wait for each
+ * packet and how often to resend it, and a callback told of the progress. The
+ * defaults are a plain RFC 1350 transfer with the configuration's timeout and
+ * transmit limit.
+ *
+ * @author BLoo
+ */
+public class TransferOptions {
+
+    /**
+     * Told how far a transfer has got
+     */
+    public interface Progress {
+
+	/**
+	 * Called on the transfer's thread after each block
+	 *
+	 * @param bytes
+	 *            - data bytes sent or received so far
+	 * @param size
+	 *            - size of the file, -1 when it isn't known
+	 */
+	void transferred(long bytes, long size);
+    }
+
+    private int blockSize; // 0 to not ask for the option
+    private int windowSize;
+    private int timeout; // ms, 0 for handler.timeout
+    private int retries = -1; // -1 for transmit.limit
+    private Progress progress;
+    private boolean resumable;
+    private boolean transferSize;
+    private int serverTimeout; // s, 0 to not ask for the option
+    private boolean deflate;
+    private boolean netascii;
+
+    /**
+     * @param blockSize
+     *            - data bytes per block to ask for, 8 to 65464, or 0 for the
+     *            standard 512 without asking. No more than packet.maxSize less
+     *            the 4 byte header is asked for
+     */
+    public TransferOptions setBlockSize(int blockSize) throws IllegalArgumentException {
+	if (blockSize != 0 && (blockSize < 8 || blockSize > 65464))
+	    throw new IllegalArgumentException("blksize must be between 8 and 65464: " + blockSize);
+	this.blockSize = blockSize;
+	return this;
+    }
+
+    /**
+     * @param windowSize
+     *            - blocks per window to ask for, 1 to 65535, or 0 to not ask.
+     *            Transfers are lock-step, so only a window of 1 is accepted.
+     */
+    public TransferOptions setWindowSize(int windowSize) throws IllegalArgumentException {
+	if (windowSize < 0 || windowSize > 65535)
+	    throw new IllegalArgumentException("windowsize must be between 1 and 65535: " + windowSize);
+	this.windowSize = windowSize;
+	return this;
+    }
+
+    /**
+     * @param timeout
+     *            - ms to wait for each packet, 0 for handler.timeout
+     */
+    public TransferOptions setTimeout(int timeout) throws IllegalArgumentException {
+	if (timeout < 0)
+	    throw new IllegalArgumentException("timeout can't be negative: " + timeout);
+	this.timeout = timeout;
+	return this;
+    }
+
+    /**
+     * @param retries
+     *            - times a packet is resent before the transfer gives up, -1 for
+     *            one less than transmit.limit
+     */
+    public TransferOptions setRetries(int retries) throws IllegalArgumentException {
+	if (retries < -1)
+	    throw new IllegalArgumentException("retries can't be negative: " + retries);
+	this.retries = retries;
+	return this;
+    }
+
+    /**
+     * @param progress
+     *            - told after each block, null for none
+     */
+    public TransferOptions setProgress(Progress progress) {
+	this.progress = progress;
+	return this;
+    }
+
+    /**
+     * @param resumable
+     *            - whether a get keeps what it received in a {@link PartialFile}
+     *            if it stops early, and carries on from there next time, and a put
+     *            asks the server where its part of the file ends
+     */
+    public TransferOptions setResumable(boolean resumable) {
+	this.resumable = resumable;
+	return this;
+    }
+
+    /**
+     * @param transferSize
+     *            - whether to send the file's size with a put, so the server can
+     *            refuse it at once if it won't fit, or ask for it with a get, so
+     *            the progress is told it and the local file is preallocated
+     */
+    public TransferOptions setTransferSize(boolean transferSize) {
+	this.transferSize = transferSize;
+	return this;
+    }
+
+    /**
+     * @param serverTimeout
+     *            - seconds for the server to wait before resending, 1 to 255, or 0
+     *            to not ask. Once agreed this transfer waits as long.
+     */
+    public TransferOptions setServerTimeout(int serverTimeout) throws IllegalArgumentException {
+	if (serverTimeout < 0 || serverTimeout > 255)
+	    throw new IllegalArgumentException("timeout must be between 1 and 255 seconds: " + serverTimeout);
+	this.serverTimeout = serverTimeout;
+	return this;
+    }
+
+    /**
+     * @param deflate
+     *            - whether to ask for the file to be sent deflated, with
+     *            compress=deflate, which cuts the blocks of text several times.
+     *            Only a server of this project agrees to it, others send the file
+     *            as it is.
+     */
+    public TransferOptions setDeflate(boolean deflate) {
+	this.deflate = deflate;
+	return this;
+    }
+
+    /**
+     * @param netascii
+     *            - whether to send the file in netascii mode, translating its
+     *            line ends, rather than octet
+     */
+    public TransferOptions setNetascii(boolean netascii) {
+	this.netascii = netascii;
+	return this;
+    }
+
+    public int getBlockSize() {
+	return blockSize;
+    }
+
+    public int getWindowSize() {
+	return windowSize;
+    }
+
+    public int getTimeout() {
+	return timeout;
+    }
+
+    public int getRetries() {
+	return retries;
+    }
+
+    public Progress getProgress() {
+	return progress;
+    }
+
+    public boolean isResumable() {
+	return resumable;
+    }
+
+    public boolean isTransferSize() {
+	return transferSize;
+    }
+
+    public int getServerTimeout() {
+	return serverTimeout;
+    }
+
+    public boolean isDeflate() {
+	return deflate;
+    }
+
+    public boolean isNetascii() {
+	return netascii;
+    }
+
+    /**
+     * @return the options to put in the request, empty for none
+     */
+    Map<String, String> getRequested() {
+	Map<String, String> requested = new LinkedHashMap<>();
+	if (blockSize > 0)
+	    requested.put("blksize", Integer.toString(blockSize));
+	if (windowSize > 0)
+	    requested.put("windowsize", Integer.toString(windowSize));
+	if (serverTimeout > 0)
+	    requested.put("timeout", Integer.toString(serverTimeout));
+	if (deflate)
+	    requested.put("compress", "deflate");
+	return requested;
+    }
+
+    @Override
+    public String toString() {
+	return "blksize=" + blockSize + ", windowsize=" + windowSize + ", timeout=" + timeout + ", retries=" + retries
+		+ ", resumable=" + resumable + ", tsize=" + transferSize + ", server timeout=" + serverTimeout
+		+ ", deflate=" + deflate + ", netascii=" + netascii;
+    }
+}
@@ -0,0 +1,104 @@
+package tftpConnection;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * What a finished {@link TFTPClient} transfer moved and how it went
+ *
+ * @author BLoo
+ */
+public class TransferResult {
+
+    private final byte requestType;
+    private final String remoteFile;
+    private final File localFile;
+    private final long bytes;
+    private final long nanos;
+    private final int blockSize;
+    private final Map<String, String> options;
+    private final long retransmissions;
+    private final long timeouts;
+
+    /**
+     * @param requestType
+     *            - RRQ or WRQ opcode
+     * @param remoteFile
+     *            - the file's name on the server
+     * @param localFile
+     *            - the file read or written here
+     * @param bytes
+     *            - data bytes transferred
+     * @param nanos
+     *            - time from sending the request to the end of the transfer
+     * @param blockSize
+     *            - data bytes per block used
+     * @param options
+     *            - options the server acknowledged, empty if it ignored them
+     * @param retransmissions
+     *            - packets this side resent
+     * @param timeouts
+     *            - waits for the server that timed out
+     */
+    public TransferResult(byte requestType, String remoteFile, File localFile, long bytes, long nanos, int blockSize,
+	    Map<String, String> options, long retransmissions, long timeouts) {
+	this.requestType = requestType;
+	this.remoteFile = remoteFile;
+	this.localFile = localFile;
+	this.bytes = bytes;
+	this.nanos = nanos;
+	this.blockSize = blockSize;
+	this.options = options;
+	this.retransmissions = retransmissions;
+	this.timeouts = timeouts;
+    }
+
+    public byte getRequestType() {
+	return requestType;
+    }
+
+    public String getRemoteFile() {
+	return remoteFile;
+    }
+
+    public File getLocalFile() {
+	return localFile;
+    }
+
+    public long getBytes() {
+	return bytes;
+    }
+
+    public long getNanos() {
+	return nanos;
+    }
+
+    public int getBlockSize() {
+	return blockSize;
+    }
+
+    public Map<String, String> getOptions() {
+	return options;
+    }
+
+    public long getRetransmissions() {
+	return retransmissions;
+    }
+
+    public long getTimeouts() {
+	return timeouts;
+    }
+
+    /**
+     * @return data bytes per second
+     */
+    public double getThroughput() {
+	return nanos > 0 ? bytes * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+	return TFTPPacket.PacketTypes.get(requestType) + " " + remoteFile + ": " + bytes + "B in " + nanos / 1000000
+		+ "ms, blksize " + blockSize + ", " + retransmissions + " retransmissions, " + timeouts + " timeouts";
+    }
+}
@@ -0,0 +1,71 @@
+package tftpConnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * Transport over a kernel UDP socket
+ *
+ * @author BLoo
+ */
+public class UdpTransport implements DatagramTransport {
+
+    /** Opens UDP sockets, the default for every connection */
+    public static final Factory FACTORY = (local, timeOut) -> {
+	UdpTransport transport = new UdpTransport(local == null ? new DatagramSocket() : new DatagramSocket(local));
+	if (timeOut > 0)
+	    transport.setSoTimeout(timeOut);
+	return transport;
+    };
+
+    private final DatagramSocket socket;
+
+    public UdpTransport(DatagramSocket socket) {
+	this.socket = socket;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+	socket.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+	socket.receive(packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeOut) throws SocketException {
+	socket.setSoTimeout(timeOut);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+	return socket.getSoTimeout();
+    }
+
+    @Override
+    public int getLocalPort() {
+	return socket.getLocalPort();
+    }
+
+    @Override
+    public boolean isClosed() {
+	return socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+	socket.close();
+    }
+
+    /**
+     * @return the socket underneath
+     */
+    public DatagramSocket getSocket() {
+	return socket;
+    }
+}
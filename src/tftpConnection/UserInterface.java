@@ -34,9 +34,11 @@ public class UserInterface {
     DefaultCaret caret;
 
     public UserInterface() {
+	TFTPConfig.startWatcher(2000);
 	errorSim = new ErrorSimulator();
 	client = new Client(errorSim);
-	server = new Server(69);
+	server = new Server(TFTPConfig.get().getServerPort());
+	server.reportLatencyAtExit();
 
 	frame = new JFrame("File Transfer System");
 	ImageIcon frameImage = new ImageIcon("Misc//icon.png");
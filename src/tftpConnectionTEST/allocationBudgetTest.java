@@ -0,0 +1,192 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.DatagramTransport;
+import tftpConnection.TFTPConnection;
+
+/*
+ * Keeps the transfer hot path from allocating per packet. A file is sent with
+ * sendFile and received with receiveFile over a transport that doesn't allocate,
+ * and the bytes each side allocates per block are held to a budget. Blocks the
+ * receiver keeps for the file are counted separately, anything else that
+ * creates a byte[], copies a packet or builds a string for every block will
+ * break the budget.
+ */
+class allocationBudgetTest {
+
+	private static final int BLOCKS = 4000;
+	private static final int WARMUP_TRANSFERS = 15;
+	private static final long SENDER_BUDGET = 32; // bytes per block
+	private static final long RECEIVER_BUDGET = 32; // bytes per block, besides the kept block and its list slot
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	/*
+	 * One end of a connected pair of transports, packets are copied into a ring of
+	 * buffers allocated up front
+	 */
+	private static class Pipe implements DatagramTransport {
+		final InetSocketAddress address;
+		final byte[][] slots = new byte[8][1024];
+		final int[] lengths = new int[slots.length];
+		int head, count;
+		Pipe peer;
+
+		Pipe(int port) {
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+
+		@Override
+		public void send(DatagramPacket packet) {
+			synchronized (peer) {
+				if (peer.count == slots.length)
+					return; // full, lost like any datagram
+				int slot = (peer.head + peer.count) % slots.length;
+				System.arraycopy(packet.getData(), packet.getOffset(), peer.slots[slot], 0, packet.getLength());
+				peer.lengths[slot] = packet.getLength();
+				peer.count++;
+				peer.notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void receive(DatagramPacket packet) throws IOException {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (count == 0) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					throw new SocketTimeoutException();
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					throw new SocketTimeoutException();
+				}
+			}
+			System.arraycopy(slots[head], 0, packet.getData(), packet.getOffset(), lengths[head]);
+			packet.setLength(lengths[head]);
+			packet.setSocketAddress(peer.address);
+			head = (head + 1) % slots.length;
+			count--;
+		}
+
+		@Override
+		public void setSoTimeout(int timeOut) {
+		}
+
+		@Override
+		public int getSoTimeout() {
+			return 2000;
+		}
+
+		@Override
+		public int getLocalPort() {
+			return address.getPort();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// Exposes the transfer methods of TFTPConnection
+	private static class Endpoint extends TFTPConnection {
+		long allocated;
+
+		Endpoint() {
+			verbose = false;
+		}
+
+		void send(ArrayList<byte[]> data, Pipe pipe) {
+			long before = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			sendFile(data, pipe.peer.address, pipe);
+			allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+		}
+
+		void receive(Pipe pipe, String file) throws IOException {
+			long before = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			receiveFile(pipe, file);
+			allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+		}
+
+		@Override
+		public void takeInput(String s) {
+		}
+	}
+
+	@Test
+	void transferStaysWithinBudget() throws Exception {
+		assumeAllocationsMeasured();
+		File file = File.createTempFile("budget", ".txt");
+		file.deleteOnExit();
+		ArrayList<byte[]> data = new ArrayList<>();
+		for (int i = 0; i < BLOCKS; i++) {
+			byte[] block = new byte[512];
+			Arrays.fill(block, (byte) ('a' + i % 26));
+			data.add(block);
+		}
+		data.add(new byte[0]);
+
+		Endpoint sender = new Endpoint(), receiver = new Endpoint();
+		for (int i = 0; i <= WARMUP_TRANSFERS; i++) {
+			file.delete();
+			transfer(sender, receiver, data, file);
+		}
+		assertEquals(512L * BLOCKS, file.length());
+
+		long keptBlocks = BLOCKS * blockSize();
+		long senderPerBlock = sender.allocated / BLOCKS;
+		long receiverPerBlock = (receiver.allocated - keptBlocks) / BLOCKS;
+		System.out.println("Allocated per block: sender " + senderPerBlock + " bytes, receiver " + receiverPerBlock
+				+ " bytes besides the kept block");
+		assertTrue(senderPerBlock <= SENDER_BUDGET,
+				"sendFile allocated " + senderPerBlock + " bytes per block, budget is " + SENDER_BUDGET);
+		assertTrue(receiverPerBlock <= RECEIVER_BUDGET,
+				"receiveFile allocated " + receiverPerBlock + " bytes per block, budget is " + RECEIVER_BUDGET);
+	}
+
+	private static void transfer(Endpoint sender, Endpoint receiver, ArrayList<byte[]> data, File file)
+			throws Exception {
+		Pipe senderPipe = new Pipe(5000), receiverPipe = new Pipe(5001);
+		senderPipe.peer = receiverPipe;
+		receiverPipe.peer = senderPipe;
+
+		Thread sending = new Thread(() -> sender.send(data, senderPipe), "Budget sender");
+		sending.start();
+		receiver.receive(receiverPipe, file.getPath());
+		sending.join();
+	}
+
+	// Heap used by one 512 byte block: array header plus data, 8 byte aligned
+	private static long blockSize() {
+		byte[][] blocks = new byte[100][];
+		long before = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = new byte[512];
+		return (THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / blocks.length;
+	}
+
+	private static void assumeAllocationsMeasured() {
+		org.junit.jupiter.api.Assumptions.assumeTrue(
+				THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled(),
+				"Thread allocation counters aren't available on this JVM");
+	}
+}
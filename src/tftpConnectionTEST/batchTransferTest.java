@@ -0,0 +1,90 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.BatchTransfer;
+import tftpConnection.MemoryNetwork;
+import tftpConnection.Server;
+import tftpConnection.TransferException;
+import tftpConnection.TransferOptions;
+
+class batchTransferTest {
+
+	// Lines name a direction, a local and a remote file and optionally a server
+	@Test
+	void parsesManifest() throws IOException {
+		InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), 69);
+		List<BatchTransfer.Entry> entries = BatchTransfer.parse("manifest",
+				Arrays.asList("# provisioning", "get /tmp/a.bin a.bin", "",
+						"PUT b.bin remote/b.bin 127.0.0.1:6969 # x"),
+				server);
+		assertEquals(2, entries.size());
+		assertEquals(2, entries.get(0).getLine());
+		assertEquals(server, entries.get(0).getServer());
+		assertEquals("remote/b.bin", entries.get(1).getRemoteFile());
+		assertEquals(6969, ((InetSocketAddress) entries.get(1).getServer()).getPort());
+
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> BatchTransfer.parse("manifest", Arrays.asList("get a.bin", "move a b"), server));
+		assertTrue(e.getMessage().startsWith("manifest line 1"));
+	}
+
+	// Puts and gets run together, a missing file fails at once and an unanswered server after its retries
+	@Test
+	void runsBatch() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		Server tftpServer = new Server(69, false, network);
+		InetSocketAddress server = new InetSocketAddress(InetAddress.getLocalHost(), 69);
+		InetSocketAddress silent = new InetSocketAddress(InetAddress.getLocalHost(), 70);
+
+		File dir = Files.createTempDirectory("batch").toFile();
+		byte[] data = new byte[3000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + i % 26);
+		List<String> manifest = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Files.write(new File(dir, "local" + i).toPath(), data);
+			manifest.add("put " + new File(dir, "local" + i) + " " + new File(dir, "remote" + i));
+		}
+		manifest.add("get " + new File(dir, "copy") + " " + new File(dir, "missing"));
+		manifest.add("get " + new File(dir, "copy") + " " + new File(dir, "local0") + " "
+				+ silent.getHostString() + ":70");
+
+		BatchTransfer.Report report = new BatchTransfer(BatchTransfer.parse("manifest", manifest, server))
+				.setConcurrency(4).setPerServer(2).setRetries(2).setBackoff(10, 100)
+				.setTransports(network).setOptions(new TransferOptions().setTimeout(300).setRetries(1))
+				.run();
+
+		assertEquals(10, report.getSucceeded());
+		assertEquals(2, report.getFailed());
+		assertEquals((long) 10 * 3000, report.getBytes());
+		for (BatchTransfer.Outcome outcome : report.getOutcomes()) {
+			if (outcome.getFailure() == null)
+				continue;
+			// a missing file isn't retried, an unanswered request is
+			boolean missing = outcome.getEntry().getServer().equals(server);
+			assertEquals(missing ? TransferException.FILE_NOT_FOUND : TransferException.TIMED_OUT,
+					((TransferException) outcome.getFailure()).getErrorCode());
+			assertEquals(missing ? 1 : 3, outcome.getAttempts());
+		}
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(data, Files.readAllBytes(new File(dir, "remote" + i).toPath()));
+		assertTrue(report.toString().startsWith("Batch of 12 transfers: 10 succeeded, 2 failed"));
+		tftpServer.shutdown();
+
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+}
@@ -95,7 +95,7 @@ public class clientTest {
 	@Test
 	public void establishConnectionTest() {
 		// establishConnection(operation, localFile, serverFile, sendPort);
-		Client c = new Client();
+		Client c = new Client(null);
 //		byte value = 90;
 //		c.setOperation(value);
 //		c.establishConnection(value, null, null, 50);
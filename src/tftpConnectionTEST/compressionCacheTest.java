@@ -0,0 +1,67 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.CompressionCache;
+
+class compressionCacheTest {
+
+	private static byte[] inflate(byte[] deflated, int length) throws Exception {
+		Inflater inflater = new Inflater();
+		inflater.setInput(deflated);
+		byte[] inflated = new byte[length];
+		assertEquals(length, inflater.inflate(inflated));
+		assertTrue(inflater.finished());
+		inflater.end();
+		return inflated;
+	}
+
+	// Files are deflated once, again when they change, and the least recently used go first
+	@Test
+	void keepsHotFiles() throws Exception {
+		File dir = Files.createTempDirectory("cache").toFile();
+		File a = new File(dir, "a.txt"), b = new File(dir, "b.txt");
+		Files.write(a.toPath(), new byte[10000]);
+		Files.write(b.toPath(), new byte[20000]);
+		byte[] changed = "changed".getBytes();
+		int bSize = CompressionCache.deflate(new byte[20000]).length;
+		int capacity = CompressionCache.deflate(changed).length + bSize - 1; // room for b or a, not both
+		CompressionCache cache = new CompressionCache(capacity);
+
+		assertArrayEquals(new byte[10000], inflate(cache.deflated(a.toPath()), 10000));
+		cache.deflated(a.toPath());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		Files.write(a.toPath(), changed);
+		Files.setLastModifiedTime(a.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		assertArrayEquals(changed, inflate(cache.deflated(a.toPath()), changed.length));
+		assertEquals(2, cache.getMisses());
+
+		cache.deflated(b.toPath()); // a is evicted to make room
+		assertEquals(bSize, cache.size());
+		cache.deflated(b.toPath());
+		cache.deflated(a.toPath());
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+		for (File file : new File[] { a, b, dir })
+			file.delete();
+	}
+
+	// A missing file is an error, not an empty entry
+	@Test
+	void rejectsMissingFiles() {
+		CompressionCache cache = new CompressionCache(1000);
+		assertThrows(IOException.class, () -> cache.deflated(new File("missing.txt").toPath()));
+		assertEquals(0, cache.size());
+	}
+}
@@ -1,13 +1,227 @@
 package tftpConnectionTEST;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import tftpConnection.Client;
+import tftpConnection.ErrorSimulator;
+import tftpConnection.PacketScheduler;
+import tftpConnection.RelayStats;
+import tftpConnection.Server;
+import tftpConnection.TFTPPacket;
+import tftpConnection.UdpTransport;
+
 class errorSimulatorTest {
 
+	private Server server;
+	private ErrorSimulator errorSim;
+	private Thread relay;
+	private final List<Client> clients = new ArrayList<>();
+
+	// Starts a server and an error simulator relaying to it, both on ports the system picks
+	private ErrorSimulator relay(int serverPort) {
+		errorSim = new ErrorSimulator(0, serverPort, false, UdpTransport.FACTORY);
+		relay = new Thread(errorSim.getRelay());
+		relay.start();
+		return errorSim;
+	}
+
+	private ErrorSimulator relay() {
+		server = new Server(0, false);
+		return relay(server.getPort());
+	}
+
+	private Client client() {
+		Client client = new Client(null);
+		clients.add(client);
+		return client;
+	}
+
+	@AfterEach
+	void shutdown() throws InterruptedException {
+		for (Client client : clients)
+			client.shutdown();
+		if (errorSim != null) {
+			errorSim.shutdown();
+			relay.join(1000);
+		}
+		if (server != null)
+			server.shutdown();
+	}
+
 	@Test
 	void test() {
 		assertTrue(true);
 	}
 
+	// Packets leave in the order they are due, not the order they were scheduled
+	@Test
+	void schedulerReleasesInTimeOrder() throws InterruptedException {
+		PacketScheduler scheduler = new PacketScheduler("test");
+		List<Integer> sent = new CopyOnWriteArrayList<>();
+		int[] delays = { 150, 0, 100, 100 };
+		CountDownLatch done = new CountDownLatch(delays.length);
+		for (int i = 0; i < delays.length; i++) {
+			int packet = i;
+			scheduler.schedule(delays[i], () -> {
+				sent.add(packet);
+				done.countDown();
+			});
+		}
+		done.await();
+		assertEquals(Arrays.asList(1, 2, 3, 0), sent);
+		scheduler.close();
+	}
+
+	// Several reads relayed at once, each session delaying its own second block
+	@Test
+	void relaysConcurrentSessions() throws Exception {
+		ErrorSimulator errorSim = relay();
+		assertTrue(errorSim.isConcurrent());
+		errorSim.setRepeat(true);
+		errorSim.setParameters(2, 2, 500, TFTPPacket.OP_DATA, -1, -1, null);
+		int port = errorSim.getRelay().getPort();
+
+		File dir = Files.createTempDirectory("relay").toFile();
+		File source = new File(dir, "source.txt");
+		char[] text = new char[3000];
+		Arrays.fill(text, 'r');
+		Files.write(source.toPath(), new String(text).getBytes());
+
+		List<Thread> transfers = new ArrayList<>();
+		List<File> copies = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			File copy = new File(dir, "copy" + i + ".txt");
+			copies.add(copy);
+			Client client = client();
+			Thread thread = new Thread(() -> client.establishConnection(TFTPPacket.OP_RRQ, copy.getPath(),
+					source.getPath(), port, -1, -1, -1));
+			transfers.add(thread);
+			thread.start();
+		}
+		// a relay that waited out each delay would never hold two packets back at once
+		int mostHeld = 0;
+		for (Thread thread : transfers) {
+			while (thread.isAlive()) {
+				mostHeld = Math.max(mostHeld, errorSim.getScheduler().getPending());
+				thread.join(5);
+			}
+		}
+
+		for (File copy : copies)
+			assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(copy.toPath()));
+		assertEquals(4, errorSim.getRelayStats().getSessions());
+		assertEquals(4, (long) errorSim.getRelayStats().getToClient().get("delayed"));
+		assertTrue(mostHeld >= 2, "the sessions' delayed blocks were held back one at a time");
+
+		for (File copy : copies)
+			copy.delete();
+		source.delete();
+		dir.delete();
+	}
+
+	// A new request from a client whose session is lingering gets a new session, so the new transfer's port is relayed
+	@Test
+	void restartsFinishedSessions() throws Exception {
+		try (DatagramSocket server = new DatagramSocket(0); DatagramSocket client = new DatagramSocket(0)) {
+			server.setSoTimeout(2000);
+			client.setSoTimeout(2000);
+			ErrorSimulator errorSim = relay(server.getLocalPort());
+			InetSocketAddress esim = new InetSocketAddress(InetAddress.getLocalHost(), errorSim.getRelay().getPort());
+			byte[] request = TFTPPacket.createRQ(TFTPPacket.OP_RRQ, "file".getBytes(), "octet".getBytes());
+			byte[] data = TFTPPacket.createData(1, new byte[10]);
+			byte[] ack = TFTPPacket.createAck(1);
+
+			for (int i = 0; i < 2; i++) { // the second read starts while the first session lingers
+				client.send(new DatagramPacket(request, request.length, esim));
+				DatagramPacket received = new DatagramPacket(new byte[516], 516);
+				server.receive(received);
+				try (DatagramSocket transfer = new DatagramSocket()) { // each transfer answers from a new port
+					transfer.setSoTimeout(2000);
+					transfer.send(new DatagramPacket(data, data.length, received.getSocketAddress()));
+					DatagramPacket block = new DatagramPacket(new byte[516], 516);
+					client.receive(block);
+					assertEquals(TFTPPacket.OP_DATA, TFTPPacket.getType(block));
+					client.send(new DatagramPacket(ack, ack.length, block.getSocketAddress()));
+					DatagramPacket acked = new DatagramPacket(new byte[516], 516);
+					transfer.receive(acked);
+					assertEquals(TFTPPacket.OP_ACK, TFTPPacket.getType(acked));
+				}
+			}
+			assertEquals(2, errorSim.getRelayStats().getSessions());
+		}
+	}
+
+	// A lost block is counted against its direction, its retransmission makes up the goodput
+	@Test
+	void countsRelayedPackets() throws Exception {
+		ErrorSimulator errorSim = relay();
+		errorSim.setParameters(1, 2, 0, TFTPPacket.OP_DATA, -1, -1, null);
+
+		File dir = Files.createTempDirectory("stats").toFile();
+		File source = new File(dir, "source.txt"), copy = new File(dir, "copy.txt");
+		char[] text = new char[1500];
+		Arrays.fill(text, 's');
+		Files.write(source.toPath(), new String(text).getBytes());
+		client().establishConnection(TFTPPacket.OP_RRQ, copy.getPath(), source.getPath(),
+				errorSim.getRelay().getPort(), -1, -1, -1);
+		assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(copy.toPath()));
+
+		RelayStats stats = errorSim.getRelayStats();
+		assertEquals(1, stats.getSessions());
+		assertEquals(1, (long) stats.getToClient().get("dropped"));
+		assertEquals(0, (long) stats.getToServer().get("dropped"));
+		assertEquals(1500, (long) stats.getToClient().get("goodputBytes"));
+		assertEquals(0, (long) stats.getToServer().get("goodputBytes"));
+		assertTrue(stats.getGoodput(false) > 0);
+		assertEquals(0.0, stats.getGoodput(true));
+		// blocks 1 to 3, block 2 resent once or more depending on which end times out first
+		assertTrue(stats.getToClient().get("packets") >= 3, "the data blocks should have been sent on");
+		for (int i = 0; i < 30 && stats.getActiveSessions() > 0; i++)
+			Thread.sleep(100);
+		assertEquals(0, stats.getActiveSessions());
+
+		copy.delete();
+		source.delete();
+		dir.delete();
+	}
+
+	// A malformed packet with a field longer than any packet is cut short instead of stopping the relay
+	@Test
+	void cutsLongInvalidFields() throws Exception {
+		ErrorSimulator errorSim = relay();
+		char[] field = new char[2000];
+		Arrays.fill(field, 'f');
+		errorSim.setParameters(4, 1, 0, TFTPPacket.OP_DATA, -1, -1, new String(field));
+
+		File dir = Files.createTempDirectory("invalid").toFile();
+		File source = new File(dir, "source.txt"), copy = new File(dir, "copy.txt");
+		Files.write(source.toPath(), "relayed".getBytes());
+		client().establishConnection(TFTPPacket.OP_RRQ, copy.getPath(), source.getPath(),
+				errorSim.getRelay().getPort(), -1, -1, -1);
+		assertEquals(1, (long) errorSim.getRelayStats().getToClient().get("corrupted"));
+
+		client().establishConnection(TFTPPacket.OP_RRQ, copy.getPath(), source.getPath(),
+				errorSim.getRelay().getPort(), -1, -1, -1);
+		assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(copy.toPath()));
+
+		copy.delete();
+		source.delete();
+		dir.delete();
+	}
+
 }
@@ -0,0 +1,109 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.ImpairmentModel;
+import tftpConnection.ImpairmentModel.Link;
+
+class impairmentModelTest {
+
+	private static final int PACKETS = 20000;
+
+	// The same seed impairs the same packets, another seed different ones
+	@Test
+	void seededRunsRepeat() {
+		String spec = "loss=0.1, jitter=5, reorder=0.05, duplicate=0.05";
+		assertArrayEquals(run(new Link(spec, 7)), run(new Link(spec, 7)));
+		assertFalse(Arrays.equals(run(new Link(spec, 7)), run(new Link(spec, 8))));
+	}
+
+	// Bernoulli loss hits its rate, Gilbert-Elliott loses about as much but in bursts
+	@Test
+	void lossRatesAndBursts() {
+		Link bernoulli = new Link("loss=0.1", 1);
+		int[] bernoulliRuns = lossRuns(bernoulli);
+		assertEquals(0.1, bernoulli.getLost() / (double) PACKETS, 0.01);
+
+		// steady state: bad 1/11 of the time, always lost there
+		Link gilbert = new Link("gilbert=0.03/0.3", 1);
+		int[] gilbertRuns = lossRuns(gilbert);
+		assertEquals(1 / 11.0, gilbert.getLost() / (double) PACKETS, 0.02);
+		assertTrue(gilbertRuns[1] > 2 * bernoulliRuns[1], "Gilbert-Elliott losses should come in bursts");
+	}
+
+	// Latency and jitter delay every packet within their bounds
+	@Test
+	void latencyAndJitter() {
+		Link link = new Link("latency=20 jitter=5", 3);
+		long[] delays = new long[2];
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(1, link.plan(516, 0, delays));
+			assertTrue(delays[0] >= TimeUnit.MILLISECONDS.toNanos(15));
+			assertTrue(delays[0] <= TimeUnit.MILLISECONDS.toNanos(25));
+		}
+	}
+
+	// A capped link spaces packets by their size and drops what its queue can't hold
+	@Test
+	void rateCapQueues() {
+		Link link = new Link("rate=1M, queue=4", 1); // 516 bytes take 4.128ms
+		long[] delays = new long[2];
+		long now = System.nanoTime();
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(1, link.plan(516, now, delays));
+			assertEquals(i * 4128000L, delays[0]);
+		}
+		assertEquals(0, link.plan(516, now, delays));
+		assertEquals(1, link.getQueueDropped());
+		assertEquals(1, link.plan(516, now + 4128000L, delays)); // the first has left
+	}
+
+	// Duplicates are sent twice, each direction keeps its own settings
+	@Test
+	void duplicatesAndDirections() {
+		ImpairmentModel model = new ImpairmentModel("duplicate=1", "", 1);
+		long[] delays = new long[2];
+		assertEquals(2, model.link(true).plan(4, 0, delays));
+		assertEquals(1, model.link(false).plan(4, 0, delays));
+		assertEquals(1, model.getToServer().getDuplicated());
+	}
+
+	@Test
+	void rejectsInvalidSpecs() {
+		for (String spec : new String[] { "loss=1.5", "latency=-1", "gilbert=0.1", "rate=0", "queue=0",
+				"speed=10", "loss", "rate=", "rate=k" })
+			assertThrows(IllegalArgumentException.class, () -> new Link(spec, 1), spec);
+	}
+
+	// What happens to each packet: -1 lost, otherwise the delay of its first copy plus copies
+	private static long[] run(Link link) {
+		long[] outcome = new long[1000], delays = new long[2];
+		for (int i = 0; i < outcome.length; i++) {
+			int copies = link.plan(516, 0, delays);
+			outcome[i] = copies == 0 ? -1 : delays[0] * 2 + copies;
+		}
+		return outcome;
+	}
+
+	// Sends PACKETS packets, returns the number of loss runs and the mean run length times 100
+	private static int[] lossRuns(Link link) {
+		long[] delays = new long[2];
+		int runs = 0, lost = 0;
+		boolean inRun = false;
+		for (int i = 0; i < PACKETS; i++) {
+			boolean dropped = link.plan(516, 0, delays) == 0;
+			if (dropped) {
+				lost++;
+				if (!inRun)
+					runs++;
+			}
+			inRun = dropped;
+		}
+		return new int[] { runs, runs == 0 ? 0 : lost * 100 / runs };
+	}
+}
@@ -0,0 +1,119 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.Client;
+import tftpConnection.ErrorSimulator;
+import tftpConnection.ImpairmentScenario;
+import tftpConnection.Server;
+import tftpConnection.TFTPPacket;
+import tftpConnection.UdpTransport;
+
+class impairmentScenarioTest {
+
+	private static final byte[] DATA_2 = TFTPPacket.createData(2, new byte[512]);
+	private static final byte[] ACK_2 = TFTPPacket.createAck(2);
+
+	// Rules match on type, block, direction and session, the first match wins and applies once by default
+	@Test
+	void matchesRulesInOrder() {
+		ImpairmentScenario scenario = new ImpairmentScenario("test", Arrays.asList(
+				"# comment",
+				"DATA 2     toClient 1   delay 300",
+				"DATA 1-5   *        *   lose  # second",
+				"ACK  *     toServer 2   corrupt opcode=7 num=1 field=x times=*"));
+		ImpairmentScenario.Run first = scenario.start(), second = scenario.start();
+
+		ErrorSimulator.Impairment delay = first.match(DATA_2, DATA_2.length, false);
+		assertEquals(2, delay.mode);
+		assertEquals(300, delay.delay);
+		assertEquals(2, delay.block);
+		assertEquals(1, first.match(DATA_2, DATA_2.length, false).mode); // the delay is used up
+		assertNull(first.match(DATA_2, DATA_2.length, false));
+		assertNull(first.match(ACK_2, ACK_2.length, true));
+
+		assertEquals(1, second.match(DATA_2, DATA_2.length, false).mode); // the delay is for session 1
+		for (int i = 0; i < 3; i++) {
+			ErrorSimulator.Impairment corrupt = second.match(ACK_2, ACK_2.length, true);
+			assertEquals(4, corrupt.mode);
+			assertEquals(7, corrupt.opCode);
+			assertEquals("x", corrupt.field);
+		}
+		assertNull(second.match(ACK_2, ACK_2.length, false));
+	}
+
+	// The same seed picks the same packets, whatever other sessions do in between
+	@Test
+	void probabilitiesRepeatWithTheSeed() {
+		String[] lines = { "seed=9", "DATA * * * lose p=0.3 times=*" };
+		assertEquals(outcomes(new ImpairmentScenario("a", Arrays.asList(lines)).start()),
+				outcomes(new ImpairmentScenario("b", Arrays.asList(lines)).start()));
+
+		ImpairmentScenario interleaved = new ImpairmentScenario("c", Arrays.asList(lines));
+		ImpairmentScenario.Run one = interleaved.start(), two = interleaved.start();
+		outcomes(two);
+		assertEquals(outcomes(new ImpairmentScenario("d", Arrays.asList(lines)).start()), outcomes(one));
+		assertNotEquals(outcomes(one), outcomes(two));
+	}
+
+	@Test
+	void rejectsInvalidLines() {
+		for (String line : new String[] { "DATA 2 toClient", "DATUM 2 * * lose", "DATA 5-2 * * lose",
+				"DATA 2 sideways * lose", "DATA 2 * * delay", "DATA 2 * * lose p=2",
+				"DATA 2 * * lose opcode=3",
+				"seed=x", "network.toServer=loss=5", "colour=red" }) {
+			IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+					() -> new ImpairmentScenario("bad", Arrays.asList("", line)));
+			assertTrue(e.getMessage().startsWith("bad"), e.getMessage());
+		}
+	}
+
+	// A scenario loaded from a file scripts the errors of relayed transfers
+	@Test
+	void scriptsRelayedTransfers() throws Exception {
+		File dir = Files.createTempDirectory("scenario").toFile();
+		File file = new File(dir, "faults.txt");
+		Files.write(file.toPath(), Arrays.asList("DATA 2 toClient * delay 100", "DATA 1 toClient 2 corrupt"));
+
+		Server server = new Server(17169, false);
+		ErrorSimulator errorSim = new ErrorSimulator(17123, 17169, false, UdpTransport.FACTORY);
+		assertTrue(errorSim.loadScenario(file.getPath()));
+		assertFalse(errorSim.loadScenario(new File(dir, "missing.txt").getPath()));
+		assertEquals(2, errorSim.getScenario().size());
+		Thread relay = new Thread(errorSim.getRelay());
+		relay.start();
+
+		File source = new File(dir, "source.txt");
+		char[] text = new char[1500];
+		Arrays.fill(text, 's');
+		Files.write(source.toPath(), new String(text).getBytes());
+		File delayed = new File(dir, "delayed.txt"), corrupted = new File(dir, "corrupted.txt");
+		Client client = new Client(null);
+		client.establishConnection(TFTPPacket.OP_RRQ, delayed.getPath(), source.getPath(), 17123, -1, -1, -1);
+		client.establishConnection(TFTPPacket.OP_RRQ, corrupted.getPath(), source.getPath(), 17123, -1, -1, -1);
+
+		assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(delayed.toPath()));
+		assertFalse(corrupted.exists() && corrupted.length() == source.length(),
+				"the corrupt block was accepted");
+		errorSim.shutdown();
+		relay.join(1000);
+		server.shutdown();
+		client.shutdown();
+
+		for (File f : new File[] { file, source, delayed, corrupted, dir })
+			f.delete();
+	}
+
+	private static String outcomes(ImpairmentScenario.Run run) {
+		StringBuilder lost = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			lost.append(run.match(DATA_2, DATA_2.length, false) == null ? '.' : 'x');
+		return lost.toString();
+	}
+}
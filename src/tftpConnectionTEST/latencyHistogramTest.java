@@ -0,0 +1,50 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.LatencyHistogram;
+
+class latencyHistogramTest {
+
+	// Every percentile must be reported within the 3% bucket precision
+	@Test
+	void percentilesWithinPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++)
+			histogram.record(i);
+
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000, histogram.getMax());
+		assertEquals(50000, histogram.getValueAtPercentile(50), 50000 * 0.03);
+		assertEquals(99000, histogram.getValueAtPercentile(99), 99000 * 0.03);
+		assertEquals(99900, histogram.getValueAtPercentile(99.9), 99900 * 0.03);
+		assertEquals(100000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(3);
+		histogram.record(7);
+		histogram.record(-5); // recorded as 0
+
+		assertEquals(0, histogram.getValueAtPercentile(1));
+		assertEquals(3, histogram.getValueAtPercentile(50));
+		assertEquals(7, histogram.getValueAtPercentile(100));
+		assertEquals(2, histogram.getCountAtOrBelow(3));
+	}
+
+	@Test
+	void hugeValuesAreClamped() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE / 2);
+		assertEquals(1, histogram.getCount());
+		assertEquals(Long.MAX_VALUE / 2, histogram.getValueAtPercentile(50));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+}
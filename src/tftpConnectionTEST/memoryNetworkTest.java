@@ -0,0 +1,104 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.Client;
+import tftpConnection.DatagramTransport;
+import tftpConnection.MemoryNetwork;
+import tftpConnection.Server;
+import tftpConnection.TFTPPacket;
+
+class memoryNetworkTest {
+
+	// A packet arrives with the sender's port, and an empty queue times out
+	@Test
+	void deliversAndTimesOut() throws IOException {
+		MemoryNetwork network = new MemoryNetwork();
+		try (DatagramTransport a = network.open(null, 100);
+				DatagramTransport b = network.open(new InetSocketAddress(7000), 100)) {
+			byte[] msg = TFTPPacket.createAck(3);
+			a.send(new DatagramPacket(msg, msg.length, InetAddress.getLocalHost(), 7000));
+			msg[3] = 9; // the network keeps its own copy
+
+			DatagramPacket received = new DatagramPacket(new byte[516], 516);
+			b.receive(received);
+			assertEquals(4, received.getLength());
+			assertEquals(3, TFTPPacket.getBlockNum(received));
+			assertEquals(a.getLocalPort(), received.getPort());
+			assertThrows(SocketTimeoutException.class, () -> b.receive(received));
+			assertEquals(1, network.getDelivered());
+		}
+	}
+
+	// Ports can't be opened twice, and are free again once closed
+	@Test
+	void portsAreExclusive() throws IOException {
+		MemoryNetwork network = new MemoryNetwork();
+		DatagramTransport first = network.open(new InetSocketAddress(69), 0);
+		assertThrows(BindException.class, () -> network.open(new InetSocketAddress(69), 0));
+		first.close();
+		network.open(new InetSocketAddress(69), 0).close();
+	}
+
+	// Latency holds packets back, loss drops them
+	@Test
+	void latencyAndLoss() throws IOException {
+		MemoryNetwork slow = new MemoryNetwork(50000, 0);
+		try (DatagramTransport a = slow.open(null, 0); DatagramTransport b = slow.open(null, 10)) {
+			byte[] msg = TFTPPacket.createAck(1);
+			a.send(new DatagramPacket(msg, msg.length, InetAddress.getLoopbackAddress(), b.getLocalPort()));
+			DatagramPacket received = new DatagramPacket(new byte[516], 516);
+			assertThrows(SocketTimeoutException.class, () -> b.receive(received)); // not due yet
+			b.setSoTimeout(1000);
+			b.receive(received);
+			assertEquals(1, TFTPPacket.getBlockNum(received));
+		}
+
+		MemoryNetwork lossy = new MemoryNetwork(0, 1);
+		try (DatagramTransport a = lossy.open(null, 0); DatagramTransport b = lossy.open(null, 10)) {
+			byte[] msg = TFTPPacket.createAck(1);
+			a.send(new DatagramPacket(msg, msg.length, InetAddress.getLoopbackAddress(), b.getLocalPort()));
+			DatagramPacket received = new DatagramPacket(new byte[516], 516);
+			assertThrows(SocketTimeoutException.class, () -> b.receive(received));
+			assertEquals(1, lossy.getLost());
+		}
+	}
+
+	// A whole write and read between a client and server that never touch a real socket
+	@Test
+	void transfersInProcess() throws IOException {
+		MemoryNetwork network = new MemoryNetwork();
+		Server server = new Server(69, false, network);
+		Client client = new Client(null, network);
+
+		File dir = Files.createTempDirectory("memory").toFile();
+		File local = new File(dir, "local.txt");
+		char[] text = new char[1300];
+		Arrays.fill(text, 'm');
+		Files.write(local.toPath(), new String(text).getBytes());
+		File uploaded = new File(dir, "uploaded.txt");
+		File downloaded = new File(dir, "downloaded.txt");
+
+		client.establishConnection(TFTPPacket.OP_WRQ, local.getPath(), uploaded.getPath(), 69, -1, -1, -1);
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(uploaded.toPath()));
+		client.establishConnection(TFTPPacket.OP_RRQ, downloaded.getPath(), uploaded.getPath(), 69, -1, -1, -1);
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(downloaded.toPath()));
+		client.shutdown();
+		server.shutdown();
+
+		for (File file : new File[] { local, uploaded, downloaded, dir })
+			file.delete();
+	}
+}
@@ -0,0 +1,140 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.ErrorSimulator;
+import tftpConnection.LatencyHistogram;
+import tftpConnection.MetricsHttpServer;
+import tftpConnection.Server;
+import tftpConnection.TFTPClient;
+import tftpConnection.UdpTransport;
+
+class metricsHttpServerTest {
+
+	private Server server;
+	private ErrorSimulator simulator;
+	private final List<MetricsHttpServer> endpoints = new ArrayList<>();
+
+	@AfterEach
+	void shutdown() {
+		for (MetricsHttpServer endpoint : endpoints)
+			endpoint.stop();
+		if (simulator != null)
+			simulator.shutdown();
+		if (server != null)
+			server.shutdown();
+	}
+
+	private MetricsHttpServer endpoint(tftpConnection.TFTPConnection connection, String role) throws IOException {
+		MetricsHttpServer endpoint = new MetricsHttpServer(0, connection, role);
+		endpoints.add(endpoint);
+		return endpoint;
+	}
+
+	private static String get(MetricsHttpServer endpoint, String path, String contentType) throws IOException {
+		URL url = new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + endpoint.getPort()
+				+ path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertTrue(connection.getContentType().startsWith(contentType), connection.getContentType());
+		try (InputStream in = connection.getInputStream()) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	// A scrape of a server bound to port 0 after a transfer has its counters, and the other pages are valid
+	// while nothing is running
+	@Test
+	void servesTransferCounters() throws Exception {
+		server = new Server(0, false);
+		MetricsHttpServer endpoint = endpoint(server, "server");
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+		File dir = Files.createTempDirectory("metrics").toFile();
+		File remote = new File(dir, "remote.bin");
+		Files.write(remote.toPath(), new byte[1300]);
+		File copy = new File(dir, "copy.bin");
+
+		client.get(remote.getPath(), copy).get();
+		for (int i = 0; i < 50 && server.getMetrics().getActiveTransfers() > 0; i++)
+			Thread.sleep(20);
+		String page = get(endpoint, "/metrics", "text/plain; version=0.0.4");
+		assertTrue(page.contains("# TYPE tftp_packets_received_total counter\n"), page);
+		assertTrue(page.contains("tftp_packets_received_total{role=\"server\",opcode=\"RRQ\"} 1\n"), page);
+		assertTrue(page.contains("tftp_packets_received_total{role=\"server\",opcode=\"ACK\"} 3\n"), page);
+		assertTrue(page.contains("tftp_packets_sent_total{role=\"server\"} 3\n"), page);
+		assertTrue(page.contains("tftp_active_transfers{role=\"server\"} 0\n"), page);
+		assertTrue(page.contains("tftp_transfer_duration_seconds_count{role=\"server\"} 1\n"), page);
+		assertFalse(page.contains("tftp_relay_"), page);
+
+		assertEquals("[\n]\n", get(endpoint, "/transfers", "application/json"));
+		assertEquals("{}\n", get(endpoint, "/relay", "application/json"));
+		if (server.getTimeline() == null)
+			assertEquals("{\"traceEvents\":[]}\n", get(endpoint, "/timeline", "application/json"));
+
+		for (File file : new File[] { remote, copy, dir })
+			file.delete();
+	}
+
+	// Each le bucket counts exactly the values at or below its bound, so the buckets only ever grow
+	@Test
+	void servesExactCumulativeBuckets() throws Exception {
+		server = new Server(0, false);
+		MetricsHttpServer endpoint = endpoint(server, "server");
+		long[] values = { 100, 502, 503, 504, 2600, 2000000 }; // in microseconds, 502 to 504 are around 0.0005 s
+		LatencyHistogram duration = server.getLatency().getTotal().duration;
+		for (long value : values)
+			duration.record(value);
+
+		String prefix = "tftp_transfer_duration_seconds_bucket{role=\"server\",le=\"";
+		long last = 0;
+		int buckets = 0;
+		for (String line : get(endpoint, "/metrics", "text/plain").split("\n")) {
+			if (!line.startsWith(prefix))
+				continue;
+			String le = line.substring(prefix.length(), line.indexOf('"', prefix.length()));
+			long count = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+			long expected = 0;
+			for (long value : values)
+				if (le.equals("+Inf") || value <= Math.round(Double.parseDouble(le) * 1000000))
+					expected++;
+			assertEquals(expected, count, line);
+			assertTrue(count >= last, line);
+			last = count;
+			buckets++;
+		}
+		assertTrue(buckets > 10);
+		assertEquals(values.length, last);
+	}
+
+	// An error simulator's endpoint has the relay's counters by direction and its sessions as JSON
+	@Test
+	void servesRelayStats() throws Exception {
+		server = new Server(0, false);
+		simulator = new ErrorSimulator(0, server.getPort(), false, UdpTransport.FACTORY);
+		MetricsHttpServer endpoint = endpoint(simulator, "esim");
+
+		String page = get(endpoint, "/metrics", "text/plain");
+		assertTrue(page.contains("tftp_relay_packets_total{role=\"esim\",direction=\"toServer\"} 0\n"), page);
+		assertTrue(page.contains("tftp_relay_sessions{role=\"esim\"} 0\n"), page);
+		String relay = get(endpoint, "/relay", "application/json");
+		assertTrue(relay.startsWith("{\"total\":{\"toServer\":{"), relay);
+		assertTrue(relay.endsWith("\"sessions\":[\n]}\n"), relay);
+	}
+}
@@ -0,0 +1,66 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.NetasciiCodec;
+
+class netasciiCodecTest {
+
+	// Translates a stream fed in pieces of chunk bytes into outputs of room bytes
+	private static byte[] translate(NetasciiCodec codec, byte[] data, int chunk, int room) {
+		ByteArrayOutputStream translated = new ByteArrayOutputStream();
+		ByteBuffer out = ByteBuffer.allocate(room);
+		for (int i = 0; i < data.length; i += chunk) {
+			ByteBuffer in = ByteBuffer.wrap(data, i, Math.min(chunk, data.length - i));
+			while (in.hasRemaining() || out.position() == room) {
+				codec.translate(in, out);
+				translated.write(out.array(), 0, out.position());
+				out.clear();
+			}
+		}
+		while (!codec.finish(out)) {
+			translated.write(out.array(), 0, out.position());
+			out.clear();
+		}
+		translated.write(out.array(), 0, out.position());
+		return translated.toByteArray();
+	}
+
+	// Line feeds become CR LF and carriage returns CR NUL
+	@Test
+	void encodesLineEnds() {
+		byte[] file = "a\nb\rc\r\n".getBytes();
+		byte[] netascii = "a\r\nb\r\0c\r\0\r\n".getBytes();
+		assertArrayEquals(netascii, NetasciiCodec.encode(file));
+		assertArrayEquals(file, translate(NetasciiCodec.decoder(), netascii, netascii.length, 64));
+	}
+
+	// Pairs split anywhere between pieces or outputs come out the same
+	@Test
+	void splitsPairsAcrossBlocks() {
+		byte[] file = "\r\nline one\nline two\r\r\n\n\rend\r".getBytes();
+		byte[] netascii = NetasciiCodec.encode(file);
+		for (int chunk = 1; chunk <= 5; chunk++) {
+			for (int room = 1; room <= 5; room++) {
+				assertArrayEquals(netascii, translate(NetasciiCodec.encoder(), file, chunk, room));
+				assertArrayEquals(file, translate(NetasciiCodec.decoder(), netascii, chunk, room));
+			}
+		}
+	}
+
+	// A CR followed by anything but LF or NUL is kept as it is
+	@Test
+	void keepsBareCarriageReturns() {
+		byte[] netascii = "a\rb\r".getBytes();
+		assertArrayEquals(netascii, translate(NetasciiCodec.decoder(), netascii, 1, 1));
+		// the second CR starts a pair of its own
+		byte[] pair = "\r\r\n".getBytes();
+		for (int chunk = 1; chunk <= 3; chunk++)
+			assertArrayEquals("\r\n".getBytes(), translate(NetasciiCodec.decoder(), pair, chunk, 2));
+	}
+}
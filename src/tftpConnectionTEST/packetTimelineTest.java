@@ -0,0 +1,59 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.PacketTimeline;
+
+class packetTimelineTest {
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 1069);
+
+	// A full timeline keeps the newest events, in the order they happened
+	@Test
+	void keepsTheNewestEvents() throws Exception {
+		PacketTimeline timeline = new PacketTimeline(3);
+		for (int block = 1; block <= 5; block++)
+			timeline.record("Server", PacketTimeline.SEND, 3, block, 516, PEER);
+		assertEquals(5, timeline.getRecorded());
+		assertEquals(3, timeline.size());
+
+		StringBuilder json = new StringBuilder();
+		timeline.writeChromeTrace(json);
+		String trace = json.toString();
+		assertFalse(trace.contains("\"send DATA 2\""));
+		assertTrue(trace.indexOf("\"send DATA 3\"") < trace.indexOf("\"send DATA 4\""));
+		assertTrue(trace.indexOf("\"send DATA 4\"") < trace.indexOf("\"send DATA 5\""));
+
+		timeline.clear();
+		assertEquals(0, timeline.size());
+	}
+
+	// Every connection is a process and every event carries its block, length and peer
+	@Test
+	void exportsChromeTraceEvents() throws Exception {
+		PacketTimeline timeline = new PacketTimeline(16);
+		timeline.record("Client", PacketTimeline.SEND, 1, -1, 20, PEER);
+		timeline.record("ErrorSimulator", PacketTimeline.DROP, 3, 2, 516, PEER);
+		timeline.record("Client", PacketTimeline.TIMEOUT, -1, 2, 0, PEER);
+		timeline.record("Client", PacketTimeline.RETRANSMIT, -1, 2, 0, PEER);
+
+		StringBuilder json = new StringBuilder();
+		timeline.writeChromeTrace(json);
+		String trace = json.toString();
+		assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ns\",\"traceEvents\":["));
+		assertTrue(trace.trim().endsWith("]}"));
+		assertTrue(trace.contains("\"name\":\"send RRQ\""));
+		assertTrue(trace.contains("\"name\":\"drop DATA 2\""));
+		assertTrue(trace.contains("\"name\":\"timeout 2\""));
+		assertTrue(trace.contains("\"name\":\"retransmit 2\""));
+		assertTrue(trace.contains("\"args\":{\"block\":2,\"length\":516,\"peer\":\"/127.0.0.1:1069\"}"));
+		assertTrue(trace.contains("\"args\":{\"name\":\"Client\"}"));
+		assertTrue(trace.contains("\"args\":{\"name\":\"ErrorSimulator\"}"));
+		assertTrue(trace.contains("\"name\":\"thread_name\""));
+		assertEquals(trace.chars().filter(c -> c == '{').count(), trace.chars().filter(c -> c == '}').count());
+	}
+}
@@ -0,0 +1,68 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.PartialFile;
+
+class partialFileTest {
+
+	// Only what was journaled is kept when a part is reopened, and completing it renames it to the file
+	@Test
+	void resumesFromJournal() throws IOException {
+		File dir = Files.createTempDirectory("partial").toFile();
+		File target = new File(dir, "file.bin");
+		File part = new File(dir, "file.bin" + PartialFile.PART_SUFFIX);
+		File journal = new File(dir, "file.bin" + PartialFile.PART_SUFFIX + PartialFile.JOURNAL_SUFFIX);
+
+		PartialFile partial = new PartialFile(target, Long.MAX_VALUE, false);
+		assertEquals(0, partial.getOffset());
+		partial.write(new byte[] { 1, 2, 3, 4 });
+		partial.checkpoint();
+		partial.write(new byte[] { 5, 6 }); // written but not yet durable
+		assertEquals(6, partial.getPosition());
+		assertEquals(4, PartialFile.resumeOffset(target));
+		assertThrows(FileAlreadyExistsException.class, () -> new PartialFile(target, 0, false));
+		partial.close();
+		assertEquals(6, PartialFile.resumeOffset(target));
+
+		// a torn write past the journal is dropped
+		Files.write(journal.toPath(), "4\n".getBytes());
+		partial = new PartialFile(target, Long.MAX_VALUE, false);
+		assertEquals(4, partial.getOffset());
+		assertEquals(4, part.length());
+		partial.write(new byte[] { 7 });
+		partial.close();
+
+		// asking for less starts there
+		partial = new PartialFile(target, 2, false);
+		assertEquals(2, partial.getOffset());
+		assertEquals(2, PartialFile.resumeOffset(target));
+		partial.write(new byte[] { 8, 9 });
+		partial.complete();
+		assertArrayEquals(new byte[] { 1, 2, 8, 9 }, Files.readAllBytes(target.toPath()));
+		assertFalse(part.exists());
+		assertFalse(journal.exists());
+		assertEquals(0, PartialFile.resumeOffset(target));
+
+		// an existing file is only replaced when asked to
+		partial = new PartialFile(target, 0, false);
+		partial.write(new byte[] { 10 });
+		assertThrows(FileAlreadyExistsException.class, partial::complete);
+		assertTrue(part.exists());
+		assertArrayEquals(new byte[] { 1, 2, 8, 9 }, Files.readAllBytes(target.toPath()));
+		partial = new PartialFile(target, Long.MAX_VALUE, true);
+		partial.write(new byte[] { 10 });
+		partial.complete();
+		assertArrayEquals(new byte[] { 10 }, Files.readAllBytes(target.toPath()));
+
+		for (File file : new File[] { target, dir })
+			file.delete();
+	}
+}
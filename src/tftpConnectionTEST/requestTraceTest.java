@@ -0,0 +1,64 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.RequestTrace;
+import tftpConnection.TFTPPacket;
+
+class requestTraceTest {
+
+	// Records read back as written, across reopening the trace
+	@Test
+	void recordsRoundTrip() throws IOException {
+		File file = File.createTempFile("trace", ".bin");
+		file.delete();
+		file.deleteOnExit();
+		InetSocketAddress client = new InetSocketAddress(InetAddress.getByName("10.0.0.7"), 4321);
+
+		try (RequestTrace trace = new RequestTrace(file)) {
+			trace.record(new RequestTrace.Record(1000, client, TFTPPacket.OP_RRQ, "boot/pxelinux.0", 26758,
+					RequestTrace.COMPLETE, 1500));
+		}
+		try (RequestTrace trace = new RequestTrace(file)) {
+			trace.record(new RequestTrace.Record(2000, client, TFTPPacket.OP_WRQ, "log.txt", 0,
+					(short) (RequestTrace.ERROR_SENT + 6), 80));
+		}
+
+		List<RequestTrace.Record> records = RequestTrace.read(file);
+		assertEquals(2, records.size());
+		assertEquals(1000, records.get(0).timestamp);
+		assertEquals(client, records.get(0).client);
+		assertEquals(TFTPPacket.OP_RRQ, records.get(0).opcode);
+		assertEquals("boot/pxelinux.0", records.get(0).file);
+		assertEquals(26758, records.get(0).size);
+		assertEquals(RequestTrace.COMPLETE, records.get(0).outcome);
+		assertEquals(1500, records.get(0).durationMicros);
+		assertEquals(RequestTrace.ERROR_SENT + 6, records.get(1).outcome);
+	}
+
+	// A record cut off by a crash ends the trace
+	@Test
+	void ignoresPartialRecord() throws IOException {
+		File file = File.createTempFile("trace", ".bin");
+		file.delete();
+		file.deleteOnExit();
+		InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 69);
+		try (RequestTrace trace = new RequestTrace(file)) {
+			trace.record(new RequestTrace.Record(1, client, TFTPPacket.OP_RRQ, "a", 1, RequestTrace.COMPLETE, 1));
+			trace.record(new RequestTrace.Record(2, client, TFTPPacket.OP_RRQ, "b", 1, RequestTrace.COMPLETE, 1));
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		assertEquals(1, RequestTrace.read(file).size());
+	}
+}
@@ -0,0 +1,431 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.DatagramTransport;
+import tftpConnection.MemoryNetwork;
+import tftpConnection.PartialFile;
+import tftpConnection.Server;
+import tftpConnection.TFTPConfig;
+import tftpConnection.TFTPClient;
+import tftpConnection.TFTPPacket;
+import tftpConnection.TransferException;
+import tftpConnection.TransferOptions;
+import tftpConnection.TransferResult;
+
+class tftpClientTest {
+
+	private final List<Server> servers = new ArrayList<>();
+
+	private Server server(MemoryNetwork network) {
+		Server server = new Server(69, false, network);
+		servers.add(server);
+		return server;
+	}
+
+	@AfterEach
+	void shutdown() {
+		for (Server server : servers)
+			server.shutdown();
+	}
+
+	private TFTPClient client(MemoryNetwork network) throws IOException {
+		server(network);
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		return client;
+	}
+
+	private static File file(File dir, String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) ('a' + i % 26);
+		File file = new File(dir, name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	// A put and a get that negotiate a smaller block size, with progress reported for each block
+	@Test
+	void negotiatesBlockSize() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File local = file(dir, "local.txt", 1300);
+		File uploaded = new File(dir, "uploaded.txt");
+		File downloaded = new File(dir, "downloaded.txt");
+
+		AtomicLong progress = new AtomicLong();
+		TransferOptions options = new TransferOptions().setBlockSize(256)
+				.setProgress((bytes, size) -> progress.set(bytes));
+		TransferResult put = client.put(local, uploaded.getPath(), options).get();
+		assertEquals(256, put.getBlockSize());
+		assertEquals("256", put.getOptions().get("blksize"));
+		assertEquals(1300, put.getBytes());
+		assertEquals(1300, progress.get());
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(uploaded.toPath()));
+
+		// a window larger than one block is answered with 1, the server is lock-step
+		TransferResult get = client.get(uploaded.getPath(), downloaded,
+				new TransferOptions().setBlockSize(300).setWindowSize(4)).get();
+		assertEquals(300, get.getBlockSize());
+		assertEquals("1", get.getOptions().get("windowsize"));
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(downloaded.toPath()));
+
+		for (File file : new File[] { local, uploaded, downloaded, dir })
+			file.delete();
+	}
+
+	// A server whose packet.maxSize is larger than the client's is asked for no more than the client can
+	// receive, and a larger block acknowledged anyway is refused rather than cut short
+	@Test
+	void limitsBlockSizeToPacketSize() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File dir = Files.createTempDirectory("client").toFile();
+		File local = new File(dir, "local.bin");
+		int packetSize = TFTPConfig.get().getMaxPacketSize();
+
+		try (DatagramTransport server = network.open(new InetSocketAddress(69), 2000)) {
+			CompletableFuture<TransferResult> get = client.get("remote.bin", local,
+					new TransferOptions().setBlockSize(packetSize * 2));
+			DatagramPacket request = new DatagramPacket(new byte[packetSize], packetSize);
+			server.receive(request);
+			assertEquals(Integer.toString(packetSize - 4), TFTPPacket.getOptions(request).get("blksize"));
+
+			byte[] oack = TFTPPacket.createOack(Collections.singletonMap("blksize", Integer.toString(packetSize * 2)));
+			server.send(new DatagramPacket(oack, oack.length, request.getSocketAddress()));
+			DatagramPacket answer = new DatagramPacket(new byte[packetSize], packetSize);
+			server.receive(answer);
+			assertEquals(TFTPPacket.OP_ERROR, TFTPPacket.getType(answer));
+			assertEquals(TransferException.OPTIONS_REFUSED, TFTPPacket.getError(answer));
+			ExecutionException refused = assertThrows(ExecutionException.class, () -> get.get());
+			assertEquals(TransferException.OPTIONS_REFUSED, ((TransferException) refused.getCause()).getErrorCode());
+		}
+		assertFalse(local.exists());
+		dir.delete();
+	}
+
+	// Many transfers run at once on the shared executor
+	@Test
+	void runsConcurrentTransfers() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File remote = file(dir, "remote.txt", 5000);
+		List<CompletableFuture<TransferResult>> transfers = new ArrayList<>();
+		for (int i = 0; i < 50; i++)
+			transfers.add(client.get(remote.getPath(), new File(dir, "copy" + i + ".txt")));
+		CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0])).get();
+
+		for (int i = 0; i < 50; i++) {
+			File copy = new File(dir, "copy" + i + ".txt");
+			assertArrayEquals(Files.readAllBytes(remote.toPath()), Files.readAllBytes(copy.toPath()));
+			copy.delete();
+		}
+		remote.delete();
+		dir.delete();
+	}
+
+	// Errors from the server complete the future with their TFTP error code
+	@Test
+	void reportsErrors() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File local = file(dir, "local.txt", 100);
+		File copy = new File(dir, "copy.txt");
+
+		ExecutionException missing = assertThrows(ExecutionException.class,
+				() -> client.get(new File(dir, "missing.txt").getPath(), copy).get());
+		assertEquals(TransferException.FILE_NOT_FOUND, ((TransferException) missing.getCause()).getErrorCode());
+		ExecutionException exists = assertThrows(ExecutionException.class,
+				() -> client.put(local, local.getPath()).get());
+		assertEquals(TransferException.FILE_EXISTS, ((TransferException) exists.getCause()).getErrorCode());
+		assertFalse(copy.exists());
+
+		local.delete();
+		dir.delete();
+	}
+
+	// A cancelled transfer stops before its next block and saves nothing
+	@Test
+	void cancels() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File remote = file(dir, "remote.txt", 20000);
+		File copy = new File(dir, "copy.txt");
+
+		AtomicReference<CompletableFuture<TransferResult>> transfer = new AtomicReference<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch stopped = new CountDownLatch(1);
+		transfer.set(client.get(remote.getPath(), copy, new TransferOptions().setProgress((bytes, size) -> {
+			try {
+				started.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (transfer.get().cancel(true))
+				stopped.countDown();
+		})));
+		started.countDown();
+		stopped.await();
+		assertTrue(transfer.get().isCancelled());
+		while (client.getMetrics().getActiveTransfers() > 0)
+			Thread.sleep(10);
+		assertFalse(copy.exists());
+		assertTrue(client.getMetrics().getBytesReceived() < 20000);
+
+		remote.delete();
+		dir.delete();
+	}
+
+	// A resumable get that is stopped part way keeps what it received and fetches only the rest next time,
+	// and a resumable put sends only what is missing from the server's part of the file
+	@Test
+	void resumesTransfers() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File remote = file(dir, "remote.txt", 20000);
+		File copy = new File(dir, "copy.txt");
+		File part = new File(dir, "copy.txt" + PartialFile.PART_SUFFIX);
+
+		AtomicReference<CompletableFuture<TransferResult>> transfer = new AtomicReference<>();
+		CountDownLatch started = new CountDownLatch(1);
+		transfer.set(client.get(remote.getPath(), copy, new TransferOptions().setResumable(true)
+				.setProgress((bytes, size) -> {
+					try {
+						started.await();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					if (bytes >= 8192)
+						transfer.get().cancel(true);
+				})));
+		started.countDown();
+		assertThrows(Exception.class, () -> transfer.get().get());
+		while (client.getMetrics().getActiveTransfers() > 0)
+			Thread.sleep(10);
+		assertFalse(copy.exists());
+		long received = PartialFile.resumeOffset(copy);
+		assertTrue(received >= 8192 && received < 20000, "kept " + received);
+
+		AtomicLong progress = new AtomicLong();
+		TransferOptions options = new TransferOptions().setResumable(true)
+				.setProgress((bytes, size) -> progress.set(bytes));
+		TransferResult resumed = client.get(remote.getPath(), copy, options).get();
+		assertEquals(20000 - received, resumed.getBytes());
+		assertEquals(20000, progress.get());
+		assertArrayEquals(Files.readAllBytes(remote.toPath()), Files.readAllBytes(copy.toPath()));
+		assertFalse(part.exists());
+		assertFalse(new File(dir, "copy.txt" + PartialFile.PART_SUFFIX + PartialFile.JOURNAL_SUFFIX).exists());
+
+		// the server kept 3000 bytes of an upload that stopped, and more that were never journaled
+		File uploaded = new File(dir, "uploaded.txt");
+		byte[] kept = Arrays.copyOf(Files.readAllBytes(remote.toPath()), 3003);
+		kept[3000] = 'x';
+		Files.write(new File(dir, "uploaded.txt" + PartialFile.PART_SUFFIX).toPath(), kept);
+		File journal = new File(dir, "uploaded.txt" + PartialFile.PART_SUFFIX + PartialFile.JOURNAL_SUFFIX);
+		Files.write(journal.toPath(), "3000\n".getBytes());
+		TransferResult put = client.put(remote, uploaded.getPath(), new TransferOptions().setResumable(true))
+				.get();
+		assertEquals(17000, put.getBytes());
+		assertArrayEquals(Files.readAllBytes(remote.toPath()), Files.readAllBytes(uploaded.toPath()));
+
+		for (File file : new File[] { remote, copy, uploaded, dir })
+			file.delete();
+	}
+
+	// tsize tells a get the file's size up front and a put's size to the server, which refuses one that won't fit
+	@Test
+	void negotiatesTransferSize() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		TFTPClient client = client(network);
+		File dir = Files.createTempDirectory("client").toFile();
+		File local = file(dir, "local.txt", 3000);
+		File uploaded = new File(dir, "uploaded.txt");
+		File downloaded = new File(dir, "downloaded.txt");
+
+		TransferResult put = client.put(local, uploaded.getPath(), new TransferOptions().setTransferSize(true)
+				.setServerTimeout(1)).get();
+		assertEquals("3000", put.getOptions().get("tsize"));
+		assertEquals("1", put.getOptions().get("timeout"));
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(uploaded.toPath()));
+		assertFalse(new File(dir, "uploaded.txt" + PartialFile.PART_SUFFIX).exists());
+
+		List<Long> sizes = Collections.synchronizedList(new ArrayList<>());
+		TransferOptions options = new TransferOptions().setTransferSize(true)
+				.setProgress((bytes, size) -> sizes.add(size));
+		TransferResult get = client.get(uploaded.getPath(), downloaded, options).get();
+		assertEquals("3000", get.getOptions().get("tsize"));
+		assertFalse(sizes.isEmpty());
+		for (long size : sizes)
+			assertEquals(3000, size);
+		assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(downloaded.toPath()));
+
+		// refused before any data is sent
+		try (DatagramTransport socket = network.open(null, 2000)) {
+			String huge = new File(dir, "huge.bin").getPath();
+			byte[] request = TFTPPacket.createRQ(TFTPPacket.OP_WRQ, huge.getBytes(), "octet".getBytes(),
+					Collections.singletonMap("tsize", Long.toString(Long.MAX_VALUE)));
+			socket.send(new DatagramPacket(request, request.length, InetAddress.getLocalHost(), 69));
+			DatagramPacket answer = new DatagramPacket(new byte[516], 516);
+			socket.receive(answer);
+			assertEquals(TFTPPacket.OP_ERROR, TFTPPacket.getType(answer));
+			assertEquals(TransferException.DISK_FULL, TFTPPacket.getError(answer));
+		}
+		assertFalse(new File(dir, "huge.bin").exists());
+		assertFalse(new File(dir, "huge.bin" + PartialFile.PART_SUFFIX).exists());
+
+		for (File file : new File[] { local, uploaded, downloaded, dir })
+			file.delete();
+	}
+
+	// compress=deflate carries text in several times fewer blocks, a hot file is deflated once, and binary
+	// files, zeros and all, still arrive intact
+	@Test
+	void sendsDeflated() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		Server server = server(network);
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File dir = Files.createTempDirectory("client").toFile();
+		File text = new File(dir, "text.txt");
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			lines.append("line ").append(i).append(" of a configuration file\r\n");
+		Files.write(text.toPath(), lines.toString().getBytes());
+		File copy = new File(dir, "copy.txt");
+		File uploaded = new File(dir, "uploaded.txt");
+
+		client.get(text.getPath(), copy).get();
+		long plainPackets = client.getMetrics().getPacketsReceived();
+		TransferOptions options = new TransferOptions().setDeflate(true);
+		TransferResult get = client.get(text.getPath(), copy, options).get();
+		assertEquals("deflate", get.getOptions().get("compress"));
+		assertEquals(text.length(), get.getBytes());
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(copy.toPath()));
+		long deflatedPackets = client.getMetrics().getPacketsReceived() - plainPackets;
+		assertTrue(deflatedPackets * 4 < plainPackets, deflatedPackets + " of " + plainPackets);
+
+		client.get(text.getPath(), copy, options).get();
+		assertEquals(1, server.getCompressionCache().getMisses());
+		assertEquals(1, server.getCompressionCache().getHits());
+
+		TransferResult put = client.put(text, uploaded.getPath(), options).get();
+		assertEquals("deflate", put.getOptions().get("compress"));
+		assertEquals(text.length(), put.getBytes());
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(uploaded.toPath()));
+
+		File binary = new File(dir, "binary.bin");
+		byte[] bytes = new byte[3000];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (i * 7 % 256);
+		Files.write(binary.toPath(), bytes);
+		client.get(binary.getPath(), copy).get();
+		assertArrayEquals(bytes, Files.readAllBytes(copy.toPath()));
+		client.get(binary.getPath(), copy, options).get();
+		assertArrayEquals(bytes, Files.readAllBytes(copy.toPath()));
+
+		for (File file : new File[] { text, copy, uploaded, binary, dir })
+			file.delete();
+	}
+
+	// netascii transfers send line ends as CR LF, split across blocks anywhere, and save them as the file had
+	@Test
+	void translatesNetascii() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		Server server = server(network);
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File dir = Files.createTempDirectory("client").toFile();
+		File text = new File(dir, "text.txt");
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			lines.append("line ").append(i).append(i % 7 == 0 ? "\r" : "").append('\n');
+		Files.write(text.toPath(), lines.toString().getBytes());
+		File copy = new File(dir, "copy.txt");
+		File uploaded = new File(dir, "uploaded.txt");
+
+		// blocks of 9 bytes split many pairs
+		TransferOptions options = new TransferOptions().setNetascii(true).setBlockSize(9);
+		TransferResult get = client.get(text.getPath(), copy, options).get();
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(copy.toPath()));
+		assertEquals(text.length(), get.getBytes());
+		client.get(text.getPath(), copy, options).get();
+		assertEquals(1, server.getCompressionCache().getHits());
+		// the size sent differs from the file's, so none is given
+		get = client.get(text.getPath(), copy, new TransferOptions().setNetascii(true).setTransferSize(true)).get();
+		assertFalse(get.getOptions().containsKey("tsize"));
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(copy.toPath()));
+
+		client.put(text, uploaded.getPath(), options).get();
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(uploaded.toPath()));
+		copy.delete();
+		client.get(text.getPath(), copy, new TransferOptions().setNetascii(true).setDeflate(true)).get();
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(copy.toPath()));
+
+		try (DatagramTransport socket = network.open(null, 2000)) {
+			byte[] request = TFTPPacket.createRQ(TFTPPacket.OP_RRQ, text.getPath().getBytes(),
+					"NetASCII".getBytes());
+			socket.send(new DatagramPacket(request, request.length, InetAddress.getLocalHost(), 69));
+			DatagramPacket answer = new DatagramPacket(new byte[516], 516);
+			socket.receive(answer);
+			assertEquals("line 0\r\0\r\nline 1\r\n", new String(TFTPPacket.getByteData(answer), 0, 18));
+		}
+
+		for (File file : new File[] { text, copy, uploaded, dir })
+			file.delete();
+	}
+
+	// A file fetched as ranges on separate TIDs at once is written back together in place
+	@Test
+	void downloadsInSegments() throws Exception {
+		TFTPClient client = client(new MemoryNetwork());
+		File dir = Files.createTempDirectory("client").toFile();
+		File remote = file(dir, "remote.txt", 100001);
+		File copy = new File(dir, "copy.txt");
+
+		AtomicLong progress = new AtomicLong(), buffered = new AtomicLong();
+		TransferOptions options = new TransferOptions().setProgress((bytes, size) -> {
+			progress.accumulateAndGet(bytes, Math::max);
+			buffered.accumulateAndGet(client.getMetrics().getBufferedBytes(), Math::max);
+		});
+		TransferResult result = client.getSegmented(remote.getPath(), copy, 3, options).get();
+		assertEquals(100001, result.getBytes());
+		assertEquals(100001, progress.get());
+		assertEquals(0, buffered.get()); // each block is written into place as it arrives
+		assertArrayEquals(Files.readAllBytes(remote.toPath()), Files.readAllBytes(copy.toPath()));
+
+		// a file smaller than a block is fetched as a single range
+		File small = file(dir, "small.txt", 100);
+		client.getSegmented(small.getPath(), copy, 4, new TransferOptions()).get();
+		assertArrayEquals(Files.readAllBytes(small.toPath()), Files.readAllBytes(copy.toPath()));
+
+		String missingFile = new File(dir, "missing.txt").getPath();
+		ExecutionException missing = assertThrows(ExecutionException.class,
+				() -> client.getSegmented(missingFile, copy, 4, new TransferOptions()).get());
+		assertEquals(TransferException.FILE_NOT_FOUND, ((TransferException) missing.getCause()).getErrorCode());
+		assertFalse(copy.exists());
+
+		for (File file : new File[] { remote, small, dir })
+			file.delete();
+	}
+}
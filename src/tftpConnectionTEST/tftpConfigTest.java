@@ -0,0 +1,73 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.TFTPConfig;
+
+class tftpConfigTest {
+
+	private File writeConfig(String contents) throws IOException {
+		File file = File.createTempFile("tftp", ".properties");
+		file.deleteOnExit();
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write(contents);
+		}
+		return file;
+	}
+
+	// Missing keys fall back to the old compile time constants
+	@Test
+	void defaultsWhenFileMissing() {
+		TFTPConfig config = TFTPConfig.load(new File("does_not_exist.properties"));
+		assertEquals(69, config.getServerPort());
+		assertEquals(23, config.getEsimPort());
+		assertEquals(516, config.getMaxPacketSize());
+		assertEquals(5, config.getTransmitLimit());
+		assertEquals(2000, config.getHandlerTimeout());
+		assertEquals(10000, config.getSimulatorTimeout());
+	}
+
+	@Test
+	void readsValuesFromFile() throws IOException {
+		TFTPConfig config = TFTPConfig.load(writeConfig("transmit.limit=8\nhandler.timeout=500\n"));
+		assertEquals(8, config.getTransmitLimit());
+		assertEquals(500, config.getHandlerTimeout());
+	}
+
+	@Test
+	void rejectsInvalidValues() throws IOException {
+		File notANumber = writeConfig("handler.timeout=soon\n");
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> TFTPConfig.load(notANumber));
+		assertTrue(e.getMessage().contains(notANumber.getName()), e.getMessage());
+
+		File tooSmall = writeConfig("packet.maxSize=100\n");
+		assertThrows(IllegalArgumentException.class, () -> TFTPConfig.load(tooSmall));
+
+		File samePorts = writeConfig("server.port=23\n");
+		assertThrows(IllegalArgumentException.class, () -> TFTPConfig.load(samePorts));
+
+		File badNetwork = writeConfig("esim.network.toServer=loss=2\n");
+		assertThrows(IllegalArgumentException.class, () -> TFTPConfig.load(badNetwork));
+	}
+
+	// A removed listener isn't run by later reloads
+	@Test
+	void removesListeners() {
+		AtomicInteger runs = new AtomicInteger();
+		Consumer<TFTPConfig> listener = config -> runs.incrementAndGet();
+		TFTPConfig.addListener(listener);
+		TFTPConfig.reload();
+		TFTPConfig.removeListener(listener);
+		TFTPConfig.reload();
+		assertEquals(1, runs.get());
+	}
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.io.*;
@@ -35,6 +36,128 @@ public class tftpConnectionTest extends TFTPConnection {
 
 	}
 
+	// A binary file, zero bytes included, must survive being split into DATA packets and read back
+	@Test
+	public void binaryDataRoundTrip() {
+		byte[] file = new byte[1300];
+		for (int i = 0; i < file.length; i++)
+			file[i] = (byte) (i * 7);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		for (int i = 0, block = 1; i < file.length; i += 512, block++) {
+			byte[] contents = Arrays.copyOfRange(file, i, Math.min(i + 512, file.length));
+			byte[] data = TFTPPacket.createData(block, contents);
+			DatagramPacket packet = new DatagramPacket(data, data.length);
+
+			assertTrue(validatePacket(packet, null));
+			assertEquals(contents.length, TFTPPacket.getDataLength(packet));
+			byte[] payload = TFTPPacket.getByteData(packet);
+			received.write(payload, 0, payload.length);
+		}
+		assertArrayEquals(file, received.toByteArray());
+	}
+
+	// Every well formed packet type must pass validation
+	@Test
+	public void validatePacketTest() {
+		byte[] file = "test.txt".getBytes();
+		byte[] contents = new byte[512];
+		byte[] rrq, wrq, data, ack, error;
+
+		for (int i = 0; i < contents.length; i++)
+			contents[i] = (byte) (Math.random() * 24 + 66);
+
+		rrq = TFTPPacket.createRQ((byte) 1, file, "netascii".getBytes());
+		wrq = TFTPPacket.createRQ((byte) 2, file, "netascii".getBytes());
+		data = TFTPPacket.createData(5, contents);
+		ack = TFTPPacket.createAck(5);
+		error = TFTPPacket.createError((byte) 1, "octet".getBytes());
+
+		assertTrue(validatePacket(new DatagramPacket(rrq, rrq.length), null));
+		assertTrue(validatePacket(new DatagramPacket(wrq, wrq.length), null));
+		assertTrue(validatePacket(new DatagramPacket(data, data.length), null));
+		assertTrue(validatePacket(new DatagramPacket(ack, ack.length), null));
+		assertTrue(validatePacket(new DatagramPacket(error, error.length), null));
+	}
+
+	// Truncated packets must be rejected
+	@Test
+	public void validatePacketRejectsInvalid() {
+		byte[] shortAck = new byte[] { 0, TFTPPacket.OP_ACK, 0 };
+		byte[] badOpcode = new byte[] { 0, 9, 0, 1 };
+
+		assertThrows(IllegalArgumentException.class,
+				() -> validatePacket(new DatagramPacket(shortAck, shortAck.length), null));
+		assertThrows(IllegalArgumentException.class,
+				() -> validatePacket(new DatagramPacket(badOpcode, badOpcode.length), null));
+	}
+
+	// Empty files and files ending on a full block end with an empty block
+	@Test
+	public void readFileShortLastBlock() throws IOException {
+		File file = File.createTempFile("readFile", ".txt");
+		try {
+			ArrayList<byte[]> blocks = readFile(file.getPath());
+			assertEquals(1, blocks.size());
+			assertEquals(0, blocks.get(0).length);
+
+			java.nio.file.Files.write(file.toPath(), new byte[1024]);
+			blocks = readFile(file.getPath());
+			assertEquals(3, blocks.size());
+			assertEquals(0, blocks.get(2).length);
+		} finally {
+			file.delete();
+		}
+	}
+
+	// A range is read block by block in each form it can be sent in, without a cache to take it from
+	@Test
+	public void readFileTranslatesRanges() throws IOException {
+		File file = File.createTempFile("readFile", ".txt");
+		try {
+			StringBuilder lines = new StringBuilder();
+			for (int i = 0; i < 3000; i++)
+				lines.append("line ").append(i).append(i % 5 == 0 ? "\r" : "").append('\n');
+			byte[] bytes = lines.toString().getBytes();
+			java.nio.file.Files.write(file.toPath(), bytes);
+			rangeOffset = 1000;
+			rangeLength = 20000;
+			byte[] range = Arrays.copyOfRange(bytes, 1000, 21000);
+			for (boolean ascii : new boolean[] { false, true }) {
+				for (boolean deflated : new boolean[] { false, true }) {
+					netascii = ascii;
+					deflate = deflated;
+					ArrayList<byte[]> blocks = readFile(file.getPath());
+					ByteArrayOutputStream sent = new ByteArrayOutputStream();
+					for (int i = 0; i < blocks.size(); i++) {
+						assertEquals(i < blocks.size() - 1, blocks.get(i).length == blockSize);
+						sent.write(blocks.get(i));
+					}
+					byte[] form = deflated ? new java.util.zip.InflaterInputStream(
+							new ByteArrayInputStream(sent.toByteArray())).readAllBytes() : sent.toByteArray();
+					assertArrayEquals(ascii ? NetasciiCodec.encode(range) : range, form, ascii + " " + deflated);
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	// Closing the socket while a block waits for its ACK stops the transfer as cancelled
+	@Test
+	public void stopsWhenSocketCloses() throws Exception {
+		DatagramTransport socket = new MemoryNetwork().open(null, 0);
+		ArrayList<byte[]> data = new ArrayList<>(Arrays.asList(new byte[512], new byte[0]));
+		InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9999);
+		Thread sender = new Thread(() -> sendFile(data, peer, socket));
+		sender.start();
+		Thread.sleep(200);
+		socket.close();
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		assertEquals(TransferException.CANCELLED, getFailure().getErrorCode());
+	}
+
 	@Override
 	public void takeInput(String s) {
 		// TODO Auto-generated method stub
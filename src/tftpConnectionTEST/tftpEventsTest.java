@@ -0,0 +1,129 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import tftpConnection.MemoryNetwork;
+import tftpConnection.Server;
+import tftpConnection.TFTPClient;
+import tftpConnection.TFTPPacket;
+import tftpConnection.TransferOptions;
+
+class tftpEventsTest {
+
+	private Server server;
+	private Recording recording;
+
+	@AfterEach
+	void shutdown() {
+		if (recording != null)
+			recording.close();
+		if (server != null)
+			server.shutdown();
+	}
+
+	// Starts recording every TFTP event, whatever its duration
+	private void record() {
+		recording = new Recording();
+		for (String name : new String[] { "PacketSent", "PacketReceived", "InvalidPacket", "Timeout", "Retransmit",
+				"Transfer" })
+			recording.enable("tftpConnection." + name).withThreshold(Duration.ZERO);
+		recording.start();
+	}
+
+	// Stops recording and reads back what was recorded
+	private List<RecordedEvent> stop() throws Exception {
+		recording.stop();
+		Path dump = Files.createTempFile("tftp", ".jfr");
+		try {
+			recording.dump(dump);
+			return RecordingFile.readAllEvents(dump);
+		} finally {
+			Files.delete(dump);
+		}
+	}
+
+	private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+		return events.stream().filter(event -> event.getEventType().getName().equals("tftpConnection." + name))
+				.collect(Collectors.toList());
+	}
+
+	// A served read records each packet on both sides and the transfer once it ends
+	@Test
+	void recordsPacketsAndTransfers() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		server = new Server(69, false, network);
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File dir = Files.createTempDirectory("events").toFile();
+		File remote = new File(dir, "remote.bin");
+		Files.write(remote.toPath(), new byte[1300]);
+		File copy = new File(dir, "copy.bin");
+
+		record();
+		client.get(remote.getPath(), copy).get();
+		for (int i = 0; i < 50 && server.getMetrics().getActiveTransfers() > 0; i++)
+			Thread.sleep(20);
+		List<RecordedEvent> events = stop();
+
+		List<RecordedEvent> sent = named(events, "PacketSent");
+		assertEquals(3 + 4, sent.size()); // DATA 1 to 3 from the server, the RRQ and ACK 1 to 3 from the client
+		assertEquals(3, sent.stream().filter(event -> event.getInt("opcode") == TFTPPacket.OP_DATA).count());
+		assertEquals(3 * 4 + 1300, sent.stream().filter(event -> event.getInt("opcode") == TFTPPacket.OP_DATA)
+				.mapToLong(event -> event.getInt("length")).sum());
+		List<RecordedEvent> received = named(events, "PacketReceived");
+		assertEquals(1, received.stream().filter(event -> event.getInt("opcode") == TFTPPacket.OP_RRQ).count());
+		assertEquals(3, received.stream().filter(event -> event.getInt("opcode") == TFTPPacket.OP_ACK).count());
+
+		List<RecordedEvent> transfers = named(events, "Transfer");
+		assertEquals(1, transfers.size());
+		assertEquals(remote.getPath(), transfers.get(0).getString("file"));
+		assertEquals("RRQ", transfers.get(0).getString("request"));
+		assertEquals(3 * 4 + 1300, transfers.get(0).getLong("bytesSent"));
+		assertEquals(0, transfers.get(0).getLong("retransmissions"));
+		assertTrue(named(events, "Timeout").isEmpty());
+
+		for (File file : new File[] { remote, copy, dir })
+			file.delete();
+	}
+
+	// An unanswered request records a timeout for each attempt, the last giving up, and a retransmit between
+	@Test
+	void recordsTimeoutsAndRetransmits() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File copy = Files.createTempFile("events", ".bin").toFile();
+
+		record();
+		assertThrows(ExecutionException.class,
+				() -> client.get("missing", copy, new TransferOptions().setTimeout(20)).get());
+		List<RecordedEvent> events = stop();
+
+		List<RecordedEvent> timeouts = named(events, "Timeout");
+		int attempts = timeouts.size();
+		assertTrue(attempts > 1);
+		for (int i = 0; i < attempts; i++) {
+			assertEquals(i + 1, timeouts.get(i).getInt("attempt"));
+			assertEquals(i == attempts - 1, timeouts.get(i).getBoolean("gaveUp"));
+		}
+		assertEquals(attempts - 1, named(events, "Retransmit").size());
+		assertEquals(attempts, named(events, "PacketSent").size());
+		copy.delete();
+	}
+}
@@ -0,0 +1,80 @@
+package tftpConnectionTEST;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import tftpConnection.MemoryNetwork;
+import tftpConnection.Server;
+import tftpConnection.TFTPClient;
+import tftpConnection.TransferMetrics;
+import tftpConnection.TransferOptions;
+
+class transferMetricsTest {
+
+	private Server server;
+
+	@AfterEach
+	void shutdown() {
+		if (server != null)
+			server.shutdown();
+	}
+
+	// Waits for the server's side of the last transfer, which ends once it has the last ACK or sent an ERROR
+	private static void awaitIdle(TransferMetrics metrics) throws InterruptedException {
+		for (int i = 0; i < 50 && metrics.getActiveTransfers() > 0; i++)
+			Thread.sleep(20);
+		assertEquals(0, metrics.getActiveTransfers());
+	}
+
+	// Each transfer's packets are counted by opcode and add up in the totals of the server and the client
+	@Test
+	void countsLoopbackTransfers() throws Exception {
+		MemoryNetwork network = new MemoryNetwork();
+		server = new Server(69, false, network);
+		TFTPClient client = new TFTPClient(new InetSocketAddress(InetAddress.getLocalHost(), 69));
+		client.setTransports(network);
+		File dir = Files.createTempDirectory("metrics").toFile();
+		File remote = new File(dir, "remote.bin");
+		Files.write(remote.toPath(), new byte[1300]);
+		File copy = new File(dir, "copy.bin");
+		TransferMetrics served = server.getMetrics(), fetched = client.getMetrics();
+
+		// blocks of 512, 512 and 276 bytes
+		client.get(remote.getPath(), copy).get();
+		awaitIdle(served);
+		assertEquals(1, (long) served.getPacketsReceivedByOpcode().get("RRQ"));
+		assertEquals(3, (long) served.getPacketsReceivedByOpcode().get("ACK"));
+		assertEquals(3, served.getPacketsSent());
+		assertEquals(3 * 4 + 1300, served.getBytesSent());
+		assertEquals(3, (long) fetched.getPacketsReceivedByOpcode().get("DATA"));
+		assertEquals(3 * 4 + 1300, fetched.getBytesReceived());
+		assertEquals(4, fetched.getPacketsSent());
+		assertEquals(0, served.getBufferedBytes());
+		assertEquals(0, fetched.getBufferedBytes());
+
+		// options are acknowledged with an OACK and answered with ACK 0, then blocks of 400 bytes follow
+		client.get(remote.getPath(), copy, new TransferOptions().setBlockSize(400)).get();
+		awaitIdle(served);
+		assertEquals(1, (long) fetched.getPacketsReceivedByOpcode().get("OACK"));
+		assertEquals(3 + 4, (long) fetched.getPacketsReceivedByOpcode().get("DATA"));
+		assertEquals(3 + 1 + 4, (long) served.getPacketsReceivedByOpcode().get("ACK"));
+		assertEquals(0, (long) fetched.getPacketsReceivedByOpcode().get("other"));
+
+		assertThrows(ExecutionException.class, () -> client.get(new File(dir, "missing").getPath(), copy).get());
+		awaitIdle(served); // the ERROR is counted once sent, which may be after it arrives
+		assertEquals(1, (long) served.getErrorPacketsSent().get("1"));
+		assertEquals(1, (long) fetched.getErrorPacketsReceived().get("1"));
+		assertEquals(0, fetched.getRetransmissions());
+
+		for (File file : new File[] { remote, copy, dir })
+			file.delete();
+	}
+}